@@ -419,13 +419,31 @@ public class NetworkEngineMessageHandler implements AMQPMessageHandler {
       // Let's start by reading in the URI/file. If the first character is a slash
       // then we'll assume it's a file, otherwise we'll assume it's a URI. Note, this may not
       // work on windows.
+      // A version 2 file on a local disk is memory mapped and its values are walked in
+      // place. Anything else is read into memory. Either way the values are walked
+      // through the same SimilarityMatrix interface.
       SimilarityFile theFile = new SimilarityFile();
+      SimilarityMatrix theMatrix = null;
       try {
-          theFile.readFromURL(inputURI);
+          String localPath = getLocalPath(inputURI);
+          if (null != localPath && 
+              SimilarityFileFormat.getFormatVersion(localPath) == SimilarityFileFormat.VERSION) {
+              MappedSimilarityFile theMappedFile = MappedSimilarityFile.open(localPath);
+              theFile.setNameSpace(theMappedFile.getNameSpace());
+              theFile.setSimilarityInstanceId(theMappedFile.getSimilarityInstanceId());
+              theFile.setCollectionIds(theMappedFile.getCollectionIds());
+              theMatrix = theMappedFile;
+          } else {
+              theFile.readFromURL(inputURI);
+              theMatrix = theFile.getMatrix();
+          }
       } catch (Exception e) {
           this.logger.log (Level.SEVERE, "exception in processInsertSimilarityMatrixJavaMessage: "+ e.getMessage(), e);
           e.printStackTrace();
       }
+      if (null == theMatrix) {
+          return;
+      }
       String nameSpace = theFile.getNameSpace();
 
       // Here is a classic space vs time tradeoff: we are going to keep all of the Node
@@ -449,16 +467,40 @@ public class NetworkEngineMessageHandler implements AMQPMessageHandler {
           }
       }
 
-      // Add the similarity matrix as relationships between nodes.
-      org.la4j.matrix.sparse.CRSMatrix theMatrix = theFile.getSimilarityMatrix();
-
       // Create an instance of the inserter class, which actually does all the work.
       RelationshipInserter theInserter = 
           new RelationshipInserter(nodeList, theNetworkRelationshipDAO, theFile.getSimilarityInstanceId());
+
+      // Add the similarity matrix as relationships between nodes.
       theMatrix.eachNonZero(theInserter);
+      try {
+          theMatrix.close();
+      } catch (IOException e) {
+          this.logger.log (Level.WARNING, "Can't close " + inputURI + ": " + e.getMessage());
+      }
  
   }
 
+  /**
+   * Get the local file named by a file URL or an absolute path.
+   *
+   * @param inputURI The URI from the message.
+   * @return the path, or null if the URI isn't a local file.
+   */
+  private String getLocalPath(String inputURI) {
+      if (inputURI.startsWith("/")) {
+          return inputURI;
+      }
+      if (inputURI.startsWith("file:")) {
+          try {
+              return new File(new URI(inputURI)).getPath();
+          } catch (Exception e) {
+              return null;
+          }
+      }
+      return null;
+  }
+
     /**
      * Handle the RUN_SNA_ALGORITHM_JAVA_NETWORKDB message by executing the specified
      * code to run the SNA algorithm.
@@ -0,0 +1,166 @@
+package org.renci.databridge.engines.relevance;
+import java.util.Arrays;
+
+
+/**
+ * The pairs of collections that are worth comparing, as a sorted list of column indices
+ * for each row.  Only pairs (i, j) with i < j are stored.  The SimilarityEngine uses one
+ * of these to skip the pairs in a tile that are not candidates.
+ *
+ * The same pair is usually added once for each LSH band it shares, so a row's buffer is
+ * sorted and its duplicates removed whenever it fills, and it only grows if that leaves
+ * it more than half full.  A row's buffer never gets past four times its distinct
+ * pairs.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class CandidateSet {
+
+   /** The candidates for each row. Only the first rowSizes[i] entries are valid. */
+   private int[][] rowCandidates;
+   private int[] rowSizes;
+
+   /** Set once the rows have been sorted and duplicates removed */
+   private boolean isFinished = false;
+
+   private static final int[] EMPTY = new int[0];
+
+   /**
+    * CandidateSet constructor.
+    *
+    * @param n The number of collections.
+    */
+   public CandidateSet(int n) {
+      this.rowCandidates = new int[n][];
+      this.rowSizes = new int[n];
+   }
+
+   /**
+    * Add the pair (i, j).  The order of i and j doesn't matter, and adding a pair more
+    * than once is harmless.  Pairs can't be added after finish is called.
+    *
+    * @param i The index of one collection.
+    * @param j The index of the other collection.
+    */
+   public void addPair(int i, int j) {
+      if (isFinished) {
+         throw new IllegalStateException("CandidateSet is already finished");
+      }
+      if (i == j) {
+         return;
+      }
+      int row = Math.min(i, j);
+      int col = Math.max(i, j);
+      int[] theRow = rowCandidates[row];
+      if (null == theRow) {
+         theRow = rowCandidates[row] = new int[4];
+      } else if (rowSizes[row] == theRow.length) {
+         compact(row);
+         if (rowSizes[row] > theRow.length / 2) {
+            theRow = rowCandidates[row] = Arrays.copyOf(theRow, theRow.length * 2);
+         }
+      }
+      theRow[rowSizes[row]++] = col;
+   }
+
+   /**
+    * Sort each row and remove the duplicates.  Called once all of the pairs are added.
+    */
+   public void finish() {
+      for (int i = 0; i < rowCandidates.length; i++) {
+         int[] theRow = rowCandidates[i];
+         if (null == theRow) {
+            rowCandidates[i] = EMPTY;
+            continue;
+         }
+         compact(i);
+         int size = rowSizes[i];
+         rowCandidates[i] = (size == theRow.length) ? theRow : Arrays.copyOf(theRow, size);
+      }
+      isFinished = true;
+   }
+
+   /**
+    * Sort a row and remove its duplicates in place.
+    *
+    * @param row The row.
+    */
+   private void compact(int row) {
+      int[] theRow = rowCandidates[row];
+      Arrays.sort(theRow, 0, rowSizes[row]);
+      int size = 0;
+      for (int k = 0; k < rowSizes[row]; k++) {
+         if (size == 0 || theRow[size - 1] != theRow[k]) {
+            theRow[size++] = theRow[k];
+         }
+      }
+      rowSizes[row] = size;
+   }
+
+   /**
+    * Get the number of collections.
+    *
+    * @return the number of rows.
+    */
+   public int getN() {
+      return rowCandidates.length;
+   }
+
+   /**
+    * Get the sorted candidate columns for a row. Every column is greater than the row.
+    * Only valid after finish is called.
+    *
+    * @param row The row.
+    * @return the candidates, which must not be modified.
+    */
+   public int[] getCandidates(int row) {
+      return rowCandidates[row];
+   }
+
+   /**
+    * Get the number of candidate pairs.
+    *
+    * @return the number of pairs.
+    */
+   public long getPairCount() {
+      long count = 0;
+      for (int i = 0; i < rowSizes.length; i++) {
+         count += rowSizes[i];
+      }
+      return count;
+   }
+
+   /**
+    * Is (i, j) a candidate pair?
+    *
+    * @param i The index of one collection.
+    * @param j The index of the other collection.
+    * @return true if the pair was added.
+    */
+   public boolean contains(int i, int j) {
+      int row = Math.min(i, j);
+      return Arrays.binarySearch(rowCandidates[row], 0, rowSizes[row], Math.max(i, j)) >= 0;
+   }
+
+   /**
+    * Get the position of the first candidate in the row that is >= col.
+    *
+    * @param row The row.
+    * @param col The column to look for.
+    * @return the position in getCandidates(row).
+    */
+   public int lowerBound(int row, int col) {
+      int[] theRow = rowCandidates[row];
+      int low = 0;
+      int high = rowSizes[row];
+      while (low < high) {
+         int mid = (low + high) >>> 1;
+         if (theRow[mid] < col) {
+            low = mid + 1;
+         } else {
+            high = mid;
+         }
+      }
+      return low;
+   }
+}
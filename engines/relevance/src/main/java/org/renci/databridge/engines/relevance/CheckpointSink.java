@@ -0,0 +1,162 @@
+package org.renci.databridge.engines.relevance;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import java.util.List;
+import java.io.*;
+import java.nio.ByteBuffer;
+
+
+/**
+ * A TileSink that records every tile it passes on in a checkpoint file, so a job that
+ * dies part way through can be picked up again.  The records go into a buffered stream
+ * as the tiles arrive, and every intervalMillis the stream is flushed and forced to
+ * disk.  See SimilarityCheckpoint for the file format.
+ *
+ * When a job is resumed, the sink is given the values already in the checkpoint.  They
+ * are passed on when the sink is started, but not recorded again.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class CheckpointSink implements TileSink {
+
+   private Logger logger = Logger.getLogger ("org.renci.databridge.engine.relevance");
+
+   private TileSink downstream;
+   private FileOutputStream fileStream;
+   private DataOutputStream output;
+   private long intervalMillis;
+   private long lastForced;
+   private TileResult restoredValues;
+
+   /** Set if writing the checkpoint failed. The job carries on without it. */
+   private boolean isBroken = false;
+
+   /**
+    * Constructor for a new checkpoint file.
+    *
+    * @param path The checkpoint file.
+    * @param similarityInstanceId The similarity instance being built.
+    * @param collectionIds The collection ids in matrix order.
+    * @param tileSize The tile size of the schedule.
+    * @param firstColumn The first column of the schedule.
+    * @param intervalMillis How often to force the file to disk.
+    * @param downstream The sink that receives the tiles.
+    */
+   public CheckpointSink(String path, String similarityInstanceId, List<String> collectionIds,
+                         int tileSize, int firstColumn, long intervalMillis,
+                         TileSink downstream) throws IOException {
+      this.downstream = downstream;
+      this.intervalMillis = intervalMillis;
+      this.fileStream = new FileOutputStream(path);
+      this.output = new DataOutputStream(new BufferedOutputStream(fileStream, 1 << 16));
+      output.writeInt(SimilarityCheckpoint.MAGIC);
+      output.writeInt(SimilarityCheckpoint.VERSION);
+      output.writeUTF(similarityInstanceId);
+      output.writeInt(tileSize);
+      output.writeInt(firstColumn);
+      output.writeInt(collectionIds.size());
+      for (String theId : collectionIds) {
+         output.writeUTF(theId);
+      }
+      force();
+   }
+
+   /**
+    * Constructor to carry on with an existing checkpoint file.  Anything after the last
+    * good record is cut off first.
+    *
+    * @param path The checkpoint file.
+    * @param theCheckpoint The checkpoint as read from the file.
+    * @param intervalMillis How often to force the file to disk.
+    * @param downstream The sink that receives the tiles.
+    */
+   public CheckpointSink(String path, SimilarityCheckpoint theCheckpoint, long intervalMillis,
+                         TileSink downstream) throws IOException {
+      this.downstream = downstream;
+      this.intervalMillis = intervalMillis;
+      this.restoredValues = theCheckpoint.getSavedValues();
+      this.fileStream = new FileOutputStream(path, true);
+      this.fileStream.getChannel().truncate(theCheckpoint.getValidLength());
+      this.output = new DataOutputStream(new BufferedOutputStream(fileStream, 1 << 16));
+      this.lastForced = System.currentTimeMillis();
+   }
+
+   public void start(int n, boolean isSymmetric) {
+      downstream.start(n, isSymmetric);
+      if (null != restoredValues) {
+         downstream.acceptTile(restoredValues);
+         restoredValues = null;
+      }
+   }
+
+   public void acceptTile(TileResult theResult) {
+      downstream.acceptTile(theResult);
+      record(theResult);
+   }
+
+   public void finish() {
+      downstream.finish();
+      close();
+   }
+
+   /**
+    * Close the checkpoint file.  The file itself is left for the caller to delete once
+    * the output file is safely written.
+    */
+   public synchronized void close() {
+      if (null == output) {
+         return;
+      }
+      try {
+         output.close();
+      } catch (IOException e) {
+         this.logger.log (Level.WARNING, "Can't close checkpoint: " + e.getMessage());
+      }
+      output = null;
+   }
+
+   /**
+    * Append one record and force the file to disk if it's been long enough.
+    */
+   private synchronized void record(TileResult theResult) {
+      if (isBroken || null == output) {
+         return;
+      }
+      int count = theResult.getCount();
+      int length = 8 + 16 * count;
+      ByteBuffer theRecord = ByteBuffer.allocate(length);
+      theRecord.putInt(null == theResult.getTile() ? -1 : theResult.getTile().getIndex());
+      theRecord.putInt(count);
+      int[] rows = theResult.getRows();
+      int[] cols = theResult.getCols();
+      double[] values = theResult.getValues();
+      for (int k = 0; k < count; k++) {
+         theRecord.putInt(rows[k]);
+      }
+      for (int k = 0; k < count; k++) {
+         theRecord.putInt(cols[k]);
+      }
+      for (int k = 0; k < count; k++) {
+         theRecord.putDouble(values[k]);
+      }
+      try {
+         output.write(theRecord.array(), 0, length);
+         output.writeLong(SimilarityCheckpoint.checksum(theRecord.array(), length));
+         if (System.currentTimeMillis() - lastForced >= intervalMillis) {
+            force();
+         }
+      } catch (IOException e) {
+         this.logger.log (Level.WARNING, "Can't write checkpoint, carrying on without it: " + e.getMessage());
+         isBroken = true;
+      }
+   }
+
+   /**
+    * Flush the buffer and make sure it's on the disk.
+    */
+   private void force() throws IOException {
+      output.flush();
+      fileStream.getChannel().force(false);
+      lastForced = System.currentTimeMillis();
+   }
+}
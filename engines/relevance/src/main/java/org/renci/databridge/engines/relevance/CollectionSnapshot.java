@@ -0,0 +1,140 @@
+package org.renci.databridge.engines.relevance;
+import org.renci.databridge.persistence.metadata.*;
+import java.util.*;
+
+
+/**
+ * An indexed, in memory copy of the collections in a nameSpace. The relevance engine
+ * reads the metadata database once into one of these and then addresses the
+ * collections by their position, which is also their row and column in the
+ * similarity matrix.  This replaces re-opening a database cursor for every row.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class CollectionSnapshot {
+
+   /** The collections, in the order they were returned by the database. */
+   private ArrayList<CollectionTransferObject> collections;
+
+   /** The dataStoreIds of the collections, in the same order. */
+   private ArrayList<String> collectionIds;
+
+   /** Map from dataStoreId to index. Built on first use. */
+   private HashMap<String, Integer> indexMap;
+
+   /**
+    * CollectionSnapshot constructor with an expected size.
+    *
+    * @param expectedSize The number of collections we expect to add.
+    */
+   public CollectionSnapshot(int expectedSize) {
+      this.collections = new ArrayList<CollectionTransferObject>(expectedSize);
+      this.collectionIds = new ArrayList<String>(expectedSize);
+   }
+
+   /**
+    * Read every collection that matches the searchMap into a new snapshot.
+    *
+    * @param theCollectionDAO The DAO used to read the collections.
+    * @param searchMap The search keys, typically just the nameSpace.
+    * @param expectedSize The expected number of collections, used to size the lists.
+    */
+   public static CollectionSnapshot load(CollectionDAO theCollectionDAO,
+                                         HashMap<String, String> searchMap,
+                                         int expectedSize) {
+      CollectionSnapshot theSnapshot = new CollectionSnapshot(expectedSize);
+      Iterator<CollectionTransferObject> theIterator = theCollectionDAO.getCollections(searchMap);
+      while (theIterator.hasNext()) {
+         CollectionTransferObject theCollection = theIterator.next();
+         if (null != theCollection) {
+            theSnapshot.add(theCollection);
+         }
+      }
+      return theSnapshot;
+   }
+
+   /**
+    * Add a collection at the end of the snapshot.
+    *
+    * @param theCollection The collection to add.
+    */
+   public void add(CollectionTransferObject theCollection) {
+      this.collections.add(theCollection);
+      this.collectionIds.add(theCollection.getDataStoreId());
+      this.indexMap = null;
+   }
+
+   /**
+    * Get the number of collections in the snapshot.
+    *
+    * @return the number of collections.
+    */
+   public int size() {
+      return this.collections.size();
+   }
+
+   /**
+    * Get the collection at the specified index.
+    *
+    * @param index the index of the collection to retrieve.
+    * @return the collection.
+    */
+   public CollectionTransferObject get(int index) {
+      return this.collections.get(index);
+   }
+
+   /**
+    * Get the collections as a list in index order. The list is not a copy.
+    *
+    * @return collections as List<CollectionTransferObject>
+    */
+   public List<CollectionTransferObject> getCollections() {
+      return this.collections;
+   }
+
+   /**
+    * Get the collectionIds in index order. This is the list stored in the SimilarityFile.
+    *
+    * @return collectionIds as ArrayList<String>
+    */
+   public ArrayList<String> getCollectionIds() {
+      return this.collectionIds;
+   }
+
+   /**
+    * Get the index of the collection with the given dataStoreId.
+    *
+    * @param dataStoreId The id to look for.
+    * @return the index or -1 if the id is not in the snapshot.
+    */
+   public int indexOf(String dataStoreId) {
+      if (null == this.indexMap) {
+         HashMap<String, Integer> newMap = new HashMap<String, Integer>(this.collectionIds.size() * 2);
+         for (int i = 0; i < this.collectionIds.size(); i++) {
+            newMap.put(this.collectionIds.get(i), i);
+         }
+         this.indexMap = newMap;
+      }
+      Integer theIndex = this.indexMap.get(dataStoreId);
+      return (null == theIndex) ? -1 : theIndex.intValue();
+   }
+
+   /**
+    * Build a snapshot with the same collections in the given order.  This is how several
+    * engines agree on which collection is which row.
+    *
+    * @param dataStoreIds The ids in the order wanted.
+    * @return the new snapshot or null if one of the ids is not in this snapshot.
+    */
+   public CollectionSnapshot reorder(List<String> dataStoreIds) {
+      CollectionSnapshot theSnapshot = new CollectionSnapshot(dataStoreIds.size());
+      for (String dataStoreId : dataStoreIds) {
+         int index = indexOf(dataStoreId);
+         if (index < 0) {
+            return null;
+         }
+         theSnapshot.add(this.collections.get(index));
+      }
+      return theSnapshot;
+   }
+}
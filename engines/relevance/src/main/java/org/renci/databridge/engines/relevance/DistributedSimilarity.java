@@ -0,0 +1,219 @@
+package org.renci.databridge.engines.relevance;
+import org.renci.databridge.util.*;
+import org.la4j.matrix.functor.*;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+
+/**
+ * The files used to split one similarity job across several relevance engines.  All of
+ * them live next to the output file, which must be on a file system that every engine
+ * can see.
+ *
+ *   outputFile.manifest      A SimilarityFile with no values that fixes the collection
+ *                            order and the similarity instance for the job.
+ *   outputFile.shard.base    The values carried over from the previous version in an
+ *                            incremental job, if any.
+ *   outputFile.model.base    The model those values were computed with, if the
+ *                            processor is a PersistentModelProcessor.
+ *   outputFile.shard.N       The values computed for work message N.
+ *   outputFile.done.N        Created once shard N has been completely written.
+ *   outputFile.failed.N      Holds the reason shard N couldn't be computed.
+ *   outputFile.merge         Created by the engine that merges the shards, so only one does.
+ *   outputFile.failed.merge  Holds the reason the merge failed.
+ *
+ * The engine that finishes the last shard merges them into the output file and removes
+ * everything else.  A job with a failed marker is never merged, and its files are left
+ * as they are: getFailure tells why the output file will never appear.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class DistributedSimilarity {
+
+   private static Logger logger = Logger.getLogger ("org.renci.databridge.engine.relevance");
+
+   public static final String MANIFEST_SUFFIX = ".manifest";
+   public static final String SHARD_SUFFIX = ".shard.";
+   public static final String BASE_SHARD = "base";
+   public static final String DONE_SUFFIX = ".done.";
+   public static final String MERGE_SUFFIX = ".merge";
+   public static final String FAILED_SUFFIX = ".failed.";
+   public static final String MERGE_FAILED = "merge";
+   public static final String BASE_MODEL_SUFFIX = ".base";
+
+   /** The most values passed to the sink at once while merging */
+   public static final int MERGE_BATCH_SIZE = 1 << 16;
+
+   public static String getManifestPath(String outputFile) {
+      return outputFile + MANIFEST_SUFFIX;
+   }
+
+   public static String getShardPath(String outputFile, int shardIndex) {
+      return outputFile + SHARD_SUFFIX + shardIndex;
+   }
+
+   public static String getBaseShardPath(String outputFile) {
+      return outputFile + SHARD_SUFFIX + BASE_SHARD;
+   }
+
+   public static String getBaseModelPath(String outputFile) {
+      return SimilarityEngine.getModelPath(outputFile) + BASE_MODEL_SUFFIX;
+   }
+
+   /**
+    * Get the first tile of a shard when nTiles tiles are split as evenly as possible
+    * into shardCount contiguous ranges.  Shard s covers [getShardStart(s), getShardStart(s + 1)).
+    *
+    * @param nTiles The number of tiles in the schedule.
+    * @param shardCount The number of shards.
+    * @param shardIndex The shard.
+    * @return the index of the first tile in the shard.
+    */
+   public static int getShardStart(int nTiles, int shardCount, int shardIndex) {
+      return (int) ((long) nTiles * shardIndex / shardCount);
+   }
+
+   /**
+    * Record that a shard has been written.  If every shard is now written and no other
+    * engine has claimed the merge, the caller gets to do it.
+    *
+    * @param outputFile The output file of the job.
+    * @param shardIndex The shard just written.
+    * @param shardCount The number of shards in the job.
+    * @return true if the caller should merge the shards.
+    */
+   public static boolean markShardDone(String outputFile, int shardIndex, int shardCount) throws IOException {
+      new File(outputFile + DONE_SUFFIX + shardIndex).createNewFile();
+      for (int s = 0; s < shardCount; s++) {
+         if (!new File(outputFile + DONE_SUFFIX + s).exists()) {
+            return false;
+         }
+      }
+      String failure = getFailure(outputFile, shardCount);
+      if (null != failure) {
+         logger.log (Level.WARNING, "Not merging " + outputFile + ", the job failed: " + failure);
+         return false;
+      }
+      // createNewFile is atomic, so exactly one of the engines that see every shard done wins.
+      return new File(outputFile + MERGE_SUFFIX).createNewFile();
+   }
+
+   /**
+    * Record that a shard couldn't be computed, so the job is never merged.
+    *
+    * @param outputFile The output file of the job.
+    * @param shardIndex The shard that failed.
+    * @param reason Why it failed.
+    */
+   public static void markShardFailed(String outputFile, int shardIndex, String reason) throws IOException {
+      markFailed(outputFile + FAILED_SUFFIX + shardIndex, reason);
+   }
+
+   /**
+    * Record that the merge of a job failed.
+    *
+    * @param outputFile The output file of the job.
+    * @param reason Why it failed.
+    */
+   public static void markMergeFailed(String outputFile, String reason) throws IOException {
+      markFailed(outputFile + FAILED_SUFFIX + MERGE_FAILED, reason);
+   }
+
+   private static void markFailed(String path, String reason) throws IOException {
+      Files.write(Paths.get(path), String.valueOf(reason).getBytes("UTF-8"));
+   }
+
+   /**
+    * Check whether any shard of a job, or its merge, has failed.
+    *
+    * @param outputFile The output file of the job.
+    * @param shardCount The number of shards in the job.
+    * @return the reason of the first failure found, or null if nothing has failed.
+    */
+   public static String getFailure(String outputFile, int shardCount) {
+      for (int s = 0; s <= shardCount; s++) {
+         String name = (s == shardCount) ? MERGE_FAILED : Integer.toString(s);
+         File theMarker = new File(outputFile + FAILED_SUFFIX + name);
+         if (!theMarker.exists()) {
+            continue;
+         }
+         String what = (s == shardCount) ? "merge: " : "shard " + s + ": ";
+         try {
+            return what + new String(Files.readAllBytes(theMarker.toPath()), "UTF-8");
+         } catch (IOException e) {
+            return what + "can't read " + theMarker;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Read the shards of a job and pass their values to a sink, at most MERGE_BATCH_SIZE
+    * values at a time.
+    *
+    * @param outputFile The output file of the job.
+    * @param shardCount The number of shards in the job.
+    * @param theSink Receives the values of each shard.
+    * @param n The number of collections.
+    * @param isSymmetric Whether the processor is symmetric.
+    */
+   public static void mergeShards(String outputFile, int shardCount, TileSink theSink,
+                                  int n, boolean isSymmetric) throws Exception {
+      theSink.start(n, isSymmetric);
+      if (new File(getBaseShardPath(outputFile)).exists()) {
+         mergeShard(getBaseShardPath(outputFile), theSink);
+      }
+      for (int s = 0; s < shardCount; s++) {
+         mergeShard(getShardPath(outputFile, s), theSink);
+      }
+      theSink.finish();
+   }
+
+   /**
+    * Pass the values of one shard to a sink.  The shard is memory mapped rather than
+    * read in, so only a batch of its values is on the heap at a time.
+    */
+   private static void mergeShard(String shardPath, final TileSink theSink) throws Exception {
+      try (MappedSimilarityFile theShard = MappedSimilarityFile.open(shardPath)) {
+         final TileResult[] theBatch = {new TileResult(null, MERGE_BATCH_SIZE)};
+         theShard.eachNonZero(new MatrixProcedure() {
+            public void apply(int i, int j, double value) {
+               theBatch[0].add(i, j, value);
+               if (theBatch[0].getCount() == MERGE_BATCH_SIZE) {
+                  theSink.acceptTile(theBatch[0]);
+                  theBatch[0] = new TileResult(null, MERGE_BATCH_SIZE);
+               }
+            }
+         });
+         theSink.acceptTile(theBatch[0]);
+      }
+   }
+
+   /**
+    * Remove the manifest, shards and markers of a finished job.
+    *
+    * @param outputFile The output file of the job.
+    * @param shardCount The number of shards in the job.
+    */
+   public static void cleanUp(String outputFile, int shardCount) {
+      delete(getManifestPath(outputFile));
+      delete(getBaseShardPath(outputFile));
+      delete(getBaseModelPath(outputFile));
+      for (int s = 0; s < shardCount; s++) {
+         delete(getShardPath(outputFile, s));
+         delete(outputFile + DONE_SUFFIX + s);
+      }
+      delete(outputFile + MERGE_SUFFIX);
+   }
+
+   private static void delete(String path) {
+      File theFile = new File(path);
+      if (theFile.exists() && !theFile.delete()) {
+         logger.log (Level.WARNING, "Can't delete " + path);
+      }
+   }
+}
@@ -0,0 +1,39 @@
+package org.renci.databridge.engines.relevance;
+import org.renci.databridge.util.*;
+import java.io.IOException;
+
+
+/**
+ * A TileSink that hands every value to an ExternalSimilarityBuilder, so the tiles can
+ * arrive in any order and the matrix still never has to fit in memory.  The caller
+ * finishes the builder.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class ExternalSortSink implements TileSink {
+
+   private ExternalSimilarityBuilder theBuilder;
+
+   /**
+    * ExternalSortSink constructor.
+    *
+    * @param theBuilder The builder that receives the values.
+    */
+   public ExternalSortSink(ExternalSimilarityBuilder theBuilder) {
+      this.theBuilder = theBuilder;
+   }
+
+   public void start(int n, boolean isSymmetric) {
+   }
+
+   public void acceptTile(TileResult theResult) {
+      try {
+         theBuilder.add(theResult.getRows(), theResult.getCols(), theResult.getValues(), theResult.getCount());
+      } catch (IOException e) {
+         throw new IllegalStateException("Can't spill the similarity values: " + e.getMessage(), e);
+      }
+   }
+
+   public void finish() {
+   }
+}
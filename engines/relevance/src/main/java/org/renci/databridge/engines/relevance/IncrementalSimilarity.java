@@ -0,0 +1,148 @@
+package org.renci.databridge.engines.relevance;
+import org.renci.databridge.persistence.metadata.*;
+import org.renci.databridge.util.*;
+import org.la4j.matrix.functor.*;
+import java.util.*;
+
+
+/**
+ * Works out how to build the next version of a similarity matrix from the previous
+ * version when only a few collections have been added to or deleted from the nameSpace.
+ *
+ * The collections that are in both versions keep their relative order from the previous
+ * file and come first; the new collections are appended after them.  Since that mapping
+ * from old to new index only ever moves entries up and to the left, every value in the
+ * previous file whose collections are both kept can be copied straight across, on the
+ * same side of the diagonal.  Only the pairs involving a new collection, which are the
+ * columns from getFirstNewIndex() on, have to be computed.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class IncrementalSimilarity {
+
+   /** The current collections in their new order */
+   private CollectionSnapshot orderedSnapshot;
+
+   /** For each index in the previous file, the new index or -1 if it was deleted */
+   private int[] newIndexOfOld;
+
+   /** The number of collections kept from the previous file */
+   private int nKept;
+
+   private SimilarityFile previousFile;
+
+   /**
+    * IncrementalSimilarity constructor.
+    *
+    * @param previousFile The similarity file of the previous version.
+    * @param currentSnapshot The collections in the nameSpace now, in any order.
+    */
+   public IncrementalSimilarity(SimilarityFile previousFile, CollectionSnapshot currentSnapshot) {
+      this.previousFile = previousFile;
+      ArrayList<String> previousIds = previousFile.getCollectionIds();
+      int n = currentSnapshot.size();
+      this.orderedSnapshot = new CollectionSnapshot(n);
+      this.newIndexOfOld = new int[previousIds.size()];
+
+      boolean[] isKept = new boolean[n];
+      for (int oldIndex = 0; oldIndex < previousIds.size(); oldIndex++) {
+         int currentIndex = currentSnapshot.indexOf(previousIds.get(oldIndex));
+         if (currentIndex < 0 || isKept[currentIndex]) {
+            newIndexOfOld[oldIndex] = -1;
+         } else {
+            isKept[currentIndex] = true;
+            newIndexOfOld[oldIndex] = orderedSnapshot.size();
+            orderedSnapshot.add(currentSnapshot.get(currentIndex));
+         }
+      }
+      this.nKept = orderedSnapshot.size();
+      for (int i = 0; i < n; i++) {
+         if (!isKept[i]) {
+            orderedSnapshot.add(currentSnapshot.get(i));
+         }
+      }
+   }
+
+   /**
+    * Get the current collections, kept ones first in their previous order, then the new ones.
+    *
+    * @return the snapshot to compute with.
+    */
+   public CollectionSnapshot getOrderedSnapshot() {
+      return orderedSnapshot;
+   }
+
+   /**
+    * Get the index of the first new collection.  Only the columns from here on need to
+    * be computed.
+    *
+    * @return the number of collections kept from the previous file.
+    */
+   public int getFirstNewIndex() {
+      return nKept;
+   }
+
+   /**
+    * Get the number of collections in the previous file that have been deleted.
+    *
+    * @return the number of deleted collections.
+    */
+   public int getDeletedCount() {
+      return newIndexOfOld.length - nKept;
+   }
+
+   /**
+    * Get the number of collections that were not in the previous file.
+    *
+    * @return the number of added collections.
+    */
+   public int getAddedCount() {
+      return orderedSnapshot.size() - nKept;
+   }
+
+   /**
+    * Get the values of the previous file whose collections were both kept, renumbered to
+    * the new order.
+    *
+    * @return the values, as a TileResult with no tile.
+    */
+   public TileResult getKeptValues() {
+      final TileResult theResult =
+         new TileResult(null, Math.max(1, previousFile.getSimilarityMatrix().cardinality()));
+      previousFile.getSimilarityMatrix().eachNonZero(new MatrixProcedure() {
+         public void apply(int i, int j, double value) {
+            int newI = newIndexOfOld[i];
+            int newJ = newIndexOfOld[j];
+            if (newI >= 0 && newJ >= 0) {
+               theResult.add(newI, newJ, value);
+            }
+         }
+      });
+      return theResult;
+   }
+
+   /**
+    * Wrap a sink so that it receives the kept values of the previous file as soon as it
+    * is started, ahead of the newly computed tiles.  This way a sparsifying sink ranks
+    * the old and new values together.
+    *
+    * @param downstream The sink for the next version.
+    * @return the wrapping sink.
+    */
+   public TileSink wrap(final TileSink downstream) {
+      return new TileSink() {
+         public void start(int n, boolean isSymmetric) {
+            downstream.start(n, isSymmetric);
+            downstream.acceptTile(getKeptValues());
+         }
+
+         public void acceptTile(TileResult theResult) {
+            downstream.acceptTile(theResult);
+         }
+
+         public void finish() {
+            downstream.finish();
+         }
+      };
+   }
+}
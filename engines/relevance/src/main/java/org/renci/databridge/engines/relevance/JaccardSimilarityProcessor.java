@@ -0,0 +1,194 @@
+package org.renci.databridge.engines.relevance;
+import org.renci.databridge.persistence.metadata.*;
+import java.util.*;
+
+
+/**
+ * A SimilarityProcessor that scores two collections by the Jaccard similarity of their
+ * terms: |A and B| / |A or B|.  The terms of a collection are its keywords and the
+ * comma or semicolon separated terms of its subject, trimmed and lower cased.
+ *
+ * In prepare every distinct term is given an int id and each collection becomes a sorted
+ * int[] of term ids, so compareBlock does no allocation and no String comparisons.  Two
+ * sets are intersected by merging them, or by galloping through the larger one when
+ * one is much larger than the other.  The prepared arrays are never changed, so one
+ * instance is shared by all of the engine's threads.
+ *
+ * This is also the reference processor for measuring the engine itself.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class JaccardSimilarityProcessor implements BatchSimilarityProcessor {
+
+   /** Use galloping when one set is at least this many times the size of the other */
+   public static final int GALLOP_RATIO = 8;
+
+   private static final int[] EMPTY = new int[0];
+
+   /** The sorted term ids of each collection */
+   private int[][] terms;
+
+   public void prepare(List<CollectionTransferObject> collections) {
+      HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+      this.terms = new int[collections.size()][];
+      for (int i = 0; i < collections.size(); i++) {
+         this.terms[i] = encode(collections.get(i), dictionary);
+      }
+   }
+
+   public void compareBlock(int index, int[] candidates, int nCandidates, double[] scores) {
+      int[] theseTerms = terms[index];
+      for (int k = 0; k < nCandidates; k++) {
+         int[] thoseTerms = terms[candidates[k]];
+         scores[k] = score(intersectionSize(theseTerms, thoseTerms), theseTerms.length, thoseTerms.length);
+      }
+   }
+
+   /**
+    * Compare two collections that weren't prepared.  This is much slower than
+    * compareBlock since the terms have to be encoded each time.
+    */
+   public double compareCollections(CollectionTransferObject collection1,
+                                    CollectionTransferObject collection2) {
+      HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+      int[] terms1 = encode(collection1, dictionary);
+      int[] terms2 = encode(collection2, dictionary);
+      return score(intersectionSize(terms1, terms2), terms1.length, terms2.length);
+   }
+
+   public boolean isSymmetric() {
+      return true;
+   }
+
+   public boolean isThreadSafe() {
+      return true;
+   }
+
+   /**
+    * Turn the size of the intersection and of the two sets into the similarity.
+    *
+    * @param intersection The number of terms the collections share.
+    * @param size1 The number of terms of the first collection.
+    * @param size2 The number of terms of the second collection.
+    * @return the Jaccard similarity, or 0 if both sets are empty.
+    */
+   protected double score(int intersection, int size1, int size2) {
+      int union = size1 + size2 - intersection;
+      return (union == 0) ? 0. : (double) intersection / union;
+   }
+
+   /**
+    * Get the sorted ids of the distinct terms of a collection, adding any new terms to
+    * the dictionary.
+    */
+   static int[] encode(CollectionTransferObject theCollection, HashMap<String, Integer> dictionary) {
+      ArrayList<String> theTerms = new ArrayList<String>();
+      if (null != theCollection.getKeywords()) {
+         for (String keyword : theCollection.getKeywords()) {
+            if (null != keyword) {
+               theTerms.add(keyword);
+            }
+         }
+      }
+      if (null != theCollection.getSubject()) {
+         theTerms.addAll(Arrays.asList(theCollection.getSubject().split("[,;]")));
+      }
+
+      int[] ids = new int[theTerms.size()];
+      int size = 0;
+      for (String theTerm : theTerms) {
+         String normalized = theTerm.trim().toLowerCase();
+         if (normalized.length() == 0) {
+            continue;
+         }
+         Integer id = dictionary.get(normalized);
+         if (null == id) {
+            id = dictionary.size();
+            dictionary.put(normalized, id);
+         }
+         ids[size++] = id;
+      }
+      if (size == 0) {
+         return EMPTY;
+      }
+      Arrays.sort(ids, 0, size);
+      int distinct = 1;
+      for (int k = 1; k < size; k++) {
+         if (ids[k] != ids[distinct - 1]) {
+            ids[distinct++] = ids[k];
+         }
+      }
+      return Arrays.copyOf(ids, distinct);
+   }
+
+   /**
+    * Count the values two sorted arrays of distinct ints have in common.
+    */
+   static int intersectionSize(int[] a, int[] b) {
+      if (a.length > b.length) {
+         int[] swap = a;
+         a = b;
+         b = swap;
+      }
+      if (a.length == 0) {
+         return 0;
+      }
+      if (b.length / a.length >= GALLOP_RATIO) {
+         return gallopingIntersectionSize(a, b);
+      }
+      int count = 0;
+      int i = 0;
+      int j = 0;
+      while (i < a.length && j < b.length) {
+         int x = a[i];
+         int y = b[j];
+         if (x < y) {
+            i++;
+         } else if (x > y) {
+            j++;
+         } else {
+            count++;
+            i++;
+            j++;
+         }
+      }
+      return count;
+   }
+
+   /**
+    * Count the common values when small is much shorter than large.  For each value of
+    * small, step through large in doubling strides until we pass it, then binary search
+    * the last stride.
+    */
+   static int gallopingIntersectionSize(int[] small, int[] large) {
+      int count = 0;
+      int low = 0;
+      for (int i = 0; i < small.length && low < large.length; i++) {
+         int x = small[i];
+         int step = 1;
+         int high = low;
+         while (high < large.length && large[high] < x) {
+            low = high + 1;
+            high += step;
+            step <<= 1;
+         }
+         if (high >= large.length) {
+            high = large.length - 1;
+         }
+         // x is in large[low..high] if it's anywhere
+         while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (large[mid] < x) {
+               low = mid + 1;
+            } else {
+               high = mid - 1;
+            }
+         }
+         if (low < large.length && large[low] == x) {
+            count++;
+            low++;
+         }
+      }
+      return count;
+   }
+}
@@ -0,0 +1,284 @@
+package org.renci.databridge.engines.relevance;
+import org.renci.databridge.persistence.metadata.*;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import java.util.Arrays;
+import java.util.ArrayList;
+
+
+/**
+ * Finds the pairs of collections worth comparing with MinHash and locality sensitive
+ * hashing, so the SimilarityProcessor doesn't have to be called for all n(n-1)/2 pairs.
+ *
+ * Each collection is reduced to a set of tokens: its keywords plus the words of its
+ * subject and title, all lower cased.  The MinHash signature of the set has
+ * bands * rows values, and two collections whose token sets have Jaccard similarity s
+ * agree on any one value with probability s.  The signature is cut into bands of rows
+ * values, and two collections become candidates if they agree on every value of at
+ * least one band, which happens with probability 1 - (1 - s^rows)^bands.
+ *
+ * This only makes sense for processors that score collections by how much their
+ * keywords, subjects and titles overlap.  Collections with no tokens at all are never
+ * candidates.
+ *
+ * A bucket of m collections makes m(m-1)/2 pairs, so a band shared by a large part of
+ * the snapshot (a very common keyword, say) would make nearly all of the pairs
+ * candidates.  Buckets larger than maxBucketSize are skipped, with a warning, and
+ * their collections only become candidates through their other bands.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class MinHashCandidateGenerator {
+
+   private Logger logger = Logger.getLogger ("org.renci.databridge.engine.relevance");
+
+   /** The seed used by the relevance engine, so repeated runs find the same candidates */
+   public static final long DEFAULT_SEED = 0x5DEECE66DL;
+
+   /** The largest bucket whose pairs become candidates, by default */
+   public static final int DEFAULT_MAX_BUCKET_SIZE = 1000;
+
+   /** The similarities at which the expected recall is reported */
+   private static final double[] REPORTED_SIMILARITIES = {0.2, 0.4, 0.5, 0.6, 0.8, 0.9};
+
+   private int bands;
+   private int rows;
+   private int maxBucketSize;
+
+   /** The coefficients of the hash functions, two per signature value */
+   private long[] multipliers;
+   private long[] offsets;
+
+   /**
+    * MinHashCandidateGenerator constructor, with the default maximum bucket size.
+    *
+    * @param bands The number of LSH bands.
+    * @param rows The number of signature values in each band.
+    * @param seed The seed for the hash functions, so runs are repeatable.
+    */
+   public MinHashCandidateGenerator(int bands, int rows, long seed) {
+      this(bands, rows, seed, DEFAULT_MAX_BUCKET_SIZE);
+   }
+
+   /**
+    * MinHashCandidateGenerator constructor.
+    *
+    * @param bands The number of LSH bands.
+    * @param rows The number of signature values in each band.
+    * @param seed The seed for the hash functions, so runs are repeatable.
+    * @param maxBucketSize The largest bucket whose pairs become candidates.
+    */
+   public MinHashCandidateGenerator(int bands, int rows, long seed, int maxBucketSize) {
+      if (bands < 1 || rows < 1) {
+         throw new IllegalArgumentException("bands (" + bands + ") and rows (" + rows + ") must be >= 1");
+      }
+      if (maxBucketSize < 2) {
+         throw new IllegalArgumentException("maxBucketSize (" + maxBucketSize + ") must be >= 2");
+      }
+      this.bands = bands;
+      this.rows = rows;
+      this.maxBucketSize = maxBucketSize;
+      int nHashes = bands * rows;
+      this.multipliers = new long[nHashes];
+      this.offsets = new long[nHashes];
+      long state = seed;
+      for (int k = 0; k < nHashes; k++) {
+         state = mix(state + 0x9E3779B97F4A7C15L);
+         this.multipliers[k] = state | 1L;
+         state = mix(state + 0x9E3779B97F4A7C15L);
+         this.offsets[k] = state;
+      }
+   }
+
+   /**
+    * The probability that a pair with Jaccard similarity s becomes a candidate.
+    *
+    * @param s The similarity.
+    * @param bands The number of bands.
+    * @param rows The number of rows per band.
+    * @return 1 - (1 - s^rows)^bands
+    */
+   public static double expectedRecall(double s, int bands, int rows) {
+      return 1. - Math.pow(1. - Math.pow(s, rows), bands);
+   }
+
+   /**
+    * The similarity at which the chance of becoming a candidate rises most steeply,
+    * approximately (1/bands)^(1/rows).
+    *
+    * @param bands The number of bands.
+    * @param rows The number of rows per band.
+    * @return the threshold similarity.
+    */
+   public static double threshold(int bands, int rows) {
+      return Math.pow(1. / bands, 1. / rows);
+   }
+
+   /**
+    * Find the candidate pairs for every collection in the snapshot.
+    *
+    * @param theSnapshot The collections.
+    * @return the candidate pairs.
+    */
+   public CandidateSet generate(CollectionSnapshot theSnapshot) {
+      long start = System.currentTimeMillis();
+      int n = theSnapshot.size();
+      int nHashes = bands * rows;
+
+      // Only the hash of each band of the signature is kept, not the signature itself.
+      int[] signature = new int[nHashes];
+      int[] bandHashes = new int[n * bands];
+      boolean[] hasTokens = new boolean[n];
+      for (int i = 0; i < n; i++) {
+         hasTokens[i] = computeSignature(getTokenHashes(theSnapshot.get(i)), signature);
+         if (hasTokens[i]) {
+            for (int band = 0; band < bands; band++) {
+               bandHashes[i * bands + band] = hashBand(signature, band * rows);
+            }
+         }
+      }
+
+      // For each band, sort the collections by the hash of their values in the band.
+      // The collections in a run of equal hashes share a bucket and are candidates.
+      CandidateSet theCandidates = new CandidateSet(n);
+      long[] keys = new long[n];
+      int skippedBuckets = 0;
+      int largestBucket = 0;
+      for (int band = 0; band < bands; band++) {
+         int nKeys = 0;
+         for (int i = 0; i < n; i++) {
+            if (hasTokens[i]) {
+               keys[nKeys++] = ((long) bandHashes[i * bands + band] << 32) | i;
+            }
+         }
+         Arrays.sort(keys, 0, nKeys);
+         int runStart = 0;
+         for (int k = 1; k <= nKeys; k++) {
+            if (k == nKeys || (keys[k] >>> 32) != (keys[runStart] >>> 32)) {
+               if (k - runStart > maxBucketSize) {
+                  skippedBuckets++;
+                  largestBucket = Math.max(largestBucket, k - runStart);
+                  runStart = k;
+                  continue;
+               }
+               for (int a = runStart; a < k; a++) {
+                  for (int b = a + 1; b < k; b++) {
+                     theCandidates.addPair((int) keys[a], (int) keys[b]);
+                  }
+               }
+               runStart = k;
+            }
+         }
+      }
+      theCandidates.finish();
+      if (skippedBuckets > 0) {
+         this.logger.log (Level.WARNING, "Skipped " + skippedBuckets + " LSH buckets of more than " +
+                          maxBucketSize + " collections (the largest had " + largestBucket + ")");
+      }
+
+      long allPairs = (long) n * (n - 1) / 2;
+      this.logger.log (Level.INFO, "MinHash LSH with " + bands + " bands of " + rows + " rows found " +
+                       theCandidates.getPairCount() + " candidate pairs of " + allPairs + " in " +
+                       (System.currentTimeMillis() - start) + " ms");
+      StringBuilder recall = new StringBuilder("Expected recall (threshold " +
+                                               String.format("%.3f", threshold(bands, rows)) + "):");
+      for (double s : REPORTED_SIMILARITIES) {
+         recall.append(String.format(" s=%.1f: %.4f", s, expectedRecall(s, bands, rows)));
+      }
+      this.logger.log (Level.INFO, recall.toString());
+      return theCandidates;
+   }
+
+   /**
+    * Fill in the signature of one token set.
+    *
+    * @return false if there were no tokens.
+    */
+   private boolean computeSignature(int[] tokenHashes, int[] signature) {
+      int nHashes = bands * rows;
+      if (tokenHashes.length == 0) {
+         return false;
+      }
+      Arrays.fill(signature, Integer.MAX_VALUE);
+      for (int t = 0; t < tokenHashes.length; t++) {
+         long token = tokenHashes[t];
+         for (int k = 0; k < nHashes; k++) {
+            int value = (int) ((multipliers[k] * token + offsets[k]) >>> 33);
+            if (value < signature[k]) {
+               signature[k] = value;
+            }
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Combine the values of one band into a single hash.
+    */
+   private int hashBand(int[] signature, int offset) {
+      long hash = 0x9E3779B97F4A7C15L;
+      for (int r = 0; r < rows; r++) {
+         hash = mix(hash ^ signature[offset + r]);
+      }
+      return (int) (hash >>> 32);
+   }
+
+   /**
+    * Get the hashes of the distinct tokens of a collection.
+    *
+    * @param theCollection The collection.
+    * @return the sorted, distinct token hashes.
+    */
+   static int[] getTokenHashes(CollectionTransferObject theCollection) {
+      ArrayList<String> tokens = new ArrayList<String>();
+      ArrayList<String> keywords = theCollection.getKeywords();
+      if (null != keywords) {
+         for (String keyword : keywords) {
+            if (null != keyword && keyword.trim().length() > 0) {
+               tokens.add(keyword.trim().toLowerCase());
+            }
+         }
+      }
+      addWords(theCollection.getSubject(), tokens);
+      addWords(theCollection.getTitle(), tokens);
+
+      int[] hashes = new int[tokens.size()];
+      for (int t = 0; t < hashes.length; t++) {
+         hashes[t] = (int) mix(tokens.get(t).hashCode());
+      }
+      Arrays.sort(hashes);
+      int size = 0;
+      for (int t = 0; t < hashes.length; t++) {
+         if (size == 0 || hashes[size - 1] != hashes[t]) {
+            hashes[size++] = hashes[t];
+         }
+      }
+      return Arrays.copyOf(hashes, size);
+   }
+
+   /**
+    * Split a string into lower case words and add them to the tokens.
+    */
+   private static void addWords(String theString, ArrayList<String> tokens) {
+      if (null == theString) {
+         return;
+      }
+      for (String word : theString.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+         if (word.length() > 0) {
+            tokens.add(word);
+         }
+      }
+   }
+
+   /**
+    * A 64 bit finalizer (from MurmurHash3) used to spread the bits of a value.
+    */
+   private static long mix(long x) {
+      x ^= x >>> 33;
+      x *= 0xff51afd7ed558ccdL;
+      x ^= x >>> 33;
+      x *= 0xc4ceb93e1a85ec53L;
+      x ^= x >>> 33;
+      return x;
+   }
+}
@@ -0,0 +1,35 @@
+package org.renci.databridge.engines.relevance;
+import org.renci.databridge.util.*;
+
+
+/**
+ * A TileSink that stores every finished tile in an OffHeapSimilarityMatrix as a single
+ * batch, so the values stay out of the heap.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class OffHeapMatrixSink implements TileSink {
+
+   /** The matrix that receives the values */
+   private OffHeapSimilarityMatrix theMatrix;
+
+   /**
+    * OffHeapMatrixSink constructor.
+    *
+    * @param theMatrix The matrix that receives the values.
+    */
+   public OffHeapMatrixSink(OffHeapSimilarityMatrix theMatrix) {
+      this.theMatrix = theMatrix;
+   }
+
+   public void start(int n, boolean isSymmetric) {
+   }
+
+   public void acceptTile(TileResult theResult) {
+      theMatrix.setValues(theResult.getRows(), theResult.getCols(), 
+                          theResult.getValues(), theResult.getCount());
+   }
+
+   public void finish() {
+   }
+}
@@ -0,0 +1,18 @@
+package org.renci.databridge.engines.relevance;
+
+
+/**
+ * The overlap coefficient version of JaccardSimilarityProcessor: the number of terms two
+ * collections share divided by the number of terms of the smaller one.  A collection
+ * whose terms are all found in a bigger one scores 1.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class OverlapSimilarityProcessor extends JaccardSimilarityProcessor {
+
+   @Override
+   protected double score(int intersection, int size1, int size2) {
+      int smaller = Math.min(size1, size2);
+      return (smaller == 0) ? 0. : (double) intersection / smaller;
+   }
+}
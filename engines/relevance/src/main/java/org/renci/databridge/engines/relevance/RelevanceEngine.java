@@ -11,6 +11,10 @@ import java.util.Properties;
  * waits on a queue connected to the header exchange.  For each incoming message, the server 
  * looks at the message and, if needed, will fork a thread to handle the message.
  *
+ * Several engines can share one similarity job if they are configured with the same
+ * org.renci.databridge.primaryQueue: the work messages for the job are then spread
+ * across them.  The output file must be on a file system they all share.
+ *
  */
 public class RelevanceEngine {
 
@@ -34,7 +38,8 @@ public class RelevanceEngine {
             RelevanceEngineMessageListener aml = 
                 new RelevanceEngineMessageListener (propFileName, 
                                          new RelevanceEngineMessage(), 
-                                         new RelevanceEngineMessageHandler(), logger);
+                                         new RelevanceEngineMessageHandler(
+                                            new AMQPComms(propFileName, false)), logger);
 
             aml.start ();
             aml.join (); // keeps main thread from exiting 
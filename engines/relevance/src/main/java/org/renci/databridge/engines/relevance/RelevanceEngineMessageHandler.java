@@ -8,6 +8,10 @@ import java.lang.Thread;
 import java.lang.Exception;
 import java.lang.InterruptedException;
 import java.io.IOException;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import org.renci.databridge.message.*;
 import java.util.*;
 import java.lang.reflect.*;
@@ -38,6 +42,22 @@ public class RelevanceEngineMessageHandler implements AMQPMessageHandler {
 
   // The byte array for the contents of the message.
   private byte[] bytes;
+
+  // Used to send the work messages of a distributed similarity job. May be null, in
+  // which case a job can only be run by this engine.
+  private AMQPComms workPublisher;
+
+  public RelevanceEngineMessageHandler() {
+  }
+
+  /**
+   * Constructor with a producer for the work messages of distributed similarity jobs.
+   *
+   * @param workPublisher the AMQPComms used to publish work messages.
+   */
+  public RelevanceEngineMessageHandler(AMQPComms workPublisher) {
+      this.workPublisher = workPublisher;
+  }
   
   public void handle (AMQPMessage amqpMessage, Object extra) throws Exception {
       // Get the individual components of the the message and store
@@ -56,6 +76,8 @@ public class RelevanceEngineMessageHandler implements AMQPMessageHandler {
          System.out.println("messageName is missing");
       } else if (messageName.compareTo(RelevanceEngineMessage.CREATE_SIMILARITYMATRIX_JAVA_METADATADB_URI) == 0) {
          processCreateSimilarityMessage(stringHeaders, extra);
+      } else if (messageName.compareTo(RelevanceEngineMessage.COMPUTE_SIMILARITYTILES_JAVA_METADATADB_URI) == 0) {
+         processComputeSimilarityTilesMessage(stringHeaders, extra);
       } else {
          System.out.println("unimplemented messageName: " + messageName);
       }
@@ -114,6 +136,98 @@ public class RelevanceEngineMessageHandler implements AMQPMessageHandler {
          return;
       }
 
+      // 4) the tile size. This one is optional.
+      int tileSize = TileScheduler.DEFAULT_TILE_SIZE;
+      String tileSizeString = stringHeaders.get(RelevanceEngineMessage.TILE_SIZE);    
+      if (null != tileSizeString) {
+         try {
+            tileSize = Integer.parseInt(tileSizeString);
+         } catch (NumberFormatException e) {
+            tileSize = 0;
+         }
+         if (tileSize < 1) {
+            this.logger.log (Level.SEVERE, "Invalid tile size in message: " + tileSizeString);
+            return;
+         }
+      }
+
+      // 5) the sparsification parameters, also optional. If neither is present we store
+      // every non zero value.
+      double minSimilarity = Double.NEGATIVE_INFINITY;
+      String minSimilarityString = stringHeaders.get(RelevanceEngineMessage.MIN_SIMILARITY);    
+      if (null != minSimilarityString) {
+         try {
+            minSimilarity = Double.parseDouble(minSimilarityString);
+         } catch (NumberFormatException e) {
+            this.logger.log (Level.SEVERE, "Invalid minSimilarity in message: " + minSimilarityString);
+            return;
+         }
+      }
+
+      int topKPerRow = 0;
+      String topKPerRowString = stringHeaders.get(RelevanceEngineMessage.TOP_K_PER_ROW);    
+      if (null != topKPerRowString) {
+         try {
+            topKPerRow = Integer.parseInt(topKPerRowString);
+         } catch (NumberFormatException e) {
+            topKPerRow = -1;
+         }
+         if (topKPerRow < 0) {
+            this.logger.log (Level.SEVERE, "Invalid topKPerRow in message: " + topKPerRowString);
+            return;
+         }
+      }
+
+      // 6) the LSH parameters, also optional. If they are present only the pairs that
+      // MinHash puts in the same bucket in at least one band are compared.
+      int lshBands = 0;
+      int lshRows = 0;
+      String lshBandsString = stringHeaders.get(RelevanceEngineMessage.LSH_BANDS);    
+      String lshRowsString = stringHeaders.get(RelevanceEngineMessage.LSH_ROWS);    
+      if (null != lshBandsString || null != lshRowsString) {
+         try {
+            lshBands = Integer.parseInt(lshBandsString);
+            lshRows = Integer.parseInt(lshRowsString);
+         } catch (NumberFormatException e) {
+            lshBands = 0;
+         }
+         if (lshBands < 1 || lshRows < 1) {
+            this.logger.log (Level.SEVERE, "Invalid LSH parameters in message: bands " + 
+                             lshBandsString + " rows " + lshRowsString);
+            return;
+         }
+      }
+
+      // 7) incremental mode, also optional.
+      boolean incremental = Boolean.parseBoolean(stringHeaders.get(RelevanceEngineMessage.INCREMENTAL));
+
+      // 8) the number of shards, also optional. If more than 1 the job is split into work
+      // messages for all of the engines sharing our queue.
+      Integer shards = getIntHeader(stringHeaders, RelevanceEngineMessage.SHARDS, 1, 1);
+      if (null == shards) {
+         return;
+      }
+      if (shards > 1 && null == this.workPublisher) {
+         this.logger.log (Level.SEVERE, "No work publisher, can't split the job into " + shards + " shards");
+         return;
+      }
+
+      // 9) how often to checkpoint, also optional. 0 turns checkpoints off.
+      Integer checkpointSeconds = getIntHeader(stringHeaders, RelevanceEngineMessage.CHECKPOINT_SECONDS,
+                                               SimilarityCheckpoint.DEFAULT_INTERVAL_SECONDS, 0);
+      if (null == checkpointSeconds) {
+         return;
+      }
+
+      // 10) how to compress the output file, also optional.
+      SimilarityFileCompression compression = getCompression(stringHeaders);
+      if (null == compression) {
+         return;
+      }
+
+      // 11) whether the output file gets a rank index, also optional and on by default.
+      boolean rankIndex = !"false".equalsIgnoreCase(stringHeaders.get(RelevanceEngineMessage.RANK_INDEX));
+
       // The "extra" parameter in this case must be of type MetadataDAOFactory
       MetadataDAOFactory theFactory = (MetadataDAOFactory) extra;
       if (null == theFactory) {
@@ -151,28 +265,19 @@ public class RelevanceEngineMessageHandler implements AMQPMessageHandler {
 
       // This is for the case of no previous instance
       theSimilarityInstance.setVersion(1);
+      SimilarityInstanceTransferObject prevInstance = null;
       Iterator<SimilarityInstanceTransferObject> versionIterator =
           theSimilarityInstanceDAO.getSimilarityInstances(versionMap, sortMap, limit);
       if (versionIterator.hasNext()) {
          // Found a previous instance
-         SimilarityInstanceTransferObject prevInstance = versionIterator.next();
+         prevInstance = versionIterator.next();
          theSimilarityInstance.setVersion(prevInstance.getVersion() + 1);
       }
 
-      try {
-         boolean result = theSimilarityInstanceDAO.insertSimilarityInstance(theSimilarityInstance);
-      } catch (Exception e) {
-         this.logger.log (Level.SEVERE, "Can't insert similarity instance");
-         return;
-      }
-      
       // Search for all of the collections in the nameSpace
       HashMap<String, String> searchMap = new HashMap<String, String>();
       searchMap.put("nameSpace", nameSpace);
  
-      // We need an array list of collectionIds
-      ArrayList<String> collectionIds = new ArrayList<String>();
-
       long nCollections = theCollectionDAO.countCollections(searchMap);
 
       // Here we have a small problem.  Our DB infrastructure supports "long"
@@ -187,62 +292,456 @@ public class RelevanceEngineMessageHandler implements AMQPMessageHandler {
       } else {
          nCollectionsInt = (int) nCollections;
       }
-      SimilarityFile theSimFile = new SimilarityFile(nCollectionsInt, nameSpace);
-      theSimFile.setNameSpace(nameSpace);
-
-      theSimFile.setSimilarityInstanceId(theSimilarityInstance.getDataStoreId());
 
-      // For each pair of collection objects, we call the user provided function.
-      Iterator<CollectionTransferObject> iterator1 = 
-          theCollectionDAO.getCollections(searchMap);
-      Iterator<CollectionTransferObject> iterator2 = null;
-      
-      // The following code is known to be ugly, but it's not easy to do better since
-      // you can't really copy java iterators.
-      int counter = 1;
-      int rowCounter = 0;
-      while (iterator1.hasNext()) { 
-         CollectionTransferObject cto1 = iterator1.next();
-         CollectionTransferObject cto2 = null;
-         collectionIds.add(cto1.getDataStoreId());
-         
-
-         int colCounter = 0;
-         // This is the weird part. Since you can't copy iterators in java
-         // we re-declare the inner iterator for each iteration of the outer loop, than
-         // spin it forward so it is at the position of the outer iterator.
-         iterator2 = theCollectionDAO.getCollections(searchMap);
-         for (int k = 0; k < counter; k++) {
-             iterator2.next();
-             colCounter ++;
-         }
-
-         double similarity = 0.;
-
-         // Now spin through the rest of the iterator 2 list.
-         while (iterator2.hasNext()) {
-            cto2 = iterator2.next();
-
-            // Now we have our 2 CollectionTransferObjects, so we want to call the method.
-            try {
-               similarity =  (double) thisProcessor.compareCollections(cto1, cto2);
-               theSimFile.setSimilarityValue(rowCounter, colCounter, similarity);
-               colCounter++;
-            } catch (Exception e) {
-               this.logger.log (Level.SEVERE, "Can't invoke method compareCollections" );
-               return;
+      // Read the nameSpace once. Every collection is then addressed by its index in the
+      // snapshot, which is also its row and column in the similarity matrix.
+      CollectionSnapshot theSnapshot = 
+          CollectionSnapshot.load(theCollectionDAO, searchMap, nCollectionsInt);
+
+      // If the latest instance never finished, there may be a checkpoint we can carry on
+      // from. In that case we keep its instance and collection order instead of starting
+      // a new version.
+      String checkpointPath = SimilarityCheckpoint.getCheckpointPath(outputFile);
+      SimilarityCheckpoint theCheckpoint = null;
+      if (shards == 1 && checkpointSeconds > 0 && null != prevInstance && new File(checkpointPath).exists()) {
+         try {
+            theCheckpoint = SimilarityCheckpoint.read(checkpointPath);
+            CollectionSnapshot resumedSnapshot = theSnapshot.reorder(theCheckpoint.getCollectionIds());
+            if (!prevInstance.getDataStoreId().equals(theCheckpoint.getSimilarityInstanceId()) ||
+                theCheckpoint.getTileSize() != tileSize || null == resumedSnapshot) {
+               this.logger.log (Level.WARNING, "Checkpoint " + checkpointPath + 
+                                " doesn't match this job, starting a new version");
+               theCheckpoint = null;
+            } else {
+               theSnapshot = resumedSnapshot;
+               theSimilarityInstance = prevInstance;
+               this.logger.log (Level.INFO, "Resuming version " + prevInstance.getVersion() + " with " +
+                                theCheckpoint.getCompletedTiles().cardinality() + " tiles already done");
             }
+         } catch (IOException e) {
+            this.logger.log (Level.WARNING, "Can't read checkpoint " + checkpointPath + ": " + e.getMessage());
+            theCheckpoint = null;
+         }
+      }
+
+      if (null == theCheckpoint) {
+         try {
+            boolean result = theSimilarityInstanceDAO.insertSimilarityInstance(theSimilarityInstance);
+         } catch (Exception e) {
+            this.logger.log (Level.SEVERE, "Can't insert similarity instance");
+            return;
          }
-         counter ++;
-         rowCounter ++;
       }
-      theSimFile.setCollectionIds(collectionIds);
+
+      // In incremental mode we start from the file of the previous version. If there isn't
+      // one we can read, we just compute everything. A resumed job already has the values
+      // from the previous version in its checkpoint.
+      IncrementalSimilarity theIncrement = null;
+      if (incremental && null != prevInstance && null == theCheckpoint) {
+         SimilarityFile prevSimFile = new SimilarityFile();
+         try {
+            prevSimFile.readFromDisk(prevInstance.getOutput());
+            theIncrement = new IncrementalSimilarity(prevSimFile, theSnapshot);
+            theSnapshot = theIncrement.getOrderedSnapshot();
+            this.logger.log (Level.INFO, "Incremental update of version " + prevInstance.getVersion() +
+                             ": " + theIncrement.getAddedCount() + " added, " + 
+                             theIncrement.getDeletedCount() + " deleted, " +
+                             theIncrement.getFirstNewIndex() + " kept");
+         } catch (Exception e) {
+            this.logger.log (Level.WARNING, "Can't read previous similarity file " + 
+                             prevInstance.getOutput() + ", computing all pairs: " + e.getMessage());
+         }
+      }
+      ArrayList<String> collectionIds = theSnapshot.getCollectionIds();
+
+      if (shards > 1) {
+         String prevModelFile = (null == theIncrement) ? null : SimilarityEngine.getModelPath(prevInstance.getOutput());
+         publishSimilarityShards(stringHeaders, className, nameSpace, outputFile, theSnapshot,
+                                 theIncrement, prevModelFile, theSimilarityInstance, tileSize, shards);
+         return;
+      }
+
+      // For each pair of collection objects, we call the user provided function. The
+      // pairs are cut into tiles which are spread across a pool of worker threads, and
+      // the rows are streamed into the output file as they are finished.
+      CheckpointSink theCheckpointSink = null;
+      SimilarityFileWriter theWriter = null;
       try {
-         theSimFile.writeToDisk(outputFile);
+         // A symmetric processor only computes the top half, and that's all the file keeps.
+         boolean isSymmetric = SimilarityEngine.isSymmetric(theClass.asSubclass(SimilarityProcessor.class));
+         theWriter = new SimilarityFileWriter(outputFile, theSnapshot.size(), nameSpace,
+                                              theSimilarityInstance.getDataStoreId(), isSymmetric, compression);
+         theWriter.setRanked(rankIndex);
+         SimilarityEngine theEngine = new SimilarityEngine();
+         // A processor with a model builds on the model of the version the values it
+         // carries over came from.
+         String baseModelFile = null;
+         if (null != theIncrement) {
+            baseModelFile = SimilarityEngine.getModelPath(prevInstance.getOutput());
+         } else if (null != theCheckpoint) {
+            baseModelFile = SimilarityEngine.getModelPath(outputFile);
+         }
+         theEngine.setModelFiles(baseModelFile, SimilarityEngine.getModelPath(outputFile));
+         int firstColumn = (null == theIncrement) ? 0 : theIncrement.getFirstNewIndex();
+         if (null != theCheckpoint) {
+            firstColumn = theCheckpoint.getFirstColumn();
+         }
+         TileScheduler theScheduler = new TileScheduler(theSnapshot.size(), tileSize, firstColumn);
+         if (null != theCheckpoint) {
+            theScheduler = theScheduler.without(theCheckpoint.getCompletedTiles());
+         }
+         CandidateSet theCandidates = null;
+         if (lshBands > 0) {
+            theCandidates = new MinHashCandidateGenerator(lshBands, lshRows, 
+                MinHashCandidateGenerator.DEFAULT_SEED).generate(theSnapshot);
+         }
+         TileSink theSink = new StreamingSimilarityFileSink(theWriter, theScheduler);
+         if (null != minSimilarityString || topKPerRow > 0) {
+            theSink = new SparsifyingSink(theSink, minSimilarity, topKPerRow);
+         }
+         if (null != theCheckpoint) {
+            theCheckpointSink = new CheckpointSink(checkpointPath, theCheckpoint, 
+                                                   checkpointSeconds * 1000L, theSink);
+            theSink = theCheckpointSink;
+         } else if (checkpointSeconds > 0) {
+            theCheckpointSink = new CheckpointSink(checkpointPath, theSimilarityInstance.getDataStoreId(),
+                                                   collectionIds, tileSize, firstColumn,
+                                                   checkpointSeconds * 1000L, theSink);
+            theSink = theCheckpointSink;
+         }
+         if (null != theIncrement) {
+            theSink = theIncrement.wrap(theSink);
+         }
+         theEngine.computeSimilarities(theSnapshot, theClass.asSubclass(SimilarityProcessor.class),
+                                       theScheduler, theCandidates, theSink);
+      } catch (Exception e) {
+         this.logger.log (Level.SEVERE, "Can't invoke method compareCollections: " + e.getMessage(), e);
+         if (null != theCheckpointSink) {
+            theCheckpointSink.close();
+         }
+         closeQuietly(theWriter);
+         return;
+      }
+      try {
+         theWriter.finish(collectionIds);
       } catch (Exception e) {
          this.logger.log (Level.SEVERE, "Caught Exception writing to disk: " + e.getMessage());
+         closeQuietly(theWriter);
+         return;
+      }
+
+      // The file is safely written, so the checkpoint isn't needed any more.
+      if (null != theCheckpointSink && !new File(checkpointPath).delete()) {
+         this.logger.log (Level.WARNING, "Can't delete checkpoint " + checkpointPath);
+      }
+  }
+ 
+  /**
+   * Start a distributed similarity job: write the manifest that fixes the collection
+   * order, plus the values carried over in an incremental job and the model they were
+   * computed with, and publish one work message per shard.  The headers that tune the
+   * computation are passed on as is.
+   */
+  private void publishSimilarityShards(Map<String, String> stringHeaders, String className,
+                                       String nameSpace, String outputFile,
+                                       CollectionSnapshot theSnapshot, IncrementalSimilarity theIncrement,
+                                       String prevModelFile,
+                                       SimilarityInstanceTransferObject theSimilarityInstance,
+                                       int tileSize, int shards) {
+      int n = theSnapshot.size();
+      SimilarityFile theManifest = new SimilarityFile(n, nameSpace);
+      theManifest.setSimilarityInstanceId(theSimilarityInstance.getDataStoreId());
+      theManifest.setCollectionIds(theSnapshot.getCollectionIds());
+      int firstColumn = 0;
+      try {
+         theManifest.writeToDisk(DistributedSimilarity.getManifestPath(outputFile));
+         if (null != theIncrement) {
+            firstColumn = theIncrement.getFirstNewIndex();
+            SimilarityFile theBase = new SimilarityFile(n, nameSpace);
+            TileResult keptValues = theIncrement.getKeptValues();
+            theBase.setSimilarityValues(keptValues.getRows(), keptValues.getCols(),
+                                        keptValues.getValues(), keptValues.getCount());
+            theBase.writeToDisk(DistributedSimilarity.getBaseShardPath(outputFile));
+            if (new File(prevModelFile).exists()) {
+               Files.copy(Paths.get(prevModelFile), Paths.get(DistributedSimilarity.getBaseModelPath(outputFile)),
+                          StandardCopyOption.REPLACE_EXISTING);
+            }
+         }
+      } catch (Exception e) {
+         this.logger.log (Level.SEVERE, "Caught Exception writing the job files: " + e.getMessage());
+         return;
+      }
+
+      String[] forwardedHeaders = {RelevanceEngineMessage.MIN_SIMILARITY, RelevanceEngineMessage.TOP_K_PER_ROW,
+                                   RelevanceEngineMessage.LSH_BANDS, RelevanceEngineMessage.LSH_ROWS,
+                                   RelevanceEngineMessage.MEMORY_BUDGET_MB,
+                                   RelevanceEngineMessage.COMPRESSION_VALUE_BITS,
+                                   RelevanceEngineMessage.COMPRESSION_BLOCK_ROWS,
+                                   RelevanceEngineMessage.RANK_INDEX};
+      StringBuilder extraHeaders = new StringBuilder();
+      for (String thisHeader : forwardedHeaders) {
+         if (null != stringHeaders.get(thisHeader)) {
+            extraHeaders.append(";" + thisHeader + ":" + stringHeaders.get(thisHeader));
+         }
+      }
+
+      int nTiles = new TileScheduler(n, tileSize, firstColumn).getTileCount();
+      for (int shard = 0; shard < shards; shard++) {
+         String headers = ComputeSimilarityTilesJavaMetadataDBURI.getSendHeaders(className, nameSpace,
+             outputFile, tileSize, firstColumn, 
+             DistributedSimilarity.getShardStart(nTiles, shards, shard),
+             DistributedSimilarity.getShardStart(nTiles, shards, shard + 1), shard, shards) + extraHeaders;
+         this.workPublisher.publishMessage(new AMQPMessage(new byte[0]), headers, true);
+      }
+      this.logger.log (Level.INFO, "Published " + shards + " work messages for " + nTiles + " tiles of " +
+                       n + " collections");
+  }
+
+  /**
+   * Compute one shard of a distributed similarity job.  If this turns out to be the last
+   * shard finished, merge all of the shards into the output file.
+   */
+  public void processComputeSimilarityTilesMessage( Map<String, String> stringHeaders, Object extra) {
+      String className = stringHeaders.get(RelevanceEngineMessage.CLASS);    
+      String nameSpace = stringHeaders.get(RelevanceEngineMessage.NAME_SPACE);    
+      String outputFile = stringHeaders.get(RelevanceEngineMessage.OUTPUT_FILE);    
+      if (null == className || null == nameSpace || null == outputFile) {
+         this.logger.log (Level.SEVERE, "Missing className, nameSpace or outputFile in work message");
+         return;
+      }
+      Class<? extends SimilarityProcessor> theClass = null;
+      try {
+         theClass = RelevanceEngineMessageHandler.class.getClassLoader().loadClass(className)
+                       .asSubclass(SimilarityProcessor.class);
+      } catch (Exception e) {
+         this.logger.log (Level.SEVERE, "Can't load SimilarityProcessor class " + className);
+         return;
+      }
+
+      Integer tileSize = getIntHeader(stringHeaders, RelevanceEngineMessage.TILE_SIZE, 
+                                      TileScheduler.DEFAULT_TILE_SIZE, 1);
+      Integer firstColumn = getIntHeader(stringHeaders, RelevanceEngineMessage.FIRST_COLUMN, 0, 0);
+      Integer tileStart = getIntHeader(stringHeaders, RelevanceEngineMessage.TILE_START, -1, 0);
+      Integer tileEnd = getIntHeader(stringHeaders, RelevanceEngineMessage.TILE_END, -1, 0);
+      Integer shardIndex = getIntHeader(stringHeaders, RelevanceEngineMessage.SHARD_INDEX, -1, 0);
+      Integer shards = getIntHeader(stringHeaders, RelevanceEngineMessage.SHARDS, -1, 1);
+      Integer topKPerRow = getIntHeader(stringHeaders, RelevanceEngineMessage.TOP_K_PER_ROW, 0, 0);
+      Integer lshBands = getIntHeader(stringHeaders, RelevanceEngineMessage.LSH_BANDS, 0, 1);
+      Integer lshRows = getIntHeader(stringHeaders, RelevanceEngineMessage.LSH_ROWS, 0, 1);
+      if (null == tileSize || null == firstColumn || null == tileStart || null == tileEnd ||
+          null == shardIndex || null == shards || null == topKPerRow || null == lshBands || null == lshRows) {
+         return;
+      }
+      SimilarityFileCompression compression = getCompression(stringHeaders);
+      if (null == compression) {
+         return;
+      }
+      boolean rankIndex = !"false".equalsIgnoreCase(stringHeaders.get(RelevanceEngineMessage.RANK_INDEX));
+      Integer memoryBudgetMB = getIntHeader(stringHeaders, RelevanceEngineMessage.MEMORY_BUDGET_MB, 
+          (int) (ExternalSimilarityBuilder.DEFAULT_MEMORY_BUDGET >> 20), 1);
+      if (null == memoryBudgetMB) {
+         return;
+      }
+      if (tileStart < 0 || tileEnd < tileStart || shardIndex < 0 || shardIndex >= shards) {
+         this.logger.log (Level.SEVERE, "Invalid tile range or shard in work message: " + stringHeaders);
          return;
       }
+
+      // From here on a failure is recorded next to the output file, so the job is never
+      // merged and anyone checking on it can tell why the file never appears.
+      String failure = DistributedSimilarity.getFailure(outputFile, shards);
+      if (null != failure) {
+         this.logger.log (Level.WARNING, "Skipping shard " + shardIndex + " of " + outputFile + 
+                          ", the job already failed: " + failure);
+         return;
+      }
+      String minSimilarityString = stringHeaders.get(RelevanceEngineMessage.MIN_SIMILARITY);    
+      double minSimilarity = Double.NEGATIVE_INFINITY;
+      if (null != minSimilarityString) {
+         try {
+            minSimilarity = Double.parseDouble(minSimilarityString);
+         } catch (NumberFormatException e) {
+            failShard(outputFile, shardIndex, "Invalid minSimilarity in message: " + minSimilarityString, null);
+            return;
+         }
+      }
+
+      MetadataDAOFactory theFactory = (MetadataDAOFactory) extra;
+      if (null == theFactory || null == theFactory.getCollectionDAO()) {
+         failShard(outputFile, shardIndex, "No CollectionDAO", null);
+         return;
+      } 
+
+      // Every engine has to use the collection order in the manifest.
+      SimilarityFile theManifest = new SimilarityFile();
+      try {
+         theManifest.readFromDisk(DistributedSimilarity.getManifestPath(outputFile));
+      } catch (Exception e) {
+         failShard(outputFile, shardIndex, "Can't read the job manifest for " + outputFile + ": " + 
+                   e.getMessage(), null);
+         return;
+      }
+      HashMap<String, String> searchMap = new HashMap<String, String>();
+      searchMap.put("nameSpace", nameSpace);
+      CollectionSnapshot theSnapshot = 
+          CollectionSnapshot.load(theFactory.getCollectionDAO(), searchMap, theManifest.getCollectionIds().size())
+                            .reorder(theManifest.getCollectionIds());
+      if (null == theSnapshot) {
+         failShard(outputFile, shardIndex, "Collections in the job manifest are missing from nameSpace " + 
+                   nameSpace, null);
+         return;
+      }
+      int n = theSnapshot.size();
+
+      // Compute our tiles. Values under the threshold can be dropped right away, but the
+      // top k can only be picked once all the shards are in. The values are kept off the
+      // heap until the shard is written.
+      OffHeapSimilarityMatrix theShard = new OffHeapSimilarityMatrix(n);
+      try {
+         TileScheduler theScheduler = 
+            new TileScheduler(n, tileSize, firstColumn).range(tileStart, tileEnd);
+         CandidateSet theCandidates = null;
+         if (lshBands > 0) {
+            theCandidates = new MinHashCandidateGenerator(lshBands, lshRows, 
+                MinHashCandidateGenerator.DEFAULT_SEED).generate(theSnapshot);
+         }
+         TileSink theSink = new OffHeapMatrixSink(theShard);
+         if (null != minSimilarityString) {
+            theSink = new SparsifyingSink(theSink, minSimilarity, 0);
+         }
+         // Every engine prepares the same model, so it doesn't matter whose copy is saved.
+         SimilarityEngine theEngine = new SimilarityEngine();
+         String baseModelFile = DistributedSimilarity.getBaseModelPath(outputFile);
+         theEngine.setModelFiles(new File(baseModelFile).exists() ? baseModelFile : null,
+                                 SimilarityEngine.getModelPath(outputFile));
+         theEngine.computeSimilarities(theSnapshot, theClass, theScheduler, theCandidates, theSink);
+         try (SimilarityFileWriter theShardWriter = 
+                 new SimilarityFileWriter(DistributedSimilarity.getShardPath(outputFile, shardIndex), n, nameSpace, null)) {
+            theShardWriter.appendRows(theShard);
+            theShardWriter.finish(null);
+         }
+         if (!DistributedSimilarity.markShardDone(outputFile, shardIndex, shards)) {
+            return;
+         }
+      } catch (Exception e) {
+         failShard(outputFile, shardIndex, "Can't compute shard " + shardIndex + " of " + outputFile + ": " + 
+                   e.getMessage(), e);
+         return;
+      } finally {
+         theShard.close();
+      }
+
+      // We finished the last shard, so it's up to us to merge them. The shards overlap
+      // in rows, so their values are sorted into the output file within the memory budget.
+      ExternalSimilarityBuilder theBuilder = null;
+      try {
+         SimilarityFileWriter theWriter = 
+            new SimilarityFileWriter(outputFile, n, nameSpace, theManifest.getSimilarityInstanceId(),
+                                     SimilarityEngine.isSymmetric(theClass), compression);
+         theWriter.setRanked(rankIndex);
+         theBuilder = new ExternalSimilarityBuilder(theWriter, (long) memoryBudgetMB << 20);
+         TileSink theSink = new ExternalSortSink(theBuilder);
+         // The values carried over in the base shard haven't been through the threshold yet.
+         if (null != minSimilarityString || topKPerRow > 0) {
+            theSink = new SparsifyingSink(theSink, minSimilarity, topKPerRow);
+         }
+         DistributedSimilarity.mergeShards(outputFile, shards, theSink, n, SimilarityEngine.isSymmetric(theClass));
+         theBuilder.finish(theManifest.getCollectionIds());
+      } catch (Exception e) {
+         this.logger.log (Level.SEVERE, "Caught Exception merging the shards of " + outputFile + ": " + 
+                          e.getMessage());
+         try {
+            DistributedSimilarity.markMergeFailed(outputFile, "Caught Exception merging the shards: " + 
+                                                  e.getMessage());
+         } catch (IOException markException) {
+            this.logger.log (Level.SEVERE, "Can't record the failed merge of " + outputFile + ": " + 
+                             markException.getMessage());
+         }
+         if (null != theBuilder) {
+            try {
+               theBuilder.close();
+            } catch (IOException closeException) {
+               this.logger.log (Level.WARNING, "Can't clean up after the similarity file: " + 
+                                closeException.getMessage());
+            }
+         }
+         return;
+      }
+      DistributedSimilarity.cleanUp(outputFile, shards);
+      this.logger.log (Level.INFO, "Merged " + shards + " shards into " + outputFile);
+  }
+
+  /**
+   * Log why a shard failed and record it next to the output file, so the job is never
+   * merged.
+   */
+  private void failShard(String outputFile, int shardIndex, String reason, Exception e) {
+      this.logger.log (Level.SEVERE, reason, e);
+      try {
+         DistributedSimilarity.markShardFailed(outputFile, shardIndex, reason);
+      } catch (IOException markException) {
+         this.logger.log (Level.SEVERE, "Can't record the failure of shard " + shardIndex + " of " + 
+                          outputFile + ": " + markException.getMessage());
+      }
+  }
+
+  /**
+   * Abandon a SimilarityFileWriter after a failure.
+   */
+  private void closeQuietly(SimilarityFileWriter theWriter) {
+      if (null == theWriter) {
+         return;
+      }
+      try {
+         theWriter.close();
+      } catch (IOException e) {
+         this.logger.log (Level.WARNING, "Can't clean up after the similarity file: " + e.getMessage());
+      }
+  }
+
+  /**
+   * Get the compression of the output file from the optional compression headers.
+   *
+   * @return the compression, SimilarityFileCompression.NONE if there isn't any, or null if
+   *         the headers are invalid.
+   */
+  private SimilarityFileCompression getCompression(Map<String, String> stringHeaders) {
+      Integer valueBits = getIntHeader(stringHeaders, RelevanceEngineMessage.COMPRESSION_VALUE_BITS, 0, 0);
+      Integer blockRows = getIntHeader(stringHeaders, RelevanceEngineMessage.COMPRESSION_BLOCK_ROWS,
+                                       SimilarityFileCompression.DEFAULT_BLOCK_ROWS, 1);
+      if (null == valueBits || null == blockRows) {
+         return null;
+      }
+      if (0 == valueBits) {
+         return SimilarityFileCompression.NONE;
+      }
+      try {
+         return new SimilarityFileCompression(valueBits, blockRows);
+      } catch (IllegalArgumentException e) {
+         this.logger.log (Level.SEVERE, "Invalid compression in message: " + e.getMessage());
+         return null;
+      }
+  }
+
+  /**
+   * Get an optional integer header.
+   *
+   * @return the value, defaultValue if the header is missing, or null if it's invalid.
+   */
+  private Integer getIntHeader(Map<String, String> stringHeaders, String name, int defaultValue, int minValue) {
+      String valueString = stringHeaders.get(name);
+      if (null == valueString) {
+         return defaultValue;
+      }
+      try {
+         int value = Integer.parseInt(valueString);
+         if (value >= minValue) {
+            return value;
+         }
+      } catch (NumberFormatException e) {
+      }
+      this.logger.log (Level.SEVERE, "Invalid " + name + " in message: " + valueString);
+      return null;
   }
  
   public void handleException (Exception exception) {
@@ -0,0 +1,220 @@
+package org.renci.databridge.engines.relevance;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+
+/**
+ * The checkpoint of a similarity job that is still running, read back after a crash or
+ * a restart.  The checkpoint file lives next to the output file and is written by a
+ * CheckpointSink.  It starts with a header:
+ *
+ *   int     MAGIC
+ *   int     VERSION
+ *   UTF     the similarity instance id
+ *   int     tileSize
+ *   int     firstColumn
+ *   int     n, followed by n UTF collection ids, in matrix order
+ *
+ * followed by one record per finished tile:
+ *
+ *   int     the tile index in the schedule, or -1 for values that don't belong to a tile
+ *   int     count, followed by count rows, count columns and count double values
+ *   long    the CRC32 of the bytes of all of the above
+ *
+ * A record that is cut short or has the wrong checksum ends the file.  Everything
+ * before it is good.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class SimilarityCheckpoint {
+
+   public static final int MAGIC = 0x44424350;   // "DBCP"
+   public static final int VERSION = 1;
+   public static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+   /** How often the checkpoint is forced to disk if the message doesn't say */
+   public static final int DEFAULT_INTERVAL_SECONDS = 300;
+
+   private String similarityInstanceId;
+   private int tileSize;
+   private int firstColumn;
+   private ArrayList<String> collectionIds;
+   private BitSet completedTiles = new BitSet();
+   private TileResult savedValues = new TileResult(null, 1024);
+
+   /** The length of the file up to the end of the last good record */
+   private long validLength;
+
+   public static String getCheckpointPath(String outputFile) {
+      return outputFile + CHECKPOINT_SUFFIX;
+   }
+
+   /**
+    * Read a checkpoint file.
+    *
+    * @param path The checkpoint file.
+    * @return the checkpoint.
+    * @throws IOException if the file can't be read or its header is bad.
+    */
+   public static SimilarityCheckpoint read(String path) throws IOException {
+      SimilarityCheckpoint theCheckpoint = new SimilarityCheckpoint();
+      long fileLength = new File(path).length();
+      CountingInputStream counter =
+         new CountingInputStream(new BufferedInputStream(new FileInputStream(path)));
+      DataInputStream input = new DataInputStream(counter);
+      try {
+         if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+            throw new IOException("Not a similarity checkpoint: " + path);
+         }
+         theCheckpoint.similarityInstanceId = input.readUTF();
+         theCheckpoint.tileSize = input.readInt();
+         theCheckpoint.firstColumn = input.readInt();
+         int n = input.readInt();
+         theCheckpoint.collectionIds = new ArrayList<String>(n);
+         for (int i = 0; i < n; i++) {
+            theCheckpoint.collectionIds.add(input.readUTF());
+         }
+         theCheckpoint.validLength = counter.count;
+
+         byte[] record = new byte[0];
+         while (true) {
+            ByteBuffer theRecord;
+            int count;
+            try {
+               int tileIndex = input.readInt();
+               count = input.readInt();
+               // A count that is bigger than the rest of the file is a torn record.
+               if (count < 0 || 16L * count > fileLength - counter.count) {
+                  break;
+               }
+               int length = 8 + 16 * count;
+               if (length > record.length) {
+                  record = new byte[length];
+               }
+               theRecord = ByteBuffer.wrap(record, 0, length);
+               theRecord.putInt(tileIndex).putInt(count);
+               input.readFully(record, 8, length - 8);
+               if (checksum(record, length) != input.readLong()) {
+                  break;
+               }
+            } catch (EOFException e) {
+               break;
+            }
+            theRecord.position(0);
+            int tileIndex = theRecord.getInt();
+            theRecord.getInt();
+            int rowsAt = 8;
+            int colsAt = rowsAt + 4 * count;
+            int valuesAt = colsAt + 4 * count;
+            for (int k = 0; k < count; k++) {
+               theCheckpoint.savedValues.add(theRecord.getInt(rowsAt + 4 * k), theRecord.getInt(colsAt + 4 * k),
+                                             theRecord.getDouble(valuesAt + 8 * k));
+            }
+            if (tileIndex >= 0) {
+               theCheckpoint.completedTiles.set(tileIndex);
+            }
+            theCheckpoint.validLength = counter.count;
+         }
+      } finally {
+         input.close();
+      }
+      return theCheckpoint;
+   }
+
+   /**
+    * Compute the checksum of one record.  The writer and the reader both use this.
+    */
+   static long checksum(byte[] record, int length) {
+      CRC32 crc = new CRC32();
+      crc.update(record, 0, length);
+      return crc.getValue();
+   }
+
+   public String getSimilarityInstanceId() {
+      return similarityInstanceId;
+   }
+
+   public int getTileSize() {
+      return tileSize;
+   }
+
+   public int getFirstColumn() {
+      return firstColumn;
+   }
+
+   /**
+    * Get the collection ids in the order of the matrix being built.
+    *
+    * @return collectionIds as ArrayList<String>
+    */
+   public ArrayList<String> getCollectionIds() {
+      return collectionIds;
+   }
+
+   /**
+    * Get the indices of the tiles that don't have to be computed again.
+    *
+    * @return completedTiles as BitSet
+    */
+   public BitSet getCompletedTiles() {
+      return completedTiles;
+   }
+
+   /**
+    * Get every value saved so far, including any that don't belong to a tile.
+    *
+    * @return the values, as a TileResult with no tile.
+    */
+   public TileResult getSavedValues() {
+      return savedValues;
+   }
+
+   /**
+    * Get the length of the good part of the file.  A CheckpointSink that carries on
+    * with this file cuts it to this length first.
+    *
+    * @return the length in bytes.
+    */
+   public long getValidLength() {
+      return validLength;
+   }
+
+   /**
+    * An input stream that counts the bytes read through it.
+    */
+   private static class CountingInputStream extends FilterInputStream {
+      long count = 0;
+
+      CountingInputStream(InputStream in) {
+         super(in);
+      }
+
+      @Override
+      public int read() throws IOException {
+         int b = super.read();
+         if (b >= 0) {
+            count++;
+         }
+         return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         int n = super.read(b, off, len);
+         if (n > 0) {
+            count += n;
+         }
+         return n;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+         long skipped = super.skip(n);
+         count += skipped;
+         return skipped;
+      }
+   }
+}
@@ -0,0 +1,461 @@
+package org.renci.databridge.engines.relevance;
+import org.renci.databridge.util.*;
+import org.renci.databridge.persistence.metadata.*;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.List;
+import java.lang.reflect.*;
+import java.io.*;
+
+
+/**
+ * Computes the upper triangle of the similarity matrix for a CollectionSnapshot on a
+ * fork-join pool. The pair space is cut into square tiles by a TileScheduler. A worker
+ * computes one tile at a time, so the collections for the tile's rows and columns stay
+ * in cache, and hands the finished tile to a TileSink. The list of tiles is split
+ * recursively, so idle workers steal whatever tiles are left.
+ *
+ * The user supplied SimilarityProcessor is not assumed to be thread safe, so each worker
+ * thread gets its own instance created with the class's no argument constructor. If the
+ * class implements BatchSimilarityProcessor it is prepared with the whole snapshot and
+ * called once per row of a tile instead of once per pair; it is shared between the
+ * workers if it says it's thread safe.
+ *
+ * If a CandidateSet is given, only the candidate pairs in each tile are compared.
+ *
+ * A PersistentModelProcessor can be given the model saved by an earlier run before it
+ * is prepared, and its model is saved once it has been prepared. See setModelFiles.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class SimilarityEngine {
+
+   private Logger logger = Logger.getLogger ("org.renci.databridge.engine.relevance");
+
+   /** Progress is logged each time this percentage of the tiles is finished */
+   public static final int PROGRESS_PERCENT = 5;
+
+   /** The model files of a PersistentModelProcessor live next to the similarity file */
+   public static final String MODEL_SUFFIX = ".model";
+
+   /** The number of worker threads */
+   private int parallelism;
+
+   /** The model to load before prepare, if any */
+   private String baseModelFile = null;
+
+   /** Where to save the model after prepare, if anywhere */
+   private String modelFile = null;
+
+   /**
+    * SimilarityEngine constructor using one worker per available processor.
+    */
+   public SimilarityEngine() {
+      this(Runtime.getRuntime().availableProcessors());
+   }
+
+   /**
+    * SimilarityEngine constructor with an explicit number of workers.
+    *
+    * @param parallelism The number of worker threads to use.
+    */
+   public SimilarityEngine(int parallelism) {
+      if (parallelism < 1) {
+         throw new IllegalArgumentException("parallelism (" + parallelism + ") < 1");
+      }
+      this.parallelism = parallelism;
+   }
+
+   public static String getModelPath(String outputFile) {
+      return outputFile + MODEL_SUFFIX;
+   }
+
+   /**
+    * Set the model files used if the processor is a PersistentModelProcessor.  Other
+    * processors ignore them.
+    *
+    * @param baseModelFile A model saved by an earlier run to build on, or null to build a new one.
+    * @param modelFile Where to save the model once it is prepared, or null not to save it.
+    */
+   public void setModelFiles(String baseModelFile, String modelFile) {
+      this.baseModelFile = baseModelFile;
+      this.modelFile = modelFile;
+   }
+
+   /**
+    * Compute the similarity of every pair (i, j), i < j, in the snapshot and store the
+    * non zero values in the similarity file, using the default tile size.
+    *
+    * @param theSnapshot The collections to compare.
+    * @param processorClass The class implementing SimilarityProcessor.
+    * @param theSimFile The file that receives the values.
+    */
+   public void computeSimilarities(CollectionSnapshot theSnapshot,
+                                   Class<? extends SimilarityProcessor> processorClass,
+                                   SimilarityFile theSimFile) throws Exception {
+      computeSimilarities(theSnapshot, processorClass,
+                          new TileScheduler(theSnapshot.size(), TileScheduler.DEFAULT_TILE_SIZE),
+                          new SimilarityFileSink(theSimFile));
+   }
+
+   /**
+    * Compute every tile in the schedule and pass the results to the sink.
+    *
+    * @param theSnapshot The collections to compare.
+    * @param processorClass The class implementing SimilarityProcessor.
+    * @param theScheduler The tiles to compute.
+    * @param theSink Receives each finished tile.
+    */
+   public void computeSimilarities(CollectionSnapshot theSnapshot,
+                                   Class<? extends SimilarityProcessor> processorClass,
+                                   TileScheduler theScheduler,
+                                   TileSink theSink) throws Exception {
+      computeSimilarities(theSnapshot, processorClass, theScheduler, null, theSink);
+   }
+
+   /**
+    * Compute the candidate pairs in every tile in the schedule and pass the results
+    * to the sink.
+    *
+    * @param theSnapshot The collections to compare.
+    * @param processorClass The class implementing SimilarityProcessor.
+    * @param theScheduler The tiles to compute.
+    * @param theCandidates The pairs to compare, or null to compare every pair.
+    * @param theSink Receives each finished tile.
+    */
+   public void computeSimilarities(CollectionSnapshot theSnapshot,
+                                   Class<? extends SimilarityProcessor> processorClass,
+                                   TileScheduler theScheduler,
+                                   CandidateSet theCandidates,
+                                   TileSink theSink) throws Exception {
+      final Constructor<? extends SimilarityProcessor> cons = processorClass.getConstructor();
+      final List<CollectionTransferObject> collections = theSnapshot.getCollections();
+      boolean isBatch = BatchSimilarityProcessor.class.isAssignableFrom(processorClass);
+      boolean isSymmetric = true;
+      ThreadLocal<SimilarityProcessor> processors = null;
+
+      if (isBatch) {
+         // Batch processors are prepared with the whole snapshot before they are used.
+         final BatchSimilarityProcessor firstProcessor = (BatchSimilarityProcessor) cons.newInstance();
+         loadModel(firstProcessor);
+         firstProcessor.prepare(collections);
+         saveModel(firstProcessor);
+         isSymmetric = firstProcessor.isSymmetric();
+         if (firstProcessor.isThreadSafe()) {
+            // Everybody shares the one prepared instance.
+            processors = new ThreadLocal<SimilarityProcessor>() {
+               @Override
+               protected SimilarityProcessor initialValue() {
+                  return firstProcessor;
+               }
+            };
+         } else {
+            // The first worker gets the instance we already prepared, the rest make their own.
+            final AtomicReference<BatchSimilarityProcessor> unclaimed = 
+               new AtomicReference<BatchSimilarityProcessor>(firstProcessor);
+            processors = new ThreadLocal<SimilarityProcessor>() {
+               @Override
+               protected SimilarityProcessor initialValue() {
+                  BatchSimilarityProcessor thisProcessor = unclaimed.getAndSet(null);
+                  if (null == thisProcessor) {
+                     thisProcessor = (BatchSimilarityProcessor) newProcessor(cons);
+                     loadModel(thisProcessor);
+                     thisProcessor.prepare(collections);
+                  }
+                  return thisProcessor;
+               }
+            };
+         }
+      } else {
+         // One pairwise processor per worker thread.
+         processors = new ThreadLocal<SimilarityProcessor>() {
+            @Override
+            protected SimilarityProcessor initialValue() {
+               return newProcessor(cons);
+            }
+         };
+      }
+
+      int nTiles = theScheduler.getTileCount();
+      long start = System.currentTimeMillis();
+      TileJob theJob = new TileJob(theSnapshot, processors, isBatch, isSymmetric, theScheduler,
+                                   theCandidates, theSink);
+      theSink.start(theSnapshot.size(), isSymmetric);
+      ForkJoinPool thePool = new ForkJoinPool(this.parallelism);
+      try {
+         thePool.invoke(new TileRangeTask(theJob, 0, nTiles));
+      } finally {
+         thePool.shutdown();
+      }
+      theSink.finish();
+      long nPairs = (null == theCandidates) ? theScheduler.getPairCount() : theCandidates.getPairCount();
+      this.logger.log (Level.INFO, "Compared " + nPairs + " pairs of " +
+                       theSnapshot.size() + " collections in " + nTiles + " tiles of size " +
+                       theScheduler.getTileSize() + " in " + (System.currentTimeMillis() - start) +
+                       " ms using " + this.parallelism + " threads" + (isBatch ? " (batch)" : ""));
+   }
+
+   /**
+    * Are the results of the processor class symmetric?  Only batch processors can say
+    * they aren't, and they are asked without being prepared.
+    *
+    * @param processorClass The class implementing SimilarityProcessor.
+    * @return true if (i, j) and (j, i) always have the same similarity.
+    */
+   public static boolean isSymmetric(Class<? extends SimilarityProcessor> processorClass) throws Exception {
+      if (!BatchSimilarityProcessor.class.isAssignableFrom(processorClass)) {
+         return true;
+      }
+      return ((BatchSimilarityProcessor) processorClass.getConstructor().newInstance()).isSymmetric();
+   }
+
+   /**
+    * Give a PersistentModelProcessor the base model, if there is one.  If it can't be
+    * read the processor builds a new model.
+    */
+   private void loadModel(BatchSimilarityProcessor theProcessor) {
+      if (!(theProcessor instanceof PersistentModelProcessor) || null == baseModelFile) {
+         return;
+      }
+      if (!new File(baseModelFile).exists()) {
+         this.logger.log (Level.WARNING, "No model " + baseModelFile + ", building a new one");
+         return;
+      }
+      try (DataInputStream input = 
+              new DataInputStream(new BufferedInputStream(new FileInputStream(baseModelFile)))) {
+         ((PersistentModelProcessor) theProcessor).loadModel(input);
+      } catch (IOException e) {
+         this.logger.log (Level.WARNING, "Can't read model " + baseModelFile + ", building a new one: " + 
+                          e.getMessage());
+      }
+   }
+
+   /**
+    * Save the model of a prepared PersistentModelProcessor.  The model is written to a
+    * temporary file that is then renamed, so a reader never sees half a model.  Not being
+    * able to save the model doesn't stop the job.
+    */
+   private void saveModel(BatchSimilarityProcessor theProcessor) {
+      if (!(theProcessor instanceof PersistentModelProcessor) || null == modelFile) {
+         return;
+      }
+      File tempFile = null;
+      try {
+         tempFile = File.createTempFile("model", ".tmp", new File(modelFile).getAbsoluteFile().getParentFile());
+         try (DataOutputStream output = 
+                 new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            ((PersistentModelProcessor) theProcessor).saveModel(output);
+         }
+         File theModelFile = new File(modelFile);
+         if (!tempFile.renameTo(theModelFile) && !(theModelFile.delete() && tempFile.renameTo(theModelFile))) {
+            throw new IOException("can't rename " + tempFile);
+         }
+      } catch (IOException e) {
+         this.logger.log (Level.WARNING, "Can't save model " + modelFile + ": " + e.getMessage());
+         if (null != tempFile) {
+            tempFile.delete();
+         }
+      }
+   }
+
+   /**
+    * Create a processor with its no argument constructor.
+    */
+   private static SimilarityProcessor newProcessor(Constructor<? extends SimilarityProcessor> cons) {
+      try {
+         return cons.newInstance();
+      } catch (Exception e) {
+         throw new IllegalStateException("Can't create instance of " + cons.getName(), e);
+      }
+   }
+
+   /**
+    * The state shared by all of the tasks of one computeSimilarities call.
+    */
+   private class TileJob {
+      private CollectionSnapshot theSnapshot;
+      private ThreadLocal<SimilarityProcessor> processors;
+      private boolean isBatch;
+      private boolean isSymmetric;
+      private TileScheduler theScheduler;
+      private CandidateSet theCandidates;
+      private TileSink theSink;
+      private AtomicInteger nFinished = new AtomicInteger();
+
+      // Per thread buffers for the batch interface, one tile side long.
+      private ThreadLocal<int[]> candidateBuffers;
+      private ThreadLocal<double[]> scoreBuffers;
+
+      TileJob(CollectionSnapshot theSnapshot, ThreadLocal<SimilarityProcessor> processors,
+              boolean isBatch, boolean isSymmetric, TileScheduler theScheduler,
+              CandidateSet theCandidates, TileSink theSink) {
+         this.theSnapshot = theSnapshot;
+         this.processors = processors;
+         this.isBatch = isBatch;
+         this.isSymmetric = isSymmetric;
+         this.theScheduler = theScheduler;
+         this.theCandidates = theCandidates;
+         this.theSink = theSink;
+         final int tileSize = theScheduler.getTileSize();
+         this.candidateBuffers = new ThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+               return new int[tileSize];
+            }
+         };
+         this.scoreBuffers = new ThreadLocal<double[]>() {
+            @Override
+            protected double[] initialValue() {
+               return new double[tileSize];
+            }
+         };
+      }
+
+      /**
+       * Compute a single tile and hand it to the sink.
+       */
+      void computeTile(SimilarityTile theTile) {
+         SimilarityProcessor thisProcessor = processors.get();
+         TileResult theResult = new TileResult(theTile, (int) Math.min(theTile.pairCount(), 1024));
+         if (isBatch) {
+            computeBatchTile(theTile, (BatchSimilarityProcessor) thisProcessor, theResult);
+         } else {
+            computePairwiseTile(theTile, thisProcessor, theResult);
+         }
+         theSink.acceptTile(theResult);
+         reportProgress();
+      }
+
+      /**
+       * Compute a tile one pair at a time.
+       */
+      void computePairwiseTile(SimilarityTile theTile, SimilarityProcessor thisProcessor,
+                               TileResult theResult) {
+         int rowEnd = theTile.getRowEnd();
+         int colEnd = theTile.getColEnd();
+         for (int i = theTile.getRowStart(); i < rowEnd; i++) {
+            CollectionTransferObject cto1 = theSnapshot.get(i);
+            int colStart = Math.max(theTile.getColStart(), i + 1);
+            if (null == theCandidates) {
+               for (int j = colStart; j < colEnd; j++) {
+                  double similarity = thisProcessor.compareCollections(cto1, theSnapshot.get(j));
+                  if (similarity != 0.) {
+                     theResult.add(i, j, similarity);
+                  }
+               }
+            } else {
+               int[] rowCandidates = theCandidates.getCandidates(i);
+               for (int k = theCandidates.lowerBound(i, colStart);
+                    k < rowCandidates.length && rowCandidates[k] < colEnd; k++) {
+                  int j = rowCandidates[k];
+                  double similarity = thisProcessor.compareCollections(cto1, theSnapshot.get(j));
+                  if (similarity != 0.) {
+                     theResult.add(i, j, similarity);
+                  }
+               }
+            }
+         }
+      }
+
+      /**
+       * Compute a tile one row at a time with the batch interface. For processors that
+       * aren't symmetric the mirror image of the tile, below the diagonal, is computed too.
+       */
+      void computeBatchTile(SimilarityTile theTile, BatchSimilarityProcessor thisProcessor,
+                            TileResult theResult) {
+         int[] candidates = candidateBuffers.get();
+         double[] scores = scoreBuffers.get();
+         int rowStart = theTile.getRowStart();
+         int rowEnd = theTile.getRowEnd();
+         int colStart = theTile.getColStart();
+         int colEnd = theTile.getColEnd();
+
+         for (int i = rowStart; i < rowEnd; i++) {
+            int nCandidates = 0;
+            if (null == theCandidates) {
+               for (int j = Math.max(colStart, i + 1); j < colEnd; j++) {
+                  candidates[nCandidates++] = j;
+               }
+            } else {
+               int[] rowCandidates = theCandidates.getCandidates(i);
+               for (int k = theCandidates.lowerBound(i, Math.max(colStart, i + 1));
+                    k < rowCandidates.length && rowCandidates[k] < colEnd; k++) {
+                  candidates[nCandidates++] = rowCandidates[k];
+               }
+            }
+            addScores(thisProcessor, i, candidates, nCandidates, scores, theResult);
+         }
+
+         if (!isSymmetric) {
+            for (int j = colStart; j < colEnd; j++) {
+               int nCandidates = 0;
+               for (int i = rowStart; i < Math.min(rowEnd, j); i++) {
+                  if (null == theCandidates || theCandidates.contains(i, j)) {
+                     candidates[nCandidates++] = i;
+                  }
+               }
+               addScores(thisProcessor, j, candidates, nCandidates, scores, theResult);
+            }
+         }
+      }
+
+      /**
+       * Score one collection against a block of candidates and keep the non zero scores.
+       */
+      void addScores(BatchSimilarityProcessor thisProcessor, int index, int[] candidates,
+                     int nCandidates, double[] scores, TileResult theResult) {
+         if (nCandidates == 0) {
+            return;
+         }
+         thisProcessor.compareBlock(index, candidates, nCandidates, scores);
+         for (int k = 0; k < nCandidates; k++) {
+            if (scores[k] != 0.) {
+               theResult.add(index, candidates[k], scores[k]);
+            }
+         }
+      }
+
+      /**
+       * Log a line each time another PROGRESS_PERCENT of the tiles is finished.
+       */
+      void reportProgress() {
+         int nTiles = theScheduler.getTileCount();
+         int finished = nFinished.incrementAndGet();
+         int percent = (int) (100L * finished / nTiles);
+         int previous = (int) (100L * (finished - 1) / nTiles);
+         if (percent / PROGRESS_PERCENT != previous / PROGRESS_PERCENT) {
+            logger.log (Level.INFO, "Finished " + finished + " of " + nTiles + " tiles (" + percent + "%)");
+         }
+      }
+   }
+
+   /**
+    * Work on the tiles in [tileStart, tileEnd) of the schedule.
+    */
+   private class TileRangeTask extends RecursiveAction {
+      private TileJob theJob;
+      private int tileStart;
+      private int tileEnd;
+
+      TileRangeTask(TileJob theJob, int tileStart, int tileEnd) {
+         this.theJob = theJob;
+         this.tileStart = tileStart;
+         this.tileEnd = tileEnd;
+      }
+
+      @Override
+      protected void compute() {
+         if (tileEnd - tileStart == 1) {
+            theJob.computeTile(theJob.theScheduler.getTile(tileStart));
+         } else if (tileEnd - tileStart > 1) {
+            int mid = tileStart + (tileEnd - tileStart) / 2;
+            invokeAll(new TileRangeTask(theJob, tileStart, mid),
+                      new TileRangeTask(theJob, mid, tileEnd));
+         }
+      }
+   }
+}
@@ -0,0 +1,34 @@
+package org.renci.databridge.engines.relevance;
+import org.renci.databridge.util.*;
+
+
+/**
+ * A TileSink that stores every finished tile in a SimilarityFile as a single batch.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class SimilarityFileSink implements TileSink {
+
+   /** The file that receives the values */
+   private SimilarityFile theSimFile;
+
+   /**
+    * SimilarityFileSink constructor.
+    *
+    * @param theSimFile The file that receives the values.
+    */
+   public SimilarityFileSink(SimilarityFile theSimFile) {
+      this.theSimFile = theSimFile;
+   }
+
+   public void start(int n, boolean isSymmetric) {
+   }
+
+   public void acceptTile(TileResult theResult) {
+      theSimFile.setSimilarityValues(theResult.getRows(), theResult.getCols(), 
+                                     theResult.getValues(), theResult.getCount());
+   }
+
+   public void finish() {
+   }
+}
@@ -0,0 +1,106 @@
+package org.renci.databridge.engines.relevance;
+
+
+/**
+ * A square block of the upper triangle of the similarity matrix. The tile covers the rows
+ * in [rowStart, rowEnd) and the columns in [colStart, colEnd), restricted to the pairs
+ * with row < column. Tiles are the unit of work for the SimilarityEngine: one worker
+ * computes a whole tile, so the collections for its rows and columns stay in cache, and
+ * the results of a tile are stored, reported and checkpointed together.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class SimilarityTile {
+
+   /** The position of this tile in the schedule that produced it */
+   private int index;
+
+   private int rowStart;
+   private int rowEnd;
+   private int colStart;
+   private int colEnd;
+
+   /**
+    * SimilarityTile constructor.
+    *
+    * @param index The position of the tile in its schedule.
+    * @param rowStart The first row of the tile.
+    * @param rowEnd One past the last row of the tile.
+    * @param colStart The first column of the tile.
+    * @param colEnd One past the last column of the tile.
+    */
+   public SimilarityTile(int index, int rowStart, int rowEnd, int colStart, int colEnd) {
+      this.index = index;
+      this.rowStart = rowStart;
+      this.rowEnd = rowEnd;
+      this.colStart = colStart;
+      this.colEnd = colEnd;
+   }
+
+   /**
+    * The number of pairs (i, j) in the tile with i < j.
+    *
+    * @return the pair count.
+    */
+   public long pairCount() {
+      long count = 0;
+      for (int i = rowStart; i < rowEnd; i++) {
+         int first = Math.max(colStart, i + 1);
+         if (first < colEnd) {
+            count += colEnd - first;
+         }
+      }
+      return count;
+   }
+
+   /**
+    * Get index.
+    *
+    * @return index as int.
+    */
+   public int getIndex() {
+      return index;
+   }
+
+   /**
+    * Get rowStart.
+    *
+    * @return rowStart as int.
+    */
+   public int getRowStart() {
+      return rowStart;
+   }
+
+   /**
+    * Get rowEnd.
+    *
+    * @return rowEnd as int.
+    */
+   public int getRowEnd() {
+      return rowEnd;
+   }
+
+   /**
+    * Get colStart.
+    *
+    * @return colStart as int.
+    */
+   public int getColStart() {
+      return colStart;
+   }
+
+   /**
+    * Get colEnd.
+    *
+    * @return colEnd as int.
+    */
+   public int getColEnd() {
+      return colEnd;
+   }
+
+   @Override
+   public String toString() {
+      return "{tile " + index + ": rows [" + rowStart + ", " + rowEnd + "), cols [" + 
+             colStart + ", " + colEnd + ")}";
+   }
+}
@@ -0,0 +1,210 @@
+package org.renci.databridge.engines.relevance;
+import java.util.Arrays;
+
+
+/**
+ * A TileSink that only passes on the similarity values worth keeping.  Values below
+ * minSimilarity are dropped as the tiles arrive.  If topKPerRow is set, each row also
+ * keeps a bounded min-heap of its topKPerRow best values, and the union of the kept
+ * values is passed on, in row order, when the computation finishes.  For a symmetric
+ * processor a value (i, j) is offered to both row i and row j, so it is kept if it is
+ * among the best of either row, and it is passed on once as (min(i, j), max(i, j)).
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class SparsifyingSink implements TileSink {
+
+   /** The sink that receives the values we keep */
+   private TileSink downstream;
+
+   /** Values below this are dropped */
+   private double minSimilarity;
+
+   /** The number of values kept per row.  0 means keep every value above minSimilarity */
+   private int topKPerRow;
+
+   private boolean isSymmetric;
+
+   /** One heap per row, only used if topKPerRow is set */
+   private RowHeap[] heaps;
+
+   /**
+    * SparsifyingSink constructor.
+    *
+    * @param downstream The sink that receives the kept values.
+    * @param minSimilarity Values below this are dropped.
+    * @param topKPerRow The number of values to keep per row, or 0 for no limit.
+    */
+   public SparsifyingSink(TileSink downstream, double minSimilarity, int topKPerRow) {
+      if (topKPerRow < 0) {
+         throw new IllegalArgumentException("topKPerRow (" + topKPerRow + ") < 0");
+      }
+      this.downstream = downstream;
+      this.minSimilarity = minSimilarity;
+      this.topKPerRow = topKPerRow;
+   }
+
+   public void start(int n, boolean isSymmetric) {
+      this.isSymmetric = isSymmetric;
+      if (topKPerRow > 0) {
+         this.heaps = new RowHeap[n];
+         for (int i = 0; i < n; i++) {
+            this.heaps[i] = new RowHeap(topKPerRow);
+         }
+      }
+      downstream.start(n, isSymmetric);
+   }
+
+   public void acceptTile(TileResult theResult) {
+      int[] rows = theResult.getRows();
+      int[] cols = theResult.getCols();
+      double[] values = theResult.getValues();
+      int count = theResult.getCount();
+
+      if (topKPerRow == 0) {
+         // Threshold only: filter the tile and pass it straight on.
+         TileResult kept = new TileResult(theResult.getTile(), count);
+         for (int k = 0; k < count; k++) {
+            if (values[k] >= minSimilarity) {
+               kept.add(rows[k], cols[k], values[k]);
+            }
+         }
+         downstream.acceptTile(kept);
+         return;
+      }
+
+      for (int k = 0; k < count; k++) {
+         if (values[k] >= minSimilarity) {
+            heaps[rows[k]].offer(cols[k], values[k]);
+            if (isSymmetric) {
+               heaps[cols[k]].offer(rows[k], values[k]);
+            }
+         }
+      }
+   }
+
+   public void finish() {
+      if (topKPerRow > 0) {
+         downstream.acceptTile(collectKept());
+         heaps = null;
+      }
+      downstream.finish();
+   }
+
+   /**
+    * Gather the contents of all of the heaps in row major order.  For the symmetric case
+    * each value is moved to the upper triangle and duplicates are removed.
+    */
+   private TileResult collectKept() {
+      int n = heaps.length;
+      int total = 0;
+      for (int i = 0; i < n; i++) {
+         total += heaps[i].size;
+      }
+
+      // Counting sort of the entries by (upper triangle) row.
+      int[] entryRow = new int[total];
+      int[] entryCol = new int[total];
+      double[] entryValue = new double[total];
+      int[] rowStarts = new int[n + 1];
+      int e = 0;
+      for (int i = 0; i < n; i++) {
+         RowHeap theHeap = heaps[i];
+         for (int k = 0; k < theHeap.size; k++) {
+            int row = i;
+            int col = theHeap.cols[k];
+            if (isSymmetric && col < row) {
+               row = col;
+               col = i;
+            }
+            entryRow[e] = row;
+            entryCol[e] = col;
+            entryValue[e] = theHeap.values[k];
+            rowStarts[row + 1]++;
+            e++;
+         }
+      }
+      for (int i = 0; i < n; i++) {
+         rowStarts[i + 1] += rowStarts[i];
+      }
+      int[] fill = Arrays.copyOf(rowStarts, n);
+      long[] keys = new long[total];
+      for (e = 0; e < total; e++) {
+         // Sort key within the row: the column, then the entry it came from.
+         keys[fill[entryRow[e]]++] = ((long) entryCol[e] << 32) | e;
+      }
+
+      TileResult kept = new TileResult(null, total);
+      for (int i = 0; i < n; i++) {
+         Arrays.sort(keys, rowStarts[i], rowStarts[i + 1]);
+         int lastCol = -1;
+         for (int k = rowStarts[i]; k < rowStarts[i + 1]; k++) {
+            int col = (int) (keys[k] >>> 32);
+            if (col != lastCol) {
+               kept.add(i, col, entryValue[(int) keys[k]]);
+               lastCol = col;
+            }
+         }
+      }
+      return kept;
+   }
+
+   /**
+    * A fixed capacity min-heap of (column, value) pairs for one row.  The root is the
+    * worst value kept so far.  Ties on the value are broken towards the lower column
+    * so the result doesn't depend on the order the tiles finish in.
+    */
+   static class RowHeap {
+      int[] cols;
+      double[] values;
+      int size;
+
+      RowHeap(int capacity) {
+         cols = new int[capacity];
+         values = new double[capacity];
+      }
+
+      /** Is (col1, value1) worse than (col2, value2)? */
+      private static boolean worse(int col1, double value1, int col2, double value2) {
+         return value1 < value2 || (value1 == value2 && col1 > col2);
+      }
+
+      synchronized void offer(int col, double value) {
+         if (size < cols.length) {
+            // Sift up
+            int k = size++;
+            while (k > 0) {
+               int parent = (k - 1) / 2;
+               if (!worse(col, value, cols[parent], values[parent])) {
+                  break;
+               }
+               cols[k] = cols[parent];
+               values[k] = values[parent];
+               k = parent;
+            }
+            cols[k] = col;
+            values[k] = value;
+         } else if (worse(cols[0], values[0], col, value)) {
+            // Replace the root and sift down
+            int k = 0;
+            while (true) {
+               int child = 2 * k + 1;
+               if (child >= size) {
+                  break;
+               }
+               if (child + 1 < size && worse(cols[child + 1], values[child + 1], cols[child], values[child])) {
+                  child++;
+               }
+               if (!worse(cols[child], values[child], col, value)) {
+                  break;
+               }
+               cols[k] = cols[child];
+               values[k] = values[child];
+               k = child;
+            }
+            cols[k] = col;
+            values[k] = value;
+         }
+      }
+   }
+}
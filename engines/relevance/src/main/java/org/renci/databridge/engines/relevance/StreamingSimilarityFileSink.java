@@ -0,0 +1,141 @@
+package org.renci.databridge.engines.relevance;
+import org.renci.databridge.util.*;
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/**
+ * A TileSink that streams the values into a SimilarityFileWriter in row order, so the
+ * whole matrix is never held in memory.  The tiles of a schedule come in row bands of
+ * tileSize rows; a band is written as soon as all of its tiles are in and every band
+ * before it has been written.  Until then its values wait here, so what's held is only
+ * the bands that are still being worked on.
+ *
+ * All of the values for a row have to arrive before its band is written.  That holds
+ * for the tiles themselves, including the (j, i) values of an asymmetric processor,
+ * which always belong to the same band or a later one.  Values that don't belong to a
+ * tile, such as those carried over by an IncrementalSimilarity or replayed from a
+ * checkpoint, have to arrive before the first tile or when the computation finishes,
+ * which is what the sinks in this package do.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class StreamingSimilarityFileSink implements TileSink {
+
+   private SimilarityFileWriter writer;
+   private int tileSize;
+   private int nBands;
+
+   /** The number of tiles of each band that haven't arrived yet */
+   private int[] tilesLeft;
+
+   /** The values waiting to be written, by band */
+   private TileResult[] pending;
+
+   /** The first band that hasn't been written */
+   private int nextBand = 0;
+
+   /**
+    * StreamingSimilarityFileSink constructor.
+    *
+    * @param writer The writer for the output file.  The caller finishes it.
+    * @param theScheduler The tiles that will be computed.
+    */
+   public StreamingSimilarityFileSink(SimilarityFileWriter writer, TileScheduler theScheduler) {
+      this.writer = writer;
+      this.tileSize = theScheduler.getTileSize();
+      this.nBands = (writer.getN() + tileSize - 1) / tileSize;
+      this.tilesLeft = new int[nBands];
+      this.pending = new TileResult[nBands];
+      for (SimilarityTile theTile : theScheduler.getTiles()) {
+         tilesLeft[theTile.getRowStart() / tileSize]++;
+      }
+   }
+
+   public void start(int n, boolean isSymmetric) {
+      if (n != writer.getN()) {
+         throw new IllegalArgumentException("n (" + n + ") != writer n (" + writer.getN() + ")");
+      }
+   }
+
+   public synchronized void acceptTile(TileResult theResult) {
+      int[] rows = theResult.getRows();
+      int[] cols = theResult.getCols();
+      double[] values = theResult.getValues();
+      int count = theResult.getCount();
+      for (int k = 0; k < count; k++) {
+         int band = rows[k] / tileSize;
+         if (band < nextBand) {
+            throw new IllegalStateException("Row " + rows[k] + " has already been written");
+         }
+         if (null == pending[band]) {
+            pending[band] = new TileResult(null, 1024);
+         }
+         pending[band].add(rows[k], cols[k], values[k]);
+      }
+      if (null != theResult.getTile()) {
+         tilesLeft[theResult.getTile().getRowStart() / tileSize]--;
+         while (nextBand < nBands && tilesLeft[nextBand] == 0) {
+            writeBand(nextBand++);
+         }
+      }
+   }
+
+   public synchronized void finish() {
+      while (nextBand < nBands) {
+         writeBand(nextBand++);
+      }
+   }
+
+   /**
+    * Write the rows of a band in order.  If a (row, column) pair came more than once
+    * the last value wins, as it would in a SimilarityFile.
+    */
+   private void writeBand(int band) {
+      TileResult theBand = pending[band];
+      pending[band] = null;
+      if (null == theBand) {
+         return;
+      }
+      int[] rows = theBand.getRows();
+      int[] cols = theBand.getCols();
+      double[] values = theBand.getValues();
+      int count = theBand.getCount();
+      int rowStart = band * tileSize;
+      int nRows = Math.min(tileSize, writer.getN() - rowStart);
+
+      // Counting sort by row, then sort each row by column and arrival order.
+      int[] rowStarts = new int[nRows + 1];
+      for (int e = 0; e < count; e++) {
+         rowStarts[rows[e] - rowStart + 1]++;
+      }
+      for (int r = 0; r < nRows; r++) {
+         rowStarts[r + 1] += rowStarts[r];
+      }
+      int[] fill = Arrays.copyOf(rowStarts, nRows);
+      long[] keys = new long[count];
+      for (int e = 0; e < count; e++) {
+         keys[fill[rows[e] - rowStart]++] = ((long) cols[e] << 32) | e;
+      }
+
+      try {
+         for (int r = 0; r < nRows; r++) {
+            if (rowStarts[r] == rowStarts[r + 1]) {
+               continue;
+            }
+            Arrays.sort(keys, rowStarts[r], rowStarts[r + 1]);
+            writer.beginRow(rowStart + r);
+            for (int k = rowStarts[r]; k < rowStarts[r + 1]; k++) {
+               int col = (int) (keys[k] >>> 32);
+               if (k + 1 < rowStarts[r + 1] && (int) (keys[k + 1] >>> 32) == col) {
+                  continue;
+               }
+               writer.append(col, values[(int) keys[k]]);
+            }
+            writer.endRow();
+         }
+      } catch (IOException e) {
+         throw new IllegalStateException("Can't write the similarity file: " + e.getMessage(), e);
+      }
+   }
+}
@@ -0,0 +1,266 @@
+package org.renci.databridge.engines.relevance;
+import org.renci.databridge.persistence.metadata.*;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+
+/**
+ * A SimilarityProcessor that scores two collections by the cosine of their TF-IDF vectors.
+ * The words of a collection are taken from its title and description, lower cased, with
+ * one letter words and a few very common English words left out.
+ *
+ * prepare makes one pass over the nameSpace to build the vocabulary and count the
+ * collections each term appears in.  Each collection then becomes a sparse vector: the
+ * sorted int ids of its terms and a float weight (1 + log tf) * idf for each, scaled to
+ * length 1.  The cosine of two collections is just the dot product of their vectors,
+ * which is a merge of the two id arrays.  The prepared arrays are never changed, so one
+ * instance is shared by all of the engine's threads.
+ *
+ * The vocabulary and document frequencies are the model, which the engine saves next to
+ * the similarity file.  An incremental run loads the model of the previous version and
+ * keeps its document frequencies, so the values it carries over and the values it
+ * computes are weighted the same way.  Terms the model hasn't seen are added to it with
+ * a document frequency of 0.  A full run builds a new model.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class TfIdfCosineSimilarityProcessor implements PersistentModelProcessor {
+
+   /** The format of the saved model */
+   public static final int MODEL_VERSION = 1;
+
+   private static final Set<String> STOP_WORDS = new HashSet<String>(Arrays.asList(
+      "a", "an", "and", "are", "as", "at", "be", "by", "for", "from", "in", "is", "it",
+      "of", "on", "or", "that", "the", "this", "to", "was", "were", "with"));
+
+   private static final int[] NO_IDS = new int[0];
+   private static final float[] NO_WEIGHTS = new float[0];
+
+   /** The id of each term, and the terms in id order */
+   private HashMap<String, Integer> vocabulary = new HashMap<String, Integer>();
+   private ArrayList<String> terms = new ArrayList<String>();
+
+   /** The number of collections each term appears in, indexed by term id */
+   private int[] documentFrequency = new int[1024];
+
+   /** The number of collections the document frequencies were counted over */
+   private int nDocuments = 0;
+
+   /** Set if the model was loaded, so the document frequencies aren't counted again */
+   private boolean isLoaded = false;
+
+   /** The idf of each term id, as of the end of prepare */
+   private float[] idf = new float[0];
+
+   /** The sorted term ids and the matching weights of each collection */
+   private int[][] termIds;
+   private float[][] weights;
+
+   public void prepare(List<CollectionTransferObject> collections) {
+      int n = collections.size();
+      this.termIds = new int[n][];
+      this.weights = new float[n][];
+      int[][] counts = new int[n][];
+      for (int i = 0; i < n; i++) {
+         TermCounts theCounts = countTerms(collections.get(i), vocabulary, terms);
+         termIds[i] = theCounts.ids;
+         counts[i] = theCounts.counts;
+         if (documentFrequency.length < terms.size()) {
+            documentFrequency = Arrays.copyOf(documentFrequency, Math.max(terms.size(), 2 * documentFrequency.length));
+         }
+         if (!isLoaded) {
+            for (int id : theCounts.ids) {
+               documentFrequency[id]++;
+            }
+         }
+      }
+      if (!isLoaded) {
+         nDocuments = n;
+      }
+
+      idf = new float[terms.size()];
+      for (int id = 0; id < idf.length; id++) {
+         idf[id] = computeIdf(documentFrequency[id]);
+      }
+      for (int i = 0; i < n; i++) {
+         weights[i] = weigh(termIds[i], counts[i]);
+         counts[i] = null;
+      }
+   }
+
+   public void compareBlock(int index, int[] candidates, int nCandidates, double[] scores) {
+      int[] theseIds = termIds[index];
+      float[] theseWeights = weights[index];
+      for (int k = 0; k < nCandidates; k++) {
+         scores[k] = dotProduct(theseIds, theseWeights, termIds[candidates[k]], weights[candidates[k]]);
+      }
+   }
+
+   /**
+    * Compare two collections that weren't prepared, using the model if there is one.
+    * This is much slower than compareBlock since the vocabulary has to be copied.
+    */
+   public double compareCollections(CollectionTransferObject collection1,
+                                    CollectionTransferObject collection2) {
+      HashMap<String, Integer> theVocabulary = new HashMap<String, Integer>(vocabulary);
+      ArrayList<String> theTerms = new ArrayList<String>(terms);
+      TermCounts counts1 = countTerms(collection1, theVocabulary, theTerms);
+      TermCounts counts2 = countTerms(collection2, theVocabulary, theTerms);
+      return dotProduct(counts1.ids, weigh(counts1.ids, counts1.counts),
+                        counts2.ids, weigh(counts2.ids, counts2.counts));
+   }
+
+   public boolean isSymmetric() {
+      return true;
+   }
+
+   public boolean isThreadSafe() {
+      return true;
+   }
+
+   public void loadModel(DataInputStream input) throws IOException {
+      if (input.readInt() != MODEL_VERSION) {
+         throw new IOException("Unknown TF-IDF model version");
+      }
+      int theNDocuments = input.readInt();
+      int nTerms = input.readInt();
+      HashMap<String, Integer> theVocabulary = new HashMap<String, Integer>(2 * nTerms);
+      ArrayList<String> theTerms = new ArrayList<String>(nTerms);
+      int[] theDocumentFrequency = new int[Math.max(1, nTerms)];
+      for (int id = 0; id < nTerms; id++) {
+         String theTerm = input.readUTF();
+         theVocabulary.put(theTerm, id);
+         theTerms.add(theTerm);
+         theDocumentFrequency[id] = input.readInt();
+      }
+      this.nDocuments = theNDocuments;
+      this.vocabulary = theVocabulary;
+      this.terms = theTerms;
+      this.documentFrequency = theDocumentFrequency;
+      this.isLoaded = true;
+   }
+
+   public void saveModel(DataOutputStream output) throws IOException {
+      output.writeInt(MODEL_VERSION);
+      output.writeInt(nDocuments);
+      output.writeInt(terms.size());
+      for (int id = 0; id < terms.size(); id++) {
+         output.writeUTF(terms.get(id));
+         output.writeInt(documentFrequency[id]);
+      }
+   }
+
+   /**
+    * The smoothed inverse document frequency of a term in df of the nDocuments collections.
+    */
+   private float computeIdf(int df) {
+      return (float) (Math.log((1. + nDocuments) / (1. + df)) + 1.);
+   }
+
+   /**
+    * Turn the term counts of a collection into weights of length 1.  Terms that came
+    * after prepare get the idf of a term that no collection has.
+    */
+   private float[] weigh(int[] ids, int[] counts) {
+      if (ids.length == 0) {
+         return NO_WEIGHTS;
+      }
+      float[] theWeights = new float[ids.length];
+      float unseenIdf = computeIdf(0);
+      double sumOfSquares = 0.;
+      for (int k = 0; k < ids.length; k++) {
+         double weight = (1. + Math.log(counts[k])) * (ids[k] < idf.length ? idf[ids[k]] : unseenIdf);
+         theWeights[k] = (float) weight;
+         sumOfSquares += weight * weight;
+      }
+      float scale = (float) (1. / Math.sqrt(sumOfSquares));
+      for (int k = 0; k < ids.length; k++) {
+         theWeights[k] *= scale;
+      }
+      return theWeights;
+   }
+
+   /**
+    * The dot product of two sparse vectors with sorted ids.
+    */
+   static double dotProduct(int[] ids1, float[] weights1, int[] ids2, float[] weights2) {
+      double sum = 0.;
+      int i = 0;
+      int j = 0;
+      while (i < ids1.length && j < ids2.length) {
+         int x = ids1[i];
+         int y = ids2[j];
+         if (x < y) {
+            i++;
+         } else if (x > y) {
+            j++;
+         } else {
+            sum += (double) weights1[i] * weights2[j];
+            i++;
+            j++;
+         }
+      }
+      return sum;
+   }
+
+   /**
+    * The sorted distinct term ids of a collection and how often each one appears.
+    */
+   static class TermCounts {
+      int[] ids;
+      int[] counts;
+   }
+
+   /**
+    * Count the terms of a collection, adding any new terms to the vocabulary.
+    */
+   static TermCounts countTerms(CollectionTransferObject theCollection,
+                                HashMap<String, Integer> theVocabulary, ArrayList<String> theTerms) {
+      StringBuilder theText = new StringBuilder();
+      if (null != theCollection.getTitle()) {
+         theText.append(theCollection.getTitle());
+      }
+      if (null != theCollection.getDescription()) {
+         theText.append(' ').append(theCollection.getDescription());
+      }
+
+      TermCounts theCounts = new TermCounts();
+      String[] words = theText.toString().toLowerCase().split("[^\\p{L}\\p{N}]+");
+      int[] ids = new int[words.length];
+      int size = 0;
+      for (String theWord : words) {
+         if (theWord.length() < 2 || STOP_WORDS.contains(theWord)) {
+            continue;
+         }
+         Integer id = theVocabulary.get(theWord);
+         if (null == id) {
+            id = theTerms.size();
+            theVocabulary.put(theWord, id);
+            theTerms.add(theWord);
+         }
+         ids[size++] = id;
+      }
+      if (size == 0) {
+         theCounts.ids = NO_IDS;
+         theCounts.counts = NO_IDS;
+         return theCounts;
+      }
+
+      Arrays.sort(ids, 0, size);
+      int[] counts = new int[size];
+      int distinct = 0;
+      for (int k = 0; k < size; k++) {
+         if (distinct > 0 && ids[k] == ids[distinct - 1]) {
+            counts[distinct - 1]++;
+         } else {
+            ids[distinct] = ids[k];
+            counts[distinct++] = 1;
+         }
+      }
+      theCounts.ids = Arrays.copyOf(ids, distinct);
+      theCounts.counts = Arrays.copyOf(counts, distinct);
+      return theCounts;
+   }
+}
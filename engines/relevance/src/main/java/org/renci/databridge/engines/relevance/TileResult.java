@@ -0,0 +1,101 @@
+package org.renci.databridge.engines.relevance;
+import java.util.Arrays;
+
+
+/**
+ * The non zero values computed for one SimilarityTile, held as three companion arrays
+ * of (row, column, value) tuples in the order they were computed.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class TileResult {
+
+   /** The tile these values belong to. This is null for values that don't come from a
+       single tile, such as the rows kept by a SparsifyingSink. */
+   private SimilarityTile tile;
+
+   private int[] rows;
+   private int[] cols;
+   private double[] values;
+   private int count;
+
+   /**
+    * TileResult constructor.
+    *
+    * @param tile The tile these values belong to, or null.
+    * @param initialCapacity The initial size of the arrays.
+    */
+   public TileResult(SimilarityTile tile, int initialCapacity) {
+      this.tile = tile;
+      int capacity = Math.max(initialCapacity, 16);
+      this.rows = new int[capacity];
+      this.cols = new int[capacity];
+      this.values = new double[capacity];
+      this.count = 0;
+   }
+
+   /**
+    * Add a (row, column, value) tuple.
+    *
+    * @param i The row for the entry
+    * @param j The column for the entry
+    * @param value The value for the entry
+    */
+   public void add(int i, int j, double value) {
+      if (count == rows.length) {
+         int newLength = rows.length * 2;
+         rows = Arrays.copyOf(rows, newLength);
+         cols = Arrays.copyOf(cols, newLength);
+         values = Arrays.copyOf(values, newLength);
+      }
+      rows[count] = i;
+      cols[count] = j;
+      values[count] = value;
+      count++;
+   }
+
+   /**
+    * Get tile.
+    *
+    * @return tile as SimilarityTile.
+    */
+   public SimilarityTile getTile() {
+      return tile;
+   }
+
+   /**
+    * Get the rows.  Only the first getCount() entries are valid.
+    *
+    * @return rows as int[].
+    */
+   public int[] getRows() {
+      return rows;
+   }
+
+   /**
+    * Get the columns.  Only the first getCount() entries are valid.
+    *
+    * @return cols as int[].
+    */
+   public int[] getCols() {
+      return cols;
+   }
+
+   /**
+    * Get the values.  Only the first getCount() entries are valid.
+    *
+    * @return values as double[].
+    */
+   public double[] getValues() {
+      return values;
+   }
+
+   /**
+    * Get the number of tuples.
+    *
+    * @return count as int.
+    */
+   public int getCount() {
+      return count;
+   }
+}
@@ -0,0 +1,182 @@
+package org.renci.databridge.engines.relevance;
+import java.util.*;
+
+
+/**
+ * Splits the upper triangle of an n by n similarity matrix into square tiles. The tiles
+ * are listed a band of rows at a time, left to right, so tile (r, c) for r <= c comes
+ * before every tile of band r + 1.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class TileScheduler {
+
+   /** The tile size used when the message doesn't specify one */
+   public static final int DEFAULT_TILE_SIZE = 256;
+
+   /** The dimension of the matrix */
+   private int n;
+
+   /** The length of a side of each tile */
+   private int tileSize;
+
+   /** Only pairs (i, j) with j >= firstColumn are scheduled */
+   private int firstColumn;
+
+   /** The tiles, in schedule order */
+   private ArrayList<SimilarityTile> tiles;
+
+   /**
+    * TileScheduler constructor.
+    *
+    * @param n The dimension of the matrix.
+    * @param tileSize The length of the side of a tile.  Must be positive.
+    */
+   public TileScheduler(int n, int tileSize) {
+      this(n, tileSize, 0);
+   }
+
+   /**
+    * TileScheduler constructor for an incremental run, where only the pairs involving
+    * the collections from firstColumn on are computed.  Each tile is clipped so it starts
+    * no further left than firstColumn.
+    *
+    * @param n The dimension of the matrix.
+    * @param tileSize The length of the side of a tile.  Must be positive.
+    * @param firstColumn The first column to compute.
+    */
+   public TileScheduler(int n, int tileSize, int firstColumn) {
+      if (tileSize < 1) {
+         throw new IllegalArgumentException("tileSize (" + tileSize + ") < 1");
+      }
+      this.n = n;
+      this.tileSize = tileSize;
+      this.firstColumn = firstColumn;
+      this.tiles = new ArrayList<SimilarityTile>();
+
+      int nBands = (n + tileSize - 1) / tileSize;
+      for (int band = 0; band < nBands; band++) {
+         int rowStart = band * tileSize;
+         int rowEnd = Math.min(n, rowStart + tileSize);
+         for (int col = band; col < nBands; col++) {
+            int colStart = Math.max(col * tileSize, firstColumn);
+            int colEnd = Math.min(n, col * tileSize + tileSize);
+            if (colStart >= colEnd) {
+               continue;
+            }
+            SimilarityTile theTile = new SimilarityTile(tiles.size(), rowStart, rowEnd, colStart, colEnd);
+            // A diagonal tile of a single row has no pairs at all.
+            if (theTile.pairCount() > 0) {
+               tiles.add(theTile);
+            }
+         }
+      }
+   }
+
+   /**
+    * Private constructor used by range.
+    */
+   private TileScheduler(int n, int tileSize, int firstColumn, List<SimilarityTile> tiles) {
+      this.n = n;
+      this.tileSize = tileSize;
+      this.firstColumn = firstColumn;
+      this.tiles = new ArrayList<SimilarityTile>(tiles);
+   }
+
+   /**
+    * Get a schedule of just the tiles in [tileStart, tileEnd) of this one.  The tiles
+    * keep their index in this schedule.
+    *
+    * @param tileStart The position of the first tile.
+    * @param tileEnd The position after the last tile.
+    * @return the smaller schedule.
+    */
+   public TileScheduler range(int tileStart, int tileEnd) {
+      return new TileScheduler(n, tileSize, firstColumn, tiles.subList(tileStart, tileEnd));
+   }
+
+   /**
+    * Get a schedule without the tiles that are already done.  The tiles keep their index
+    * in this schedule.
+    *
+    * @param completedTiles The indices of the tiles to leave out.
+    * @return the smaller schedule.
+    */
+   public TileScheduler without(BitSet completedTiles) {
+      ArrayList<SimilarityTile> remaining = new ArrayList<SimilarityTile>(tiles.size());
+      for (SimilarityTile theTile : tiles) {
+         if (!completedTiles.get(theTile.getIndex())) {
+            remaining.add(theTile);
+         }
+      }
+      return new TileScheduler(n, tileSize, firstColumn, remaining);
+   }
+
+   /**
+    * Get the number of tiles.
+    *
+    * @return the number of tiles.
+    */
+   public int getTileCount() {
+      return tiles.size();
+   }
+
+   /**
+    * Get the tile at the given position in the schedule.
+    *
+    * @param index The position of the tile.
+    * @return the tile.
+    */
+   public SimilarityTile getTile(int index) {
+      return tiles.get(index);
+   }
+
+   /**
+    * Get all of the tiles in schedule order.
+    *
+    * @return tiles as List<SimilarityTile>
+    */
+   public List<SimilarityTile> getTiles() {
+      return Collections.unmodifiableList(tiles);
+   }
+
+   /**
+    * The total number of pairs covered by the schedule.
+    *
+    * @return the pair count.
+    */
+   public long getPairCount() {
+      long count = 0;
+      for (SimilarityTile theTile : tiles) {
+         count += theTile.pairCount();
+      }
+      return count;
+   }
+
+   /**
+    * Get n.
+    *
+    * @return n as int.
+    */
+   public int getN() {
+      return n;
+   }
+
+   /**
+    * Get firstColumn.
+    *
+    * @return firstColumn as int.
+    */
+   public int getFirstColumn() {
+      return firstColumn;
+   }
+
+   /**
+    * Get tileSize.
+    *
+    * @return tileSize as int.
+    */
+   public int getTileSize() {
+      return tileSize;
+   }
+}
@@ -0,0 +1,33 @@
+package org.renci.databridge.engines.relevance;
+
+
+/**
+ * Receives the results of the SimilarityEngine one finished tile at a time. The engine
+ * calls start before the first tile and finish after the last one from the calling
+ * thread, and acceptTile from its worker threads, so acceptTile must be thread safe.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public interface TileSink {
+
+   /**
+    * Called once before any tiles are computed.
+    *
+    * @param n The dimension of the similarity matrix.
+    * @param isSymmetric Whether the processor is symmetric, in which case only the pairs
+    *                    with row < column are computed.
+    */
+   public void start(int n, boolean isSymmetric);
+
+   /**
+    * Called once for every finished tile.
+    *
+    * @param theResult The values computed for the tile.
+    */
+   public void acceptTile(TileResult theResult);
+
+   /**
+    * Called once after every tile has been accepted.
+    */
+   public void finish();
+}
@@ -0,0 +1,377 @@
+package org.renci.databridge.engines.relevance;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.renci.databridge.persistence.metadata.*;
+import org.renci.databridge.util.*;
+import org.renci.databridge.message.*;
+import com.rabbitmq.client.AMQP;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs several relevance engines in one JVM against an in memory stand in for the
+ * broker and the metadata database, and checks that a job split into shards gives the
+ * same file as a job run by a single engine.
+ */
+public class DistributedSimilarityTest extends TestCase
+{
+    /**
+     * A broker with a single queue shared by all of the engines.
+     */
+    public static class LocalBroker extends AMQPComms {
+        public LinkedBlockingQueue<AMQPMessage> queue = new LinkedBlockingQueue<AMQPMessage>();
+
+        /** The headers of every message published, in order */
+        public List<Map<String, Object>> published = 
+            Collections.synchronizedList(new ArrayList<Map<String, Object>>());
+
+        @Override
+        public void publishMessage(AMQPMessage theMessage, String headers, Boolean persistence) {
+            Map<String, Object> headerMap = new HashMap<String, Object>();
+            for (String thisHeader : headers.split(";")) {
+                String[] thisSplitHeader = thisHeader.split(":", 2);
+                headerMap.put(thisSplitHeader[0], thisSplitHeader[1]);
+            }
+            published.add(headerMap);
+            AMQPMessage theCopy = new AMQPMessage(theMessage.getBytes());
+            theCopy.setProperties(new AMQP.BasicProperties.Builder().headers(headerMap).build());
+            queue.add(theCopy);
+        }
+    }
+
+    /**
+     * A CollectionDAO that returns its collections in a different order every time.
+     */
+    public static class MemoryCollectionDAO implements CollectionDAO {
+        private ArrayList<CollectionTransferObject> collections = new ArrayList<CollectionTransferObject>();
+        private Random random = new Random(17);
+
+        public synchronized boolean insertCollection(CollectionTransferObject theCollection) {
+            return collections.add(theCollection);
+        }
+        public synchronized Iterator<CollectionTransferObject> getCollections(HashMap<String, String> searchMap) {
+            ArrayList<CollectionTransferObject> shuffled = new ArrayList<CollectionTransferObject>(collections);
+            Collections.shuffle(shuffled, random);
+            return shuffled.iterator();
+        }
+        public CollectionTransferObject getCollectionById(String id) { return null; }
+        public Iterator<String> getNamespaceList() { return null; }
+        public boolean updateCollection(CollectionTransferObject theCollection, Object collectionID) { return false; }
+        public int deleteCollection(CollectionTransferObject theCollection) { return 0; }
+        public int deleteCollection(HashMap<String, String> searchMap) { return 0; }
+        public synchronized long countCollections(HashMap<String, String> searchMap) { return collections.size(); }
+    }
+
+    public static class MemorySimilarityInstanceDAO implements SimilarityInstanceDAO {
+        private ArrayList<SimilarityInstanceTransferObject> instances = new ArrayList<SimilarityInstanceTransferObject>();
+
+        public synchronized boolean insertSimilarityInstance(SimilarityInstanceTransferObject theSimilarityInstance) {
+            theSimilarityInstance.setDataStoreId("instance" + instances.size());
+            return instances.add(theSimilarityInstance);
+        }
+        public Iterator<SimilarityInstanceTransferObject> getSimilarityInstances(HashMap<String, String> searchMap) {
+            return getSimilarityInstances(searchMap, null, null);
+        }
+        public synchronized Iterator<SimilarityInstanceTransferObject> getSimilarityInstances(
+            HashMap<String, String> searchMap, HashMap<String, String> sortMap, Integer limit) {
+            // Newest first is all the engine asks for.
+            ArrayList<SimilarityInstanceTransferObject> newestFirst = new ArrayList<SimilarityInstanceTransferObject>(instances);
+            Collections.reverse(newestFirst);
+            return newestFirst.iterator();
+        }
+        public int deleteSimilarityInstance(SimilarityInstanceTransferObject theSimilarityInstance) { return 0; }
+        public int deleteSimilarityInstance(HashMap<String, String> searchMap) { return 0; }
+        public long countSimilarityInstances(HashMap<String, String> searchMap) { return instances.size(); }
+    }
+
+    public static class MemoryDAOFactory extends MetadataDAOFactory {
+        private CollectionDAO theCollectionDAO = new MemoryCollectionDAO();
+        private SimilarityInstanceDAO theSimilarityInstanceDAO = new MemorySimilarityInstanceDAO();
+
+        public CollectionDAO getCollectionDAO() { return theCollectionDAO; }
+        public FileDAO getFileDAO() { return null; }
+        public VariableDAO getVariableDAO() { return null; }
+        public SimilarityInstanceDAO getSimilarityInstanceDAO() { return theSimilarityInstanceDAO; }
+        public SNAInstanceDAO getSNAInstanceDAO() { return null; }
+        public ActionDAO getActionDAO() { return null; }
+    }
+
+    /**
+     * Fails on every pair with the first collection, so some of the shards fail.
+     */
+    public static class FailingProcessor extends SimilarityEngineTest.SharedKeywordProcessor {
+        public double compareCollections(CollectionTransferObject collection1,
+                                         CollectionTransferObject collection2) {
+            if ("id0".equals(collection1.getDataStoreId()) || "id0".equals(collection2.getDataStoreId())) {
+                throw new IllegalStateException("can't compare id0");
+            }
+            return super.compareCollections(collection1, collection2);
+        }
+    }
+
+    public DistributedSimilarityTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( DistributedSimilarityTest.class );
+    }
+
+    /**
+     * Send a create message and let nEngines engines work the queue until it's empty.
+     */
+    private void runJob(final LocalBroker theBroker, final MemoryDAOFactory theFactory,
+                        String headers, int nEngines) throws Exception
+    {
+        theBroker.publishMessage(new AMQPMessage(new byte[0]), headers, true);
+        ExecutorService theEngines = Executors.newFixedThreadPool(nEngines);
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        for (int e = 0; e < nEngines; e++) {
+            results.add(theEngines.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    RelevanceEngineMessageHandler theHandler = new RelevanceEngineMessageHandler(theBroker);
+                    AMQPMessage theMessage;
+                    while (null != (theMessage = theBroker.queue.poll(500, TimeUnit.MILLISECONDS))) {
+                        theHandler.handle(theMessage, theFactory);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Object> theResult : results) {
+            theResult.get(60, TimeUnit.SECONDS);
+        }
+        theEngines.shutdown();
+    }
+
+    public void testShardedJobMatchesSingleEngine() throws Exception
+    {
+        int n = 150;
+        MemoryDAOFactory theFactory = new MemoryDAOFactory();
+        CollectionSnapshot theSnapshot = SimilarityEngineTest.buildSnapshot(n);
+        for (CollectionTransferObject theCollection : theSnapshot.getCollections()) {
+            theFactory.getCollectionDAO().insertCollection(theCollection);
+        }
+        LocalBroker theBroker = new LocalBroker();
+        File sharded = File.createTempFile("sharded", ".sim");
+        String className = SimilarityEngineTest.SharedKeywordProcessor.class.getName();
+
+        String headers = CreateSimilarityMatrixJavaMetadataDBURI.getSendHeaders(className, "test",
+                             sharded.getPath(), 1., 4) + ";" + RelevanceEngineMessage.TILE_SIZE + ":16;" +
+                             RelevanceEngineMessage.SHARDS + ":7";
+        runJob(theBroker, theFactory, headers, 3);
+
+        SimilarityFile shardedFile = new SimilarityFile();
+        shardedFile.readFromDisk(sharded.getPath());
+        assertEquals("instance0", shardedFile.getSimilarityInstanceId());
+        assertEquals(n, shardedFile.getCollectionIds().size());
+        assertFalse(new File(DistributedSimilarity.getManifestPath(sharded.getPath())).exists());
+        assertFalse(new File(DistributedSimilarity.getShardPath(sharded.getPath(), 0)).exists());
+
+        // A single engine working in the same collection order has to give the same file.
+        CollectionSnapshot ordered = theSnapshot.reorder(shardedFile.getCollectionIds());
+        SimilarityFile singleFile = new SimilarityFile(n, "test");
+        new SimilarityEngine(2).computeSimilarities(ordered, SimilarityEngineTest.SharedKeywordProcessor.class,
+                                                    new TileScheduler(n, 16),
+                                                    new SparsifyingSink(new SimilarityFileSink(singleFile), 1., 4));
+        assertTrue(singleFile.getSimilarityMatrix().cardinality() > 0);
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                assertEquals("value at " + i + "," + j, singleFile.getSimilarityMatrix().get(i, j),
+                             shardedFile.getSimilarityMatrix().get(i, j), 0.);
+            }
+        }
+        sharded.delete();
+    }
+
+    /**
+     * The headers that tune the job have to reach every shard, since whichever engine
+     * finishes last does the merge with the headers of its own work message.
+     */
+    public void testForwardedHeaders() throws Exception
+    {
+        File sharded = File.createTempFile("forwarded", ".sim");
+        LocalBroker theBroker = runShardedJob(sharded, ";" + RelevanceEngineMessage.MEMORY_BUDGET_MB + ":3");
+        int nWorkMessages = 0;
+        for (Map<String, Object> theHeaders : theBroker.published) {
+            if (!theHeaders.containsKey(RelevanceEngineMessage.TILE_START)) {
+                continue;
+            }
+            nWorkMessages++;
+            assertEquals("3", theHeaders.get(RelevanceEngineMessage.MEMORY_BUDGET_MB));
+        }
+        assertEquals(7, nWorkMessages);
+        sharded.delete();
+    }
+
+    /**
+     * A sharded job asked for a compressed file has to write one, with the same values.
+     */
+    public void testCompressedShardedJob() throws Exception
+    {
+        File sharded = File.createTempFile("compressed", ".sim");
+        runShardedJob(sharded, ";" + RelevanceEngineMessage.COMPRESSION_VALUE_BITS + ":64;" +
+                               RelevanceEngineMessage.COMPRESSION_BLOCK_ROWS + ":8");
+        MappedSimilarityFile theFile = MappedSimilarityFile.open(sharded.getPath());
+        try {
+            assertTrue(theFile.getCompression().isCompressed());
+            assertEquals(64, theFile.getCompression().getValueBits());
+            assertEquals(8, theFile.getCompression().getBlockRows());
+        } finally {
+            theFile.close();
+        }
+        assertMatchesSingleEngine(sharded);
+        sharded.delete();
+    }
+
+    /**
+     * A sharded job asked not to rank the file mustn't.
+     */
+    public void testUnrankedShardedJob() throws Exception
+    {
+        File sharded = File.createTempFile("unranked", ".sim");
+        runShardedJob(sharded, ";" + RelevanceEngineMessage.RANK_INDEX + ":false");
+        MappedSimilarityFile theFile = MappedSimilarityFile.open(sharded.getPath());
+        try {
+            assertFalse(theFile.isRanked());
+        } finally {
+            theFile.close();
+        }
+        assertMatchesSingleEngine(sharded);
+        sharded.delete();
+    }
+
+    /**
+     * An incremental sharded job with only a threshold has to apply it to the values
+     * carried over from the previous version too.
+     */
+    public void testIncrementalShardedThreshold() throws Exception
+    {
+        MemoryDAOFactory theFactory = new MemoryDAOFactory();
+        CollectionSnapshot theSnapshot = SimilarityEngineTest.buildSnapshot(170);
+        for (int i = 0; i < 150; i++) {
+            theFactory.getCollectionDAO().insertCollection(theSnapshot.get(i));
+        }
+        String className = SimilarityEngineTest.SharedKeywordProcessor.class.getName();
+
+        // The first version keeps every value, so it has some below the threshold.
+        File previous = File.createTempFile("previous", ".sim");
+        runJob(new LocalBroker(), theFactory,
+               CreateSimilarityMatrixJavaMetadataDBURI.getSendHeaders(className, "test", previous.getPath()) +
+               ";" + RelevanceEngineMessage.TILE_SIZE + ":16;" + RelevanceEngineMessage.SHARDS + ":7", 3);
+
+        for (int i = 150; i < 170; i++) {
+            theFactory.getCollectionDAO().insertCollection(theSnapshot.get(i));
+        }
+        File sharded = File.createTempFile("incremental", ".sim");
+        runJob(new LocalBroker(), theFactory,
+               CreateSimilarityMatrixJavaMetadataDBURI.getSendHeaders(className, "test", sharded.getPath()) +
+               ";" + RelevanceEngineMessage.MIN_SIMILARITY + ":2;" + RelevanceEngineMessage.INCREMENTAL + ":true;" +
+               RelevanceEngineMessage.TILE_SIZE + ":16;" + RelevanceEngineMessage.SHARDS + ":7", 3);
+        assertFalse(new File(DistributedSimilarity.getBaseShardPath(sharded.getPath())).exists());
+        assertMatchesSingleEngine(sharded, 2., 0);
+        previous.delete();
+        sharded.delete();
+    }
+
+    /**
+     * A shard that fails has to leave a marker, and the job must never be merged.
+     */
+    public void testFailedShard() throws Exception
+    {
+        MemoryDAOFactory theFactory = new MemoryDAOFactory();
+        for (CollectionTransferObject theCollection : SimilarityEngineTest.buildSnapshot(150).getCollections()) {
+            theFactory.getCollectionDAO().insertCollection(theCollection);
+        }
+        File sharded = File.createTempFile("failed", ".sim");
+        String path = sharded.getPath();
+        runJob(new LocalBroker(), theFactory,
+               CreateSimilarityMatrixJavaMetadataDBURI.getSendHeaders(FailingProcessor.class.getName(), "test", path) +
+               ";" + RelevanceEngineMessage.TILE_SIZE + ":16;" + RelevanceEngineMessage.SHARDS + ":7", 3);
+
+        String failure = DistributedSimilarity.getFailure(path, 7);
+        assertNotNull(failure);
+        assertTrue(failure, failure.contains("can't compare id0"));
+        assertEquals(0, sharded.length());
+        assertFalse(new File(path + DistributedSimilarity.MERGE_SUFFIX).exists());
+        assertTrue(new File(DistributedSimilarity.getManifestPath(path)).exists());
+        int nFailed = 0;
+        for (int s = 0; s < 7; s++) {
+            boolean isDone = new File(path + DistributedSimilarity.DONE_SUFFIX + s).exists();
+            boolean isFailed = new File(path + DistributedSimilarity.FAILED_SUFFIX + s).exists();
+            // A shard picked up after the job failed is skipped, so it's neither.
+            assertFalse("shard " + s, isDone && isFailed);
+            if (isFailed) {
+                nFailed++;
+            }
+        }
+        assertTrue(nFailed > 0);
+
+        // Even once the other shards are done, a failed job isn't merged.
+        for (int s = 0; s < 7; s++) {
+            assertFalse(DistributedSimilarity.markShardDone(path, s, 7));
+        }
+        for (File theFile : sharded.getAbsoluteFile().getParentFile().listFiles()) {
+            if (theFile.getName().startsWith(sharded.getName())) {
+                theFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Check a file written by runShardedJob against the same job run by a single engine.
+     */
+    private void assertMatchesSingleEngine(File sharded) throws Exception
+    {
+        assertMatchesSingleEngine(sharded, 1., 4);
+    }
+
+    /**
+     * Check a sharded file against a single engine computing every pair, in the same
+     * collection order, with the given threshold and top k.
+     */
+    private void assertMatchesSingleEngine(File sharded, double minSimilarity, int topKPerRow) throws Exception
+    {
+        SimilarityFile shardedFile = new SimilarityFile();
+        shardedFile.readFromDisk(sharded.getPath());
+        int n = shardedFile.getCollectionIds().size();
+        CollectionSnapshot ordered = SimilarityEngineTest.buildSnapshot(n).reorder(shardedFile.getCollectionIds());
+        SimilarityFile singleFile = new SimilarityFile(n, "test");
+        new SimilarityEngine(2).computeSimilarities(ordered, SimilarityEngineTest.SharedKeywordProcessor.class,
+                                                    new TileScheduler(n, 16),
+                                                    new SparsifyingSink(new SimilarityFileSink(singleFile),
+                                                                        minSimilarity, topKPerRow));
+        assertTrue(singleFile.getSimilarityMatrix().cardinality() > 0);
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                assertEquals("value at " + i + "," + j, singleFile.getSimilarityMatrix().get(i, j),
+                             shardedFile.getSimilarityMatrix().get(i, j), 0.);
+            }
+        }
+    }
+
+    /**
+     * Run a job of 150 collections in 7 shards on 3 engines.
+     *
+     * @param extraHeaders Headers to add to the create message.
+     */
+    private LocalBroker runShardedJob(File sharded, String extraHeaders) throws Exception
+    {
+        MemoryDAOFactory theFactory = new MemoryDAOFactory();
+        for (CollectionTransferObject theCollection : SimilarityEngineTest.buildSnapshot(150).getCollections()) {
+            theFactory.getCollectionDAO().insertCollection(theCollection);
+        }
+        LocalBroker theBroker = new LocalBroker();
+        String className = SimilarityEngineTest.SharedKeywordProcessor.class.getName();
+        String headers = CreateSimilarityMatrixJavaMetadataDBURI.getSendHeaders(className, "test",
+                             sharded.getPath(), 1., 4) + ";" + RelevanceEngineMessage.TILE_SIZE + ":16;" +
+                             RelevanceEngineMessage.SHARDS + ":7" + extraHeaders;
+        runJob(theBroker, theFactory, headers, 3);
+        return theBroker;
+    }
+}
@@ -0,0 +1,675 @@
+package org.renci.databridge.engines.relevance;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.renci.databridge.persistence.metadata.*;
+import org.renci.databridge.util.*;
+import java.util.*;
+import java.io.File;
+
+/**
+ * Tests for the parallel similarity engine. These don't need a database, the
+ * collections are added straight to the snapshot.
+ */
+public class SimilarityEngineTest extends TestCase
+{
+    /**
+     * A processor that returns the number of keywords the collections share.
+     */
+    public static class SharedKeywordProcessor implements SimilarityProcessor {
+        public double compareCollections(CollectionTransferObject collection1,
+                                         CollectionTransferObject collection2) {
+            ArrayList<String> shared = new ArrayList<String>(collection1.getKeywords());
+            shared.retainAll(collection2.getKeywords());
+            return shared.size();
+        }
+    }
+
+    /**
+     * The batch version of SharedKeywordProcessor. It isn't symmetric: the score is
+     * shifted by the index of the first collection, so (i, j) and (j, i) differ.
+     */
+    public static class AsymmetricBatchProcessor extends SharedKeywordProcessor
+                                                 implements BatchSimilarityProcessor {
+        private List<CollectionTransferObject> collections;
+
+        public void prepare(List<CollectionTransferObject> collections) {
+            this.collections = collections;
+        }
+
+        public void compareBlock(int index, int[] candidates, int nCandidates, double[] scores) {
+            for (int k = 0; k < nCandidates; k++) {
+                scores[k] = compareCollections(collections.get(index), 
+                                               collections.get(candidates[k])) + index;
+            }
+        }
+
+        public boolean isSymmetric() {
+            return false;
+        }
+
+        public boolean isThreadSafe() {
+            return false;
+        }
+    }
+
+    public SimilarityEngineTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( SimilarityEngineTest.class );
+    }
+
+    /**
+     * Build a snapshot in which collection i has the keywords "k(i % 7)" and "k(i % 5)".
+     */
+    public static CollectionSnapshot buildSnapshot(int n)
+    {
+        CollectionSnapshot theSnapshot = new CollectionSnapshot(n);
+        for (int i = 0; i < n; i++) {
+            CollectionTransferObject theCollection = new CollectionTransferObject();
+            theCollection.setDataStoreId("id" + i);
+            theCollection.setTitle("title " + i);
+            ArrayList<String> keywords = new ArrayList<String>();
+            keywords.add("k" + (i % 7));
+            keywords.add("m" + (i % 5));
+            theCollection.setKeywords(keywords);
+            theSnapshot.add(theCollection);
+        }
+        return theSnapshot;
+    }
+
+    public void testTileScheduler()
+    {
+        // 10 rows in tiles of 4 gives 3 bands with 3, 2 and 1 tiles.
+        TileScheduler theScheduler = new TileScheduler(10, 4);
+        assertEquals(6, theScheduler.getTileCount());
+        assertEquals(45, theScheduler.getPairCount());
+        SimilarityTile last = theScheduler.getTile(5);
+        assertEquals(8, last.getRowStart());
+        assertEquals(10, last.getColEnd());
+        assertEquals(1, last.pairCount());
+
+        // A trailing single row has nothing to compare against on the diagonal.
+        assertEquals(5, new TileScheduler(9, 4).getTileCount());
+        assertEquals(36, new TileScheduler(9, 4).getPairCount());
+        assertEquals(0, new TileScheduler(1, 4).getTileCount());
+    }
+
+    public void testUpperTriangleMatchesSerial()
+    {
+        int n = 300;
+        CollectionSnapshot theSnapshot = buildSnapshot(n);
+        SimilarityFile theSimFile = new SimilarityFile(n, "test");
+        try {
+            new SimilarityEngine(4).computeSimilarities(theSnapshot, SharedKeywordProcessor.class,
+                                                        new TileScheduler(n, 32),
+                                                        new SimilarityFileSink(theSimFile));
+        } catch (Exception e) {
+            fail("computeSimilarities threw " + e);
+        }
+
+        SharedKeywordProcessor serial = new SharedKeywordProcessor();
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                double expected = 0.;
+                if (i < j) {
+                    expected = serial.compareCollections(theSnapshot.get(i), theSnapshot.get(j));
+                }
+                assertEquals("value at " + i + "," + j, expected,
+                             theSimFile.getSimilarityMatrix().get(i, j), 0.);
+            }
+        }
+        assertEquals(n - 1, theSnapshot.indexOf("id" + (n - 1)));
+        assertEquals(-1, theSnapshot.indexOf("missing"));
+    }
+
+    public void testAsymmetricBatchProcessor()
+    {
+        int n = 150;
+        CollectionSnapshot theSnapshot = buildSnapshot(n);
+        SimilarityFile theSimFile = new SimilarityFile(n, "test");
+        try {
+            new SimilarityEngine(3).computeSimilarities(theSnapshot, AsymmetricBatchProcessor.class,
+                                                        new TileScheduler(n, 16),
+                                                        new SimilarityFileSink(theSimFile));
+        } catch (Exception e) {
+            fail("computeSimilarities threw " + e);
+        }
+
+        SharedKeywordProcessor serial = new SharedKeywordProcessor();
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                double expected = 0.;
+                if (i != j) {
+                    expected = serial.compareCollections(theSnapshot.get(i), theSnapshot.get(j)) + i;
+                }
+                assertEquals("value at " + i + "," + j, expected,
+                             theSimFile.getSimilarityMatrix().get(i, j), 0.);
+            }
+        }
+    }
+
+    public void testSparsifyingSink()
+    {
+        int n = 120;
+        int topK = 3;
+        double minSimilarity = 1.;
+        CollectionSnapshot theSnapshot = buildSnapshot(n);
+        SimilarityFile theSimFile = new SimilarityFile(n, "test");
+        try {
+            new SimilarityEngine(4).computeSimilarities(theSnapshot, SharedKeywordProcessor.class,
+                                                        new TileScheduler(n, 16),
+                                                        new SparsifyingSink(new SimilarityFileSink(theSimFile),
+                                                                            minSimilarity, topK));
+        } catch (Exception e) {
+            fail("computeSimilarities threw " + e);
+        }
+
+        // Work out the serial answer: the full symmetric matrix, then the best topK of
+        // each row, ties going to the lower column.
+        SharedKeywordProcessor serial = new SharedKeywordProcessor();
+        double[][] full = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                if (i != j) {
+                    full[i][j] = serial.compareCollections(theSnapshot.get(i), theSnapshot.get(j));
+                }
+            }
+        }
+        boolean[][] kept = new boolean[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < topK; k++) {
+                int best = -1;
+                for (int j = 0; j < n; j++) {
+                    if (i != j && !kept[i][j] && full[i][j] >= minSimilarity &&
+                        (best < 0 || full[i][j] > full[i][best])) {
+                        best = j;
+                    }
+                }
+                if (best >= 0) {
+                    kept[i][best] = true;
+                }
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                double expected = 0.;
+                if (i < j && (kept[i][j] || kept[j][i])) {
+                    expected = full[i][j];
+                }
+                assertEquals("value at " + i + "," + j, expected,
+                             theSimFile.getSimilarityMatrix().get(i, j), 0.);
+            }
+        }
+    }
+
+    public void testThresholdOnly()
+    {
+        int n = 60;
+        CollectionSnapshot theSnapshot = buildSnapshot(n);
+        SimilarityFile theSimFile = new SimilarityFile(n, "test");
+        try {
+            new SimilarityEngine(2).computeSimilarities(theSnapshot, SharedKeywordProcessor.class,
+                                                        new TileScheduler(n, 8),
+                                                        new SparsifyingSink(new SimilarityFileSink(theSimFile),
+                                                                            2., 0));
+        } catch (Exception e) {
+            fail("computeSimilarities threw " + e);
+        }
+
+        SharedKeywordProcessor serial = new SharedKeywordProcessor();
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                double similarity = serial.compareCollections(theSnapshot.get(i), theSnapshot.get(j));
+                assertEquals("value at " + i + "," + j, similarity >= 2. ? similarity : 0.,
+                             theSimFile.getSimilarityMatrix().get(i, j), 0.);
+            }
+        }
+    }
+
+    public void testMinHashCandidates()
+    {
+        int n = 200;
+        CollectionSnapshot theSnapshot = buildSnapshot(n);
+        CandidateSet theCandidates = new MinHashCandidateGenerator(8, 2, 42L).generate(theSnapshot);
+
+        // Collections with the same keywords (and titles that only differ by the number)
+        // are very similar, so with these parameters they are practically always found.
+        int found = 0;
+        int same = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 35; j < n; j += 35) {
+                same++;
+                if (theCandidates.contains(i, j)) {
+                    found++;
+                }
+            }
+        }
+        assertTrue("found " + found + " of " + same, found >= same * 0.95);
+        assertTrue(theCandidates.getPairCount() < (long) n * (n - 1) / 2);
+
+        // Only the candidate pairs reach the file, with the same values as before.
+        SimilarityFile theSimFile = new SimilarityFile(n, "test");
+        try {
+            new SimilarityEngine(4).computeSimilarities(theSnapshot, SharedKeywordProcessor.class,
+                                                        new TileScheduler(n, 32), theCandidates,
+                                                        new SimilarityFileSink(theSimFile));
+        } catch (Exception e) {
+            fail("computeSimilarities threw " + e);
+        }
+        SharedKeywordProcessor serial = new SharedKeywordProcessor();
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                double expected = 0.;
+                if (theCandidates.contains(i, j)) {
+                    expected = serial.compareCollections(theSnapshot.get(i), theSnapshot.get(j));
+                }
+                assertEquals("value at " + i + "," + j, expected,
+                             theSimFile.getSimilarityMatrix().get(i, j), 0.);
+            }
+        }
+
+        assertEquals(1. - Math.pow(1. - 0.25, 8), MinHashCandidateGenerator.expectedRecall(0.5, 8, 2), 1e-12);
+    }
+
+    public void testMinHashBucketCap()
+    {
+        int n = 200;
+        CollectionSnapshot theSnapshot = buildSnapshot(n);
+        CandidateSet all = new MinHashCandidateGenerator(8, 2, 42L).generate(theSnapshot);
+
+        // Skipping the larger buckets only drops pairs.
+        CandidateSet capped = new MinHashCandidateGenerator(8, 2, 42L, 4).generate(theSnapshot);
+        assertTrue(capped.getPairCount() < all.getPairCount());
+        for (int i = 0; i < n; i++) {
+            for (int j : capped.getCandidates(i)) {
+                assertTrue("pair " + i + "," + j, all.contains(i, j));
+            }
+        }
+
+        // Identical collections share every bucket, so they are all skipped or all kept.
+        CollectionSnapshot identical = new CollectionSnapshot(10);
+        for (int i = 0; i < 10; i++) {
+            CollectionTransferObject theCollection = new CollectionTransferObject();
+            theCollection.setDataStoreId("id" + i);
+            theCollection.setTitle("the same title");
+            identical.add(theCollection);
+        }
+        assertEquals(45, new MinHashCandidateGenerator(8, 2, 42L, 10).generate(identical).getPairCount());
+        assertEquals(0, new MinHashCandidateGenerator(8, 2, 42L, 9).generate(identical).getPairCount());
+    }
+
+    public void testCandidateSetDuplicates()
+    {
+        // Adding each pair many times, in both orders, keeps one copy of each.
+        int n = 50;
+        CandidateSet theCandidates = new CandidateSet(n);
+        for (int repeat = 0; repeat < 20; repeat++) {
+            for (int i = 0; i < n; i++) {
+                for (int j = i % 3; j < n; j += 3) {
+                    theCandidates.addPair(repeat % 2 == 0 ? i : j, repeat % 2 == 0 ? j : i);
+                }
+            }
+        }
+        theCandidates.finish();
+        long expected = 0;
+        for (int i = 0; i < n; i++) {
+            int[] theRow = theCandidates.getCandidates(i);
+            for (int k = 0; k < theRow.length; k++) {
+                assertEquals(0, (theRow[k] - i) % 3);
+                assertTrue(theRow[k] > i);
+                if (k > 0) {
+                    assertTrue(theRow[k] > theRow[k - 1]);
+                }
+            }
+            for (int j = i + 3; j < n; j += 3) {
+                expected++;
+                assertTrue(theCandidates.contains(i, j));
+            }
+        }
+        assertEquals(expected, theCandidates.getPairCount());
+    }
+
+    public void testIncrementalMatchesFull()
+    {
+        // The previous version has collections 0 to 99.
+        int n = 100;
+        CollectionSnapshot previous = buildSnapshot(n);
+        SimilarityFile previousFile = new SimilarityFile(n, "test");
+        try {
+            new SimilarityEngine(2).computeSimilarities(previous, SharedKeywordProcessor.class,
+                                                        new TileScheduler(n, 16),
+                                                        new SimilarityFileSink(previousFile));
+        } catch (Exception e) {
+            fail("computeSimilarities threw " + e);
+        }
+        previousFile.setCollectionIds(previous.getCollectionIds());
+
+        // Now every third collection is gone, 30 new ones arrived, and the database
+        // returns them in a different order.
+        CollectionSnapshot bigger = buildSnapshot(n + 30);
+        CollectionSnapshot current = new CollectionSnapshot(n + 30);
+        for (int i = n + 30 - 1; i >= 0; i--) {
+            if (i >= n || i % 3 != 0) {
+                current.add(bigger.get(i));
+            }
+        }
+
+        IncrementalSimilarity theIncrement = new IncrementalSimilarity(previousFile, current);
+        assertEquals(30, theIncrement.getAddedCount());
+        assertEquals(34, theIncrement.getDeletedCount());
+        CollectionSnapshot ordered = theIncrement.getOrderedSnapshot();
+        int m = theIncrement.getFirstNewIndex();
+        assertEquals("id1", ordered.get(0).getDataStoreId());
+
+        int size = ordered.size();
+        SimilarityFile incrementalFile = new SimilarityFile(size, "test");
+        SimilarityFile fullFile = new SimilarityFile(size, "test");
+        try {
+            new SimilarityEngine(3).computeSimilarities(ordered, SharedKeywordProcessor.class,
+                                                        new TileScheduler(size, 16, m), null,
+                                                        theIncrement.wrap(new SimilarityFileSink(incrementalFile)));
+            new SimilarityEngine(3).computeSimilarities(ordered, SharedKeywordProcessor.class,
+                                                        new TileScheduler(size, 16),
+                                                        new SimilarityFileSink(fullFile));
+        } catch (Exception e) {
+            fail("computeSimilarities threw " + e);
+        }
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                assertEquals("value at " + i + "," + j, fullFile.getSimilarityMatrix().get(i, j),
+                             incrementalFile.getSimilarityMatrix().get(i, j), 0.);
+            }
+        }
+    }
+
+    /**
+     * A sink that fails after a number of tiles, like an engine being killed.
+     */
+    public static class FailingSink implements TileSink {
+        private TileSink downstream;
+        private int tilesLeft;
+
+        public FailingSink(TileSink downstream, int tilesLeft) {
+            this.downstream = downstream;
+            this.tilesLeft = tilesLeft;
+        }
+        public void start(int n, boolean isSymmetric) {
+            downstream.start(n, isSymmetric);
+        }
+        public synchronized void acceptTile(TileResult theResult) {
+            if (tilesLeft-- <= 0) {
+                throw new IllegalStateException("killed");
+            }
+            downstream.acceptTile(theResult);
+        }
+        public void finish() {
+            downstream.finish();
+        }
+    }
+
+    public void testCheckpointResume() throws Exception
+    {
+        int n = 100;
+        CollectionSnapshot theSnapshot = buildSnapshot(n);
+        TileScheduler theScheduler = new TileScheduler(n, 16);
+        java.io.File checkpointFile = java.io.File.createTempFile("similarity", ".checkpoint");
+        String path = checkpointFile.getPath();
+
+        // The first run dies after 10 tiles.
+        CheckpointSink theCheckpointSink = new CheckpointSink(path, "instance", theSnapshot.getCollectionIds(),
+                                                              16, 0, 0, new SimilarityFileSink(new SimilarityFile(n, "test")));
+        try {
+            new SimilarityEngine(1).computeSimilarities(theSnapshot, SharedKeywordProcessor.class,
+                                                        theScheduler, new FailingSink(theCheckpointSink, 10));
+            fail("the first run should have died");
+        } catch (Exception e) {
+        }
+        theCheckpointSink.close();
+
+        // Half a record at the end, as if the engine died in the middle of writing it.
+        java.io.FileOutputStream theStream = new java.io.FileOutputStream(path, true);
+        theStream.write(new byte[] {0, 0, 0, 3, 0, 0, 0, 9, 1, 2});
+        theStream.close();
+
+        SimilarityCheckpoint theCheckpoint = SimilarityCheckpoint.read(path);
+        assertEquals("instance", theCheckpoint.getSimilarityInstanceId());
+        assertEquals(theSnapshot.getCollectionIds(), theCheckpoint.getCollectionIds());
+        assertEquals(10, theCheckpoint.getCompletedTiles().cardinality());
+        assertEquals(checkpointFile.length() - 10, theCheckpoint.getValidLength());
+
+        // The second run only computes the other tiles but ends up with every value.
+        SimilarityFile theSimFile = new SimilarityFile(n, "test");
+        TileScheduler remaining = theScheduler.without(theCheckpoint.getCompletedTiles());
+        assertEquals(theScheduler.getTileCount() - 10, remaining.getTileCount());
+        theCheckpointSink = new CheckpointSink(path, theCheckpoint, 0, new SimilarityFileSink(theSimFile));
+        new SimilarityEngine(2).computeSimilarities(theSnapshot, SharedKeywordProcessor.class,
+                                                    remaining, theCheckpointSink);
+
+        SharedKeywordProcessor serial = new SharedKeywordProcessor();
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                assertEquals("value at " + i + "," + j,
+                             serial.compareCollections(theSnapshot.get(i), theSnapshot.get(j)),
+                             theSimFile.getSimilarityMatrix().get(i, j), 0.);
+            }
+        }
+
+        // The checkpoint now covers the whole job.
+        assertEquals(theScheduler.getTileCount(), SimilarityCheckpoint.read(path).getCompletedTiles().cardinality());
+        checkpointFile.delete();
+    }
+
+    public void testJaccardProcessor()
+    {
+        // Set intersection, both by merging and by galloping.
+        int[] small = {3, 40, 41, 999};
+        int[] large = new int[500];
+        for (int k = 0; k < large.length; k++) {
+            large[k] = 2 * k + 1;
+        }
+        assertEquals(3, JaccardSimilarityProcessor.intersectionSize(small, large));
+        assertEquals(3, JaccardSimilarityProcessor.gallopingIntersectionSize(small, large));
+        assertEquals(2, JaccardSimilarityProcessor.intersectionSize(new int[] {1, 2, 5}, new int[] {2, 3, 5, 7}));
+        assertEquals(0, JaccardSimilarityProcessor.intersectionSize(new int[0], large));
+
+        int n = 80;
+        CollectionSnapshot theSnapshot = buildSnapshot(n);
+        theSnapshot.get(3).setSubject("K3, Physics; m3");
+        theSnapshot.get(5).setSubject("physics");
+        theSnapshot.get(7).setKeywords(new ArrayList<String>());
+
+        JaccardSimilarityProcessor theProcessor = new JaccardSimilarityProcessor();
+        theProcessor.prepare(theSnapshot.getCollections());
+        int[] candidates = new int[n];
+        double[] scores = new double[n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                candidates[j] = j;
+            }
+            theProcessor.compareBlock(i, candidates, n, scores);
+            for (int j = 0; j < n; j++) {
+                // The same thing done the slow way with sets of strings.
+                HashSet<String> terms1 = termSet(theSnapshot.get(i));
+                HashSet<String> terms2 = termSet(theSnapshot.get(j));
+                HashSet<String> union = new HashSet<String>(terms1);
+                union.addAll(terms2);
+                terms1.retainAll(terms2);
+                double expected = union.isEmpty() ? 0. : (double) terms1.size() / union.size();
+                assertEquals("score of " + i + "," + j, expected, scores[j], 1e-15);
+                assertEquals(expected, theProcessor.compareCollections(theSnapshot.get(i), theSnapshot.get(j)), 1e-15);
+            }
+        }
+
+        // k3 and m3 are already keywords of 3, so physics is the only new term.
+        assertEquals(2. / 3., new JaccardSimilarityProcessor().compareCollections(theSnapshot.get(3), 
+                                                                                 theSnapshot.get(38)), 1e-15);
+        assertEquals(1., new OverlapSimilarityProcessor().compareCollections(theSnapshot.get(3), 
+                                                                            theSnapshot.get(38)), 1e-15);
+    }
+
+    public void testTfIdfProcessor() throws Exception
+    {
+        CollectionTransferObject first = new CollectionTransferObject();
+        first.setTitle("Ocean temperature");
+        first.setDescription("Daily sea surface temperature of the ocean.");
+        CollectionTransferObject second = new CollectionTransferObject();
+        second.setTitle("OCEAN TEMPERATURE");
+        second.setDescription("daily sea surface temperature, of the ocean");
+        CollectionTransferObject third = new CollectionTransferObject();
+        third.setTitle("Census of a county");
+        TfIdfCosineSimilarityProcessor unprepared = new TfIdfCosineSimilarityProcessor();
+        assertEquals(1., unprepared.compareCollections(first, second), 1e-6);
+        assertEquals(0., unprepared.compareCollections(first, third), 0.);
+        assertEquals(0., unprepared.compareCollections(first, new CollectionTransferObject()), 0.);
+
+        int n = 60;
+        CollectionSnapshot theSnapshot = buildSnapshot(n + 10);
+        for (int i = 0; i < n + 10; i++) {
+            theSnapshot.get(i).setDescription("word" + (i % 4) + " word" + (i % 4) + " term" + (i % 9) + " " +
+                                              (i % 3 == 0 ? "rare" + (i % 11) : ""));
+        }
+        CollectionSnapshot theFirstVersion = new CollectionSnapshot(n);
+        for (int i = 0; i < n; i++) {
+            theFirstVersion.add(theSnapshot.get(i));
+        }
+
+        // compareBlock and compareCollections agree once the model is built.
+        TfIdfCosineSimilarityProcessor theProcessor = new TfIdfCosineSimilarityProcessor();
+        theProcessor.prepare(theFirstVersion.getCollections());
+        int[] candidates = new int[n];
+        double[] scores = new double[n];
+        for (int j = 0; j < n; j++) {
+            candidates[j] = j;
+        }
+        for (int i = 0; i < n; i++) {
+            theProcessor.compareBlock(i, candidates, n, scores);
+            assertEquals(1., scores[i], 1e-6);
+            for (int j = 0; j < n; j++) {
+                assertTrue(scores[j] >= 0. && scores[j] <= 1. + 1e-6);
+                assertEquals(scores[j], theProcessor.compareCollections(theFirstVersion.get(i), 
+                                                                        theFirstVersion.get(j)), 1e-6);
+            }
+        }
+
+        // A second version built on the saved model keeps the values of the first.
+        File firstModel = File.createTempFile("first", ".model");
+        File secondModel = File.createTempFile("second", ".model");
+        SimilarityFile firstFile = new SimilarityFile(n, "test");
+        SimilarityEngine theEngine = new SimilarityEngine(2);
+        theEngine.setModelFiles(null, firstModel.getPath());
+        theEngine.computeSimilarities(theFirstVersion, TfIdfCosineSimilarityProcessor.class, firstFile);
+        assertTrue(firstModel.length() > 0);
+
+        SimilarityFile secondFile = new SimilarityFile(n + 10, "test");
+        theEngine.setModelFiles(firstModel.getPath(), secondModel.getPath());
+        theEngine.computeSimilarities(theSnapshot, TfIdfCosineSimilarityProcessor.class, secondFile);
+        SimilarityFile rebuiltFile = new SimilarityFile(n + 10, "test");
+        new SimilarityEngine(2).computeSimilarities(theSnapshot, TfIdfCosineSimilarityProcessor.class, rebuiltFile);
+        boolean isDifferent = false;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                assertEquals("value at " + i + "," + j, firstFile.getSimilarityMatrix().get(i, j),
+                             secondFile.getSimilarityMatrix().get(i, j), 0.);
+                isDifferent |= firstFile.getSimilarityMatrix().get(i, j) != rebuiltFile.getSimilarityMatrix().get(i, j);
+            }
+        }
+        // Without the model the new collections change the weights.
+        assertTrue(isDifferent);
+        assertTrue(secondModel.length() > firstModel.length());
+        firstModel.delete();
+        secondModel.delete();
+    }
+
+    public void testStreamingSink() throws Exception
+    {
+        int n = 150;
+        CollectionSnapshot theSnapshot = buildSnapshot(n);
+        final File streamed = File.createTempFile("streamed", ".sim");
+
+        // Symmetric and asymmetric processors, with and without a sparsifier, on their own
+        // and after an incremental run.
+        for (int run = 0; run < 4; run++) {
+            Class<? extends SimilarityProcessor> theClass = 
+                (run == 1) ? AsymmetricBatchProcessor.class : SharedKeywordProcessor.class;
+            TileScheduler theScheduler = new TileScheduler(n, 16, (run == 3) ? 100 : 0);
+            SimilarityFile expected = new SimilarityFile(n, "test");
+            TileSink expectedSink = new SimilarityFileSink(expected);
+            SimilarityFileWriter theWriter = new SimilarityFileWriter(streamed.getPath(), n, "test", "instance1");
+            TileSink theSink = new StreamingSimilarityFileSink(theWriter, theScheduler);
+            if (run == 2) {
+                expectedSink = new SparsifyingSink(expectedSink, 1., 3);
+                theSink = new SparsifyingSink(theSink, 1., 3);
+            }
+            if (run == 3) {
+                // The values carried over come in before the first tile.
+                SimilarityFile previousFile = new SimilarityFile(100, "test");
+                new SimilarityEngine(2).computeSimilarities(buildSnapshot(100), SharedKeywordProcessor.class,
+                                                            previousFile);
+                previousFile.setCollectionIds(buildSnapshot(100).getCollectionIds());
+                IncrementalSimilarity theIncrement = new IncrementalSimilarity(previousFile, theSnapshot);
+                assertEquals(100, theIncrement.getFirstNewIndex());
+                expectedSink = theIncrement.wrap(expectedSink);
+                theSink = theIncrement.wrap(theSink);
+            }
+            new SimilarityEngine(4).computeSimilarities(theSnapshot, theClass, theScheduler, expectedSink);
+            new SimilarityEngine(4).computeSimilarities(theSnapshot, theClass, theScheduler, theSink);
+            theWriter.finish(theSnapshot.getCollectionIds());
+
+            SimilarityFile readBack = new SimilarityFile();
+            readBack.readFromDisk(streamed.getPath());
+            assertEquals("instance1", readBack.getSimilarityInstanceId());
+            assertEquals(theSnapshot.getCollectionIds(), readBack.getCollectionIds());
+            assertTrue(expected.getSimilarityMatrix().cardinality() > 0);
+            assertEquals("run " + run, expected.getSimilarityMatrix(), readBack.getSimilarityMatrix());
+        }
+
+        // Rows and columns have to come in order.  A writer that's abandoned leaves the
+        // previous file alone.
+        long finishedLength = streamed.length();
+        SimilarityFileWriter theWriter = new SimilarityFileWriter(streamed.getPath(), 10, "test", null);
+        theWriter.beginRow(3);
+        theWriter.append(5, 1.);
+        try {
+            theWriter.append(5, 1.);
+            fail("repeated column accepted");
+        } catch (IllegalArgumentException e) {
+        }
+        theWriter.endRow();
+        try {
+            theWriter.beginRow(2);
+            fail("earlier row accepted");
+        } catch (IllegalArgumentException e) {
+        }
+        theWriter.close();
+        assertEquals(finishedLength, streamed.length());
+        assertEquals(1, streamed.getParentFile().list(new java.io.FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith("similarity") || name.equals(streamed.getName());
+            }
+        }).length);
+        streamed.delete();
+    }
+
+    private static HashSet<String> termSet(CollectionTransferObject theCollection)
+    {
+        HashSet<String> terms = new HashSet<String>();
+        for (String keyword : theCollection.getKeywords()) {
+            terms.add(keyword.trim().toLowerCase());
+        }
+        if (null != theCollection.getSubject()) {
+            for (String term : theCollection.getSubject().split("[,;]")) {
+                if (term.trim().length() > 0) {
+                    terms.add(term.trim().toLowerCase());
+                }
+            }
+        }
+        return terms;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package similarity;
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes several measures of the same surveys in one pass over the pairs, along with
+ * their average. Each pair's surveys are fetched, and each attribute's values counted,
+ * once for all of the measures, so adding a measure only adds its scoring. The result
+ * is what computing each measure and averaging them would give, bit for bit.
+ *
+ * Each pair is compared once if all of the measures are symmetric, and both ways if
+ * any isn't. The rows are compared in parallel.
+ *
+ * @author Nerketur
+ */
+public class CombinedMeasure {
+    private EncodedSurveys surveys;
+    private Measure[] measures;
+    private boolean isSymmetric = true;
+
+    /**
+     * CombinedMeasure constructor.
+     *
+     * @param measures The measures, which have to share one EncodedSurveys.
+     */
+    public CombinedMeasure(Collection<Measure> measures) {
+        if (measures.isEmpty()) {
+            throw new IllegalArgumentException("There are no measures to combine");
+        }
+        this.measures = measures.toArray(new Measure[measures.size()]);
+        this.surveys = this.measures[0].surveys;
+        for (Measure measure : this.measures) {
+            if (measure.surveys != surveys) {
+                throw new IllegalArgumentException("The measures have to share one encoding of the surveys");
+            }
+            isSymmetric &= measure.isSymmetric();
+        }
+    }
+
+    /**
+     * Compute every measure for every pair of surveys.
+     *
+     * @return the result of compute() for each measure, in order, and then their average.
+     */
+    public double[][][] compute() {
+        return compute(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * compute() with a given number of threads.
+     */
+    public double[][][] compute(int parallelism) {
+        int n = surveys.size();
+        double[][][] results = new double[measures.length + 1][n][n];
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new RowTask(results, 0, n));
+        } finally {
+            pool.shutdown();
+        }
+        return results;
+    }
+
+    /**
+     * Compares the surveys of a range of rows with the others, splitting the range in
+     * half until it's one row.
+     */
+    private class RowTask extends RecursiveAction {
+        private double[][][] results;
+        private int from;
+        private int to;
+
+        RowTask(double[][][] results, int from, int to) {
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RowTask(results, from, middle), new RowTask(results, middle, to));
+                return;
+            }
+            if (to == from) {
+                return;
+            }
+            int i = from;
+            int[][] x = surveys.getSurvey(i);
+            double[] sims = new double[measures.length];
+            double[][] average = results[measures.length];
+            for (int j = isSymmetric ? i : 0; j < surveys.size(); j++) {
+                int[][] y = surveys.getSurvey(j);
+                for (int m = 0; m < measures.length; m++) {
+                    sims[m] = 0.0;
+                }
+                Measure.Pair thePair = Measure.beginPair(surveys, x.length);
+                for (int k = 0; k < x.length; k++) {
+                    Measure.beginAttribute(thePair, x[k], y[k]);
+                    for (int m = 0; m < measures.length; m++) {
+                        sims[m] += measures[m].computeSimK(x[k], y[k]);
+                    }
+                    Measure.endAttribute(thePair, x[k], y[k]);
+                }
+                //Round each as compute() does, and add them up in order before dividing,
+                //as averaging the results would.
+                double sum = 0.0;
+                for (int m = 0; m < measures.length; m++) {
+                    double value = Math.round(sims[m] * 100000)/100000.0;
+                    results[m][i][j] = value;
+                    if (isSymmetric) {
+                        results[m][j][i] = value;
+                    }
+                    sum = (0 == m) ? value : sum + value;
+                }
+                average[i][j] = sum / measures.length;
+                if (isSymmetric) {
+                    average[j][i] = average[i][j];
+                }
+            }
+        }
+    }
+}
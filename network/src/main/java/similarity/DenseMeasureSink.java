@@ -0,0 +1,40 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package similarity;
+
+/**
+ * A MeasureSink that fills in the full n x n matrix, the same one Measure.compute()
+ * returns.
+ *
+ * @author Nerketur
+ */
+public class DenseMeasureSink implements MeasureSink {
+
+    private double[][] result;
+    private boolean isSymmetric;
+
+    public void start(int n, boolean isSymmetric) {
+        result = new double[n][n];
+        this.isSymmetric = isSymmetric;
+    }
+
+    public void acceptRow(int i, double[] row) {
+        if (!isSymmetric) {
+            System.arraycopy(row, 0, result[i], 0, row.length);
+            return;
+        }
+        for (int j = i; j < row.length; j++) {
+            result[i][j] = row[j];
+            result[j][i] = row[j];
+        }
+    }
+
+    public void finish() {
+    }
+
+    public double[][] getResult() {
+        return result;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package similarity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * The surveys a Measure compares, with every value replaced by an int id, so each
+ * distinct value is kept once and comparing two values is comparing two ints.
+ *
+ * Each distinct spelling of a value gets its own id, since the measures count values by
+ * their exact spelling. Each id also has a match id, which is the same for spellings
+ * that are equal ignoring case, since that's how the measures match values. The match
+ * id folds each character as String.equalsIgnoreCase does, so the two agree.
+ *
+ * A survey is an int[][], one int[] of value ids per attribute, in the order of the
+ * values in the attribute.
+ *
+ * @author Nerketur
+ */
+public class EncodedSurveys {
+    private HashMap<String, Integer> ids = new HashMap<>();
+    private HashMap<String, Integer> matchIds = new HashMap<>();
+    private ArrayList<String> values = new ArrayList<>();
+    private int[] matchIdOf = new int[16];
+    private ArrayList<int[][]> surveys = new ArrayList<>();
+
+    public EncodedSurveys() {
+    }
+
+    /**
+     * Encode a collection of surveys, each a collection of attributes, each a collection
+     * of values.
+     */
+    public EncodedSurveys(Collection<Collection<Collection<String>>> data) {
+        for (Collection<Collection<String>> survey : data) {
+            add(survey);
+        }
+    }
+
+    /**
+     * Encode a survey and add it after the others.
+     *
+     * @return the index of the survey.
+     */
+    public int add(Collection<Collection<String>> survey) {
+        int[][] encoded = new int[survey.size()][];
+        int k = 0;
+        for (Collection<String> attr : survey) {
+            int[] attrIds = new int[attr.size()];
+            int m = 0;
+            for (String value : attr) {
+                attrIds[m++] = getId(value);
+            }
+            encoded[k++] = attrIds;
+        }
+        surveys.add(encoded);
+        return surveys.size() - 1;
+    }
+
+    private int getId(String value) {
+        Integer id = ids.get(value);
+        if (null != id) {
+            return id;
+        }
+        id = values.size();
+        ids.put(value, id);
+        values.add(value);
+        String folded = fold(value);
+        Integer matchId = matchIds.get(folded);
+        if (null == matchId) {
+            matchId = matchIds.size();
+            matchIds.put(folded, matchId);
+        }
+        if (id == matchIdOf.length) {
+            matchIdOf = Arrays.copyOf(matchIdOf, 2 * id);
+        }
+        matchIdOf[id] = matchId;
+        return id;
+    }
+
+    /**
+     * The value with each character folded the way equalsIgnoreCase compares them, so
+     * two values are equal ignoring case if and only if they fold to the same string.
+     */
+    static String fold(String value) {
+        char[] chars = value.toCharArray();
+        for (int c = 0; c < chars.length; c++) {
+            chars[c] = Character.toLowerCase(Character.toUpperCase(chars[c]));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * The number of surveys.
+     */
+    public int size() {
+        return surveys.size();
+    }
+
+    public int[][] getSurvey(int i) {
+        return surveys.get(i);
+    }
+
+    /**
+     * The number of distinct values, which are the ids 0 through getValueCount() - 1.
+     */
+    public int getValueCount() {
+        return values.size();
+    }
+
+    public String getValue(int id) {
+        return values.get(id);
+    }
+
+    public int getMatchId(int id) {
+        return matchIdOf[id];
+    }
+
+    /**
+     * Are two values equal ignoring case?
+     */
+    public boolean matches(int x, int y) {
+        return matchIdOf[x] == matchIdOf[y];
+    }
+}
@@ -16,14 +16,18 @@ public class Eskin extends Measure {
     public Eskin(Collection<Collection<Collection<String>>> data) {
         super(data);
     }
+
+    public Eskin(EncodedSurveys surveys) {
+        super(surveys);
+    }
     
     @Override
-    protected double in(Object dummy) {
+    protected double in(int x, int y) {
         return 1;
     }
     @Override
-    protected double notIn(Object dummy) {
-        double valuesSqr = values.size() * values.size();
+    protected double notIn(int x, int y) {
+        double valuesSqr = distinctValues() * distinctValues();
         return valuesSqr / (valuesSqr + 2.0);
     }
 
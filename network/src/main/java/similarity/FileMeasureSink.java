@@ -0,0 +1,55 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package similarity;
+
+import java.io.IOException;
+import org.renci.databridge.util.*;
+
+/**
+ * A MeasureSink that writes each row straight to a similarity file, so the matrix is
+ * never held in memory. The file is symmetric if the measure is. The caller finishes
+ * the writer.
+ *
+ * @author Nerketur
+ */
+public class FileMeasureSink implements MeasureSink {
+
+    private SimilarityFileWriter writer;
+
+    private boolean isSymmetric;
+
+    /**
+     * FileMeasureSink constructor.
+     *
+     * @param writer The writer, which has to be for a symmetric file if the measure is
+     *               symmetric and for one that isn't if it isn't.
+     */
+    public FileMeasureSink(SimilarityFileWriter writer) {
+        this.writer = writer;
+    }
+
+    public void start(int n, boolean isSymmetric) {
+        if (n != writer.getN() || isSymmetric != writer.isSymmetric()) {
+            throw new IllegalArgumentException("Can't write " + n + " surveys" + (isSymmetric ? " symmetrically" : "") +
+                " to a " + writer.getN() + " x " + writer.getN() + (writer.isSymmetric() ? " symmetric" : "") + " file");
+        }
+        this.isSymmetric = isSymmetric;
+    }
+
+    public void acceptRow(int i, double[] row) {
+        writer.beginRow(i);
+        try {
+            for (int j = isSymmetric ? i : 0; j < row.length; j++) {
+                writer.append(j, row[j]);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't write the similarity values: " + e.getMessage(), e);
+        }
+        writer.endRow();
+    }
+
+    public void finish() {
+    }
+}
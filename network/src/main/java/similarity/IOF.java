@@ -4,9 +4,7 @@
  */
 package similarity;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
 
 /**
  *
@@ -18,27 +16,20 @@ public class IOF extends Measure {
         super(data);
     }
 
+    public IOF(EncodedSurveys surveys) {
+        super(surveys);
+    }
+
     @Override
-    protected double in(Object dummy) {
+    protected double in(int x, int y) {
         return 1;
     }
 
     @Override
-    protected double notIn(Object XYk) {
-        Iterator<String> xy = ((Collection<String>)XYk).iterator();
-        
-        Collection<String> valX = new ArrayList<>();
-        valX.add(xy.next());
-        Collection<String> valY = new ArrayList<>();
-        valY.add(xy.next());
-
-        Collection<String> tmpX = new ArrayList<>();
-        Collection<String> tmpY = new ArrayList<>();
-        tmpX.addAll(fullValues);
-        tmpY.addAll(fullValues);
-        tmpX.retainAll(valX); // Since we're only doing main diagonal.
-        tmpY.retainAll(valY); // Since we're only doing main diagonal.
-        double ans = 1/(1+Math.log10(tmpX.size()) * Math.log10(tmpY.size()));
+    protected double notIn(int x, int y) {
+        int countX = count(x);
+        int countY = count(y);
+        double ans = 1/(1+Math.log10(countX) * Math.log10(countY));
         return ans;
     }
 
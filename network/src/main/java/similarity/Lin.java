@@ -4,10 +4,7 @@
  */
 package similarity;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.Iterator;
 
 /**
  *
@@ -18,63 +15,44 @@ public class Lin extends Measure {
     public Lin(Collection<Collection<Collection<String>>> data) {
         super(data);
     }
+
+    public Lin(EncodedSurveys surveys) {
+        super(surveys);
+    }
         
+    /**
+     * A match of values that only differ in case is scored by the frequency of x's
+     * spelling, so Lin isn't symmetric.
+     */
+    @Override
+    public boolean isSymmetric() {
+        return false;
+    }
+
     @Override
-    protected double weight(Collection<String> Xk, Collection<String> Yk) {
+    protected double weight(int[] Xk, int[] Yk) {
         
         double ans = 0.0;
-        Collection<String> tmpX = new ArrayList<>();
-        Collection<String> tmpY = new ArrayList<>();
-        Iterator<String> itX = Xk.iterator();
-        while (itX.hasNext()) {
-            
-            Collection<String> valX = new ArrayList<>();
-            valX.add(itX.next());
-            tmpX.clear();
-            tmpX.addAll(fullValues);
-            tmpX.retainAll(valX); // Since we're only doing main diagonal.
-            Iterator<String> itY = Yk.iterator();
-            while (itY.hasNext()) {
-                Collection<String> valY = new ArrayList<>();
-                valY.add(itY.next());
-                tmpY.clear();
-                tmpY.addAll(fullValues);
-                tmpY.retainAll(valY); // Since we're only doing main diagonal.
-                ans += Math.log10(tmpX.size()/(double)data.size()) + Math.log10(tmpY.size()/(double)data.size());
+        for (int xk : Xk) {
+            int countX = count(xk);
+            for (int yk : Yk) {
+                int countY = count(yk);
+                ans += Math.log10(countX/(double)surveys.size()) + Math.log10(countY/(double)surveys.size());
             }
         }
         return 1/ans;
     }
     
     @Override
-    protected double in(Object dummy) {
-        Iterator<String> xy = ((Collection<String>)dummy).iterator();
-        
-        Collection<String> valX = new ArrayList<>();
-        valX.add(xy.next());
- 
-        Collection<String> tmpX = new ArrayList<>();
-        tmpX.addAll(fullValues);
-        tmpX.retainAll(valX); // Since we're only doing main diagonal.
-        return 2*Math.log10(tmpX.size()/(double)data.size());
+    protected double in(int x, int y) {
+        return 2*Math.log10(count(x)/(double)surveys.size());
     }
 
     @Override
-    protected double notIn(Object dummy) {
-        Iterator<String> xy = ((Collection<String>)dummy).iterator();
-        
-        Collection<String> valX = new ArrayList<>();
-        valX.add(xy.next());
-        Collection<String> valY = new ArrayList<>();
-        valY.add(xy.next());
-
-        Collection<String> tmpX = new ArrayList<>();
-        Collection<String> tmpY = new ArrayList<>();
-        tmpX.addAll(fullValues);
-        tmpY.addAll(fullValues);
-        tmpX.retainAll(valX); // Since we're only doing main diagonal.
-        tmpY.retainAll(valY); // Since we're only doing main diagonal.
-        return 2*Math.log10(tmpX.size()/(double)data.size() + tmpY.size()/(double)data.size());
+    protected double notIn(int x, int y) {
+        int countX = count(x);
+        int countY = count(y);
+        return 2*Math.log10(countX/(double)surveys.size() + countY/(double)surveys.size());
     }
     
 //    @Override
@@ -4,42 +4,67 @@
  */
 package similarity;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 //Note that data here is a simple Collection of the Data size, followed by data elements
 
 //Each data element will have number of attributes, (d), followed by the attribute list
+//The measures work on the surveys encoded, see EncodedSurveys.
 public abstract class Measure {
-    protected Collection<Collection<Collection<String>>> data;
-    protected Collection<String> fullData;
-    protected Collection<String> values;
-    protected ArrayList<String> fullValues;
-    private ArrayList<HashSet<String>> attrs;
+    protected EncodedSurveys surveys;
 
-    public Measure(Collection<Collection<Collection<String>>> data) {
-        this.data = data;
-        this.fullData = new ArrayList<>();
-        Iterator<Collection<Collection<String>>> itSur = data.iterator();
-        while (itSur.hasNext()) {
-            Iterator<Collection<String>> itAttr = itSur.next().iterator();
-            while (itAttr.hasNext()) {
-                fullData.addAll(itAttr.next());
-            }
+    //The number of rows compute(sink) works on at once.
+    private static final int ROWS_PER_CHUNK = 64;
+
+    //What computeSim knows about the pair it's comparing, one per thread so pairs can be
+    //compared in parallel. It's shared by all of the measures, so a CombinedMeasure can
+    //work it out once for all of them.
+    private static final ThreadLocal<Pair> pair = new ThreadLocal<Pair>() {
+        @Override
+        protected Pair initialValue() {
+            return new Pair();
         }
+    };
+
+    static class Pair {
+        int nAttrs;
+        //The number of distinct values in the attribute being compared.
+        int nValues;
+        //How many times each value appears in the attribute being compared, by id. Only
+        //the values of that attribute are ever non zero.
+        int[] counts = new int[0];
+        //The heap computeSimK keeps the largest cells in.
+        long[] top = new long[16];
+    }
+
+    public Measure(Collection<Collection<Collection<String>>> data) {
+        this(new EncodedSurveys(data));
+    }
+
+    /**
+     * Measure constructor for surveys that are already encoded, which several measures
+     * can share.
+     */
+    public Measure(EncodedSurveys surveys) {
+        this.surveys = surveys;
+    }
+
+    /**
+     * The number of times a value appears in the attribute being compared, in both
+     * surveys together.
+     */
+    protected int count(int value) {
+        return pair.get().counts[value];
     }
 
     public double[][] compute() {
-        double[][] ans = new double[data.size()][data.size()];
-        Iterator<Collection<Collection<String>>> itX = data.iterator();
-        for (int i = 0; itX.hasNext(); i++) {
-            Collection<Collection<String>> surveyX = itX.next();
-            Iterator<Collection<Collection<String>>> itY = data.iterator();
-            for (int j = 0; itY.hasNext(); j++) {
-                Collection<Collection<String>> surveyY = itY.next();
+        double[][] ans = new double[surveys.size()][surveys.size()];
+        for (int i = 0; i < surveys.size(); i++) {
+            int[][] surveyX = surveys.getSurvey(i);
+            for (int j = 0; j < surveys.size(); j++) {
+                int[][] surveyY = surveys.getSurvey(j);
                 ans[i][j] = Math.round(computeSim(surveyX, surveyY) * 100000)/100000.0;
                 //put answer in matrix
             } //end for
@@ -49,7 +74,82 @@ public abstract class Measure {
         return ans;
     }
 
-    protected double computeSim(Collection<Collection<String>> x, Collection<Collection<String>> y) {
+    /**
+     * Is the similarity of x and y always the similarity of y and x?
+     */
+    public boolean isSymmetric() {
+        return true;
+    }
+
+    /**
+     * Compute the similarity of every pair of surveys, as compute() does but with the
+     * result going to a sink. For a symmetric measure only the pairs with i <= j are
+     * compared, which is about half the work. The rows are compared a chunk at a time,
+     * the rows of a chunk in parallel, and given to the sink in order from this thread.
+     * The values are rounded as compute() rounds them.
+     *
+     * @param sink Receives each row, from the diagonal on for a symmetric measure.
+     */
+    public void compute(MeasureSink sink) {
+        compute(sink, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * compute(sink) with a given number of threads.
+     */
+    public void compute(MeasureSink sink, int parallelism) {
+        int n = surveys.size();
+        sink.start(n, isSymmetric());
+        double[][] rows = new double[Math.min(ROWS_PER_CHUNK, n)][n];
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (int first = 0; first < n; first += rows.length) {
+                int last = Math.min(n, first + rows.length);
+                pool.invoke(new RowTask(rows, first, first, last));
+                for (int i = first; i < last; i++) {
+                    sink.acceptRow(i, rows[i - first]);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        sink.finish();
+    }
+
+    /**
+     * Compares the surveys of a range of rows with the others, from the diagonal on if
+     * the measure is symmetric, splitting the range in half until it's one row.
+     */
+    private class RowTask extends RecursiveAction {
+        private double[][] rows;
+        private int first;
+        private int from;
+        private int to;
+
+        RowTask(double[][] rows, int first, int from, int to) {
+            this.rows = rows;
+            this.first = first;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RowTask(rows, first, from, middle),
+                          new RowTask(rows, first, middle, to));
+                return;
+            }
+            int[][] surveyX = surveys.getSurvey(from);
+            double[] row = rows[from - first];
+            for (int j = isSymmetric() ? from : 0; j < surveys.size(); j++) {
+                row[j] = Math.round(computeSim(surveyX, surveys.getSurvey(j)) * 100000)/100000.0;
+            }
+        }
+    }
+
+    protected double computeSim(int[][] x, int[][] y) {
         double ans = 0.0;
 //        double[][] mat = new double[x.size()][y.size()];
 //        for (int i = 0; i < mat.length; i++) {
@@ -57,61 +157,88 @@ public abstract class Measure {
 //                mat[i][j] = 0;
 //            }
 //        }
-        attrs = new ArrayList<>();
-        ArrayList<ArrayList<String>> fullAttrs = new ArrayList<>();
-        HashSet<String> comb;
-        ArrayList<String> fullComb;
-        Iterator<Collection<String>> itX = x.iterator();
-        Iterator<Collection<String>> itY = y.iterator();
-        while (itX.hasNext()) {
-            Collection<String> valX = itX.next();
-            Collection<String> valY = itY.next();
-            comb = new HashSet();
-            comb.addAll(valX);
-            comb.addAll(valY);
-            attrs.add(comb);
-            fullComb = new ArrayList<>();
-            fullComb.addAll(valX);
-            fullComb.addAll(valY);
-            fullAttrs.add(fullComb);
-        }
-        Iterator<HashSet<String>> itA = attrs.iterator();
-        Iterator<ArrayList<String>> itF = fullAttrs.iterator();
-        itX = x.iterator();
-        itY = y.iterator();
-        while (itA.hasNext()) {
-            values = itA.next();
-            fullValues = itF.next();
-            Collection<String> Xk = itX.next();
-            Collection<String> Yk = itY.next();
-            ans += computeSimK(Xk, Yk);
+        Pair thePair = beginPair(surveys, x.length);
+        for (int k = 0; k < x.length; k++) {
+            beginAttribute(thePair, x[k], y[k]);
+            ans += computeSimK(x[k], y[k]);
+            endAttribute(thePair, x[k], y[k]);
         }
         return ans;
     }
 
-    protected double computeSimK(Collection<String> Xk, Collection<String> Yk) {
-        double[][] ans = new double[Xk.size()][Yk.size()];
-        int i = 0;
-        //Iterator<String> it = values.iterator();
-        Iterator<String> itX = Xk.iterator();
-        while (itX.hasNext()) {
-            String xk = itX.next();
-            Iterator<String> itY = Yk.iterator();
-            int j = 0;
-            while (itY.hasNext()) {
-                String yk = itY.next();
-                ArrayList<String> s = new ArrayList<>();
-                s.add(xk);
-                s.add(yk);
-                //Collection[] arr = new Collection[] {Xk, Yk, s};
-                if (xk.equalsIgnoreCase(yk))
-                    ans[i][j] = weight(Xk, Yk) * in(s);
+    /**
+     * Get the thread's Pair ready to compare two surveys with nAttrs attributes.
+     */
+    static Pair beginPair(EncodedSurveys surveys, int nAttrs) {
+        Pair thePair = pair.get();
+        if (thePair.counts.length < surveys.getValueCount()) {
+            thePair.counts = new int[surveys.getValueCount()];
+        }
+        thePair.nAttrs = nAttrs;
+        return thePair;
+    }
+
+    /**
+     * Count the values of an attribute of the two surveys, before it's compared.
+     */
+    static void beginAttribute(Pair thePair, int[] Xk, int[] Yk) {
+        int[] counts = thePair.counts;
+        thePair.nValues = 0;
+        for (int m = 0; m < Xk.length; m++) {
+            if (0 == counts[Xk[m]]++) {
+                thePair.nValues++;
+            }
+        }
+        for (int m = 0; m < Yk.length; m++) {
+            if (0 == counts[Yk[m]]++) {
+                thePair.nValues++;
+            }
+        }
+    }
+
+    /**
+     * Clear the counts of an attribute once it's compared.
+     */
+    static void endAttribute(Pair thePair, int[] Xk, int[] Yk) {
+        int[] counts = thePair.counts;
+        for (int m = 0; m < Xk.length; m++) {
+            counts[Xk[m]] = 0;
+        }
+        for (int m = 0; m < Yk.length; m++) {
+            counts[Yk[m]] = 0;
+        }
+    }
+
+    protected double computeSimK(int[] Xk, int[] Yk) {
+        //The weight is the same for every cell.
+        double w = weight(Xk, Yk);
+        //Only the largest min cells are added up, so only they are kept, in a heap with
+        //the smallest on top. They are kept as sort keys, so nothing is boxed, and the
+        //heap is reused by every call on the thread.
+        int min = Math.min(Xk.length, Yk.length);
+        Pair thePair = pair.get();
+        if (thePair.top.length < min) {
+            thePair.top = new long[Math.max(min, 2 * thePair.top.length)];
+        }
+        long[] top = thePair.top;
+        int size = 0;
+        for (int i = 0; i < Xk.length; i++) {
+            int xk = Xk[i];
+            for (int j = 0; j < Yk.length; j++) {
+                int yk = Yk[j];
+                double cell;
+                if (surveys.matches(xk, yk))
+                    cell = w * in(xk, yk);
                 else {
-                    ans[i][j] = weight(Xk, Yk) * notIn(s);
+                    cell = w * notIn(xk, yk);
+                }
+                long key = sortKey(cell);
+                if (size < min) {
+                    siftUp(top, size++, key);
+                } else if (size > 0 && key > top[0]) {
+                    siftDown(top, size, key);
                 }
-                j++;
             }
-            i++;
         }
         //double match = mostMatch(Xk.size(), Yk.size());
         //double res = ans / match;
@@ -124,29 +251,85 @@ public abstract class Measure {
 //            System.out.println("   Xk: " + Xk);
 //            System.out.println("   Yk: " + Yk);
 //        }
-        //Convert into double
-        //Store all values into an ArrayList, then sort them.
-        ArrayList<Double> tmp = new ArrayList<>();
-        for (int k = 0; k < ans.length; k++)
-            for (int j = 0; j < ans[k].length; j++)
-                tmp.add(ans[k][j]);
-        Collections.sort(tmp, Collections.reverseOrder());
-        int min = Math.min(Xk.size(), Yk.size());
+        //Sort them largest first, by taking the smallest off the top to the end, and add
+        //them up in that order, as adding up all of the cells sorted would.
+        for (int end = size - 1; end > 0; end--) {
+            long smallest = top[0];
+            siftDown(top, end, top[end]);
+            top[end] = smallest;
+        }
         double res = 0.0;
         for (int j = 0; j < min; j++) {
-            res += tmp.get(j);
+            res += fromSortKey(top[j]);
         }
         return res/min;
     }
+
+    /**
+     * A long that sorts as Double.compare sorts the doubles: -0.0 before 0.0, and NaN
+     * last.
+     */
+    private static long sortKey(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    private static double fromSortKey(long key) {
+        return Double.longBitsToDouble(key ^ ((key >> 63) & Long.MAX_VALUE));
+    }
+
+    //Put the key at the end of a heap of size index.
+    private static void siftUp(long[] heap, int index, long key) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (heap[parent] <= key) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = key;
+    }
+
+    //Put the key on top of a heap of size size, replacing what's there.
+    private static void siftDown(long[] heap, int size, long key) {
+        int index = 0;
+        int child;
+        while ((child = 2 * index + 1) < size) {
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (key <= heap[child]) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = key;
+    }
+
+    /**
+     * The score of values x and y, by id, that are equal ignoring case.
+     */
+    protected abstract double in(int x, int y);
     
-    protected abstract double in(Object dummy);
-    
-    protected abstract double notIn(Object dummy);
+    /**
+     * The score of values x and y, by id, that aren't.
+     */
+    protected abstract double notIn(int x, int y);
 
     //protected abstract double mostMatch(int xLen, int yLen);
 
-    protected double weight(Collection<String> Xk, Collection<String> Yk) {
-        return 1.0 / attrs.size();
+    /**
+     * The number of distinct values in the attribute being compared, in both surveys
+     * together.
+     */
+    protected int distinctValues() {
+        return pair.get().nValues;
+    }
+
+    protected double weight(int[] Xk, int[] Yk) {
+        return 1.0 / pair.get().nAttrs;
     }
     
 }
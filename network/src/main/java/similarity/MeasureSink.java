@@ -0,0 +1,38 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package similarity;
+
+/**
+ * Receives the results of Measure.compute(sink) one row at a time, in row order, from
+ * the thread that called compute.
+ *
+ * @author Nerketur
+ */
+public interface MeasureSink {
+
+    /**
+     * Called once before any rows.
+     *
+     * @param n The number of surveys.
+     * @param isSymmetric Whether the measure is symmetric, in which case each row only
+     *                    starts at the diagonal.
+     */
+    public void start(int n, boolean isSymmetric);
+
+    /**
+     * Called once for every row.
+     *
+     * @param i The row.
+     * @param row row[j] is the similarity of surveys i and j, for j >= i if the measure
+     *            is symmetric and for every j if it isn't. Any other entries mean nothing,
+     *            and the array is reused once this returns.
+     */
+    public void acceptRow(int i, double[] row);
+
+    /**
+     * Called once after the last row.
+     */
+    public void finish();
+}
@@ -4,9 +4,7 @@
  */
 package similarity;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
 
 /**
  *
@@ -18,34 +16,27 @@ public class OF extends Measure {
         super(data);
     }
 
+    public OF(EncodedSurveys surveys) {
+        super(surveys);
+    }
+
     @Override
-    protected double in(Object dummy) {
+    protected double in(int x, int y) {
         return 1;
     }
 
     @Override
-    protected double notIn(Object XYk) {
+    protected double notIn(int x, int y) {
 //        Collection<String> Xk = new ArrayList<>();
 //        Xk.addAll(((Collection<String>[]) XYk)[0]);
 //        Collection<String> Yk = new ArrayList<>();
 //        Yk.addAll(((Collection<String>[]) XYk)[1]);
 //        Collection<String> val = ((Collection<String>[]) XYk)[2];
-        int N = data.size();
+        int N = surveys.size();
         
-        Iterator<String> xy = ((Collection<String>)XYk).iterator();
-        
-        Collection<String> valX = new ArrayList<>();
-        valX.add(xy.next());
-        Collection<String> valY = new ArrayList<>();
-        valY.add(xy.next());
-
-        Collection<String> tmpX = new ArrayList<>();
-        Collection<String> tmpY = new ArrayList<>();
-        tmpX.addAll(fullValues);
-        tmpY.addAll(fullValues);
-        tmpX.retainAll(valX); // Since we're only doing main diagonal.
-        tmpY.retainAll(valY); // Since we're only doing main diagonal.
-        return 1/(1 + Math.log10(N/tmpX.size()) * Math.log10(N/tmpY.size()));
+        int countX = count(x);
+        int countY = count(y);
+        return 1/(1 + Math.log10(N/countX) * Math.log10(N/countY));
     }
 
 //    @Override
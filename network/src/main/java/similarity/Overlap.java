@@ -17,13 +17,17 @@ public class Overlap extends Measure {
         super(data);
     }
 
+    public Overlap(EncodedSurveys surveys) {
+        super(surveys);
+    }
+
     @Override
-    protected double in(Object dummy) {
+    protected double in(int x, int y) {
         return 1;
     }
 
     @Override
-    protected double notIn(Object dummy) {
+    protected double notIn(int x, int y) {
         return 0;
     }
 
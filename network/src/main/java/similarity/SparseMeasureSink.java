@@ -0,0 +1,65 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package similarity;
+
+import java.util.Arrays;
+import org.renci.databridge.util.*;
+
+/**
+ * A MeasureSink that keeps only the non zero values of the matrix, in compressed sparse
+ * row form; only those of the top half if the measure is symmetric. The result is a
+ * SimilarityMatrix that gives the full matrix either way.
+ *
+ * @author Nerketur
+ */
+public class SparseMeasureSink implements MeasureSink {
+
+    private int n;
+    private boolean isSymmetric;
+    private int[] rowPointers;
+    private int[] columns;
+    private double[] values;
+
+    public void start(int n, boolean isSymmetric) {
+        this.n = n;
+        this.isSymmetric = isSymmetric;
+        rowPointers = new int[n + 1];
+        columns = new int[Math.max(16, n)];
+        values = new double[columns.length];
+    }
+
+    public void acceptRow(int i, double[] row) {
+        int nnz = rowPointers[i];
+        for (int j = isSymmetric ? i : 0; j < n; j++) {
+            if (row[j] == 0.) {
+                continue;
+            }
+            if (nnz == columns.length) {
+                if (nnz == Integer.MAX_VALUE - 8) {
+                    throw new IllegalStateException("Too many values to hold on the heap");
+                }
+                int capacity = (int) Math.min(Integer.MAX_VALUE - 8, 2L * nnz);
+                columns = Arrays.copyOf(columns, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            columns[nnz] = j;
+            values[nnz++] = row[j];
+        }
+        rowPointers[i + 1] = nnz;
+    }
+
+    public void finish() {
+        columns = Arrays.copyOf(columns, rowPointers[n]);
+        values = Arrays.copyOf(values, rowPointers[n]);
+    }
+
+    /**
+     * Get the result, once compute is done.
+     */
+    public SimilarityMatrix getMatrix() {
+        SimilarityMatrix theMatrix = new HeapSimilarityMatrix(n, rowPointers, columns, values);
+        return isSymmetric ? new SymmetricSimilarityMatrix(theMatrix) : theMatrix;
+    }
+}
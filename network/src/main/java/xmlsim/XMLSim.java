@@ -219,33 +219,18 @@ public class XMLSim {
             surveys.add(survey);
         }
         System.out.println(surveys);
+        //The measures share one encoding of the surveys; the strings aren't needed after.
+        EncodedSurveys encoded = new EncodedSurveys(surveys);
+        surveys = null;
         ArrayList<Measure> measures = new ArrayList<>();
-        ArrayList<double[][]> results = new ArrayList<>();
         //If any of these are commented out or added, update the index numbers where indicated in the Main Method
-        measures.add(new Overlap(surveys));
-        //measures.add(new Eskin(surveys)); 
-        //measures.add(new IOF(surveys));
-        measures.add(new OF(surveys));
-        //measures.add(new Lin(surveys));
-        double[][] res = new double[surveys.size()][surveys.size()];
-        results.add(measures.get(0).compute());
-        for (int i = 0; i < surveys.size(); i++)
-            System.arraycopy(results.get(0)[i], 0, res[i], 0, res[i].length);
-        for (int i = 1; i < measures.size(); i++) {
-            results.add(measures.get(i).compute());
-            for (int j = 0; j < results.get(i).length; j++) {
-                for (int k = 0; k < results.get(i)[j].length; k++) {
-                    res[j][k] += results.get(i)[j][k];
-                }
-            }
-        }
-        for (int j = 0; j < res.length; j++) {
-            for (int k = 0; k < res[j].length; k++) {
-                res[j][k] /= measures.size();
-            }
-        }
-        results.add(res);
-        return results.toArray(new double[][][] {});
+        measures.add(new Overlap(encoded));
+        //measures.add(new Eskin(encoded)); 
+        //measures.add(new IOF(encoded));
+        measures.add(new OF(encoded));
+        //measures.add(new Lin(encoded));
+        //One pass over the pairs for all of the measures, with their average last.
+        return new CombinedMeasure(measures).compute();
     }
 
     private static void copyMap(HashMap<String, HashMap> keywords, HashMap<String, HashMap> parsed) {
@@ -11,6 +11,7 @@ import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.renci.databridge.util.SimilarityMatrix;
 import static org.junit.Assert.*;
 
 /**
@@ -100,4 +101,228 @@ public class MeasureTest {
         double[][] result = eskin.compute();
         assertArrayEquals(expResult, result);        
     }
+
+    /**
+     * Test of the value counts the measures use: how many times a value appears in the
+     * attribute being compared, in both surveys together.
+     */
+    @Test
+    public void testCount() {
+        System.out.println("count");
+        Collection<Collection<Collection<String>>> data = new ArrayList<>();
+        Collection<Collection<String>> SurveyX = new ArrayList<>();
+        Collection<Collection<String>> SurveyY = new ArrayList<>();
+        Collection<String> Xk = new ArrayList<>();
+        Xk.add("Bob");
+        Xk.add("Joe");
+        Xk.add("Bob");
+        Collection<String> Yk = new ArrayList<>();
+        Yk.add("bob");
+        Yk.add("Joe");
+        
+        SurveyX.add(Xk);
+        SurveyY.add(Yk);
+        data.add(SurveyX);
+        data.add(SurveyY);
+        Measure counts = new Measure(data) {
+            @Override
+            protected double in(int x, int y) {
+                return notIn(x, y);
+            }
+
+            @Override
+            protected double notIn(int x, int y) {
+                return count(x) * 10 + count(y);
+            }
+        };
+        double[][] result = counts.compute();
+        // Between X and Y, Bob is there twice, Joe twice and bob, which is counted
+        // apart from Bob, once.
+        assertEquals(22, result[0][1], 0);
+        assertEquals(22, result[1][0], 0);
+        // Between X and itself, Bob is there four times.
+        assertEquals(44, result[0][0], 0);
+    }
+
+    /**
+     * Test of EncodedSurveys: a value gets one id per spelling, and spellings that are
+     * equal ignoring case match.
+     */
+    @Test
+    public void testEncoded() {
+        System.out.println("encoded");
+        Collection<Collection<Collection<String>>> data = new ArrayList<>();
+        Collection<Collection<String>> SurveyX = new ArrayList<>();
+        Collection<Collection<String>> SurveyY = new ArrayList<>();
+        Collection<String> Xk = new ArrayList<>();
+        Xk.add("Bob");
+        Xk.add("Joe");
+        Xk.add("Bob");
+        Collection<String> Yk = new ArrayList<>();
+        Yk.add("bob");
+        Yk.add("Sue");
+        SurveyX.add(Xk);
+        SurveyY.add(Yk);
+        data.add(SurveyX);
+        data.add(SurveyY);
+        EncodedSurveys encoded = new EncodedSurveys(data);
+        assertEquals(2, encoded.size());
+        assertEquals(4, encoded.getValueCount());
+        int[] x = encoded.getSurvey(0)[0];
+        int[] y = encoded.getSurvey(1)[0];
+        assertArrayEquals(new int[] {0, 1, 0}, x);
+        assertEquals("bob", encoded.getValue(y[0]));
+        assertTrue(encoded.matches(x[0], y[0]));
+        assertFalse(encoded.matches(x[1], y[1]));
+        assertArrayEquals(new OF(data).compute()[1], new OF(encoded).compute()[1], 0);
+    }
+
+    /**
+     * Test of computeSimK, which only keeps the largest cells, against adding up all of
+     * the cells sorted, with ties, both zeros and NaN among the cells.
+     */
+    @Test
+    public void testTopCells() {
+        System.out.println("top cells");
+        final double[] scores = {0.5, -0.0, 0.0, 0.25, 0.5, -1.5, Double.NaN, 3.0, 1e-9, 0.25};
+        Collection<Collection<Collection<String>>> data = new ArrayList<>();
+        Collection<Collection<String>> survey = new ArrayList<>();
+        Collection<String> attr = new ArrayList<>();
+        for (int v = 0; v < 10; v++) {
+            attr.add("v" + v);
+        }
+        survey.add(attr);
+        data.add(survey);
+        Measure measure = new Measure(data) {
+            @Override
+            protected double in(int x, int y) {
+                return notIn(x, y);
+            }
+
+            @Override
+            protected double notIn(int x, int y) {
+                return scores[(3 * x + 7 * y) % scores.length];
+            }
+
+            @Override
+            protected double weight(int[] Xk, int[] Yk) {
+                return 1.0;
+            }
+        };
+        java.util.Random random = new java.util.Random(7);
+        for (int t = 0; t < 500; t++) {
+            int[] Xk = new int[random.nextInt(6)];
+            int[] Yk = new int[random.nextInt(6)];
+            ArrayList<Double> cells = new ArrayList<>();
+            for (int i = 0; i < Xk.length; i++) {
+                Xk[i] = random.nextInt(10);
+            }
+            for (int j = 0; j < Yk.length; j++) {
+                Yk[j] = random.nextInt(10);
+            }
+            for (int i = 0; i < Xk.length; i++) {
+                for (int j = 0; j < Yk.length; j++) {
+                    cells.add(scores[(3 * Xk[i] + 7 * Yk[j]) % scores.length]);
+                }
+            }
+            java.util.Collections.sort(cells, java.util.Collections.reverseOrder());
+            int min = Math.min(Xk.length, Yk.length);
+            double expected = 0.0;
+            for (int j = 0; j < min; j++) {
+                expected += cells.get(j);
+            }
+            expected /= min;
+            double actual = measure.computeSimK(Xk, Yk);
+            if (Double.isNaN(expected)) {
+                assertTrue(Double.isNaN(actual));
+            } else {
+                assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+            }
+        }
+    }
+
+    /**
+     * Test of compute with a sink, which has to give what compute gives, for a
+     * symmetric measure and for Lin, which isn't.
+     */
+    @Test
+    public void testSink() {
+        System.out.println("sink");
+        String[] names = {"Bob", "bob", "Joe", "Sue", "Cal", "Ken"};
+        java.util.Random random = new java.util.Random(5);
+        Collection<Collection<Collection<String>>> data = new ArrayList<>();
+        for (int s = 0; s < 70; s++) {
+            Collection<Collection<String>> survey = new ArrayList<>();
+            for (int k = 0; k < 3; k++) {
+                Collection<String> attr = new ArrayList<>();
+                for (int v = random.nextInt(4); v >= 0; v--) {
+                    attr.add(names[random.nextInt(names.length)]);
+                }
+                survey.add(attr);
+            }
+            data.add(survey);
+        }
+        Measure[] measures = {new OF(data), new Lin(data)};
+        for (Measure measure : measures) {
+            double[][] expected = measure.compute();
+            DenseMeasureSink dense = new DenseMeasureSink();
+            measure.compute(dense, 3);
+            SparseMeasureSink sparse = new SparseMeasureSink();
+            measure.compute(sparse, 2);
+            SimilarityMatrix theMatrix = sparse.getMatrix();
+            for (int i = 0; i < expected.length; i++) {
+                assertArrayEquals(expected[i], dense.getResult()[i], 0);
+                for (int j = 0; j < expected.length; j++) {
+                    assertEquals(expected[i][j], theMatrix.get(i, j), 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Test of CombinedMeasure, which has to give what computing each measure and
+     * averaging them gives.
+     */
+    @Test
+    public void testCombined() {
+        System.out.println("combined");
+        String[] names = {"Bob", "bob", "Joe", "Sue", "Cal", "Ken"};
+        java.util.Random random = new java.util.Random(9);
+        Collection<Collection<Collection<String>>> data = new ArrayList<>();
+        for (int s = 0; s < 40; s++) {
+            Collection<Collection<String>> survey = new ArrayList<>();
+            for (int k = 0; k < 2; k++) {
+                Collection<String> attr = new ArrayList<>();
+                for (int v = random.nextInt(4); v >= 0; v--) {
+                    attr.add(names[random.nextInt(names.length)]);
+                }
+                survey.add(attr);
+            }
+            data.add(survey);
+        }
+        EncodedSurveys encoded = new EncodedSurveys(data);
+        ArrayList<Measure> measures = new ArrayList<>();
+        measures.add(new Overlap(encoded));
+        measures.add(new Eskin(encoded));
+        measures.add(new IOF(encoded));
+        measures.add(new OF(encoded));
+        measures.add(new Lin(encoded));
+        double[][][] results = new CombinedMeasure(measures).compute(3);
+        assertEquals(measures.size() + 1, results.length);
+        double[][] average = new double[data.size()][data.size()];
+        for (int m = 0; m < measures.size(); m++) {
+            double[][] expected = measures.get(m).compute();
+            for (int i = 0; i < expected.length; i++) {
+                assertArrayEquals(expected[i], results[m][i], 0);
+                for (int j = 0; j < expected.length; j++) {
+                    average[i][j] += expected[i][j];
+                }
+            }
+        }
+        for (int i = 0; i < average.length; i++) {
+            for (int j = 0; j < average.length; j++) {
+                assertEquals(average[i][j] / measures.size(), results[measures.size()][i][j], 0);
+            }
+        }
+    }
 }
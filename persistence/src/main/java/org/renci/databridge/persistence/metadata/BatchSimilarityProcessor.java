@@ -0,0 +1,47 @@
+package org.renci.databridge.persistence.metadata;
+import org.renci.databridge.persistence.metadata.*;
+import java.util.List;
+/**
+ * This is an optional extension of the SimilarityProcessor interface for classes that
+ * can compare one collection to a block of other collections at once.  The RelevanceEngine
+ * checks for this interface and, if it's implemented, calls prepare once with every
+ * collection in the nameSpace and then refers to the collections by their index in
+ * that list. This lets the processor extract features (lower casing, tokenizing...)
+ * once per collection instead of once per pair.  Processors that only implement
+ * SimilarityProcessor are still called one pair at a time.
+ * 
+ * @author Howard Lander -RENCI (www.renci.org)
+ * 
+ */
+public interface BatchSimilarityProcessor extends SimilarityProcessor {
+
+    /**
+     * Called once before any comparisons are made.
+     *
+     * @param collections All of the collections that will be compared.  The index of
+     *                    a collection in this list is the index used by compareBlock.
+     */
+    void prepare(List<CollectionTransferObject> collections);
+
+    /**
+     * Compare one collection to a block of candidate collections.
+     *
+     * @param index The index of the collection to compare.
+     * @param candidates The indexes of the collections to compare it to.
+     * @param nCandidates The number of entries of candidates to use.
+     * @param scores Receives the similarity of index and candidates[k] in scores[k].
+     */
+    void compareBlock(int index, int[] candidates, int nCandidates, double[] scores);
+
+    /**
+     * Whether compare(a, b) always equals compare(b, a). If it does, only the upper
+     * triangle of the similarity matrix is computed.
+     */
+    boolean isSymmetric();
+
+    /**
+     * Whether one prepared instance may be called from several threads at once. If
+     * not, each worker thread gets and prepares its own instance.
+     */
+    boolean isThreadSafe();
+}
@@ -0,0 +1,33 @@
+package org.renci.databridge.persistence.metadata;
+import org.renci.databridge.persistence.metadata.*;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+/**
+ * This is an optional extension of the BatchSimilarityProcessor interface for classes
+ * that build a model of the whole nameSpace in prepare, a vocabulary for example.  The
+ * RelevanceEngine saves the model next to the similarity file of each version.  When
+ * it builds a version incrementally from the previous one, it loads the previous model
+ * before calling prepare, so the new values are computed the same way as the values
+ * carried over.
+ * 
+ * @author Howard Lander -RENCI (www.renci.org)
+ * 
+ */
+public interface PersistentModelProcessor extends BatchSimilarityProcessor {
+
+    /**
+     * Called before prepare with a model saved by saveModel.  prepare should then extend
+     * this model instead of building a new one.
+     *
+     * @param input The saved model.
+     */
+    void loadModel(DataInputStream input) throws IOException;
+
+    /**
+     * Called after prepare to save the model.
+     *
+     * @param output Where to write the model.
+     */
+    void saveModel(DataOutputStream output) throws IOException;
+}
@@ -0,0 +1,41 @@
+package org.renci.databridge.message;
+import org.renci.databridge.util.AMQPMessageType;
+
+/**
+ * A work message for one shard of a distributed similarity job. These are sent by the
+ * relevance engine that receives the Create.SimilarityMatrix message.
+ *
+ * @author lander
+ */
+public class ComputeSimilarityTilesJavaMetadataDBURI extends RelevanceEngineMessage {
+
+ /**
+   * This function returns a parametrized header string specific to sending this message.
+   *
+   * @param className the class containing the method to be executed.
+   * @param nameSpace the nameSpace of the collections.
+   * @param outputFile the outputFile of the whole job.
+   * @param tileSize the tile size of the schedule.
+   * @param firstColumn the first column of the schedule.
+   * @param tileStart the first tile of the shard.
+   * @param tileEnd the tile after the last tile of the shard.
+   * @param shardIndex the index of the shard.
+   * @param shards the number of shards in the job.
+   */
+  public static String getSendHeaders (String className, String nameSpace, String outputFile,
+                                       int tileSize, int firstColumn, int tileStart, int tileEnd,
+                                       int shardIndex, int shards) {
+    return bindHeaders + ";" + 
+       RelevanceEngineMessage.NAME + ":" + RelevanceEngineMessage.COMPUTE_SIMILARITYTILES_JAVA_METADATADB_URI + ";" +
+       RelevanceEngineMessage.CLASS + ":" + className + ";" +
+       RelevanceEngineMessage.NAME_SPACE + ":" + nameSpace + ";" +
+       RelevanceEngineMessage.OUTPUT_FILE + ":" + outputFile + ";" +
+       RelevanceEngineMessage.TILE_SIZE + ":" + tileSize + ";" +
+       RelevanceEngineMessage.FIRST_COLUMN + ":" + firstColumn + ";" +
+       RelevanceEngineMessage.TILE_START + ":" + tileStart + ";" +
+       RelevanceEngineMessage.TILE_END + ":" + tileEnd + ";" +
+       RelevanceEngineMessage.SHARD_INDEX + ":" + shardIndex + ";" +
+       RelevanceEngineMessage.SHARDS + ":" + shards;
+  }
+
+}
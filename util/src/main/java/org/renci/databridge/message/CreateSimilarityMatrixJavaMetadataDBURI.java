@@ -23,4 +23,21 @@ public class CreateSimilarityMatrixJavaMetadataDBURI extends RelevanceEngineMess
        RelevanceEngineMessage.OUTPUT_FILE + ":" + outputFile;
   }
 
+ /**
+   * This function returns a parametrized header string for a sparsified similarity matrix.
+   * Only values of at least minSimilarity are stored, and at most topKPerRow of them per row.
+   *
+   * @param className the class containing the method to be executed.
+   * @param nameSpace the nameSpace to attach to the inserted data.
+   * @param outputFile the outputFile
+   * @param minSimilarity the smallest similarity value to store.
+   * @param topKPerRow the number of values to store per row, 0 for no limit.
+   */
+  public static String getSendHeaders (String className, String nameSpace, String outputFile,
+                                       double minSimilarity, int topKPerRow) {
+    return getSendHeaders(className, nameSpace, outputFile) + ";" +
+       RelevanceEngineMessage.MIN_SIMILARITY + ":" + minSimilarity + ";" +
+       RelevanceEngineMessage.TOP_K_PER_ROW + ":" + topKPerRow;
+  }
+
 }
@@ -11,10 +11,46 @@ public class RelevanceEngineMessage implements AMQPMessageType {
   public static final String NAME = "name";
   public static final String OUTPUT_FILE = "outputFile";
 
+  // Optional tuning headers for the similarity computation
+  public static final String TILE_SIZE = "tileSize";
+  public static final String MIN_SIMILARITY = "minSimilarity";
+  public static final String TOP_K_PER_ROW = "topKPerRow";
+
+  // Optional MinHash LSH candidate generation, both must be given
+  public static final String LSH_BANDS = "lshBands";
+  public static final String LSH_ROWS = "lshRows";
+
+  // If "true", only the pairs involving collections added since the previous version are computed
+  public static final String INCREMENTAL = "incremental";
+
+  // How often, in seconds, a running job saves a checkpoint it can be resumed from. 0 turns it off
+  public static final String CHECKPOINT_SECONDS = "checkpointSeconds";
+
+  // If > 1, the pair space is split into this many work messages for the engines sharing the queue
+  public static final String SHARDS = "shards";
+
+  // Optional compression of the output file: 64, 16 or 8 bits per value and the rows per
+  // block. The output isn't compressed unless the value bits are given
+  public static final String COMPRESSION_VALUE_BITS = "compressionValueBits";
+  public static final String COMPRESSION_BLOCK_ROWS = "compressionBlockRows";
+
+  // If "false", the output file doesn't get a rank index for top k queries
+  public static final String RANK_INDEX = "rankIndex";
+
+  // The most memory, in MB, used to sort the values of a distributed job into the output file
+  public static final String MEMORY_BUDGET_MB = "memoryBudgetMB";
+
+  // Headers of the work messages for a distributed similarity job
+  public static final String FIRST_COLUMN = "firstColumn";
+  public static final String TILE_START = "tileStart";
+  public static final String TILE_END = "tileEnd";
+  public static final String SHARD_INDEX = "shardIndex";
+
   public static final String bindHeaders = "type:databridge;subtype:relevance;x-match:all";
 
   // Message types for the relevance engine
   public static final String CREATE_SIMILARITYMATRIX_JAVA_METADATADB_URI = "Create.SimilarityMatrix.Java.MetadataDB.URI";
+  public static final String COMPUTE_SIMILARITYTILES_JAVA_METADATADB_URI = "Compute.SimilarityTiles.Java.MetadataDB.URI";
 
   @Override
   public String getBindHeaders () {
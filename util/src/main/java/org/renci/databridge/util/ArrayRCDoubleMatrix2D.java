@@ -0,0 +1,30 @@
+package org.renci.databridge.util;
+import cern.colt.matrix.impl.RCDoubleMatrix2D;
+import cern.colt.list.IntArrayList;
+import cern.colt.list.DoubleArrayList;
+
+
+/**
+ * An RCDoubleMatrix2D made from arrays that are already in compressed row form,
+ * without copying them.  The matrix can be changed afterwards like any other
+ * RCDoubleMatrix2D, which may change the arrays too.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+class ArrayRCDoubleMatrix2D extends RCDoubleMatrix2D {
+
+    /**
+     * ArrayRCDoubleMatrix2D constructor.
+     *
+     * @param arraySize The dimension of one side of the matrix.
+     * @param starts The row pointers, arraySize + 1 of them.
+     * @param cols The columns, sorted within each row, exactly starts[arraySize] of them.
+     * @param vals The values, none of them 0, exactly starts[arraySize] of them.
+     */
+    ArrayRCDoubleMatrix2D(int arraySize, int[] starts, int[] cols, double[] vals) {
+        super(arraySize, arraySize);
+        this.starts = starts;
+        this.indexes = new IntArrayList(cols);
+        this.values = new DoubleArrayList(vals);
+    }
+}
@@ -0,0 +1,249 @@
+package org.renci.databridge.util;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The collection ids of a similarity file, in matrix order.  The ids the metadata
+ * database hands out are Mongo ObjectIds, 24 lower case hex characters, and a file
+ * whose ids are all like that stores each one as its 12 bytes (see SimilarityFileFormat).
+ * Such a table is read in place and an id is only turned back into a String when it's
+ * asked for.  The String it gives back is the one that was written.
+ *
+ * Finding the index of an id uses an open addressing hash table of the indices, built
+ * the first time it's needed, which takes 8 to 16 bytes per id.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class CollectionIdTable {
+
+    /** The number of bytes in a packed ObjectId */
+    public static final int OBJECT_ID_SIZE = 12;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private int size;
+
+    /** The packed ids, or null if the ids are Strings */
+    private MappedBuffer packedIds;
+    private List<String> ids;
+
+    /** index + 1 of the id in each slot, 0 for an empty slot */
+    private volatile int[] slots;
+
+    /**
+     * Make a table of packed ids.
+     *
+     * @param packedIds The ids, OBJECT_ID_SIZE bytes each.
+     * @param size The number of ids.
+     */
+    public CollectionIdTable(MappedBuffer packedIds, int size) {
+        this.packedIds = packedIds;
+        this.size = size;
+    }
+
+    /**
+     * Make a table of ids that are already Strings.
+     */
+    public CollectionIdTable(List<String> ids) {
+        this.ids = ids;
+        this.size = ids.size();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Are the ids stored packed?
+     */
+    public boolean isPacked() {
+        return null != packedIds;
+    }
+
+    /**
+     * Get the id at an index.
+     */
+    public String get(int i) {
+        if (null == packedIds) {
+            return ids.get(i);
+        }
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("index " + i + " of " + size + " collection ids");
+        }
+        char[] theId = new char[2 * OBJECT_ID_SIZE];
+        long offset = (long) OBJECT_ID_SIZE * i;
+        for (int b = 0; b < OBJECT_ID_SIZE; b++) {
+            int value = packedIds.get(offset + b) & 0xff;
+            theId[2 * b] = HEX[value >>> 4];
+            theId[2 * b + 1] = HEX[value & 0xf];
+        }
+        return new String(theId);
+    }
+
+    /**
+     * Find the index of an id.
+     *
+     * @return the index, or -1 if the id isn't in the table.
+     */
+    public int indexOf(String id) {
+        byte[] packed = null;
+        if (null != packedIds) {
+            packed = pack(id);
+            if (null == packed) {
+                return -1;
+            }
+        }
+        if (null == slots) {
+            buildSlots();
+        }
+        int[] theSlots = slots;
+        int mask = theSlots.length - 1;
+        int slot = ((null == packed) ? mix(id.hashCode()) : hash(packed)) & mask;
+        while (theSlots[slot] != 0) {
+            int index = theSlots[slot] - 1;
+            if ((null == packed) ? id.equals(ids.get(index)) : matches(index, packed)) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private synchronized void buildSlots() {
+        if (null != slots) {
+            return;
+        }
+        int capacity = Integer.highestOneBit(Math.max(2, 2 * size - 1)) << 1;
+        int[] theSlots = new int[capacity];
+        int mask = capacity - 1;
+        byte[] packed = new byte[OBJECT_ID_SIZE];
+        for (int i = 0; i < size; i++) {
+            int slot;
+            if (null == packedIds) {
+                slot = mix(ids.get(i).hashCode()) & mask;
+            } else {
+                packedIds.get((long) OBJECT_ID_SIZE * i, packed, 0, OBJECT_ID_SIZE);
+                slot = hash(packed) & mask;
+            }
+            while (theSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            // A duplicate id keeps its first index, as it would in a list.
+            theSlots[slot] = i + 1;
+        }
+        slots = theSlots;
+    }
+
+    private boolean matches(int index, byte[] packed) {
+        long offset = (long) OBJECT_ID_SIZE * index;
+        for (int b = 0; b < OBJECT_ID_SIZE; b++) {
+            if (packedIds.get(offset + b) != packed[b]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] packed) {
+        int h = 1;
+        for (byte b : packed) {
+            h = 31 * h + b;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Spread the bits of a hash code, since the low ones pick the slot.
+     */
+    private static int mix(int h) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Get all of the ids as Strings.
+     */
+    public ArrayList<String> toList() {
+        ArrayList<String> theList = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            theList.add(get(i));
+        }
+        return theList;
+    }
+
+    /**
+     * Get a List that decodes each id when it's asked for.
+     */
+    public List<String> asList() {
+        if (null == packedIds) {
+            return ids;
+        }
+        return new AbstractList<String>() {
+            public String get(int i) {
+                return CollectionIdTable.this.get(i);
+            }
+
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Can every id be packed?
+     *
+     * @param collectionIds The ids, which may be null.
+     */
+    public static boolean isPackable(List<String> collectionIds) {
+        if (null == collectionIds) {
+            return false;
+        }
+        for (String theId : collectionIds) {
+            if (null == pack(theId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pack an ObjectId.
+     *
+     * @return the 12 bytes, or null if the id isn't 24 lower case hex characters.
+     */
+    public static byte[] pack(String id) {
+        if (null == id || id.length() != 2 * OBJECT_ID_SIZE) {
+            return null;
+        }
+        byte[] packed = new byte[OBJECT_ID_SIZE];
+        for (int b = 0; b < OBJECT_ID_SIZE; b++) {
+            int high = hexValue(id.charAt(2 * b));
+            int low = hexValue(id.charAt(2 * b + 1));
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            packed[b] = (byte) ((high << 4) | low);
+        }
+        return packed;
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * Wrap packed ids that were read into memory.
+     */
+    static CollectionIdTable wrap(byte[] packedIds, int size) {
+        return new CollectionIdTable(new MappedBuffer(ByteBuffer.wrap(packedIds)), size);
+    }
+}
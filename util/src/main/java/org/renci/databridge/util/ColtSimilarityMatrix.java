@@ -0,0 +1,83 @@
+package org.renci.databridge.util;
+import org.la4j.matrix.functor.*;
+import cern.colt.function.IntIntDoubleFunction;
+import cern.colt.matrix.impl.RCDoubleMatrix2D;
+
+
+/**
+ * A SimilarityMatrix view of a Colt RCDoubleMatrix2D, such as the one in a NetworkData.
+ * The RCDoubleMatrix2D isn't copied, so changes to it show through.  eachNonZero visits
+ * the values in the order Colt keeps them, which is the last row first;
+ * eachNonZeroInRow looks up every column of the row.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class ColtSimilarityMatrix implements SimilarityMatrix {
+
+    private RCDoubleMatrix2D matrix;
+
+    /**
+     * ColtSimilarityMatrix constructor.
+     *
+     * @param matrix The matrix, which has to be square.
+     */
+    public ColtSimilarityMatrix(RCDoubleMatrix2D matrix) {
+        if (matrix.rows() != matrix.columns()) {
+            throw new IllegalArgumentException("number of rows (" + matrix.rows() +
+                                               ") != number of columns (" + matrix.columns() + ")");
+        }
+        this.matrix = matrix;
+    }
+
+    public RCDoubleMatrix2D getMatrix() {
+        return matrix;
+    }
+
+    public int getN() {
+        return matrix.rows();
+    }
+
+    public boolean isSymmetric() {
+        return false;
+    }
+
+    /**
+     * Count the stored values.  Colt's own cardinality looks at every cell.
+     */
+    public long getNonZeroCount() {
+        final long[] count = new long[1];
+        matrix.forEachNonZero(new IntIntDoubleFunction() {
+            public double apply(int i, int j, double value) {
+                count[0]++;
+                return value;
+            }
+        });
+        return count[0];
+    }
+
+    public double get(int i, int j) {
+        return matrix.getQuick(i, j);
+    }
+
+    public void eachNonZero(final MatrixProcedure procedure) {
+        matrix.forEachNonZero(new IntIntDoubleFunction() {
+            public double apply(int i, int j, double value) {
+                procedure.apply(i, j, value);
+                return value;
+            }
+        });
+    }
+
+    public void eachNonZeroInRow(int i, MatrixProcedure procedure) {
+        int n = matrix.columns();
+        for (int j = 0; j < n; j++) {
+            double value = matrix.getQuick(i, j);
+            if (value != 0.) {
+                procedure.apply(i, j, value);
+            }
+        }
+    }
+
+    public void close() {
+    }
+}
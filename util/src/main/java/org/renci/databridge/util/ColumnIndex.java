@@ -0,0 +1,120 @@
+package org.renci.databridge.util;
+import java.io.*;
+import java.util.Arrays;
+import org.la4j.matrix.functor.*;
+
+
+/**
+ * The values of a symmetric mapped similarity file that are above the diagonal, by
+ * column.  The file only stores the values with i <= j, so the part of row j left of the
+ * diagonal is in column j of the rows above, and finding it without an index means
+ * reading all of those rows.
+ *
+ * The index is kept in a temporary file that is memory mapped, 8 bytes per value: the
+ * row in the top 32 bits and the position of the value within its row in the bottom 32.
+ * One pass over the file counts the values in each column and a second writes each one
+ * where it goes.  The heap only holds where each column starts, 8 bytes per row.
+ * Closing the index deletes the temporary file.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+class ColumnIndex implements Closeable {
+
+    private MappedSimilarityFile theFile;
+    private File indexFile;
+    private RandomAccessFile index;
+    private MappedBuffer entries;
+    private long[] starts;
+
+    /**
+     * ColumnIndex constructor.
+     *
+     * @param theFile The symmetric file to index.
+     * @param directory Where to put the temporary file, or null for the default.
+     */
+    ColumnIndex(MappedSimilarityFile theFile, File directory) throws IOException {
+        this.theFile = theFile;
+        int n = theFile.getN();
+        final long[] counts = new long[n + 1];
+        theFile.eachNonZero(new MatrixProcedure() {
+            public void apply(int i, int j, double value) {
+                if (i < j) {
+                    counts[j + 1]++;
+                }
+            }
+        });
+        for (int j = 0; j < n; j++) {
+            counts[j + 1] += counts[j];
+        }
+        indexFile = File.createTempFile("similarity", ".columns", directory);
+        try {
+            index = new RandomAccessFile(indexFile, "rw");
+            entries = MappedBuffer.mapReadWrite(index.getChannel(), 0, 8L * counts[n]);
+
+            // The rows are walked in order, so the rows of each column come out sorted.
+            final long[] fill = Arrays.copyOf(counts, n);
+            theFile.eachNonZero(new MatrixProcedure() {
+                int row = -1;
+                int position;
+                public void apply(int i, int j, double value) {
+                    if (i != row) {
+                        row = i;
+                        position = 0;
+                    }
+                    if (i < j) {
+                        entries.putLong(8L * fill[j]++, ((long) i << 32) | position);
+                    }
+                    position++;
+                }
+            });
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        starts = counts;
+    }
+
+    /**
+     * Get where a column starts in the index.  The values above the diagonal in column
+     * j are [getStart(j), getStart(j + 1)), in row order.
+     *
+     * @param j The column, from 0 to n inclusive.
+     */
+    long getStart(int j) {
+        return starts[j];
+    }
+
+    /**
+     * Get the row of a value in the index.
+     *
+     * @param t The position in the index.
+     */
+    int getRow(long t) {
+        return (int) (entries.getLong(8L * t) >>> 32);
+    }
+
+    /**
+     * Get the entry of a value in the index, for MappedSimilarityFile.getValue.
+     *
+     * @param t The position in the index.
+     */
+    long getEntry(long t) {
+        long entry = entries.getLong(8L * t);
+        return theFile.getRowStart((int) (entry >>> 32)) + (entry & 0xffffffffL);
+    }
+
+    /**
+     * Delete the temporary file.
+     */
+    public void close() throws IOException {
+        entries = null;
+        if (null != index) {
+            index.close();
+            index = null;
+        }
+        if (null != indexFile) {
+            indexFile.delete();
+            indexFile = null;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.renci.databridge.util;
+
+import java.io.*;
+
+// Converts a similarity file between the versions of the SimilarityFileFormat. Files in
+// either version are read, and the output is written in the current version unless a
+// version is given.  A version 2 file keeps the compression of the input unless valueBits
+// is given: 0 for none, or 64, 16 or 8 (see SimilarityFileCompression).
+//
+// usage: ConvertSimilarityFile inputFile outputFile [formatVersion [valueBits [blockRows]]]
+public class ConvertSimilarityFile {
+  public static void main(String [] args) {
+     if (args.length < 2 || args.length > 5) {
+        System.out.println("usage: ConvertSimilarityFile inputFile outputFile [formatVersion [valueBits [blockRows]]]");
+        System.exit(1);
+     }
+
+     try {
+        int formatVersion = SimilarityFileFormat.VERSION;
+        if (args.length >= 3) {
+           formatVersion = Integer.parseInt(args[2]);
+        }
+        System.out.println("\nConverting " + args[0] + " (version " +
+                           SimilarityFileFormat.getFormatVersion(args[0]) + ") to " + args[1] +
+                           " (version " + formatVersion + ")");
+        SimilarityFile theData = new SimilarityFile();
+        theData.readFromDisk(args[0]);
+        if (args.length >= 4) {
+           int valueBits = Integer.parseInt(args[3]);
+           int blockRows = SimilarityFileCompression.DEFAULT_BLOCK_ROWS;
+           if (args.length == 5) {
+              blockRows = Integer.parseInt(args[4]);
+           }
+           theData.setCompression(0 == valueBits ? SimilarityFileCompression.NONE :
+                                  new SimilarityFileCompression(valueBits, blockRows));
+        }
+        System.out.println("\tcompression: " + theData.getCompression());
+        theData.writeToDisk(args[1], formatVersion);
+        System.out.println("\t" + theData.getSimilarityMatrix().cardinality() + " values, " +
+                           new File(args[0]).length() + " bytes -> " + new File(args[1]).length() + " bytes");
+     }  catch (Exception e) {
+         e.printStackTrace();
+         System.exit(1);
+     }
+  }
+}
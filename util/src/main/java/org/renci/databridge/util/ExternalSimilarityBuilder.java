@@ -0,0 +1,332 @@
+package org.renci.databridge.util;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Builds a similarity file from (i, j, value) triples that come in any order, in no
+ * more memory than a fixed budget.  The triples are kept in primitive arrays until the
+ * budget is used up; then the run is sorted, in parallel, and spilled to a temporary
+ * file.  finish merges the runs into a SimilarityFileWriter in row order.  A file that
+ * fits in the budget never touches the disk until it's written.
+ *
+ * If the same (i, j) is added more than once, the last value wins, as it would in a
+ * SimilarityFile.  A symmetric file only keeps the values with i <= j.
+ *
+ * The memory is the run buffer, 32 bytes per triple while it's being sorted, and the
+ * read buffers of the runs during the merge.  The temporary files are 16 bytes per
+ * triple and go in the directory of the output file.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class ExternalSimilarityBuilder implements Closeable {
+
+    /** The default memory budget, 64 MB */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+    /** Runs shorter than this are sorted by a single thread */
+    private static final int SEQUENTIAL_SORT = 1 << 13;
+
+    private static final int MIN_READ_BUFFER = 8 << 10;
+    private static final int MAX_READ_BUFFER = 1 << 20;
+
+    private SimilarityFileWriter writer;
+    private int n;
+    private long memoryBudget;
+
+    /** The current run: row << 32 | column, and the value */
+    private long[] keys;
+    private double[] values;
+    private int count = 0;
+
+    private ArrayList<File> runFiles = new ArrayList<File>();
+    private ForkJoinPool pool;
+
+    /**
+     * ExternalSimilarityBuilder constructor.
+     *
+     * @param writer The writer for the output file, which finish finishes.
+     * @param memoryBudget The most memory to use, in bytes.
+     */
+    public ExternalSimilarityBuilder(SimilarityFileWriter writer, long memoryBudget) {
+        this.writer = writer;
+        this.n = writer.getN();
+        this.memoryBudget = memoryBudget;
+        int capacity = (int) Math.max(1024, Math.min(Integer.MAX_VALUE - 8, memoryBudget / 32));
+        this.keys = new long[capacity];
+        this.values = new double[capacity];
+    }
+
+    /**
+     * Add a value.
+     *
+     * @param i The row.
+     * @param j The column.
+     * @param value The value.
+     */
+    public synchronized void add(int i, int j, double value) throws IOException {
+        if (i < 0 || i >= n || j < 0 || j >= n) {
+            throw new IllegalArgumentException("(" + i + ", " + j + ") is out of range");
+        }
+        if (writer.isSymmetric() && i > j) {
+            return;
+        }
+        if (count == keys.length) {
+            spill();
+        }
+        keys[count] = ((long) i << 32) | j;
+        values[count++] = value;
+    }
+
+    /**
+     * Add a batch of values.  The three arrays are companions, as in
+     * SimilarityFile.setSimilarityValues.
+     *
+     * @param count The number of values in the arrays to add.
+     */
+    public synchronized void add(int[] rows, int[] cols, double[] theValues, int count) throws IOException {
+        for (int k = 0; k < count; k++) {
+            add(rows[k], cols[k], theValues[k]);
+        }
+    }
+
+    /**
+     * Get the number of runs spilled to disk so far.
+     */
+    public int getSpilledRunCount() {
+        return runFiles.size();
+    }
+
+    /**
+     * Sort the current run and write it to a temporary file.
+     */
+    private void spill() throws IOException {
+        sortRun();
+        File theFile = File.createTempFile("similarity", ".run",
+                                           new File(writer.getFilePath()).getAbsoluteFile().getParentFile());
+        runFiles.add(theFile);
+        try (DataOutputStream output = new DataOutputStream(
+                 new BufferedOutputStream(new FileOutputStream(theFile), MAX_READ_BUFFER))) {
+            for (int k = 0; k < count; k++) {
+                output.writeLong(keys[k]);
+                output.writeDouble(values[k]);
+            }
+        }
+        count = 0;
+    }
+
+    /**
+     * Sort the current run by key.  The sort is stable, so the values for the same key
+     * stay in the order they were added.
+     */
+    private void sortRun() {
+        long[] keyBuffer = new long[count];
+        double[] valueBuffer = new double[count];
+        if (count < SEQUENTIAL_SORT) {
+            new SortTask(keys, values, keyBuffer, valueBuffer, 0, count).compute();
+            return;
+        }
+        if (null == pool) {
+            pool = new ForkJoinPool();
+        }
+        pool.invoke(new SortTask(keys, values, keyBuffer, valueBuffer, 0, count));
+    }
+
+    /**
+     * Merge the runs into the writer and finish the file.
+     *
+     * @param collectionIds The collection ids in matrix order, or null.
+     */
+    public synchronized void finish(ArrayList<String> collectionIds) throws IOException {
+        sortRun();
+        PriorityQueue<Run> theRuns = new PriorityQueue<Run>(runFiles.size() + 1);
+        try {
+            int bufferSize = (int) Math.max(MIN_READ_BUFFER,
+                Math.min(MAX_READ_BUFFER, memoryBudget / 2 / Math.max(1, runFiles.size())));
+            for (int r = 0; r < runFiles.size(); r++) {
+                Run theRun = new FileRun(r, runFiles.get(r), bufferSize);
+                if (theRun.next()) {
+                    theRuns.add(theRun);
+                }
+            }
+            Run theMemoryRun = new MemoryRun(runFiles.size());
+            if (theMemoryRun.next()) {
+                theRuns.add(theMemoryRun);
+            }
+
+            // Equal keys come out oldest first, so the last one for a key is the one to keep.
+            int currentRow = -1;
+            while (!theRuns.isEmpty()) {
+                Run theRun = theRuns.poll();
+                long key = theRun.key;
+                double value = theRun.value;
+                if (theRun.next()) {
+                    theRuns.add(theRun);
+                }
+                if (!theRuns.isEmpty() && theRuns.peek().key == key) {
+                    continue;
+                }
+                int row = (int) (key >>> 32);
+                if (row != currentRow) {
+                    if (currentRow >= 0) {
+                        writer.endRow();
+                    }
+                    writer.beginRow(row);
+                    currentRow = row;
+                }
+                writer.append((int) key, value);
+            }
+            writer.finish(collectionIds);
+        } finally {
+            for (Run theRun : theRuns) {
+                theRun.close();
+            }
+            close();
+        }
+    }
+
+    /**
+     * Delete the temporary files and release the threads.  The writer is closed too, so
+     * an unfinished file is abandoned.
+     */
+    public void close() throws IOException {
+        for (File theFile : runFiles) {
+            theFile.delete();
+        }
+        runFiles.clear();
+        if (null != pool) {
+            pool.shutdown();
+            pool = null;
+        }
+        writer.close();
+    }
+
+    /**
+     * A sorted run being merged, positioned at its current entry.
+     */
+    private abstract static class Run implements Comparable<Run>, Closeable {
+        int index;
+        long key;
+        double value;
+
+        Run(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Move to the next entry.
+         *
+         * @return false if there isn't one.
+         */
+        abstract boolean next() throws IOException;
+
+        public void close() throws IOException {
+        }
+
+        public int compareTo(Run other) {
+            int byKey = Long.compare(key, other.key);
+            return (byKey != 0) ? byKey : Integer.compare(index, other.index);
+        }
+    }
+
+    private static class FileRun extends Run {
+        private DataInputStream input;
+        private long remaining;
+
+        FileRun(int index, File theFile, int bufferSize) throws IOException {
+            super(index);
+            this.remaining = theFile.length() / 16;
+            this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(theFile), bufferSize));
+        }
+
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            key = input.readLong();
+            value = input.readDouble();
+            return true;
+        }
+
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    /**
+     * The last run, which is never spilled.
+     */
+    private class MemoryRun extends Run {
+        private int position = 0;
+
+        MemoryRun(int index) {
+            super(index);
+        }
+
+        boolean next() {
+            if (position == count) {
+                return false;
+            }
+            key = keys[position];
+            value = values[position++];
+            return true;
+        }
+    }
+
+    /**
+     * A stable merge sort of the keys and their values, with the halves sorted in
+     * parallel.
+     */
+    private static class SortTask extends RecursiveAction {
+        private long[] keys;
+        private double[] values;
+        private long[] keyBuffer;
+        private double[] valueBuffer;
+        private int from;
+        private int to;
+
+        SortTask(long[] keys, double[] values, long[] keyBuffer, double[] valueBuffer, int from, int to) {
+            this.keys = keys;
+            this.values = values;
+            this.keyBuffer = keyBuffer;
+            this.valueBuffer = valueBuffer;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from < 2) {
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            SortTask left = new SortTask(keys, values, keyBuffer, valueBuffer, from, middle);
+            SortTask right = new SortTask(keys, values, keyBuffer, valueBuffer, middle, to);
+            if (to - from < SEQUENTIAL_SORT) {
+                left.compute();
+                right.compute();
+            } else {
+                invokeAll(left, right);
+            }
+            if (keys[middle - 1] <= keys[middle]) {
+                return;
+            }
+            System.arraycopy(keys, from, keyBuffer, from, to - from);
+            System.arraycopy(values, from, valueBuffer, from, to - from);
+            int a = from;
+            int b = middle;
+            for (int k = from; k < to; k++) {
+                if (b >= to || (a < middle && keyBuffer[a] <= keyBuffer[b])) {
+                    keys[k] = keyBuffer[a];
+                    values[k] = valueBuffer[a++];
+                } else {
+                    keys[k] = keyBuffer[b];
+                    values[k] = valueBuffer[b++];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.renci.databridge.util;
+import java.util.Arrays;
+import org.la4j.matrix.functor.*;
+import cern.colt.matrix.impl.RCDoubleMatrix2D;
+
+
+/**
+ * A similarity matrix held on the heap in compressed sparse row form: the row pointers,
+ * and the columns and values of the entries in row order, each row sorted by column.
+ * The same arrays can be handed to la4j as a CRSMatrix and to Colt as an
+ * RCDoubleMatrix2D without copying them.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class HeapSimilarityMatrix implements SimilarityMatrix {
+
+    private int n;
+    private int[] rowPointers;
+    private int[] columns;
+    private double[] values;
+
+    /**
+     * HeapSimilarityMatrix constructor.  The arrays are used as they are, not copied.
+     *
+     * @param n The number of rows, which is also the number of columns.
+     * @param rowPointers Where each row starts in columns and values, n + 1 of them.
+     * @param columns The columns of the entries, sorted within each row.
+     * @param values The values of the entries.
+     */
+    public HeapSimilarityMatrix(int n, int[] rowPointers, int[] columns, double[] values) {
+        if (rowPointers.length != n + 1 || columns.length < rowPointers[n] || values.length < rowPointers[n]) {
+            throw new IllegalArgumentException("The arrays don't hold a " + n + " x " + n + " matrix");
+        }
+        this.n = n;
+        this.rowPointers = rowPointers;
+        this.columns = columns;
+        this.values = values;
+    }
+
+    /**
+     * Copy any similarity matrix to the heap.  Only the stored values are copied, so a
+     * symmetric matrix gives its top half.
+     */
+    public static HeapSimilarityMatrix copyOf(SimilarityMatrix theMatrix) {
+        long nnz = theMatrix.getNonZeroCount();
+        if (nnz > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many values (" + nnz + ") to hold on the heap");
+        }
+        int n = theMatrix.getN();
+        final int[] theRowPointers = new int[n + 1];
+        theMatrix.eachNonZero(new MatrixProcedure() {
+            public void apply(int i, int j, double value) {
+                theRowPointers[i + 1]++;
+            }
+        });
+        for (int i = 0; i < n; i++) {
+            theRowPointers[i + 1] += theRowPointers[i];
+        }
+        final int[] fill = Arrays.copyOf(theRowPointers, n);
+        final int[] theColumns = new int[theRowPointers[n]];
+        final double[] theValues = new double[theRowPointers[n]];
+        theMatrix.eachNonZero(new MatrixProcedure() {
+            public void apply(int i, int j, double value) {
+                int k = fill[i]++;
+                theColumns[k] = j;
+                theValues[k] = value;
+            }
+        });
+        // Not every matrix gives its values in row order.
+        for (int i = 0; i < n; i++) {
+            sortByColumn(theColumns, theValues, theRowPointers[i], theRowPointers[i + 1]);
+        }
+        return new HeapSimilarityMatrix(n, theRowPointers, theColumns, theValues);
+    }
+
+    /**
+     * Sort the entries [from, to) by column, if they aren't already.
+     */
+    static void sortByColumn(int[] theColumns, double[] theValues, int from, int to) {
+        boolean isSorted = true;
+        for (int k = from + 1; k < to && isSorted; k++) {
+            isSorted = theColumns[k - 1] <= theColumns[k];
+        }
+        if (isSorted) {
+            return;
+        }
+        // The column in the top 32 bits, where the entry was in the bottom 32.
+        long[] keys = new long[to - from];
+        for (int m = 0; m < keys.length; m++) {
+            keys[m] = ((long) theColumns[from + m] << 32) | m;
+        }
+        Arrays.sort(keys);
+        double[] unsorted = Arrays.copyOfRange(theValues, from, to);
+        for (int m = 0; m < keys.length; m++) {
+            theColumns[from + m] = (int) (keys[m] >>> 32);
+            theValues[from + m] = unsorted[(int) keys[m]];
+        }
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public boolean isSymmetric() {
+        return false;
+    }
+
+    public long getNonZeroCount() {
+        return rowPointers[n];
+    }
+
+    public double get(int i, int j) {
+        int k = Arrays.binarySearch(columns, rowPointers[i], rowPointers[i + 1], j);
+        return (k < 0) ? 0. : values[k];
+    }
+
+    public void eachNonZero(MatrixProcedure procedure) {
+        for (int i = 0; i < n; i++) {
+            eachNonZeroInRow(i, procedure);
+        }
+    }
+
+    public void eachNonZeroInRow(int i, MatrixProcedure procedure) {
+        for (int k = rowPointers[i]; k < rowPointers[i + 1]; k++) {
+            procedure.apply(i, columns[k], values[k]);
+        }
+    }
+
+    public void close() {
+    }
+
+    /**
+     * Get a la4j CRSMatrix that uses the same arrays.  Changing either matrix afterwards
+     * may change the other.
+     */
+    public org.la4j.matrix.sparse.CRSMatrix toCRSMatrix() {
+        return new org.la4j.matrix.sparse.CRSMatrix(n, n, rowPointers[n], values, columns, rowPointers);
+    }
+
+    /**
+     * Get a Colt RCDoubleMatrix2D that uses the same arrays.  Colt needs the column and
+     * value arrays to be exactly as long as the number of values, so if they are longer
+     * they are trimmed, which copies them.  Changing either matrix afterwards may change
+     * the other.
+     */
+    public RCDoubleMatrix2D toRCDoubleMatrix2D() {
+        int nnz = rowPointers[n];
+        if (columns.length != nnz) {
+            columns = Arrays.copyOf(columns, nnz);
+        }
+        if (values.length != nnz) {
+            values = Arrays.copyOf(values, nnz);
+        }
+        return new ArrayRCDoubleMatrix2D(n, rowPointers, columns, values);
+    }
+}
@@ -0,0 +1,66 @@
+package org.renci.databridge.util;
+import org.la4j.matrix.functor.*;
+
+
+/**
+ * A SimilarityMatrix view of a la4j CRSMatrix, such as the one in a SimilarityFile.  The
+ * CRSMatrix isn't copied, so changes to it show through.  eachNonZero is the CRSMatrix's
+ * own; eachNonZeroInRow looks up every column of the row, so for a lot of row access a
+ * HeapSimilarityMatrix copy is faster.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class La4jSimilarityMatrix implements SimilarityMatrix {
+
+    private org.la4j.matrix.sparse.CRSMatrix matrix;
+
+    /**
+     * La4jSimilarityMatrix constructor.
+     *
+     * @param matrix The matrix, which has to be square.
+     */
+    public La4jSimilarityMatrix(org.la4j.matrix.sparse.CRSMatrix matrix) {
+        if (matrix.rows() != matrix.columns()) {
+            throw new IllegalArgumentException("number of rows (" + matrix.rows() +
+                                               ") != number of columns (" + matrix.columns() + ")");
+        }
+        this.matrix = matrix;
+    }
+
+    public org.la4j.matrix.sparse.CRSMatrix getMatrix() {
+        return matrix;
+    }
+
+    public int getN() {
+        return matrix.rows();
+    }
+
+    public boolean isSymmetric() {
+        return false;
+    }
+
+    public long getNonZeroCount() {
+        return matrix.cardinality();
+    }
+
+    public double get(int i, int j) {
+        return matrix.get(i, j);
+    }
+
+    public void eachNonZero(MatrixProcedure procedure) {
+        matrix.eachNonZero(procedure);
+    }
+
+    public void eachNonZeroInRow(int i, MatrixProcedure procedure) {
+        int n = matrix.columns();
+        for (int j = 0; j < n; j++) {
+            double value = matrix.get(i, j);
+            if (value != 0.) {
+                procedure.apply(i, j, value);
+            }
+        }
+    }
+
+    public void close() {
+    }
+}
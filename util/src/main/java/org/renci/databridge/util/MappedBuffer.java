@@ -0,0 +1,146 @@
+package org.renci.databridge.util;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * A read only memory mapping of part of a file that may be longer than the 2 GB a single
+ * MappedByteBuffer can hold.  The region is mapped in segments of SEGMENT_SIZE bytes.
+ * Since the segment size is a multiple of 8, a value aligned to its own size within the
+ * region never straddles two segments.
+ *
+ * allocateDirect makes a region of the same shape in memory outside the heap, and
+ * mapReadWrite maps a region of a file, either of which can be written as well as read.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class MappedBuffer {
+
+    public static final int SEGMENT_SHIFT = 30;
+    public static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private ByteBuffer[] segments;
+    private long length;
+
+    /**
+     * Map a region of a file.
+     *
+     * @param theChannel The channel of the file.
+     * @param offset Where the region starts in the file.
+     * @param length The length of the region in bytes.
+     */
+    public MappedBuffer(FileChannel theChannel, long offset, long length) throws IOException {
+        this(theChannel, FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    private MappedBuffer(FileChannel theChannel, FileChannel.MapMode mode, long offset, long length) throws IOException {
+        this.length = length;
+        int nSegments = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        this.segments = new ByteBuffer[nSegments];
+        for (int s = 0; s < nSegments; s++) {
+            long start = (long) s << SEGMENT_SHIFT;
+            segments[s] = theChannel.map(mode, offset + start, Math.min(SEGMENT_SIZE, length - start));
+        }
+    }
+
+    /**
+     * Map a region of a file for writing as well as reading.  The file grows to hold the
+     * region if it has to.
+     *
+     * @param theChannel The channel of the file, which has to be open for writing.
+     * @param offset Where the region starts in the file.
+     * @param length The length of the region in bytes.
+     */
+    public static MappedBuffer mapReadWrite(FileChannel theChannel, long offset, long length) throws IOException {
+        return new MappedBuffer(theChannel, FileChannel.MapMode.READ_WRITE, offset, length);
+    }
+
+    /**
+     * Wrap a buffer that is already in memory, for a region of under 2 GB.
+     *
+     * @param theBuffer The buffer, from position 0 to its limit.
+     */
+    public MappedBuffer(ByteBuffer theBuffer) {
+        this.length = theBuffer.limit();
+        this.segments = new ByteBuffer[] {theBuffer};
+    }
+
+    private MappedBuffer(ByteBuffer[] segments, long length) {
+        this.segments = segments;
+        this.length = length;
+    }
+
+    /**
+     * Allocate a region of direct memory, outside the heap.  The memory is returned when
+     * the MappedBuffer is garbage collected.
+     *
+     * @param length The length of the region in bytes.
+     */
+    public static MappedBuffer allocateDirect(long length) {
+        int nSegments = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        ByteBuffer[] theSegments = new ByteBuffer[nSegments];
+        for (int s = 0; s < nSegments; s++) {
+            theSegments[s] = ByteBuffer.allocateDirect((int) Math.min(SEGMENT_SIZE, length - ((long) s << SEGMENT_SHIFT)));
+        }
+        return new MappedBuffer(theSegments, length);
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public byte get(long index) {
+        return segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+    }
+
+    public short getShort(long index) {
+        return segments[(int) (index >>> SEGMENT_SHIFT)].getShort((int) (index & SEGMENT_MASK));
+    }
+
+    public int getInt(long index) {
+        return segments[(int) (index >>> SEGMENT_SHIFT)].getInt((int) (index & SEGMENT_MASK));
+    }
+
+    public long getLong(long index) {
+        return segments[(int) (index >>> SEGMENT_SHIFT)].getLong((int) (index & SEGMENT_MASK));
+    }
+
+    public double getDouble(long index) {
+        return segments[(int) (index >>> SEGMENT_SHIFT)].getDouble((int) (index & SEGMENT_MASK));
+    }
+
+    public void putInt(long index, int value) {
+        segments[(int) (index >>> SEGMENT_SHIFT)].putInt((int) (index & SEGMENT_MASK), value);
+    }
+
+    public void putLong(long index, long value) {
+        segments[(int) (index >>> SEGMENT_SHIFT)].putLong((int) (index & SEGMENT_MASK), value);
+    }
+
+    public void putDouble(long index, double value) {
+        segments[(int) (index >>> SEGMENT_SHIFT)].putDouble((int) (index & SEGMENT_MASK), value);
+    }
+
+    /**
+     * Copy bytes out of the region.
+     *
+     * @param index Where to start in the region.
+     * @param dst The array to copy to.
+     * @param offset Where to start in the array.
+     * @param count How many bytes to copy.
+     */
+    public void get(long index, byte[] dst, int offset, int count) {
+        while (count > 0) {
+            ByteBuffer theSegment = segments[(int) (index >>> SEGMENT_SHIFT)].duplicate();
+            int start = (int) (index & SEGMENT_MASK);
+            int thisCount = Math.min(count, theSegment.limit() - start);
+            theSegment.position(start);
+            theSegment.get(dst, offset, thisCount);
+            index += thisCount;
+            offset += thisCount;
+            count -= thisCount;
+        }
+    }
+}
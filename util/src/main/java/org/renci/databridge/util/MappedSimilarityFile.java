@@ -0,0 +1,491 @@
+package org.renci.databridge.util;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import org.la4j.matrix.functor.*;
+
+
+/**
+ * A read only view of a version 2 similarity file that is memory mapped instead of being
+ * read into the heap.  The row pointers, column indices and values are read in place, so
+ * walking the non zero values of even a very large file costs no more memory than the
+ * pages the operating system keeps cached.  See SimilarityFileFormat for the layout.
+ *
+ * A symmetric file only stores the values with i <= j.  get and eachNonZeroInRow give
+ * the full matrix; eachNonZero gives each stored value once.  The first time a whole
+ * row of a symmetric file is asked for, the values above the diagonal are indexed by
+ * column (see ColumnIndex).  The index is a temporary file, 8 bytes per value, next to
+ * the similarity file if that directory can be written and in the default temporary
+ * directory if not.  It is memory mapped like the file, so the heap only holds 8 bytes
+ * per row of it, and it is deleted when the file is closed.
+ *
+ * The columns of a compressed file are decoded as they are read.  Finding a row means
+ * decoding the rows before it in its block, so get and eachNonZeroInRow cost up to a
+ * block of rows; walking the whole file with eachNonZero costs no more than for an
+ * uncompressed file.
+ *
+ * If the file has a rank index, the values of each row in order from the largest can
+ * be read straight from it; see SimilarityQuery.
+ *
+ * This is the SimilarityMatrix to use for files too big for the heap.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class MappedSimilarityFile implements SimilarityMatrix {
+
+    private RandomAccessFile theFile;
+    private int flags;
+    private int n;
+    private long nnz;
+    private MappedBuffer rowPointers;
+    private MappedBuffer columns;
+    private MappedBuffer values;
+    private String nameSpace;
+    private String similarityInstanceId;
+    private CollectionIdTable collectionIdTable;
+    private volatile ArrayList<String> collectionIds;
+    private SimilarityFileCompression compression;
+    private double scale;
+    private MappedBuffer blocks;
+    private MappedBuffer ranks;
+    private MappedBuffer rankPointers;
+
+    /** Where the index by column goes, and the index once a whole row of a symmetric file is read */
+    private File directory;
+    private volatile ColumnIndex columnIndex;
+
+    private MappedSimilarityFile() {
+    }
+
+    /**
+     * Map a version 2 similarity file.
+     *
+     * @param filePath The file to map.
+     * @return the mapped file, which should be closed when it's no longer needed.
+     * @throws IOException if the file can't be mapped or isn't a version 2 file.
+     */
+    public static MappedSimilarityFile open(String filePath) throws IOException {
+        MappedSimilarityFile theMappedFile = new MappedSimilarityFile();
+        theMappedFile.theFile = new RandomAccessFile(filePath, "r");
+        theMappedFile.directory = new File(filePath).getAbsoluteFile().getParentFile();
+        try {
+            theMappedFile.map();
+        } catch (IOException e) {
+            theMappedFile.close();
+            throw e;
+        }
+        return theMappedFile;
+    }
+
+    private void map() throws IOException {
+        FileChannel theChannel = theFile.getChannel();
+        if (theChannel.size() < SimilarityFileFormat.HEADER_SIZE) {
+            throw new IOException("Not a version " + SimilarityFileFormat.VERSION + " similarity file");
+        }
+        ByteBuffer theHeader = theChannel.map(FileChannel.MapMode.READ_ONLY, 0, SimilarityFileFormat.HEADER_SIZE);
+        if (theHeader.getInt(0) != SimilarityFileFormat.MAGIC ||
+            theHeader.getInt(4) != SimilarityFileFormat.VERSION) {
+            throw new IOException("Not a version " + SimilarityFileFormat.VERSION + " similarity file");
+        }
+        flags = theHeader.getInt(SimilarityFileFormat.FLAGS_AT);
+        n = theHeader.getInt(SimilarityFileFormat.N_AT);
+        nnz = theHeader.getLong(SimilarityFileFormat.NNZ_AT);
+        long metadataOffset = theHeader.getLong(SimilarityFileFormat.METADATA_AT);
+        long idsOffset = theHeader.getLong(SimilarityFileFormat.IDS_AT);
+        long fileLength = theHeader.getLong(SimilarityFileFormat.LENGTH_AT);
+        if (fileLength > theChannel.size()) {
+            throw new IOException("Similarity file is truncated");
+        }
+
+        compression = SimilarityFileFormat.getCompression(theHeader);
+        scale = theHeader.getDouble(SimilarityFileFormat.SCALE_AT);
+        long columnsOffset = theHeader.getLong(SimilarityFileFormat.COLUMNS_AT);
+        long columnsLength = 4L * nnz;
+        if (compression.isCompressed()) {
+            long blocksOffset = theHeader.getLong(SimilarityFileFormat.BLOCKS_AT);
+            int nBlocks = (n + compression.getBlockRows() - 1) / compression.getBlockRows();
+            blocks = new MappedBuffer(theChannel, blocksOffset, 8L * (nBlocks + 1));
+            columnsLength = blocks.getLong(8L * nBlocks);
+        }
+        if ((flags & SimilarityFileFormat.RANKED) != 0) {
+            rankPointers = new MappedBuffer(theChannel, theHeader.getLong(SimilarityFileFormat.RANK_POINTERS_AT),
+                                            8L * (n + 1));
+            ranks = new MappedBuffer(theChannel, theHeader.getLong(SimilarityFileFormat.RANKS_AT),
+                                     8L * rankPointers.getLong(8L * n));
+        }
+        rowPointers = new MappedBuffer(theChannel, theHeader.getLong(SimilarityFileFormat.ROW_POINTERS_AT), 8L * (n + 1));
+        columns = new MappedBuffer(theChannel, columnsOffset, columnsLength);
+        values = new MappedBuffer(theChannel, theHeader.getLong(SimilarityFileFormat.VALUES_AT),
+                                  compression.getValueSize() * nnz);
+
+        // The small sections are decoded right away.
+        DataInputStream metadata = new DataInputStream(new ByteArrayInputStream(readBytes(theChannel, 
+            metadataOffset, SimilarityFileFormat.getSectionEnd(theHeader, metadataOffset) - metadataOffset)));
+        nameSpace = SimilarityFileFormat.readOptionalString(metadata);
+        similarityInstanceId = SimilarityFileFormat.readOptionalString(metadata);
+
+        // Packed ids are left in the file and decoded when they are asked for.
+        if ((flags & SimilarityFileFormat.OBJECT_IDS) != 0) {
+            int count = ByteBuffer.wrap(readBytes(theChannel, idsOffset, 4)).getInt();
+            if (count >= 0) {
+                collectionIdTable = new CollectionIdTable(new MappedBuffer(theChannel, idsOffset + 4, 
+                    (long) CollectionIdTable.OBJECT_ID_SIZE * count), count);
+            }
+        } else {
+            collectionIdTable = SimilarityFileFormat.readCollectionIds(new DataInputStream(new ByteArrayInputStream(
+                readBytes(theChannel, idsOffset, SimilarityFileFormat.getSectionEnd(theHeader, idsOffset) - idsOffset))), 
+                false);
+        }
+    }
+
+    private static byte[] readBytes(FileChannel theChannel, long offset, long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Bad similarity file section length " + length);
+        }
+        ByteBuffer theBytes = ByteBuffer.allocate((int) length);
+        while (theBytes.hasRemaining()) {
+            if (theChannel.read(theBytes, offset + theBytes.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return theBytes.array();
+    }
+
+    /**
+     * Release the file and delete the index by column, if there is one.  The mappings
+     * themselves go away when they are garbage collected.
+     */
+    public synchronized void close() throws IOException {
+        if (null != columnIndex) {
+            columnIndex.close();
+            columnIndex = null;
+        }
+        if (null != theFile) {
+            theFile.close();
+            theFile = null;
+        }
+    }
+
+    /**
+     * Get the number of rows, which is also the number of columns.
+     */
+    public int getN() {
+        return n;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Is only the top half of the matrix stored?
+     */
+    public boolean isSymmetric() {
+        return (flags & SimilarityFileFormat.SYMMETRIC) != 0;
+    }
+
+    public SimilarityFileCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Does the file have a rank index?
+     */
+    public boolean isRanked() {
+        return null != ranks;
+    }
+
+    /**
+     * Get where the ranks of a row start in the rank index.  The ranks of row i are
+     * [getRankStart(i), getRankStart(i + 1)), from the largest value to the smallest.
+     *
+     * @param i The row, from 0 to n inclusive.
+     */
+    long getRankStart(int i) {
+        return rankPointers.getLong(8L * i);
+    }
+
+    int getRankedColumn(long r) {
+        return ranks.getInt(8L * r);
+    }
+
+    double getRankedValue(long r) {
+        return getValue(ranks.getInt(8L * r + 4) & 0xffffffffL);
+    }
+
+    public long getNonZeroCount() {
+        return nnz;
+    }
+
+    public String getNameSpace() {
+        return nameSpace;
+    }
+
+    public String getSimilarityInstanceId() {
+        return similarityInstanceId;
+    }
+
+    /**
+     * Get the collection ids, all decoded.  See getCollectionIdTable to decode them one
+     * at a time.
+     *
+     * @return the ids, or null if the file doesn't have them.
+     */
+    public ArrayList<String> getCollectionIds() {
+        if (null == collectionIds && null != collectionIdTable) {
+            collectionIds = collectionIdTable.toList();
+        }
+        return collectionIds;
+    }
+
+    /**
+     * Get the collection ids as they are stored.
+     *
+     * @return the ids, or null if the file doesn't have them.
+     */
+    public CollectionIdTable getCollectionIdTable() {
+        return collectionIdTable;
+    }
+
+    /**
+     * Get the index of the first entry of a row.  The entries of row i are
+     * [getRowStart(i), getRowStart(i + 1)).
+     *
+     * @param i The row, from 0 to n inclusive.
+     */
+    public long getRowStart(int i) {
+        return rowPointers.getLong(8L * i);
+    }
+
+    /**
+     * Get the column of an entry of an uncompressed file.  The columns of a compressed
+     * file can only be read a row at a time, through eachNonZero or eachNonZeroInRow.
+     *
+     * @param k The entry.
+     */
+    public int getColumn(long k) {
+        if (compression.isCompressed()) {
+            throw new UnsupportedOperationException("Columns of a compressed file can't be read by entry");
+        }
+        return columns.getInt(4L * k);
+    }
+
+    /**
+     * Get the value of an entry.
+     *
+     * @param k The entry.
+     */
+    public double getValue(long k) {
+        switch (compression.getValueBits()) {
+        case 16:
+            return values.getShort(2L * k) / scale;
+        case 8:
+            return values.get(k) / scale;
+        default:
+            return values.getDouble(8L * k);
+        }
+    }
+
+    /**
+     * Find where the columns of row i start in a compressed file: at the start of its
+     * block, past the varints of the rows before it in the block.
+     */
+    private long getColumnPosition(int i) {
+        int block = i / compression.getBlockRows();
+        long position = blocks.getLong(8L * block);
+        for (long toSkip = getRowStart(i) - getRowStart(block * compression.getBlockRows()); toSkip > 0; toSkip--) {
+            while (columns.get(position++) < 0) {
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Call a procedure for every stored value in a range of rows, in row order.
+     *
+     * @param fromRow The first row.
+     * @param toRow The row after the last one.
+     * @param procedure Called with the row, column and value of each entry.
+     */
+    private void eachStored(int fromRow, int toRow, MatrixProcedure procedure) {
+        long k = getRowStart(fromRow);
+        if (!compression.isCompressed()) {
+            for (int i = fromRow; i < toRow; i++) {
+                long end = getRowStart(i + 1);
+                for (; k < end; k++) {
+                    procedure.apply(i, columns.getInt(4L * k), getValue(k));
+                }
+            }
+            return;
+        }
+        long position = getColumnPosition(fromRow);
+        for (int i = fromRow; i < toRow; i++) {
+            long end = getRowStart(i + 1);
+            int column = 0;
+            for (; k < end; k++) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = columns.get(position++);
+                    delta |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                column += delta;
+                procedure.apply(i, column, getValue(k));
+            }
+        }
+    }
+
+    /**
+     * Get one value of the full matrix, by binary search of the row.
+     *
+     * @return the value at (i, j), or 0 if there isn't one.
+     */
+    public double get(int i, int j) {
+        if (i > j && isSymmetric()) {
+            int swap = i;
+            i = j;
+            j = swap;
+        }
+        if (compression.isCompressed()) {
+            return getCompressed(i, j);
+        }
+        long low = getRowStart(i);
+        long high = getRowStart(i + 1) - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            int column = getColumn(mid);
+            if (column < j) {
+                low = mid + 1;
+            } else if (column > j) {
+                high = mid - 1;
+            } else {
+                return getValue(mid);
+            }
+        }
+        return 0.;
+    }
+
+    /**
+     * Get one stored value of a compressed file, by decoding its row up to the column.
+     */
+    private double getCompressed(int i, int j) {
+        long position = getColumnPosition(i);
+        int column = 0;
+        long end = getRowStart(i + 1);
+        for (long k = getRowStart(i); k < end; k++) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = columns.get(position++);
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            column += delta;
+            if (column >= j) {
+                return column == j ? getValue(k) : 0.;
+            }
+        }
+        return 0.;
+    }
+
+    /**
+     * Call a procedure for every stored non zero value, in row order.  For a symmetric
+     * file that is every pair once, with i <= j.
+     *
+     * @param procedure Called with the row, column and value of each entry.
+     */
+    public void eachNonZero(MatrixProcedure procedure) {
+        eachStored(0, n, procedure);
+    }
+
+    /**
+     * Call a procedure for every non zero value in one row of the full matrix, in
+     * column order.
+     *
+     * @param i The row.
+     * @param procedure Called with the row, column and value of each entry.
+     */
+    public void eachNonZeroInRow(int i, MatrixProcedure procedure) {
+        if (isSymmetric()) {
+            // The values left of the diagonal are stored in column i of the rows above.
+            ColumnIndex theIndex = getColumnIndex();
+            for (long t = theIndex.getStart(i); t < theIndex.getStart(i + 1); t++) {
+                procedure.apply(i, theIndex.getRow(t), getValue(theIndex.getEntry(t)));
+            }
+        }
+        eachStored(i, i + 1, procedure);
+    }
+
+    /**
+     * Call a procedure for every stored value of one row, in column order.  For a
+     * symmetric file that's only the part of the row from the diagonal on.
+     *
+     * @param i The row.
+     * @param procedure Called with the row, column and value of each entry.
+     */
+    void eachStoredInRow(int i, MatrixProcedure procedure) {
+        eachStored(i, i + 1, procedure);
+    }
+
+    /**
+     * Get the index of a symmetric file by column, building it the first time.
+     */
+    private ColumnIndex getColumnIndex() {
+        ColumnIndex theIndex = columnIndex;
+        if (null != theIndex) {
+            return theIndex;
+        }
+        synchronized (this) {
+            if (null == columnIndex) {
+                try {
+                    columnIndex = new ColumnIndex(this, directory.canWrite() ? directory : null);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Can't index the similarity file by column: " + e.getMessage(), e);
+                }
+            }
+            return columnIndex;
+        }
+    }
+
+    /**
+     * Copy the matrix into a CRSMatrix on the heap.
+     */
+    public org.la4j.matrix.sparse.CRSMatrix toCRSMatrix() throws IOException {
+        if (nnz > Integer.MAX_VALUE) {
+            throw new IOException("Too many values (" + nnz + ") to read into memory");
+        }
+        int[] theRowPointers = new int[n + 1];
+        for (int i = 0; i <= n; i++) {
+            theRowPointers[i] = (int) getRowStart(i);
+        }
+        final int[] theColumns = new int[(int) nnz];
+        final double[] theValues = new double[(int) nnz];
+        eachStored(0, n, new MatrixProcedure() {
+            int k = 0;
+            public void apply(int i, int j, double value) {
+                theColumns[k] = j;
+                theValues[k++] = value;
+            }
+        });
+        return new org.la4j.matrix.sparse.CRSMatrix(n, n, (int) nnz, theValues, theColumns, theRowPointers);
+    }
+
+    /**
+     * Fill in a SimilarityFile on the heap from this one.
+     *
+     * @param theSimFile The SimilarityFile to fill in.
+     */
+    public void copyTo(SimilarityFile theSimFile) throws IOException {
+        theSimFile.setNameSpace(nameSpace);
+        theSimFile.setSimilarityInstanceId(similarityInstanceId);
+        theSimFile.setSimilarityMatrix(toCRSMatrix());
+        theSimFile.setCollectionIds(getCollectionIds());
+        theSimFile.setSymmetric(isSymmetric());
+        theSimFile.setCompression(compression);
+        theSimFile.setRanked(isRanked());
+    }
+}
@@ -4,8 +4,6 @@ import org.renci.databridge.util.DatasetSerializer;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.net.*;
@@ -16,6 +14,7 @@ import cern.colt.matrix.impl.AbstractMatrix2D;
 import cern.colt.matrix.*;
 import cern.colt.list.IntArrayList;
 import cern.colt.list.DoubleArrayList;
+import cern.colt.function.IntIntDoubleFunction;
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryo.io.Input;
@@ -33,6 +32,18 @@ import com.esotericsoftware.kryo.serializers.CollectionSerializer;
  */
 public class NetworkData {
 
+     /** The size of the Kryo Input and Output buffers */
+     private static final int BUFFER_SIZE = 1 << 16;
+
+     /** A Kryo isn't thread safe, so each thread gets its own, registered and with its
+         serializers made, the first time it reads or writes a network. */
+     private static final ThreadLocal<KryoContext> kryoContext = new ThreadLocal<KryoContext>() {
+         @Override
+         protected KryoContext initialValue() {
+             return new KryoContext();
+         }
+     };
+
      /** A string to store the dbID for the network - this becomes the databridge identifier
 	 for all edges in the network. This dbID is unique amongst edges sharing the same nodes. */
      private String dbID;
@@ -137,9 +148,12 @@ public class NetworkData {
          // read from the requested file
          try {
              FileInputStream fos = new FileInputStream(new File(filePath));
-             BufferedInputStream theStream = new BufferedInputStream(fos);
-             Input input = new Input(theStream);
-             readTheNetworkFromInputObject(input);
+             Input input = new Input(fos, BUFFER_SIZE);
+             try {
+                 readTheNetworkFromInputObject(input);
+             } finally {
+                 input.close();
+             }
 
           } catch (Exception e) {
               throw e;
@@ -158,10 +172,12 @@ public class NetworkData {
          try {
              URL theURL = new URL(userURL);
              URLConnection theConnection = theURL.openConnection();
-             BufferedInputStream theStream = 
-                new BufferedInputStream(theConnection.getInputStream());
-             Input input = new Input(theStream);
-             readTheNetworkFromInputObject(input);
+             Input input = new Input(theConnection.getInputStream(), BUFFER_SIZE);
+             try {
+                 readTheNetworkFromInputObject(input);
+             } finally {
+                 input.close();
+             }
 
           } catch (Exception e) {
               throw e;
@@ -179,50 +195,38 @@ public class NetworkData {
       */
      private void readTheNetworkFromInputObject(Input input) throws Exception {
 
-         // Setup the kryo
-         Kryo kryo = new Kryo();
+         KryoContext theContext = kryoContext.get();
+         Kryo kryo = theContext.kryo;
 
          // NOTE: the cardinality of the rows, cols and vals arrays are all the same.
          // This is because what is being stored in the RCDoubleMatrix2D is a set of
-         // (row, column, value) tuples using 3 "companion" arrays.
-         IntArrayList rows = new IntArrayList(); 
-         IntArrayList cols = new IntArrayList(); 
-         DoubleArrayList vals = new DoubleArrayList(); 
+         // (row, column, value) tuples using 3 "companion" arrays.  Each array is
+         // read straight into a primitive array rather than a list of boxed values.
          try {
              this.arraySize = input.readInt();
-             similarityMatrix = new RCDoubleMatrix2D(this.arraySize, this.arraySize);
-
              int nTuples = input.readInt();
+             int[] rows = new int[nTuples];
              for (int i = 0; i < nTuples; i++) {
-                rows.add(input.readInt());
+                rows[i] = input.readInt();
              }
-
-             for (int i = 0; i < nTuples; i++) {
-                cols.add(input.readInt());
-             }
-
+             int[] cols = new int[nTuples];
              for (int i = 0; i < nTuples; i++) {
-                vals.add(input.readDouble());
+                cols[i] = input.readInt();
              }
-
+             double[] vals = new double[nTuples];
              for (int i = 0; i < nTuples; i++) {
-                 this.similarityMatrix.setQuick(rows.get(i), cols.get(i), vals.get(i));
+                vals[i] = input.readDouble();
              }
+             similarityMatrix = buildMatrix(this.arraySize, rows, cols, vals);
 
              // Read the dbID using the Kryo StringSerializer class
-             StringSerializer theStringSerializer = new StringSerializer();
-             this.dbID = kryo.readObject(input, String.class, theStringSerializer);
+             this.dbID = kryo.readObject(input, String.class, theContext.stringSerializer);
 
              // Read the properties using the Kryo MapSerializer class
-             MapSerializer theSerializer = new MapSerializer();
-             this.properties = kryo.readObject(input, HashMap.class, theSerializer);
+             this.properties = kryo.readObject(input, HashMap.class, theContext.mapSerializer);
 
              // Read the datasets
-             // Declare a DatasetSerializer
-             DatasetSerializer theDatasetSerializer = new DatasetSerializer();
-             CollectionSerializer theCollectionSerializer = 
-                new CollectionSerializer(Dataset.class, theDatasetSerializer);
-             this.datasets = kryo.readObject(input, ArrayList.class, theCollectionSerializer);
+             this.datasets = kryo.readObject(input, ArrayList.class, theContext.datasetsSerializer);
 
          } catch (Exception e) {
              throw e;
@@ -243,74 +247,119 @@ public class NetworkData {
 
          // NOTE: the cardinality of the rows, cols and vals arrays are all the same.
          // This is because what is being stored in the RCDoubleMatrix2D is a set of
-         // (row, column, value) tuples using 3 "companion" arrays.
-         IntArrayList rows = new IntArrayList(); 
-         IntArrayList cols = new IntArrayList(); 
-         DoubleArrayList vals = new DoubleArrayList(); 
-         this.similarityMatrix.getNonZeros(rows, cols, vals);
+         // (row, column, value) tuples using 3 "companion" arrays.  forEachNonZero only
+         // visits the stored values, where getNonZeros would look at every cell.
+         final int[] nTuples = new int[1];
+         this.similarityMatrix.forEachNonZero(new IntIntDoubleFunction() {
+             public double apply(int row, int col, double value) {
+                 nTuples[0]++;
+                 return value;
+             }
+         });
+         final int[] rows = new int[nTuples[0]];
+         final int[] cols = new int[nTuples[0]];
+         final double[] vals = new double[nTuples[0]];
+         this.similarityMatrix.forEachNonZero(new IntIntDoubleFunction() {
+             int next = nTuples[0];
+             public double apply(int row, int col, double value) {
+                 // The values come last row first, so fill the arrays from the end to
+                 // leave them in row order.
+                 next--;
+                 rows[next] = row;
+                 cols[next] = col;
+                 vals[next] = value;
+                 return value;
+             }
+         });
 
-         // Setup the kryo
-         Kryo kryo = new Kryo();
-         kryo.register(RCDoubleMatrix2D.class);
+         KryoContext theContext = kryoContext.get();
+         Kryo kryo = theContext.kryo;
 
-         // Set up a buffered output stream for the kryo output object.
-         BufferedOutputStream theStream = null;
+         // The Output writes straight to the file: it has its own buffer.
+         Output output = new Output(new FileOutputStream(new File(filePath)), BUFFER_SIZE);
          try {
-            FileOutputStream fos = new FileOutputStream(new File(filePath));
-            theStream = new BufferedOutputStream(fos);
-         } catch (Exception e) {
-             throw e;
-         }
+             // Write the size of the array, Note that this could be, in theory, different from
+             // the cardinality of the array. In practice, I don't think it ever will be
+             // but I can't convince myself, so I am storing it separately.
+             output.writeInt(this.getArraySize());
+
+             // Write the number of tuples, then each of the arrays.
+             output.writeInt(nTuples[0]);
+             for (int i = 0; i < nTuples[0]; i++) {
+                output.writeInt(rows[i]);
+             }
+             for (int i = 0; i < nTuples[0]; i++) {
+                output.writeInt(cols[i]);
+             }
+             for (int i = 0; i < nTuples[0]; i++) {
+                output.writeDouble(vals[i]);
+             }
 
-         Output output = new Output(theStream);
-         // Write the size of the array, Note that this could be, in theory, different from
-         // the cardinality of the array. In practice, I don't think it ever will be
-         // but I can't convince myself, so I am storing it separately.
-         output.writeInt(this.getArraySize());
+             // Write the dbID using the Kryo StringSerializer class
+             kryo.writeObject(output, dbID, theContext.stringSerializer);
 
-         // Write the rows: Start with the number of rows.
-         int nTuples = rows.size();
-         output.writeInt(nTuples);
-         for (int i = 0; i < nTuples; i++) {
-            output.writeInt(rows.get(i));
+             // Write the properties using the Kryo MapSerializer class
+             kryo.writeObject(output, this.properties, theContext.mapSerializer);
+
+             // Write the datasets
+             kryo.writeObject(output, this.datasets, theContext.datasetsSerializer);
+         } finally {
+             output.close();
          }
+     }
 
-         // Write the cols:
-         for (int i = 0; i < nTuples; i++) {
-            output.writeInt(cols.get(i));
+     /**
+      * Build the matrix from the companion arrays.  If the tuples are in row order, with
+      * no repeats and no zeros, as writeToDisk leaves them, the arrays become the matrix
+      * without copying.  Otherwise the values are set one at a time.
+      *
+      * @param arraySize The dimension of one side of the matrix.
+      * @param rows The rows of the values.
+      * @param cols The columns of the values.
+      * @param vals The values.
+      */
+     static RCDoubleMatrix2D buildMatrix(int arraySize, int[] rows, int[] cols, double[] vals) {
+         int nTuples = vals.length;
+         boolean isOrdered = true;
+         for (int i = 0; i < nTuples && isOrdered; i++) {
+             if (rows[i] < 0 || rows[i] >= arraySize || cols[i] < 0 || cols[i] >= arraySize ||
+                 vals[i] == 0.) {
+                 isOrdered = false;
+             } else if (i > 0) {
+                 isOrdered = rows[i - 1] < rows[i] || (rows[i - 1] == rows[i] && cols[i - 1] < cols[i]);
+             }
+         }
+         if (isOrdered) {
+             int[] starts = new int[arraySize + 1];
+             for (int i = 0; i < nTuples; i++) {
+                 starts[rows[i] + 1]++;
+             }
+             for (int i = 0; i < arraySize; i++) {
+                 starts[i + 1] += starts[i];
+             }
+             return new ArrayRCDoubleMatrix2D(arraySize, starts, cols, vals);
          }
 
-         // Write the vals:
+         RCDoubleMatrix2D theMatrix = new RCDoubleMatrix2D(arraySize, arraySize);
          for (int i = 0; i < nTuples; i++) {
-            output.writeDouble(vals.get(i));
+             theMatrix.setQuick(rows[i], cols[i], vals[i]);
          }
+         return theMatrix;
+     }
 
-         // Write the dbID using the Kryo StringSerializer class
-         StringSerializer theStringSerializer = new StringSerializer();
-         kryo.writeObject(output, dbID, theStringSerializer);
-
-         // Write the properties using the Kryo MapSerializer class
-         MapSerializer theSerializer = new MapSerializer();
-         kryo.writeObject(output, this.properties, theSerializer);
-
-         // Write the datasets
-         // Declare a DatasetSerializer
-         DatasetSerializer theDatasetSerializer = new DatasetSerializer();
-         CollectionSerializer theCollectionSerializer = 
-            new CollectionSerializer(Dataset.class, theDatasetSerializer);
-         kryo.writeObject(output, this.datasets, theCollectionSerializer);
-
-         output.close();
-         
+     /**
+      * The Kryo and the serializers one thread uses for reading and writing networks.
+      */
+     private static class KryoContext {
+         Kryo kryo = new Kryo();
+         StringSerializer stringSerializer = new StringSerializer();
+         MapSerializer mapSerializer = new MapSerializer();
+         CollectionSerializer datasetsSerializer =
+            new CollectionSerializer(Dataset.class, new DatasetSerializer());
 
-         // write it to the requested file
-         try {
-             theStream.write(output.getBuffer(), 0, output.total());
-             theStream.close();
-         } catch (Exception e) {
-             throw e;
+         KryoContext() {
+             kryo.register(RCDoubleMatrix2D.class);
          }
-
      }
 
      /**
@@ -418,6 +467,15 @@ public class NetworkData {
 
 
 
+    /**
+     * Get the similarity matrix as a SimilarityMatrix.  It's a view of the
+     * RCDoubleMatrix2D, not a copy.
+     */
+    public SimilarityMatrix getMatrix()
+    {
+        return new ColtSimilarityMatrix(similarityMatrix);
+    }
+
     /**
      * Get similarityMatrix.
      *
@@ -0,0 +1,240 @@
+package org.renci.databridge.util;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.la4j.matrix.functor.*;
+
+
+/**
+ * A similarity matrix whose values are kept in direct memory, outside the Java heap, so
+ * a very large matrix neither needs a huge heap nor makes the garbage collector pause to
+ * scan it.  Only the row pointers, 8 bytes per row, are on the heap.
+ *
+ * The matrix is filled the way the relevance engine fills a SimilarityFile: values in
+ * any order, in batches from several threads, with a later value for the same (i, j)
+ * replacing the earlier one and a 0 removing it.  The values are appended to a log as
+ * they come, 16 bytes each.  The first read after any values were set sorts the log,
+ * along with the values already in the matrix, into compressed sparse row form: 12
+ * bytes per value, in row order, each row sorted by column.  Sorting takes the log, the
+ * old matrix and the new one at the same time.
+ *
+ * Reading is thread safe, but setting values while another thread reads isn't.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class OffHeapSimilarityMatrix implements SimilarityMatrix {
+
+    /** The log is allocated in chunks of this many bytes */
+    private static final int LOG_CHUNK_SIZE = 1 << 24;
+
+    /** row, column and value */
+    private static final int LOG_ENTRY_SIZE = 16;
+    private static final int LOG_CHUNK_ENTRIES = LOG_CHUNK_SIZE / LOG_ENTRY_SIZE;
+
+    private int n;
+    private long[] rowPointers;
+    private MappedBuffer columns;
+    private MappedBuffer values;
+
+    /** The values set since the matrix was last sorted */
+    private ArrayList<ByteBuffer> log = new ArrayList<ByteBuffer>();
+    private volatile long logCount = 0;
+
+    /**
+     * OffHeapSimilarityMatrix constructor for an empty matrix.
+     *
+     * @param n The number of rows, which is also the number of columns.
+     */
+    public OffHeapSimilarityMatrix(int n) {
+        this.n = n;
+        this.rowPointers = new long[n + 1];
+        this.columns = MappedBuffer.allocateDirect(0);
+        this.values = MappedBuffer.allocateDirect(0);
+    }
+
+    /**
+     * Set a value.
+     *
+     * @param i The row.
+     * @param j The column.
+     * @param value The value, or 0 to remove the value.
+     */
+    public synchronized void set(int i, int j, double value) {
+        if (i < 0 || i >= n || j < 0 || j >= n) {
+            throw new IndexOutOfBoundsException("(" + i + ", " + j + ") is out of range");
+        }
+        int chunk = (int) (logCount / LOG_CHUNK_ENTRIES);
+        if (chunk == log.size()) {
+            log.add(ByteBuffer.allocateDirect(LOG_CHUNK_SIZE));
+        }
+        ByteBuffer theChunk = log.get(chunk);
+        int offset = (int) (logCount % LOG_CHUNK_ENTRIES) * LOG_ENTRY_SIZE;
+        theChunk.putInt(offset, i);
+        theChunk.putInt(offset + 4, j);
+        theChunk.putDouble(offset + 8, value);
+        logCount++;
+    }
+
+    /**
+     * Set a batch of values.  The three arrays are companions, as in
+     * SimilarityFile.setSimilarityValues.
+     *
+     * @param count The number of values in the arrays to set.
+     */
+    public synchronized void setValues(int[] rows, int[] cols, double[] theValues, int count) {
+        for (int k = 0; k < count; k++) {
+            set(rows[k], cols[k], theValues[k]);
+        }
+    }
+
+    /**
+     * Sort the values set since the last time into the matrix.  Reading the matrix does
+     * this when it's needed.
+     */
+    public synchronized void compact() {
+        if (0 == logCount) {
+            return;
+        }
+        // Count the values of each row, old and new.
+        long[] starts = new long[n + 1];
+        for (int i = 0; i < n; i++) {
+            starts[i + 1] = rowPointers[i + 1] - rowPointers[i];
+        }
+        for (long t = 0; t < logCount; t++) {
+            starts[getLogged(t).getInt(getLogOffset(t)) + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            starts[i + 1] += starts[i];
+        }
+
+        // The old values go into each row first, then the new ones in the order they
+        // were set, so the last one set for a column comes last.
+        MappedBuffer newColumns = MappedBuffer.allocateDirect(4L * starts[n]);
+        MappedBuffer newValues = MappedBuffer.allocateDirect(8L * starts[n]);
+        long[] fill = Arrays.copyOf(starts, n);
+        for (int i = 0; i < n; i++) {
+            for (long k = rowPointers[i]; k < rowPointers[i + 1]; k++) {
+                newColumns.putInt(4L * fill[i], columns.getInt(4L * k));
+                newValues.putDouble(8L * fill[i]++, values.getDouble(8L * k));
+            }
+        }
+        for (long t = 0; t < logCount; t++) {
+            ByteBuffer theChunk = getLogged(t);
+            int offset = getLogOffset(t);
+            int i = theChunk.getInt(offset);
+            newColumns.putInt(4L * fill[i], theChunk.getInt(offset + 4));
+            newValues.putDouble(8L * fill[i]++, theChunk.getDouble(offset + 8));
+        }
+        log.clear();
+        columns = null;
+        values = null;
+
+        // Sort each row by column, keeping the last value for each column and dropping
+        // zeros.  The rows only get shorter, so they are packed down in place.
+        int[] rowColumns = new int[16];
+        double[] rowValues = new double[16];
+        long nnz = 0;
+        for (int i = 0; i < n; i++) {
+            long from = starts[i];
+            int length = (int) (starts[i + 1] - from);
+            starts[i] = nnz;
+            if (length > rowColumns.length) {
+                rowColumns = new int[Math.max(length, 2 * rowColumns.length)];
+                rowValues = new double[rowColumns.length];
+            }
+            for (int m = 0; m < length; m++) {
+                rowColumns[m] = newColumns.getInt(4L * (from + m));
+                rowValues[m] = newValues.getDouble(8L * (from + m));
+            }
+            HeapSimilarityMatrix.sortByColumn(rowColumns, rowValues, 0, length);
+            for (int m = 0; m < length; m++) {
+                if ((m + 1 < length && rowColumns[m + 1] == rowColumns[m]) || rowValues[m] == 0.) {
+                    continue;
+                }
+                newColumns.putInt(4L * nnz, rowColumns[m]);
+                newValues.putDouble(8L * nnz++, rowValues[m]);
+            }
+        }
+        starts[n] = nnz;
+
+        rowPointers = starts;
+        columns = newColumns;
+        values = newValues;
+        logCount = 0;
+    }
+
+    private ByteBuffer getLogged(long t) {
+        return log.get((int) (t / LOG_CHUNK_ENTRIES));
+    }
+
+    private int getLogOffset(long t) {
+        return (int) (t % LOG_CHUNK_ENTRIES) * LOG_ENTRY_SIZE;
+    }
+
+    private void compactIfNeeded() {
+        if (0 != logCount) {
+            compact();
+        }
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public boolean isSymmetric() {
+        return false;
+    }
+
+    public long getNonZeroCount() {
+        compactIfNeeded();
+        return rowPointers[n];
+    }
+
+    public double get(int i, int j) {
+        compactIfNeeded();
+        long low = rowPointers[i];
+        long high = rowPointers[i + 1] - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            int column = columns.getInt(4L * mid);
+            if (column < j) {
+                low = mid + 1;
+            } else if (column > j) {
+                high = mid - 1;
+            } else {
+                return values.getDouble(8L * mid);
+            }
+        }
+        return 0.;
+    }
+
+    public void eachNonZero(MatrixProcedure procedure) {
+        compactIfNeeded();
+        for (int i = 0; i < n; i++) {
+            eachStoredInRow(i, procedure);
+        }
+    }
+
+    public void eachNonZeroInRow(int i, MatrixProcedure procedure) {
+        compactIfNeeded();
+        eachStoredInRow(i, procedure);
+    }
+
+    private void eachStoredInRow(int i, MatrixProcedure procedure) {
+        for (long k = rowPointers[i]; k < rowPointers[i + 1]; k++) {
+            procedure.apply(i, columns.getInt(4L * k), values.getDouble(8L * k));
+        }
+    }
+
+    /**
+     * Drop the values.  The direct memory is returned when the garbage collector gets to
+     * the buffers.
+     */
+    public synchronized void close() {
+        log.clear();
+        logCount = 0;
+        rowPointers = new long[n + 1];
+        columns = MappedBuffer.allocateDirect(0);
+        values = MappedBuffer.allocateDirect(0);
+    }
+}
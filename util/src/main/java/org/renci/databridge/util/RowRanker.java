@@ -0,0 +1,150 @@
+package org.renci.databridge.util;
+import java.io.*;
+import java.util.Arrays;
+import org.la4j.matrix.functor.*;
+
+
+/**
+ * Puts the rows of a mapped similarity file in order by value, one row at a time, for
+ * the rank index.  A row is sorted in primitive arrays that are reused for the next
+ * row, so the heap only holds the longest row.
+ *
+ * A row of a symmetric file also has the values left of the diagonal, which are stored
+ * in column i of the rows above.  They are found with a ColumnIndex, which is kept in a
+ * temporary file in the directory given rather than on the heap.
+ *
+ * Only for files with fewer than 2^31 values, since the rank index stores each entry
+ * in 32 bits.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+class RowRanker implements Closeable {
+
+    private MappedSimilarityFile theFile;
+
+    /** For a symmetric file, the values above the diagonal by column */
+    private ColumnIndex theColumnIndex;
+
+    /** The row being ranked: the column in the top 32 bits and the entry in the bottom 32 */
+    private long[] entries = new long[16];
+    private long[] keys = new long[16];
+    private long[] entryBuffer = new long[16];
+    private long[] keyBuffer = new long[16];
+    private int count;
+
+    /** Where the stored part of the row starts, in the file and in entries */
+    private long firstEntry;
+    private int firstStored;
+
+    private MatrixProcedure theCollector = new MatrixProcedure() {
+        public void apply(int i, int j, double value) {
+            add(((long) j << 32) | (firstEntry + count - firstStored));
+        }
+    };
+
+    /**
+     * RowRanker constructor.
+     *
+     * @param theFile The file to rank.
+     * @param directory Where to put the temporary file for a symmetric file.
+     */
+    RowRanker(MappedSimilarityFile theFile, File directory) throws IOException {
+        this.theFile = theFile;
+        if (theFile.getNonZeroCount() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many values (" + theFile.getNonZeroCount() + ") to rank");
+        }
+        if (theFile.isSymmetric()) {
+            theColumnIndex = new ColumnIndex(theFile, directory);
+        }
+    }
+
+    /**
+     * Put the non zero values of a row of the full matrix in order from the largest,
+     * ties by column.
+     *
+     * @param i The row.
+     * @return the number of values, which are the first ones in getEntries().
+     */
+    int rankRow(int i) {
+        count = 0;
+        if (null != theColumnIndex) {
+            for (long t = theColumnIndex.getStart(i); t < theColumnIndex.getStart(i + 1); t++) {
+                add(((long) theColumnIndex.getRow(t) << 32) | theColumnIndex.getEntry(t));
+            }
+        }
+        firstEntry = theFile.getRowStart(i);
+        firstStored = count;
+        theFile.eachStoredInRow(i, theCollector);
+
+        // The row is in column order, so a stable sort by value breaks ties by column.
+        for (int m = 0; m < count; m++) {
+            keys[m] = ~sortKey(theFile.getValue(entries[m] & 0xffffffffL));
+        }
+        sort(0, count);
+        return count;
+    }
+
+    /**
+     * Get the row that rankRow put in order, each entry the column in the top 32 bits
+     * and the entry of its value in the bottom 32.
+     */
+    long[] getEntries() {
+        return entries;
+    }
+
+    private void add(long entry) {
+        if (count == entries.length) {
+            entries = Arrays.copyOf(entries, 2 * count);
+            keys = new long[entries.length];
+            entryBuffer = new long[entries.length];
+            keyBuffer = new long[entries.length];
+        }
+        entries[count++] = entry;
+    }
+
+    /**
+     * A long that sorts as Double.compare sorts the doubles.
+     */
+    private static long sortKey(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    /**
+     * A stable merge sort of entries[from, to) by their keys.
+     */
+    private void sort(int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sort(from, middle);
+        sort(middle, to);
+        if (keys[middle - 1] <= keys[middle]) {
+            return;
+        }
+        System.arraycopy(keys, from, keyBuffer, from, to - from);
+        System.arraycopy(entries, from, entryBuffer, from, to - from);
+        int a = from;
+        int b = middle;
+        for (int k = from; k < to; k++) {
+            if (b >= to || (a < middle && keyBuffer[a] <= keyBuffer[b])) {
+                keys[k] = keyBuffer[a];
+                entries[k] = entryBuffer[a++];
+            } else {
+                keys[k] = keyBuffer[b];
+                entries[k] = entryBuffer[b++];
+            }
+        }
+    }
+
+    /**
+     * Delete the temporary file.
+     */
+    public void close() throws IOException {
+        if (null != theColumnIndex) {
+            theColumnIndex.close();
+            theColumnIndex = null;
+        }
+    }
+}
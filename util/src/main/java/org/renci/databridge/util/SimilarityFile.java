@@ -8,6 +8,7 @@ import java.io.FileInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedInputStream;
 import java.io.ObjectInputStream;
+import java.io.DataInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.IOException;
@@ -35,11 +36,24 @@ public class SimilarityFile {
          stored in the Metadata database and is accessed through the DAO for the SimilarityInstance */
      private String similarityInstanceId;
 
-     /** The similarity matrix stored as a Compressed row format.Note that
-         we only need the top half of the matrix though we are currently storing it all.
+     /** The similarity matrix stored as a Compressed row format. If the matrix is symmetric
+         only the top half of the matrix is stored; see symmetric.
          Also note that the x and y dimensions of original matrix have to be equal */
      private org.la4j.matrix.sparse.CRSMatrix similarityMatrix;
 
+     /** True if (i, j) and (j, i) always have the same similarity. Only the values with
+         i <= j are stored then, and the values below the diagonal are ignored when the file
+         is written. getSimilarityValue gives the full matrix either way. */
+     private boolean symmetric = false;
+
+     /** How the file is compressed when it's written in version 2 of the SimilarityFileFormat.
+         Reading a file sets this to the compression the file had. */
+     private SimilarityFileCompression compression = SimilarityFileCompression.NONE;
+
+     /** Whether a rank index is written with the file, for SimilarityQuery.topK. Reading a
+         file sets this to whether the file had one. */
+     private boolean ranked = false;
+
      /** The list of collectionIds in the metadata database making up the nameSpace. Each of these will
          become a node in the network database. Note that we could get this out of the metadata database
          by doing a query in the code that loads the network, but by storing the list in the file we are
@@ -107,6 +121,7 @@ public class SimilarityFile {
      /**
       * This method populates this SimilarityFile object from the data stored in the
       * specified local file. The filePath must be accessible from where the code is called.
+      * Files in either version of the SimilarityFileFormat can be read.
       *
       * @param filePath The file from which the network data should be read.
       *                
@@ -114,6 +129,12 @@ public class SimilarityFile {
      public void readFromDisk(String filePath) throws Exception {
          // read from the requested file
          try {
+             if (SimilarityFileFormat.getFormatVersion(filePath) == SimilarityFileFormat.VERSION) {
+                 try (MappedSimilarityFile theMappedFile = MappedSimilarityFile.open(filePath)) {
+                     theMappedFile.copyTo(this);
+                 }
+                 return;
+             }
              FileInputStream fos = new FileInputStream(new File(filePath));
              BufferedInputStream theStream = new BufferedInputStream(fos);
              ObjectInputStream input = new ObjectInputStream(theStream);
@@ -127,6 +148,7 @@ public class SimilarityFile {
      /**
       * This method populates this SimilarityData object from the data stored in the
       * specified file URL . The file URL must be accessible from where the code is called.
+      * Files in either version of the SimilarityFileFormat can be read.
       *
       * @param userURL The file URL from which the data should be read.
       *                
@@ -138,6 +160,17 @@ public class SimilarityFile {
              URLConnection theConnection = theURL.openConnection();
              BufferedInputStream theStream = 
                 new BufferedInputStream(theConnection.getInputStream());
+
+             // Peek at the start of the file to see which format it's in.
+             DataInputStream peek = new DataInputStream(theStream);
+             theStream.mark(4);
+             int firstInt = peek.readInt();
+             theStream.reset();
+             if (SimilarityFileFormat.getFormatVersion(firstInt) == SimilarityFileFormat.VERSION) {
+                 SimilarityFileFormat.read(peek, this);
+                 peek.close();
+                 return;
+             }
              ObjectInputStream input = new ObjectInputStream(theStream);
              readTheSimilarityFromInputObject(input);
 
@@ -180,6 +213,57 @@ public class SimilarityFile {
          this.similarityMatrix.set(i, j, value);
      }
 
+     /**
+      * Set a batch of i,j values in the similarity matrix. The three arrays are companion
+      * arrays of (row, column, value) tuples. This method is synchronized, so several
+      * threads can store their batches in the same file.
+      *
+      * @param rows The rows for the entries
+      * @param cols The columns for the entries
+      * @param values The values for the entries
+      * @param count The number of entries to use from the arrays
+      */
+     public synchronized void setSimilarityValues(int[] rows, int[] cols, double[] values, int count) {
+         for (int k = 0; k < count; k++) {
+             this.similarityMatrix.set(rows[k], cols[k], values[k]);
+         }
+     }
+
+     /**
+      * Get an i,j value of the full similarity matrix. For a symmetric file the values
+      * below the diagonal come from the top half.
+      *
+      * @param i The row for the entry
+      * @param j The column for the entry
+      * @return the value
+      */
+     public double getSimilarityValue(int i, int j) {
+         if (symmetric && i > j) {
+             return this.similarityMatrix.get(j, i);
+         }
+         return this.similarityMatrix.get(i, j);
+     }
+
+     /**
+      * Get symmetric.
+      *
+      * @return true if only the top half of the matrix is stored.
+      */
+     public boolean isSymmetric()
+     {
+         return symmetric;
+     }
+
+     /**
+      * Set symmetric.
+      *
+      * @param symmetric the value to set.
+      */
+     public void setSymmetric(boolean symmetric)
+     {
+         this.symmetric = symmetric;
+     }
+
      /**
       * Get collectionIds
       *
@@ -223,12 +307,75 @@ public class SimilarityFile {
 
 
      /**
-      * Method for writing the network to a file. 
+      * Get compression.
+      *
+      * @return compression as SimilarityFileCompression.
+      */
+     public SimilarityFileCompression getCompression()
+     {
+         return compression;
+     }
+
+     /**
+      * Set compression.
+      *
+      * @param compression the value to set.
+      */
+     public void setCompression(SimilarityFileCompression compression)
+     {
+         this.compression = compression;
+     }
+
+
+     /**
+      * Get ranked.
+      *
+      * @return true if a rank index is written with the file.
+      */
+     public boolean isRanked()
+     {
+         return ranked;
+     }
+
+     /**
+      * Set ranked.
+      *
+      * @param ranked the value to set.
+      */
+     public void setRanked(boolean ranked)
+     {
+         this.ranked = ranked;
+     }
+
+
+     /**
+      * Method for writing the network to a file in the current version of the
+      * SimilarityFileFormat.
       * 
       * @param filePath The file to which the network data should be written.
       *                
       */
      public void writeToDisk(String filePath) throws Exception {
+         writeToDisk(filePath, SimilarityFileFormat.VERSION);
+     }
+
+     /**
+      * Method for writing the network to a file in a given version of the
+      * SimilarityFileFormat.  The legacy version is only needed by readers that haven't
+      * been updated.
+      * 
+      * @param filePath The file to which the network data should be written.
+      * @param formatVersion SimilarityFileFormat.VERSION or SimilarityFileFormat.LEGACY_VERSION
+      *                
+      */
+     public void writeToDisk(String filePath, int formatVersion) throws Exception {
+         if (formatVersion == SimilarityFileFormat.VERSION) {
+             SimilarityFileFormat.write(this, filePath);
+             return;
+         }
+         if (formatVersion != SimilarityFileFormat.LEGACY_VERSION) {
+             throw new IllegalArgumentException("Unknown similarity file version " + formatVersion);
+         }
 
          // Set up a buffered output stream for the kryo output object.
          try {
@@ -265,6 +412,16 @@ public class SimilarityFile {
          this.nameSpace = nameSpace;
      }
 
+    /**
+     * Get the similarity matrix as a SimilarityMatrix.  It's a view of the CRSMatrix, not
+     * a copy; for a symmetric file it gives the full matrix.
+     */
+    public SimilarityMatrix getMatrix()
+    {
+        SimilarityMatrix theMatrix = new La4jSimilarityMatrix(similarityMatrix);
+        return symmetric ? new SymmetricSimilarityMatrix(theMatrix) : theMatrix;
+    }
+
     /**
      * Get similarityMatrix.
      *
@@ -0,0 +1,111 @@
+package org.renci.databridge.util;
+
+
+/**
+ * How a version 2 similarity file is compressed, if at all.  A compressed file stores
+ * the column indices of each row as varint deltas and the values either as doubles or
+ * quantized to 16 or 8 bit fixed point with one scale for the whole file.  The rows are
+ * grouped in blocks of blockRows rows, and each block can be decoded on its own, so
+ * reading one row only means decoding the rows before it in its block.
+ *
+ * Quantized values are written as round(value * scale) and read back as q / scale.
+ * If every value fits, the scale is 100000, which is exact for the values Measure
+ * produces, rounded to 5 decimals.  Otherwise the largest value gets the largest
+ * integer, and each value is off by at most 0.5 / scale.  A value that isn't 0 is never
+ * quantized to 0.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class SimilarityFileCompression {
+
+    /** The default number of rows in a block */
+    public static final int DEFAULT_BLOCK_ROWS = 256;
+
+    /** The scale that keeps 5 decimals exactly */
+    public static final double DECIMAL_SCALE = 100000.;
+
+    /** No compression: 4 byte columns and 8 byte values */
+    public static final SimilarityFileCompression NONE = new SimilarityFileCompression();
+
+    private int valueBits;
+    private int blockRows;
+
+    private SimilarityFileCompression() {
+        this.valueBits = 64;
+        this.blockRows = 0;
+    }
+
+    /**
+     * SimilarityFileCompression constructor.
+     *
+     * @param valueBits The bits per value: 64 to keep the doubles, or 16 or 8 to quantize them.
+     * @param blockRows The number of rows in a block.
+     */
+    public SimilarityFileCompression(int valueBits, int blockRows) {
+        if (valueBits != 64 && valueBits != 16 && valueBits != 8) {
+            throw new IllegalArgumentException("valueBits must be 64, 16 or 8, not " + valueBits);
+        }
+        if (blockRows < 1) {
+            throw new IllegalArgumentException("blockRows must be at least 1, not " + blockRows);
+        }
+        this.valueBits = valueBits;
+        this.blockRows = blockRows;
+    }
+
+    public boolean isCompressed() {
+        return blockRows > 0;
+    }
+
+    public int getValueBits() {
+        return valueBits;
+    }
+
+    public int getBlockRows() {
+        return blockRows;
+    }
+
+    /**
+     * Get the number of bytes a value takes.
+     */
+    public int getValueSize() {
+        return valueBits / 8;
+    }
+
+    /**
+     * Get the largest quantized value.
+     */
+    long getMaxQuantized() {
+        return (1L << (valueBits - 1)) - 1;
+    }
+
+    /**
+     * Choose the scale for a file.
+     *
+     * @param maxAbs The largest absolute value in the file.
+     */
+    double getScale(double maxAbs) {
+        if (valueBits == 64) {
+            return 1.;
+        }
+        if (maxAbs * DECIMAL_SCALE <= getMaxQuantized()) {
+            return DECIMAL_SCALE;
+        }
+        return getMaxQuantized() / maxAbs;
+    }
+
+    /**
+     * Quantize a value.
+     */
+    long quantize(double value, double scale) {
+        long q = Math.round(value * scale);
+        if (0 == q && value != 0.) {
+            q = value > 0. ? 1 : -1;
+        }
+        return Math.max(-getMaxQuantized(), Math.min(getMaxQuantized(), q));
+    }
+
+    @Override
+    public String toString() {
+        return isCompressed() ? valueBits + " bit values in blocks of " + blockRows + " rows" : "none";
+    }
+}
@@ -0,0 +1,466 @@
+package org.renci.databridge.util;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import org.la4j.matrix.functor.*;
+
+
+/**
+ * The binary format of a SimilarityFile.  Version 1 is the original Java serialization
+ * of the nameSpace, the similarity instance id, the CRSMatrix and the collection ids.
+ * Version 2 is laid out so it can be memory mapped and read in place:
+ *
+ *   header (HEADER_SIZE bytes)
+ *      int   MAGIC
+ *      int   VERSION
+ *      int   flags, SYMMETRIC if only the values with i <= j are stored, COMPRESSED if
+ *            the columns and values are compressed, RANKED if there is a rank index,
+ *            OBJECT_IDS if the collection ids are packed
+ *      int   n, the number of rows and of columns
+ *      long  nnz, the number of non zero values
+ *      long  offset of the row pointers
+ *      long  offset of the column indices
+ *      long  offset of the values
+ *      long  offset of the metadata
+ *      long  offset of the collection ids
+ *      long  length of the file
+ *      int   bits per value of a compressed file: 64, 16 or 8
+ *      int   rows per block of a compressed file
+ *      double  scale of the quantized values of a compressed file
+ *      long  offset of the block index of a compressed file
+ *      long  offset of the rank index
+ *      long  offset of the rank pointers
+ *      the rest is reserved and 0
+ *   row pointers    n + 1 longs, row i is entries [rowPointers[i], rowPointers[i + 1])
+ *   column indices  nnz ints, sorted within each row
+ *   values          nnz doubles
+ *   metadata        the nameSpace and the similarity instance id, each a boolean that
+ *                   says whether it is there followed by a UTF string
+ *   collection ids  an int count, or -1 if there are none, followed by that many UTF
+ *                   strings, or if the ids are packed, that many 12 byte ObjectIds
+ *
+ * In a compressed file the column indices of each row are varints, the first one the
+ * column itself and each one after it the difference from the one before.  The values
+ * are doubles, shorts or bytes, the last two read as q / scale.  The block index is
+ * n / rowsPerBlock + 1 longs (rounded up), where each block of rows starts in the column
+ * indices, counted from the start of the section; the last is where the section ends.
+ * See SimilarityFileCompression.
+ *
+ * The rank index lists the non zero values of each row of the full matrix from the
+ * largest to the smallest, ties by column, so the top k of a row can be read without
+ * looking at the rest of it.  Each is an int column and an int entry, the index of the
+ * value in the values section.  The rank pointers are n + 1 longs, where the ranks of
+ * row i are [rankPointers[i], rankPointers[i + 1]).  The index is only written for files
+ * with fewer than 2^31 values.
+ *
+ * The collection ids are packed if every one of them is a Mongo ObjectId, 24 lower case
+ * hex characters, which is what the metadata database uses.  See CollectionIdTable.
+ *
+ * Numbers are big endian and every array starts on an 8 byte boundary.  The sections
+ * are found through the offsets in the header and can be in any order; the sections
+ * above are in the order SimilarityFile writes them.  A section ends where the next
+ * one starts.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class SimilarityFileFormat {
+
+    public static final int LEGACY_VERSION = 1;
+    public static final int VERSION = 2;
+    public static final int MAGIC = 0x44425346;   // "DBSF"
+    public static final int HEADER_SIZE = 128;
+
+    /** The flag for a symmetric matrix */
+    public static final int SYMMETRIC = 1;
+
+    /** The flag for a compressed file */
+    public static final int COMPRESSED = 2;
+
+    /** The flag for a file with a rank index */
+    public static final int RANKED = 4;
+
+    /** The flag for packed collection ids */
+    public static final int OBJECT_IDS = 8;
+
+    /** The first two bytes of a Java serialization stream */
+    private static final int SERIALIZATION_MAGIC = 0xACED;
+
+    /** Where each field is in the header */
+    static final int FLAGS_AT = 8;
+    static final int N_AT = 12;
+    static final int NNZ_AT = 16;
+    static final int ROW_POINTERS_AT = 24;
+    static final int COLUMNS_AT = 32;
+    static final int VALUES_AT = 40;
+    static final int METADATA_AT = 48;
+    static final int IDS_AT = 56;
+    static final int LENGTH_AT = 64;
+    static final int VALUE_BITS_AT = 72;
+    static final int BLOCK_ROWS_AT = 76;
+    static final int SCALE_AT = 80;
+    static final int BLOCKS_AT = 88;
+    static final int RANKS_AT = 96;
+    static final int RANK_POINTERS_AT = 104;
+
+    /** The size of the buffer used to write the arrays */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Find out which version of the format a file is in.
+     *
+     * @param filePath The file to check.
+     * @return LEGACY_VERSION or VERSION.
+     * @throws IOException if the file is in neither.
+     */
+    public static int getFormatVersion(String filePath) throws IOException {
+        try (DataInputStream input = new DataInputStream(new FileInputStream(filePath))) {
+            return getFormatVersion(input.readInt());
+        }
+    }
+
+    /**
+     * Find out which version of the format a file is in from its first 4 bytes.
+     */
+    static int getFormatVersion(int firstInt) throws IOException {
+        if ((firstInt >>> 16) == SERIALIZATION_MAGIC) {
+            return LEGACY_VERSION;
+        }
+        if (firstInt == MAGIC) {
+            return VERSION;
+        }
+        throw new IOException("Not a similarity file");
+    }
+
+    /**
+     * Round an offset up to the next 8 byte boundary.
+     */
+    static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    /**
+     * Write a SimilarityFile in version 2 of the format, compressed as the file says.
+     *
+     * @param theFile The file to write.
+     * @param filePath Where to write it.
+     */
+    public static void write(SimilarityFile theFile, String filePath) throws IOException {
+        final boolean isSymmetric = theFile.isSymmetric();
+        final SimilarityFileWriter theWriter = 
+            new SimilarityFileWriter(filePath, theFile.getSimilarityMatrix().rows(), theFile.getNameSpace(),
+                                     theFile.getSimilarityInstanceId(), isSymmetric, theFile.getCompression());
+        theWriter.setRanked(theFile.isRanked());
+        try {
+            // The CRSMatrix gives its values in row order, each row sorted by column.  The
+            // bottom half of a symmetric matrix is left out.
+            final IOException[] failure = new IOException[1];
+            final int[] row = {-1};
+            theFile.getSimilarityMatrix().eachNonZero(new MatrixProcedure() {
+                public void apply(int i, int j, double value) {
+                    if (null != failure[0] || (isSymmetric && i > j)) {
+                        return;
+                    }
+                    try {
+                        if (i != row[0]) {
+                            if (row[0] >= 0) {
+                                theWriter.endRow();
+                            }
+                            theWriter.beginRow(i);
+                            row[0] = i;
+                        }
+                        theWriter.append(j, value);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            if (null != failure[0]) {
+                throw failure[0];
+            }
+            theWriter.finish(theFile.getCollectionIds());
+        } finally {
+            theWriter.close();
+        }
+    }
+
+    /**
+     * Put a version 2 header at the start of an empty buffer.
+     */
+    static void putHeader(ByteBuffer theBuffer, int flags, int n, long nnz, long rowPointersOffset,
+                          long columnsOffset, long valuesOffset, long metadataOffset, long idsOffset,
+                          long fileLength) {
+        theBuffer.putInt(MAGIC);
+        theBuffer.putInt(VERSION);
+        theBuffer.putInt(flags);
+        theBuffer.putInt(n);
+        theBuffer.putLong(nnz);
+        theBuffer.putLong(rowPointersOffset);
+        theBuffer.putLong(columnsOffset);
+        theBuffer.putLong(valuesOffset);
+        theBuffer.putLong(metadataOffset);
+        theBuffer.putLong(idsOffset);
+        theBuffer.putLong(fileLength);
+        while (theBuffer.position() < HEADER_SIZE) {
+            theBuffer.put((byte) 0);
+        }
+    }
+
+    /**
+     * Fill in the compression fields of a header.
+     */
+    static void putCompression(ByteBuffer theHeader, SimilarityFileCompression compression, double scale,
+                               long blocksOffset) {
+        theHeader.putInt(VALUE_BITS_AT, compression.getValueBits());
+        theHeader.putInt(BLOCK_ROWS_AT, compression.getBlockRows());
+        theHeader.putDouble(SCALE_AT, scale);
+        theHeader.putLong(BLOCKS_AT, blocksOffset);
+    }
+
+    /**
+     * Get the compression of a file from its header.
+     */
+    static SimilarityFileCompression getCompression(ByteBuffer theHeader) throws IOException {
+        if ((theHeader.getInt(FLAGS_AT) & COMPRESSED) == 0) {
+            return SimilarityFileCompression.NONE;
+        }
+        try {
+            return new SimilarityFileCompression(theHeader.getInt(VALUE_BITS_AT), theHeader.getInt(BLOCK_ROWS_AT));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Bad similarity file compression: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Encode the metadata section.
+     */
+    static byte[] getMetadataBytes(String nameSpace, String similarityInstanceId) throws IOException {
+        ByteArrayOutputStream theBytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(theBytes);
+        writeOptionalString(output, nameSpace);
+        writeOptionalString(output, similarityInstanceId);
+        output.close();
+        return theBytes.toByteArray();
+    }
+
+    /**
+     * Encode the collection id section, packed if CollectionIdTable.isPackable says the
+     * ids can be.
+     */
+    static byte[] getCollectionIdBytes(ArrayList<String> collectionIds) throws IOException {
+        ByteArrayOutputStream theBytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(theBytes);
+        if (null == collectionIds) {
+            output.writeInt(-1);
+        } else if (CollectionIdTable.isPackable(collectionIds)) {
+            output.writeInt(collectionIds.size());
+            for (String theId : collectionIds) {
+                output.write(CollectionIdTable.pack(theId));
+            }
+        } else {
+            output.writeInt(collectionIds.size());
+            for (String theId : collectionIds) {
+                output.writeUTF(theId);
+            }
+        }
+        output.close();
+        return theBytes.toByteArray();
+    }
+
+    private static void writeOptionalString(DataOutputStream output, String theString) throws IOException {
+        output.writeBoolean(null != theString);
+        if (null != theString) {
+            output.writeUTF(theString);
+        }
+    }
+
+    static String readOptionalString(DataInput input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
+    /**
+     * Decode the collection id section.
+     *
+     * @param input The section.
+     * @param isPacked Whether the ids are packed.
+     * @return the ids, or null if there are none.
+     */
+    static CollectionIdTable readCollectionIds(DataInput input, boolean isPacked) throws IOException {
+        int count = input.readInt();
+        if (count < 0) {
+            return null;
+        }
+        if (isPacked) {
+            byte[] packedIds = new byte[CollectionIdTable.OBJECT_ID_SIZE * count];
+            input.readFully(packedIds);
+            return CollectionIdTable.wrap(packedIds, count);
+        }
+        ArrayList<String> collectionIds = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            collectionIds.add(input.readUTF());
+        }
+        return new CollectionIdTable(collectionIds);
+    }
+
+    /**
+     * Find where a section ends: at the start of the next section in the file, or at the
+     * end of the file.
+     *
+     * @param theHeader The header of the file.
+     * @param offset The offset of the section.
+     */
+    static long getSectionEnd(ByteBuffer theHeader, long offset) {
+        long end = theHeader.getLong(LENGTH_AT);
+        for (int at : new int[] {ROW_POINTERS_AT, COLUMNS_AT, VALUES_AT, METADATA_AT, IDS_AT,
+                                    BLOCKS_AT, RANKS_AT, RANK_POINTERS_AT}) {
+            long sectionStart = theHeader.getLong(at);
+            if (sectionStart > offset && sectionStart < end) {
+                end = sectionStart;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Read a version 2 file from a stream into a SimilarityFile.  The stream is read
+     * from start to end, so this works for a URL as well as a file.
+     *
+     * @param input The stream, positioned at the start of the file.
+     * @param theFile The SimilarityFile to fill in.
+     */
+    static void read(DataInputStream input, SimilarityFile theFile) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        input.readFully(header);
+        ByteBuffer theHeader = ByteBuffer.wrap(header);
+        if (theHeader.getInt(0) != MAGIC || theHeader.getInt(4) != VERSION) {
+            throw new IOException("Not a version " + VERSION + " similarity file");
+        }
+        int n = theHeader.getInt(N_AT);
+        long nnz = theHeader.getLong(NNZ_AT);
+        if (nnz > Integer.MAX_VALUE) {
+            throw new IOException("Too many values (" + nnz + ") to read into memory");
+        }
+        SimilarityFileCompression compression = getCompression(theHeader);
+        double scale = theHeader.getDouble(SCALE_AT);
+        byte[] compressedColumns = null;
+        int[] rowPointers = new int[n + 1];
+        int[] columns = new int[(int) nnz];
+        double[] values = new double[(int) nnz];
+        String nameSpace = null;
+        String similarityInstanceId = null;
+        ArrayList<String> collectionIds = null;
+
+        // The sections can be in any order, so take them in the order they are in the file.
+        Integer[] sections = {ROW_POINTERS_AT, COLUMNS_AT, VALUES_AT, METADATA_AT, IDS_AT};
+        final ByteBuffer sortHeader = theHeader;
+        Arrays.sort(sections, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(sortHeader.getLong(a), sortHeader.getLong(b));
+            }
+        });
+        long position = HEADER_SIZE;
+        for (int section : sections) {
+            long offset = theHeader.getLong(section);
+            position = skipTo(input, position, offset);
+            if (section == ROW_POINTERS_AT) {
+                for (int i = 0; i <= n; i++) {
+                    rowPointers[i] = (int) input.readLong();
+                }
+                position += 8L * (n + 1);
+            } else if (section == COLUMNS_AT && compression.isCompressed()) {
+                // These can only be decoded once we have the row pointers.
+                long end = getSectionEnd(theHeader, offset);
+                compressedColumns = readSection(input, end - offset);
+                position = end;
+            } else if (section == COLUMNS_AT) {
+                for (int k = 0; k < nnz; k++) {
+                    columns[k] = input.readInt();
+                }
+                position += 4L * nnz;
+            } else if (section == VALUES_AT) {
+                for (int k = 0; k < nnz; k++) {
+                    if (compression.getValueBits() == 16) {
+                        values[k] = input.readShort() / scale;
+                    } else if (compression.getValueBits() == 8) {
+                        values[k] = input.readByte() / scale;
+                    } else {
+                        values[k] = input.readDouble();
+                    }
+                }
+                position += compression.getValueSize() * nnz;
+            } else {
+                long end = getSectionEnd(theHeader, offset);
+                DataInputStream sectionInput = 
+                    new DataInputStream(new ByteArrayInputStream(readSection(input, end - offset)));
+                if (section == METADATA_AT) {
+                    nameSpace = readOptionalString(sectionInput);
+                    similarityInstanceId = readOptionalString(sectionInput);
+                } else {
+                    CollectionIdTable theIds = readCollectionIds(sectionInput, 
+                        (theHeader.getInt(FLAGS_AT) & OBJECT_IDS) != 0);
+                    collectionIds = (null == theIds) ? null : theIds.toList();
+                }
+                position = end;
+            }
+        }
+
+        if (null != compressedColumns) {
+            decodeColumns(compressedColumns, rowPointers, columns);
+        }
+
+        theFile.setNameSpace(nameSpace);
+        theFile.setSimilarityInstanceId(similarityInstanceId);
+        theFile.setSimilarityMatrix(new org.la4j.matrix.sparse.CRSMatrix(n, n, (int) nnz, values, columns, rowPointers));
+        theFile.setCollectionIds(collectionIds);
+        theFile.setSymmetric((theHeader.getInt(FLAGS_AT) & SYMMETRIC) != 0);
+        theFile.setCompression(compression);
+        theFile.setRanked((theHeader.getInt(FLAGS_AT) & RANKED) != 0);
+    }
+
+    /**
+     * Decode all of the varint column indices of a compressed file.
+     */
+    private static void decodeColumns(byte[] compressedColumns, int[] rowPointers, int[] columns) {
+        int position = 0;
+        for (int i = 0; i + 1 < rowPointers.length; i++) {
+            int column = 0;
+            for (int k = rowPointers[i]; k < rowPointers[i + 1]; k++) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = compressedColumns[position++];
+                    delta |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                column += delta;
+                columns[k] = column;
+            }
+        }
+    }
+
+    private static byte[] readSection(DataInputStream input, long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Bad similarity file section length " + length);
+        }
+        byte[] theSection = new byte[(int) length];
+        input.readFully(theSection);
+        return theSection;
+    }
+
+    private static long skipTo(DataInputStream input, long position, long offset) throws IOException {
+        if (offset < position) {
+            throw new IOException("Similarity file sections out of order");
+        }
+        long toSkip = offset - position;
+        while (toSkip > 0) {
+            int skipped = input.skipBytes((int) Math.min(toSkip, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            toSkip -= skipped;
+        }
+        return offset;
+    }
+}
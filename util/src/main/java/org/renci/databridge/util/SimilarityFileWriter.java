@@ -0,0 +1,490 @@
+package org.renci.databridge.util;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import org.la4j.matrix.functor.*;
+
+
+/**
+ * Writes a version 2 similarity file one row at a time, without ever holding the matrix
+ * in memory.  The rows are written in increasing order, each one as
+ *
+ *    beginRow(i); append(column, value) ...; endRow();
+ *
+ * with the columns of a row in increasing order.  Rows that are never begun are empty.
+ * A symmetric file only takes the values with column >= row.
+ * The column indices go straight into the file and the values into a temporary file
+ * next to it, each through a small buffer; finish copies the values after the columns
+ * and adds the row pointers, the metadata and the collection ids.  The only thing kept
+ * for the whole file is the row pointers, 8 bytes per row.
+ *
+ * A compressed file (see SimilarityFileCompression) writes the columns as varints as
+ * they come.  The values are still kept as doubles in the temporary file, since the
+ * scale they are quantized with depends on the largest of them; they are quantized as
+ * they are copied.
+ *
+ * If the file is ranked, the rank index is added once everything else is written, by
+ * mapping the file and sorting each row of it by value in turn (see RowRanker), which
+ * still only holds a row at a time.
+ *
+ * The file is written under a temporary name and renamed when it's finished, so a
+ * reader never sees half a file.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class SimilarityFileWriter implements Closeable {
+
+    /** The size of each of the two write buffers */
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    private String filePath;
+    private int n;
+    private String nameSpace;
+    private String similarityInstanceId;
+    private boolean isSymmetric;
+    private SimilarityFileCompression compression;
+    private boolean isRanked = false;
+
+    private File partFile;
+    private File valuesFile;
+    private FileChannel columnChannel;
+    private FileChannel valueChannel;
+    private ByteBuffer columnBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private ByteBuffer valueBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /** rowPointers[i + 1] is the number of values in rows up to and including i */
+    private long[] rowPointers;
+    private long nnz = 0;
+
+    /** The bytes of column indices written so far */
+    private long columnBytes = 0;
+
+    /** For a compressed file, where each block of rows starts in the column indices */
+    private long[] blockOffsets;
+    private double maxAbs = 0.;
+
+    /** The row being written, or the last row written if inRow is false */
+    private int currentRow = -1;
+    private boolean inRow = false;
+    private int lastColumn;
+    private int lastStoredColumn;
+    private boolean isFinished = false;
+
+    /**
+     * SimilarityFileWriter constructor for a matrix that isn't symmetric.
+     *
+     * @param filePath The file to write.
+     * @param n The number of rows and columns.
+     * @param nameSpace The nameSpace of the collections.
+     * @param similarityInstanceId The similarity instance that produced the values.
+     */
+    public SimilarityFileWriter(String filePath, int n, String nameSpace,
+                                String similarityInstanceId) throws IOException {
+        this(filePath, n, nameSpace, similarityInstanceId, false);
+    }
+
+    /**
+     * SimilarityFileWriter constructor.
+     *
+     * @param filePath The file to write.
+     * @param n The number of rows and columns.
+     * @param nameSpace The nameSpace of the collections.
+     * @param similarityInstanceId The similarity instance that produced the values.
+     * @param isSymmetric Whether to write a symmetric file, which only stores the top half.
+     */
+    public SimilarityFileWriter(String filePath, int n, String nameSpace,
+                                String similarityInstanceId, boolean isSymmetric) throws IOException {
+        this(filePath, n, nameSpace, similarityInstanceId, isSymmetric, SimilarityFileCompression.NONE);
+    }
+
+    /**
+     * SimilarityFileWriter constructor for a file that may be compressed.
+     *
+     * @param filePath The file to write.
+     * @param n The number of rows and columns.
+     * @param nameSpace The nameSpace of the collections.
+     * @param similarityInstanceId The similarity instance that produced the values.
+     * @param isSymmetric Whether to write a symmetric file, which only stores the top half.
+     * @param compression How to compress the file.
+     */
+    public SimilarityFileWriter(String filePath, int n, String nameSpace, String similarityInstanceId,
+                                boolean isSymmetric, SimilarityFileCompression compression) throws IOException {
+        this.filePath = filePath;
+        this.isSymmetric = isSymmetric;
+        this.compression = compression;
+        if (compression.isCompressed()) {
+            this.blockOffsets = new long[(n + compression.getBlockRows() - 1) / compression.getBlockRows() + 1];
+        }
+        this.n = n;
+        this.nameSpace = nameSpace;
+        this.similarityInstanceId = similarityInstanceId;
+        this.rowPointers = new long[n + 1];
+
+        File theDirectory = new File(filePath).getAbsoluteFile().getParentFile();
+        this.partFile = File.createTempFile("similarity", ".part", theDirectory);
+        this.valuesFile = File.createTempFile("similarity", ".values", theDirectory);
+        this.columnChannel = new RandomAccessFile(partFile, "rw").getChannel();
+        this.valueChannel = new RandomAccessFile(valuesFile, "rw").getChannel();
+        this.columnChannel.position(SimilarityFileFormat.HEADER_SIZE);
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public boolean isSymmetric() {
+        return isSymmetric;
+    }
+
+    public SimilarityFileCompression getCompression() {
+        return compression;
+    }
+
+    public boolean isRanked() {
+        return isRanked;
+    }
+
+    /**
+     * Set whether to add a rank index to the file, so SimilarityQuery can find the top
+     * k values of a row without reading all of it.  Files with 2^31 values or more
+     * aren't ranked.
+     *
+     * @param isRanked the value to set.
+     */
+    public void setRanked(boolean isRanked) {
+        this.isRanked = isRanked;
+    }
+
+    /**
+     * Start a row.
+     *
+     * @param i The row, which must come after any row already written.
+     */
+    public void beginRow(int i) {
+        if (inRow) {
+            throw new IllegalStateException("beginRow(" + i + ") before endRow() of row " + currentRow);
+        }
+        if (i <= currentRow || i >= n) {
+            throw new IllegalArgumentException("row " + i + " is out of order or out of range");
+        }
+        // Any rows we skipped are empty.
+        for (int skipped = currentRow + 1; skipped <= i; skipped++) {
+            rowPointers[skipped + 1] = nnz;
+            startBlock(skipped);
+        }
+        currentRow = i;
+        inRow = true;
+        lastColumn = -1;
+        lastStoredColumn = 0;
+    }
+
+    /**
+     * Add a value to the current row.  Zeros are not stored.
+     *
+     * @param column The column, which must come after any column already in the row.
+     * @param value The value.
+     */
+    public void append(int column, double value) throws IOException {
+        if (!inRow) {
+            throw new IllegalStateException("append outside of a row");
+        }
+        if (column <= lastColumn || column >= n || (isSymmetric && column < currentRow)) {
+            throw new IllegalArgumentException("column " + column + " of row " + currentRow +
+                                               " is out of order or out of range");
+        }
+        lastColumn = column;
+        if (value == 0.) {
+            return;
+        }
+        if (columnBuffer.remaining() < 5) {
+            drain(columnBuffer, columnChannel);
+        }
+        if (compression.isCompressed()) {
+            columnBytes += putVarint(columnBuffer, column - lastStoredColumn);
+            lastStoredColumn = column;
+        } else {
+            columnBuffer.putInt(column);
+            columnBytes += 4;
+        }
+        if (valueBuffer.remaining() < 8) {
+            drain(valueBuffer, valueChannel);
+        }
+        valueBuffer.putDouble(value);
+        maxAbs = Math.max(maxAbs, Math.abs(value));
+        nnz++;
+    }
+
+    /**
+     * Note where a block starts if row i is the first row of one.
+     */
+    private void startBlock(int i) {
+        if (compression.isCompressed() && i % compression.getBlockRows() == 0) {
+            blockOffsets[i / compression.getBlockRows()] = columnBytes;
+        }
+    }
+
+    /**
+     * Write an unsigned varint, 7 bits to a byte with the high bit set on all but the last.
+     *
+     * @return the number of bytes written.
+     */
+    static int putVarint(ByteBuffer theBuffer, int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            theBuffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+            size++;
+        }
+        theBuffer.put((byte) value);
+        return size;
+    }
+
+    /**
+     * Finish the current row.
+     */
+    public void endRow() {
+        if (!inRow) {
+            throw new IllegalStateException("endRow outside of a row");
+        }
+        rowPointers[currentRow + 1] = nnz;
+        inRow = false;
+    }
+
+    /**
+     * Write every row of a matrix, before any other row has been written.  A symmetric
+     * file only takes the top half of it.  The file still has to be finished.
+     *
+     * @param theMatrix The matrix, n x n.
+     */
+    public void appendRows(SimilarityMatrix theMatrix) throws IOException {
+        // A MatrixProcedure can't throw, so the first exception is kept for later.
+        final IOException[] failure = new IOException[1];
+        MatrixProcedure theAppender = new MatrixProcedure() {
+            public void apply(int i, int j, double value) {
+                if (null == failure[0] && (!isSymmetric || j >= i)) {
+                    try {
+                        append(j, value);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            }
+        };
+        for (int i = 0; i < theMatrix.getN(); i++) {
+            beginRow(i);
+            theMatrix.eachNonZeroInRow(i, theAppender);
+            endRow();
+            if (null != failure[0]) {
+                throw failure[0];
+            }
+        }
+    }
+
+    /**
+     * Write everything that comes after the rows and move the file into place.
+     *
+     * @param collectionIds The collection ids in matrix order, or null.
+     */
+    public void finish(ArrayList<String> collectionIds) throws IOException {
+        if (inRow) {
+            endRow();
+        }
+        for (int i = currentRow + 1; i < n; i++) {
+            rowPointers[i + 1] = nnz;
+            startBlock(i);
+        }
+
+        // Columns are already in place; pad them to 8 bytes and copy the values after them.
+        long columnsOffset = SimilarityFileFormat.HEADER_SIZE;
+        long valuesOffset = SimilarityFileFormat.align(columnsOffset + columnBytes);
+        pad(columnsOffset + columnBytes, valuesOffset);
+        drain(columnBuffer, columnChannel);
+        drain(valueBuffer, valueChannel);
+        double scale = compression.getScale(maxAbs);
+        if (compression.getValueBits() == 64) {
+            long copied = 0;
+            while (copied < valueChannel.size()) {
+                copied += valueChannel.transferTo(copied, valueChannel.size() - copied, columnChannel);
+            }
+            columnChannel.position(valuesOffset + copied);
+        } else {
+            quantizeValues(scale);
+        }
+
+        long rowPointersOffset = SimilarityFileFormat.align(valuesOffset + compression.getValueSize() * nnz);
+        pad(valuesOffset + compression.getValueSize() * nnz, rowPointersOffset);
+        for (int i = 0; i <= n; i++) {
+            if (columnBuffer.remaining() < 8) {
+                drain(columnBuffer, columnChannel);
+            }
+            columnBuffer.putLong(rowPointers[i]);
+        }
+        drain(columnBuffer, columnChannel);
+
+        long blocksOffset = 0;
+        long metadataOffset = rowPointersOffset + 8L * (n + 1);
+        if (compression.isCompressed()) {
+            blockOffsets[blockOffsets.length - 1] = columnBytes;
+            blocksOffset = metadataOffset;
+            for (long offset : blockOffsets) {
+                if (columnBuffer.remaining() < 8) {
+                    drain(columnBuffer, columnChannel);
+                }
+                columnBuffer.putLong(offset);
+            }
+            drain(columnBuffer, columnChannel);
+            metadataOffset = blocksOffset + 8L * blockOffsets.length;
+        }
+        byte[] metadata = SimilarityFileFormat.getMetadataBytes(nameSpace, similarityInstanceId);
+        byte[] ids = SimilarityFileFormat.getCollectionIdBytes(collectionIds);
+        long idsOffset = metadataOffset + metadata.length;
+        writeFully(ByteBuffer.wrap(metadata), columnChannel);
+        writeFully(ByteBuffer.wrap(ids), columnChannel);
+
+        ByteBuffer theHeader = ByteBuffer.allocate(SimilarityFileFormat.HEADER_SIZE);
+        int flags = (isSymmetric ? SimilarityFileFormat.SYMMETRIC : 0) |
+                    (compression.isCompressed() ? SimilarityFileFormat.COMPRESSED : 0) |
+                    (CollectionIdTable.isPackable(collectionIds) ? SimilarityFileFormat.OBJECT_IDS : 0);
+        SimilarityFileFormat.putHeader(theHeader, flags, n, nnz,
+                                       rowPointersOffset, columnsOffset, valuesOffset,
+                                       metadataOffset, idsOffset, idsOffset + ids.length);
+        if (compression.isCompressed()) {
+            SimilarityFileFormat.putCompression(theHeader, compression, scale, blocksOffset);
+        }
+        theHeader.flip();
+        columnChannel.position(0);
+        writeFully(theHeader, columnChannel);
+
+        // The rest of the file is readable now, which is what the rank index is built from.
+        if (isRanked && nnz <= Integer.MAX_VALUE) {
+            long fileLength = idsOffset + ids.length;
+            long ranksOffset = SimilarityFileFormat.align(fileLength);
+            columnChannel.position(fileLength);
+            pad(fileLength, ranksOffset);
+            long rankPointersOffset = writeRanks(ranksOffset);
+            theHeader.clear();
+            theHeader.putInt(SimilarityFileFormat.FLAGS_AT, flags | SimilarityFileFormat.RANKED);
+            theHeader.putLong(SimilarityFileFormat.RANKS_AT, ranksOffset);
+            theHeader.putLong(SimilarityFileFormat.RANK_POINTERS_AT, rankPointersOffset);
+            theHeader.putLong(SimilarityFileFormat.LENGTH_AT, rankPointersOffset + 8L * (n + 1));
+            columnChannel.position(0);
+            writeFully(theHeader, columnChannel);
+        }
+
+        columnChannel.close();
+        valueChannel.close();
+        valuesFile.delete();
+        File theFile = new File(filePath);
+        if (!partFile.renameTo(theFile) && !(theFile.delete() && partFile.renameTo(theFile))) {
+            throw new IOException("Can't rename " + partFile + " to " + filePath);
+        }
+        isFinished = true;
+    }
+
+    /**
+     * Write the rank index and its pointers at the end of the file.
+     *
+     * @param ranksOffset Where the rank index starts.
+     * @return where the rank pointers start.
+     */
+    private long writeRanks(long ranksOffset) throws IOException {
+        long[] rankPointers = new long[n + 1];
+        try (MappedSimilarityFile theFile = MappedSimilarityFile.open(partFile.getPath());
+             RowRanker theRanker = new RowRanker(theFile, partFile.getAbsoluteFile().getParentFile())) {
+            for (int i = 0; i < n; i++) {
+                int count = theRanker.rankRow(i);
+                long[] entries = theRanker.getEntries();
+                for (int m = 0; m < count; m++) {
+                    if (columnBuffer.remaining() < 8) {
+                        drain(columnBuffer, columnChannel);
+                    }
+                    columnBuffer.putInt((int) (entries[m] >>> 32));
+                    columnBuffer.putInt((int) entries[m]);
+                }
+                rankPointers[i + 1] = rankPointers[i] + count;
+            }
+        }
+        for (int i = 0; i <= n; i++) {
+            if (columnBuffer.remaining() < 8) {
+                drain(columnBuffer, columnChannel);
+            }
+            columnBuffer.putLong(rankPointers[i]);
+        }
+        drain(columnBuffer, columnChannel);
+        return ranksOffset + 8L * rankPointers[n];
+    }
+
+    /**
+     * Copy the values from the temporary file, quantized.
+     */
+    private void quantizeValues(double scale) throws IOException {
+        valueChannel.position(0);
+        valueBuffer.clear();
+        while (valueChannel.read(valueBuffer) > 0) {
+            valueBuffer.flip();
+            while (valueBuffer.remaining() >= 8) {
+                if (columnBuffer.remaining() < 8) {
+                    drain(columnBuffer, columnChannel);
+                }
+                long q = compression.quantize(valueBuffer.getDouble(), scale);
+                if (compression.getValueBits() == 16) {
+                    columnBuffer.putShort((short) q);
+                } else {
+                    columnBuffer.put((byte) q);
+                }
+            }
+            valueBuffer.compact();
+        }
+        drain(columnBuffer, columnChannel);
+    }
+
+    /**
+     * Write zeros from one offset in the file up to another.
+     */
+    private void pad(long from, long to) throws IOException {
+        for (; from < to; from++) {
+            if (columnBuffer.remaining() < 1) {
+                drain(columnBuffer, columnChannel);
+            }
+            columnBuffer.put((byte) 0);
+        }
+    }
+
+    /**
+     * Get the number of values written so far.
+     */
+    public long getNonZeroCount() {
+        return nnz;
+    }
+
+    /**
+     * Close the writer.  If finish wasn't called the file is abandoned and nothing is
+     * left behind.
+     */
+    public void close() throws IOException {
+        if (isFinished) {
+            return;
+        }
+        columnChannel.close();
+        valueChannel.close();
+        partFile.delete();
+        valuesFile.delete();
+    }
+
+    private static void drain(ByteBuffer theBuffer, FileChannel theChannel) throws IOException {
+        theBuffer.flip();
+        writeFully(theBuffer, theChannel);
+        theBuffer.clear();
+    }
+
+    private static void writeFully(ByteBuffer theBuffer, FileChannel theChannel) throws IOException {
+        while (theBuffer.hasRemaining()) {
+            theChannel.write(theBuffer);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.renci.databridge.util;
+import java.io.Closeable;
+import org.la4j.matrix.functor.*;
+
+
+/**
+ * A square sparse similarity matrix, whatever holds it: arrays on the heap
+ * (HeapSimilarityMatrix), a memory mapped file (MappedSimilarityFile), a la4j CRSMatrix
+ * (La4jSimilarityMatrix) or a Colt RCDoubleMatrix2D (ColtSimilarityMatrix).  The
+ * adapters wrap the library matrix rather than copying it.  Code that only reads the
+ * values can take a SimilarityMatrix and leave it to the caller to pick how the values
+ * are stored, by how many there are.
+ *
+ * A symmetric matrix only stores the values with i <= j (see SymmetricSimilarityMatrix).
+ * get and eachNonZeroInRow give the full matrix either way; eachNonZero gives each
+ * stored value once.
+ *
+ * The values are visited with a MatrixProcedure, which is called with the row, column
+ * and value of each one, so no objects are made per value.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public interface SimilarityMatrix extends Closeable {
+
+    /**
+     * Get the number of rows, which is also the number of columns.
+     */
+    int getN();
+
+    /**
+     * Is only the top half of the matrix stored?
+     */
+    boolean isSymmetric();
+
+    /**
+     * Get the number of stored non zero values.
+     */
+    long getNonZeroCount();
+
+    /**
+     * Get one value of the full matrix.
+     *
+     * @return the value at (i, j), or 0 if there isn't one.
+     */
+    double get(int i, int j);
+
+    /**
+     * Call a procedure for every stored non zero value.  The matrices that are stored by
+     * row visit them in row order, each row in column order.
+     *
+     * @param procedure Called with the row, column and value of each entry.
+     */
+    void eachNonZero(MatrixProcedure procedure);
+
+    /**
+     * Call a procedure for every non zero value in one row of the full matrix, in
+     * column order.  The part of a row of a symmetric matrix left of the diagonal is
+     * stored in the rows above, so the first call indexes the stored values by column:
+     * on the heap for SymmetricSimilarityMatrix, and in a memory mapped temporary file
+     * for MappedSimilarityFile.
+     *
+     * @param i The row.
+     * @param procedure Called with the row, column and value of each entry.
+     */
+    void eachNonZeroInRow(int i, MatrixProcedure procedure);
+}
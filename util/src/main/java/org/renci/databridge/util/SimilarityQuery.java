@@ -0,0 +1,204 @@
+package org.renci.databridge.util;
+import java.io.*;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import org.la4j.matrix.functor.*;
+
+
+/**
+ * Answers questions about one similarity file without reading it into memory: a single
+ * value, a whole row, or the k values of a row that are the most similar, by matrix
+ * index or by collection id.  The file is memory mapped (see MappedSimilarityFile), so
+ * only the pages that are touched are read.
+ *
+ * topK reads the first k entries of the row from the file's rank index if it has one.
+ * Otherwise it has to look at the whole row.
+ *
+ * A SimilarityQuery can be used by several threads at once.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class SimilarityQuery implements Closeable {
+
+    private MappedSimilarityFile theFile;
+
+    /**
+     * SimilarityQuery constructor.
+     *
+     * @param theFile The mapped file to query.  Closing the query closes it.
+     */
+    public SimilarityQuery(MappedSimilarityFile theFile) {
+        this.theFile = theFile;
+    }
+
+    /**
+     * Open a version 2 similarity file for querying.
+     *
+     * @param filePath The file.
+     */
+    public static SimilarityQuery open(String filePath) throws IOException {
+        return new SimilarityQuery(MappedSimilarityFile.open(filePath));
+    }
+
+    public void close() throws IOException {
+        theFile.close();
+    }
+
+    public MappedSimilarityFile getFile() {
+        return theFile;
+    }
+
+    /**
+     * Get the matrix index of a collection.
+     *
+     * @param collectionId The collection id.
+     * @return the index, or -1 if the collection isn't in the file.
+     */
+    public int getIndex(String collectionId) {
+        CollectionIdTable theIds = theFile.getCollectionIdTable();
+        return (null == theIds) ? -1 : theIds.indexOf(collectionId);
+    }
+
+    /**
+     * Get the similarity of two collections.
+     *
+     * @return the value, or 0 if there isn't one.
+     */
+    public double get(int i, int j) {
+        return theFile.get(i, j);
+    }
+
+    /**
+     * Get the similarity of two collections by collection id.
+     *
+     * @return the value, or 0 if there isn't one.
+     * @throws IllegalArgumentException if either collection isn't in the file.
+     */
+    public double get(String collectionIdX, String collectionIdY) {
+        return get(getKnownIndex(collectionIdX), getKnownIndex(collectionIdY));
+    }
+
+    /**
+     * Get all of the non zero values of a row, in column order.
+     *
+     * @param i The row.
+     */
+    public SimilarityRow row(int i) {
+        RowCollector theCollector = new RowCollector();
+        theFile.eachNonZeroInRow(i, theCollector);
+        return new SimilarityRow(i, Arrays.copyOf(theCollector.columns, theCollector.count),
+                                 Arrays.copyOf(theCollector.values, theCollector.count),
+                                 theFile.getCollectionIdTable());
+    }
+
+    /**
+     * Get all of the non zero values of a row by collection id, in column order.
+     *
+     * @throws IllegalArgumentException if the collection isn't in the file.
+     */
+    public SimilarityRow row(String collectionId) {
+        return row(getKnownIndex(collectionId));
+    }
+
+    /**
+     * Get the k largest values of a row, from the largest down, ties by column.
+     *
+     * @param i The row.
+     * @param k The most values to return; fewer come back if the row doesn't have k.
+     * @throws IllegalArgumentException if k is negative.
+     */
+    public SimilarityRow topK(int i, int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("Can't get the top " + k + " values of a row");
+        }
+        if (theFile.isRanked()) {
+            long start = theFile.getRankStart(i);
+            int count = (int) Math.min(k, theFile.getRankStart(i + 1) - start);
+            int[] theColumns = new int[count];
+            double[] theValues = new double[count];
+            for (int m = 0; m < count; m++) {
+                theColumns[m] = theFile.getRankedColumn(start + m);
+                theValues[m] = theFile.getRankedValue(start + m);
+            }
+            return new SimilarityRow(i, theColumns, theValues, theFile.getCollectionIdTable());
+        }
+
+        // Keep the best k in a heap with the worst of them on top.
+        final int maxCount = k;
+        final PriorityQueue<Ranked> best = new PriorityQueue<Ranked>(Math.max(1, k));
+        theFile.eachNonZeroInRow(i, new MatrixProcedure() {
+            public void apply(int r, int j, double value) {
+                Ranked theRanked = new Ranked(j, value);
+                if (best.size() < maxCount) {
+                    best.add(theRanked);
+                } else if (maxCount > 0 && theRanked.compareTo(best.peek()) > 0) {
+                    best.poll();
+                    best.add(theRanked);
+                }
+            }
+        });
+        int count = best.size();
+        int[] theColumns = new int[count];
+        double[] theValues = new double[count];
+        for (int m = count - 1; m >= 0; m--) {
+            Ranked theRanked = best.poll();
+            theColumns[m] = theRanked.column;
+            theValues[m] = theRanked.value;
+        }
+        return new SimilarityRow(i, theColumns, theValues, theFile.getCollectionIdTable());
+    }
+
+    /**
+     * Get the k largest values of a row by collection id.
+     *
+     * @throws IllegalArgumentException if the collection isn't in the file.
+     */
+    public SimilarityRow topK(String collectionId, int k) {
+        return topK(getKnownIndex(collectionId), k);
+    }
+
+    private int getKnownIndex(String collectionId) {
+        int index = getIndex(collectionId);
+        if (index < 0) {
+            throw new IllegalArgumentException("Collection " + collectionId + " isn't in the similarity file");
+        }
+        return index;
+    }
+
+    /**
+     * Collects the values of a row into arrays that grow as needed.
+     */
+    private static class RowCollector implements MatrixProcedure {
+        int[] columns = new int[16];
+        double[] values = new double[16];
+        int count = 0;
+
+        public void apply(int r, int j, double value) {
+            if (count == columns.length) {
+                columns = Arrays.copyOf(columns, 2 * count);
+                values = Arrays.copyOf(values, 2 * count);
+            }
+            columns[count] = j;
+            values[count++] = value;
+        }
+    }
+
+    /**
+     * A value in a row, ordered the way the rank index is: a larger value, or the same
+     * value in an earlier column, is better.
+     */
+    private static class Ranked implements Comparable<Ranked> {
+        int column;
+        double value;
+
+        Ranked(int column, double value) {
+            this.column = column;
+            this.value = value;
+        }
+
+        public int compareTo(Ranked other) {
+            int byValue = Double.compare(value, other.value);
+            return byValue != 0 ? byValue : Integer.compare(other.column, column);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.renci.databridge.util;
+
+
+/**
+ * Some or all of the non zero values of one row of a similarity matrix, as returned by
+ * SimilarityQuery.  Each value is paired with its column and, if the file has them, the
+ * collection id of that column.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class SimilarityRow {
+
+    private int row;
+    private int[] columns;
+    private double[] values;
+    private CollectionIdTable collectionIds;
+
+    /**
+     * SimilarityRow constructor.
+     *
+     * @param row The row.
+     * @param columns The columns of the values.
+     * @param values The values.
+     * @param collectionIds The collection ids of the file in matrix order, or null.
+     */
+    public SimilarityRow(int row, int[] columns, double[] values, CollectionIdTable collectionIds) {
+        this.row = row;
+        this.columns = columns;
+        this.values = values;
+        this.collectionIds = collectionIds;
+    }
+
+    public int getRow() {
+        return row;
+    }
+
+    /**
+     * Get the number of values.
+     */
+    public int size() {
+        return columns.length;
+    }
+
+    public int getColumn(int m) {
+        return columns[m];
+    }
+
+    public double getValue(int m) {
+        return values[m];
+    }
+
+    /**
+     * Get the collection id of the column of a value.
+     *
+     * @return the id, or null if the file doesn't have the collection ids.
+     */
+    public String getCollectionId(int m) {
+        return (null == collectionIds) ? null : collectionIds.get(columns[m]);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder theString = new StringBuilder("row " + row + ":");
+        for (int m = 0; m < columns.length; m++) {
+            theString.append(" ").append(columns[m]).append("=").append(values[m]);
+        }
+        return theString.toString();
+    }
+}
@@ -0,0 +1,129 @@
+package org.renci.databridge.util;
+import java.io.IOException;
+import java.util.Arrays;
+import org.la4j.matrix.functor.*;
+
+
+/**
+ * A symmetric similarity matrix whose top half, the values with i <= j, is held by
+ * another SimilarityMatrix.  Any values the other matrix has below the diagonal are
+ * ignored, as they are when a symmetric SimilarityFile is written.
+ *
+ * The first time a whole row is asked for, an index of the stored values by column is
+ * built, which takes 12 bytes per value.  It isn't rebuilt if the other matrix changes.
+ *
+ * @author Howard Lander -RENCI (www.renci.org)
+ */
+public class SymmetricSimilarityMatrix implements SimilarityMatrix {
+
+    private SimilarityMatrix upper;
+
+    /** The rows and values of the stored values above the diagonal in each column */
+    private volatile int[] transposePointers;
+    private volatile int[] transposeRows;
+    private volatile double[] transposeValues;
+
+    /**
+     * SymmetricSimilarityMatrix constructor.
+     *
+     * @param upper The matrix holding the top half.  Closing this matrix closes it.
+     */
+    public SymmetricSimilarityMatrix(SimilarityMatrix upper) {
+        this.upper = upper;
+    }
+
+    public SimilarityMatrix getUpper() {
+        return upper;
+    }
+
+    public int getN() {
+        return upper.getN();
+    }
+
+    public boolean isSymmetric() {
+        return true;
+    }
+
+    public long getNonZeroCount() {
+        final long[] count = new long[1];
+        eachNonZero(new MatrixProcedure() {
+            public void apply(int i, int j, double value) {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    public double get(int i, int j) {
+        return (i > j) ? upper.get(j, i) : upper.get(i, j);
+    }
+
+    public void eachNonZero(final MatrixProcedure procedure) {
+        upper.eachNonZero(new MatrixProcedure() {
+            public void apply(int i, int j, double value) {
+                if (i <= j) {
+                    procedure.apply(i, j, value);
+                }
+            }
+        });
+    }
+
+    public void eachNonZeroInRow(final int i, final MatrixProcedure procedure) {
+        // The values left of the diagonal are stored in column i of the rows above.
+        buildTranspose();
+        for (int t = transposePointers[i]; t < transposePointers[i + 1]; t++) {
+            procedure.apply(i, transposeRows[t], transposeValues[t]);
+        }
+        upper.eachNonZeroInRow(i, new MatrixProcedure() {
+            public void apply(int r, int j, double value) {
+                if (j >= i) {
+                    procedure.apply(r, j, value);
+                }
+            }
+        });
+    }
+
+    /**
+     * Build the index of the values above the diagonal by column, each column sorted by
+     * row.
+     */
+    private synchronized void buildTranspose() {
+        if (null != transposeRows) {
+            return;
+        }
+        int n = upper.getN();
+        final int[] pointers = new int[n + 1];
+        upper.eachNonZero(new MatrixProcedure() {
+            public void apply(int i, int j, double value) {
+                if (i < j) {
+                    pointers[j + 1]++;
+                }
+            }
+        });
+        for (int j = 0; j < n; j++) {
+            pointers[j + 1] += pointers[j];
+        }
+        final int[] fill = Arrays.copyOf(pointers, n);
+        final int[] rows = new int[pointers[n]];
+        final double[] values = new double[pointers[n]];
+        upper.eachNonZero(new MatrixProcedure() {
+            public void apply(int i, int j, double value) {
+                if (i < j) {
+                    int t = fill[j]++;
+                    rows[t] = i;
+                    values[t] = value;
+                }
+            }
+        });
+        for (int j = 0; j < n; j++) {
+            HeapSimilarityMatrix.sortByColumn(rows, values, pointers[j], pointers[j + 1]);
+        }
+        transposePointers = pointers;
+        transposeValues = values;
+        transposeRows = rows;
+    }
+
+    public void close() throws IOException {
+        upper.close();
+    }
+}
@@ -50,6 +50,11 @@ public class MessageTest {
      System.out.println("headers are: " + headers);
      TestCase.assertTrue("returnedString value incorrect", headers.compareTo(return1) == 0);
 
+     return1 = "type:databridge;subtype:relevance;x-match:all;name:Create.SimilarityMatrix.Java.MetadataDB.URI;className:class1;nameSpace:systemTest;outputFile:file1;minSimilarity:0.5;topKPerRow:10";
+     headers = CreateSimilarityMatrixJavaMetadataDBURI.getSendHeaders("class1","systemTest", "file1", 0.5, 10);
+     System.out.println("headers are: " + headers);
+     TestCase.assertTrue("returnedString value incorrect", headers.compareTo(return1) == 0);
+
      return1 = "type:databridge;subtype:network;x-match:all;name:Insert.SimilarityMatrix.Java.URI.NetworkDB;inputURI:file1";
      headers = InsertSimilarityMatrixJavaURINetworkDB.getSendHeaders("file1");
      System.out.println("headers are: " + headers);
@@ -0,0 +1,79 @@
+package org.renci.databridge.util;
+
+import org.renci.databridge.util.*;
+import java.util.*;
+import java.io.File;
+import junit.framework.TestCase;
+import org.junit.Test;
+import java.nio.file.*;
+
+public class ExternalSimilarityBuilderTest {
+
+    public String nameSpace = "system_test";
+    public String testFileName = "testExternal.sim";
+
+    /**
+     * Add values in random order, with repeats, in a budget that forces several runs to
+     * disk, and check the file against a SimilarityFile built in memory.
+     */
+    @Test
+    public void testSpilledRuns() throws Exception {
+        checkBuilder(false, 32L * 20000, 100000);
+        checkBuilder(true, 32L * 20000, 100000);
+    }
+
+    /**
+     * Everything fits in the budget, so nothing is spilled.
+     */
+    @Test
+    public void testInMemory() throws Exception {
+        checkBuilder(false, ExternalSimilarityBuilder.DEFAULT_MEMORY_BUDGET, 5000);
+    }
+
+    private void checkBuilder(boolean isSymmetric, long memoryBudget, int nValues) throws Exception {
+        int n = 300;
+        Random random = new Random(11);
+        SimilarityFile expected = new SimilarityFile(n, nameSpace);
+        SimilarityFileWriter theWriter = new SimilarityFileWriter(testFileName, n, nameSpace, "1", isSymmetric);
+        ExternalSimilarityBuilder theBuilder = new ExternalSimilarityBuilder(theWriter, memoryBudget);
+        for (int k = 0; k < nValues; k++) {
+            int i = random.nextInt(n);
+            int j = random.nextInt(n);
+            // Small values so the same pair comes up again now and then.
+            double value = (1 + random.nextInt(100)) / 100.;
+            theBuilder.add(i, j, value);
+            if (!isSymmetric || i <= j) {
+                expected.setSimilarityValue(i, j, value);
+            }
+        }
+        int nRuns = theBuilder.getSpilledRunCount();
+        if (memoryBudget < 32L * nValues) {
+            TestCase.assertTrue(nRuns > 1);
+        } else {
+            TestCase.assertEquals(0, nRuns);
+        }
+        ArrayList<String> collectionIds = new ArrayList<String>();
+        for (int i = 0; i < n; i++) {
+            collectionIds.add("c" + i);
+        }
+        theBuilder.finish(collectionIds);
+
+        SimilarityFile readData = new SimilarityFile();
+        readData.readFromDisk(testFileName);
+        TestCase.assertEquals(isSymmetric, readData.isSymmetric());
+        TestCase.assertEquals(collectionIds, readData.getCollectionIds());
+        TestCase.assertEquals(expected.getSimilarityMatrix().cardinality(), readData.getSimilarityMatrix().cardinality());
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                TestCase.assertEquals(expected.getSimilarityMatrix().get(i, j),
+                                      readData.getSimilarityMatrix().get(i, j), 0.);
+            }
+        }
+
+        // No run files are left behind.
+        for (File theFile : new File(".").listFiles()) {
+            TestCase.assertFalse(theFile.getName().endsWith(".run"));
+        }
+        Files.deleteIfExists(Paths.get(testFileName));
+    }
+}
@@ -186,5 +186,35 @@ public class NetworkDataTest {
           System.out.println(e.toString());
         }
     }
+
+    @Test
+    public void testBuildMatrix() {
+        System.out.println("Testing matrix construction from the companion arrays");
+        RCDoubleMatrix2D comparisonMatrix = new RCDoubleMatrix2D(testMatrix);
+
+        // In row order, as writeToDisk writes them.
+        int[] rows = {0, 0, 0, 1, 1, 2, 2};
+        int[] cols = {0, 1, 2, 1, 2, 0, 2};
+        double[] vals = {1.0, .213, .36, 1.0, 3.6, .36, 1.0};
+        RCDoubleMatrix2D theMatrix = NetworkData.buildMatrix(3, rows, cols, vals);
+        TestCase.assertTrue("theMatrix != comparisonMatrix " +
+                             theMatrix.toString() +
+                             comparisonMatrix.toString(), theMatrix.equals(comparisonMatrix));
+        // The matrix can still be changed.
+        theMatrix.setQuick(1, 0, .5);
+        theMatrix.setQuick(0, 1, 0.);
+        TestCase.assertEquals(.5, theMatrix.getQuick(1, 0), 0.);
+        TestCase.assertEquals(0., theMatrix.getQuick(0, 1), 0.);
+        TestCase.assertEquals(3.6, theMatrix.getQuick(1, 2), 0.);
+
+        // Out of order, with a repeat.
+        int[] rows2 = {2, 0, 1, 0, 2, 1, 0, 2};
+        int[] cols2 = {2, 1, 2, 0, 0, 1, 2, 2};
+        double[] vals2 = {5., .213, 3.6, 1.0, .36, 1.0, .36, 1.0};
+        RCDoubleMatrix2D theMatrix2 = NetworkData.buildMatrix(3, rows2, cols2, vals2);
+        TestCase.assertTrue("theMatrix2 != comparisonMatrix " +
+                             theMatrix2.toString() +
+                             comparisonMatrix.toString(), theMatrix2.equals(comparisonMatrix));
+    }
 }
 
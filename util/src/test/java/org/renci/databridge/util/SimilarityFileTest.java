@@ -66,6 +66,292 @@ public class SimilarityFileTest {
         } catch (Exception e) {
             e.printStackTrace();
         }
-    } 
-}
+    }
+
+    @Test
+    public void testBinaryFormat() throws Exception {
+        String v2FileName = "testFile.v2";
+        String legacyFileName = "testFile.legacy";
+        int n = 50;
+        SimilarityFile theData = new SimilarityFile(n, nameSpace);
+        ArrayList<String> ids = new ArrayList<String>();
+        for (int i = 0; i < n; i++) {
+            ids.add("5451c5c2e4b0f0c2a6a9" + (1000 + i));
+            for (int j = i + 1; j < n; j += 1 + i % 7) {
+                theData.setSimilarityValue(i, j, (i * 31 + j) / 3000.);
+            }
+        }
+        theData.setSimilarityValue(n - 1, 0, .5);
+        theData.setSimilarityInstanceId(similiarityId);
+        theData.setCollectionIds(ids);
+
+        theData.writeToDisk(v2FileName);
+        TestCase.assertEquals(SimilarityFileFormat.VERSION, SimilarityFileFormat.getFormatVersion(v2FileName));
+        theData.writeToDisk(legacyFileName, SimilarityFileFormat.LEGACY_VERSION);
+        TestCase.assertEquals(SimilarityFileFormat.LEGACY_VERSION, SimilarityFileFormat.getFormatVersion(legacyFileName));
+
+        // Both versions read back the same, from a file or a URL.
+        String[] fileNames = {v2FileName, legacyFileName};
+        for (String fileName : fileNames) {
+            for (int how = 0; how < 2; how++) {
+                SimilarityFile readData = new SimilarityFile();
+                if (how == 0) {
+                    readData.readFromDisk(fileName);
+                } else {
+                    readData.readFromURL(new java.io.File(fileName).toURI().toString());
+                }
+                TestCase.assertEquals(nameSpace, readData.getNameSpace());
+                TestCase.assertEquals(similiarityId, readData.getSimilarityInstanceId());
+                TestCase.assertEquals(ids, readData.getCollectionIds());
+                TestCase.assertEquals(theData.getSimilarityMatrix().cardinality(),
+                                      readData.getSimilarityMatrix().cardinality());
+                for (int i = 0; i < n; i++) {
+                    for (int j = 0; j < n; j++) {
+                        TestCase.assertEquals(theData.getSimilarityMatrix().get(i, j),
+                                              readData.getSimilarityMatrix().get(i, j), 0.);
+                    }
+                }
+            }
+        }
+
+        // The mapped reader walks the values in place, in row order.
+        final SimilarityFile walked = new SimilarityFile(n, nameSpace);
+        final int[] lastEntry = {-1, -1};
+        try (MappedSimilarityFile theMappedFile = MappedSimilarityFile.open(v2FileName)) {
+            TestCase.assertEquals(n, theMappedFile.getN());
+            TestCase.assertEquals(ids, theMappedFile.getCollectionIds());
+            TestCase.assertEquals(.5, theMappedFile.get(n - 1, 0), 0.);
+            TestCase.assertEquals(0., theMappedFile.get(0, 0), 0.);
+            TestCase.assertEquals(theData.getSimilarityMatrix().get(3, 12), theMappedFile.get(3, 12), 0.);
+            theMappedFile.eachNonZero(new org.la4j.matrix.functor.MatrixProcedure() {
+                public void apply(int i, int j, double value) {
+                    TestCase.assertTrue(i > lastEntry[0] || (i == lastEntry[0] && j > lastEntry[1]));
+                    lastEntry[0] = i;
+                    lastEntry[1] = j;
+                    walked.setSimilarityValue(i, j, value);
+                }
+            });
+        }
+        TestCase.assertEquals(theData.getSimilarityMatrix(), walked.getSimilarityMatrix());
+
+        // A file with nothing in it.
+        SimilarityFile empty = new SimilarityFile(0, null);
+        empty.writeToDisk(v2FileName);
+        SimilarityFile readEmpty = new SimilarityFile();
+        readEmpty.readFromDisk(v2FileName);
+        TestCase.assertNull(readEmpty.getNameSpace());
+        TestCase.assertNull(readEmpty.getCollectionIds());
+        TestCase.assertEquals(0, readEmpty.getSimilarityMatrix().cardinality());
+
+        Files.deleteIfExists(FileSystems.getDefault().getPath("./", v2FileName));
+        Files.deleteIfExists(FileSystems.getDefault().getPath("./", legacyFileName));
+    }
+
+    @Test
+    public void testSymmetricFile() throws Exception {
+        String symmetricFileName = "testFile.symmetric";
+        int n = 40;
+        SimilarityFile theData = new SimilarityFile(n, nameSpace);
+        double[][] full = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = i; j < n; j += 1 + (i + j) % 5) {
+                full[i][j] = full[j][i] = (i + 1) * (j + 2) / 2000.;
+                theData.setSimilarityValue(i, j, full[i][j]);
+                // The bottom half is ignored by a symmetric file.
+                theData.setSimilarityValue(j, i, full[i][j]);
+            }
+        }
+        theData.setSymmetric(true);
+        theData.writeToDisk(symmetricFileName);
+
+        SimilarityFile readData = new SimilarityFile();
+        readData.readFromDisk(symmetricFileName);
+        TestCase.assertTrue(readData.isSymmetric());
+        final MappedSimilarityFile theMappedFile = MappedSimilarityFile.open(symmetricFileName);
+        TestCase.assertTrue(theMappedFile.isSymmetric());
+        TestCase.assertEquals(readData.getSimilarityMatrix().cardinality(), theMappedFile.getNonZeroCount());
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                TestCase.assertEquals(full[i][j], readData.getSimilarityValue(i, j), 0.);
+                TestCase.assertEquals(full[i][j], theMappedFile.get(i, j), 0.);
+                if (i > j) {
+                    TestCase.assertEquals(0., readData.getSimilarityMatrix().get(i, j), 0.);
+                }
+            }
+        }
+
+        // A whole row covers both halves, in column order.
+        for (int i = 0; i < n; i++) {
+            final double[] row = new double[n];
+            final int[] lastColumn = {-1};
+            final int thisRow = i;
+            theMappedFile.eachNonZeroInRow(i, new org.la4j.matrix.functor.MatrixProcedure() {
+                public void apply(int r, int j, double value) {
+                    TestCase.assertEquals(thisRow, r);
+                    TestCase.assertTrue(j > lastColumn[0]);
+                    lastColumn[0] = j;
+                    row[j] = value;
+                }
+            });
+            for (int j = 0; j < n; j++) {
+                TestCase.assertEquals(full[i][j], row[j], 0.);
+            }
+        }
+
+        // Each pair is visited once by eachNonZero.
+        final int[] visited = {0};
+        theMappedFile.eachNonZero(new org.la4j.matrix.functor.MatrixProcedure() {
+            public void apply(int i, int j, double value) {
+                TestCase.assertTrue(i <= j);
+                visited[0]++;
+            }
+        });
+        TestCase.assertEquals(theMappedFile.getNonZeroCount(), (long) visited[0]);
+        theMappedFile.close();
+        Files.deleteIfExists(FileSystems.getDefault().getPath("./", symmetricFileName));
+    }
 
+    @Test
+    public void testCompressedFile() throws Exception {
+        String compressedFileName = "testFile.compressed";
+        String plainFileName = "testFile.plain";
+        int n = 50;
+        Random random = new Random(17);
+        double[][] full = new double[n][n];
+        SimilarityFile theData = new SimilarityFile(n, nameSpace);
+        for (int i = 0; i < n; i++) {
+            for (int j = i; j < n; j++) {
+                if (random.nextInt(3) == 0) {
+                    // Rounded to 5 decimals the way Measure does, and small enough for
+                    // 16 bits to keep them exactly.
+                    full[i][j] = full[j][i] = Math.round(random.nextDouble() * .3 * 100000) / 100000.0;
+                    theData.setSimilarityValue(i, j, full[i][j]);
+                }
+            }
+        }
+        theData.setSymmetric(true);
+        theData.setCollectionIds(collectionList);
+        theData.writeToDisk(plainFileName);
+
+        int[] allBits = {64, 16, 8};
+        for (int valueBits : allBits) {
+            theData.setCompression(new SimilarityFileCompression(valueBits, 7));
+            theData.writeToDisk(compressedFileName);
+            TestCase.assertTrue(Files.size(Paths.get(compressedFileName)) < Files.size(Paths.get(plainFileName)));
+            // 8 bits isn't exact, but is within a step of the scale; a small value that
+            // would round to 0 is kept as one step.
+            double tolerance = (valueBits == 8) ? .3 / 127 : 0.;
+
+            SimilarityFile readData = new SimilarityFile();
+            readData.readFromDisk(compressedFileName);
+            TestCase.assertEquals(valueBits, readData.getCompression().getValueBits());
+            TestCase.assertEquals(7, readData.getCompression().getBlockRows());
+            TestCase.assertEquals(collectionList, readData.getCollectionIds());
+            MappedSimilarityFile theMappedFile = MappedSimilarityFile.open(compressedFileName);
+            TestCase.assertTrue(theMappedFile.getCompression().isCompressed());
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    TestCase.assertEquals(full[i][j], readData.getSimilarityValue(i, j), tolerance);
+                    TestCase.assertEquals(full[i][j], theMappedFile.get(i, j), tolerance);
+                    // Nothing that was there is lost to quantization.
+                    TestCase.assertEquals(full[i][j] != 0., theMappedFile.get(i, j) != 0.);
+                }
+            }
+
+            // Rows can be read in any order.
+            for (int i = n - 1; i >= 0; i -= 3) {
+                final double[] row = new double[n];
+                theMappedFile.eachNonZeroInRow(i, new org.la4j.matrix.functor.MatrixProcedure() {
+                    public void apply(int r, int j, double value) {
+                        row[j] = value;
+                    }
+                });
+                for (int j = 0; j < n; j++) {
+                    TestCase.assertEquals(full[i][j], row[j], tolerance);
+                }
+            }
+            theMappedFile.close();
+
+            // Writing what was read gives the same file.
+            readData.writeToDisk(plainFileName + ".again");
+            TestCase.assertTrue(Arrays.equals(Files.readAllBytes(Paths.get(compressedFileName)), 
+                                              Files.readAllBytes(Paths.get(plainFileName + ".again"))));
+        }
+
+        // Rows that are left out of the writer, including whole blocks, are empty.
+        SimilarityFileWriter theWriter = new SimilarityFileWriter(compressedFileName, n, nameSpace, similiarityId,
+            false, new SimilarityFileCompression(16, 4));
+        theWriter.beginRow(2);
+        theWriter.append(49, .5);
+        theWriter.endRow();
+        theWriter.beginRow(30);
+        theWriter.append(0, -.25);
+        theWriter.append(45, 1.);
+        theWriter.finish(null);
+        MappedSimilarityFile theMappedFile = MappedSimilarityFile.open(compressedFileName);
+        TestCase.assertEquals(.5, theMappedFile.get(2, 49), 1e-4);
+        TestCase.assertEquals(-.25, theMappedFile.get(30, 0), 1e-4);
+        TestCase.assertEquals(1., theMappedFile.get(30, 45), 1e-4);
+        TestCase.assertEquals(0., theMappedFile.get(29, 0), 0.);
+        TestCase.assertEquals(0., theMappedFile.get(49, 2), 0.);
+        TestCase.assertEquals(3L, theMappedFile.getNonZeroCount());
+        theMappedFile.close();
+
+        Files.deleteIfExists(Paths.get(compressedFileName));
+        Files.deleteIfExists(Paths.get(plainFileName));
+        Files.deleteIfExists(Paths.get(plainFileName + ".again"));
+    }
+
+    @Test
+    public void testPackedCollectionIds() throws Exception {
+        String packedFileName = "testFile.packed";
+        String stringFileName = "testFile.strings";
+        int n = 200;
+        Random random = new Random(3);
+        ArrayList<String> objectIds = new ArrayList<String>();
+        for (int i = 0; i < n; i++) {
+            objectIds.add(String.format("%08x%08x%08x", random.nextInt(), random.nextInt(), i));
+        }
+        SimilarityFile theData = new SimilarityFile(n, nameSpace);
+        theData.setSimilarityValue(0, n - 1, .5);
+        theData.setCollectionIds(objectIds);
+        theData.writeToDisk(packedFileName);
+
+        // One id that isn't an ObjectId and they are all written as Strings.
+        ArrayList<String> mixedIds = new ArrayList<String>(objectIds);
+        mixedIds.set(7, objectIds.get(7).toUpperCase());
+        theData.setCollectionIds(mixedIds);
+        theData.writeToDisk(stringFileName);
+        TestCase.assertTrue(Files.size(Paths.get(packedFileName)) + 12 * n < Files.size(Paths.get(stringFileName)));
+
+        SimilarityFile readData = new SimilarityFile();
+        readData.readFromDisk(packedFileName);
+        TestCase.assertEquals(objectIds, readData.getCollectionIds());
+        readData.readFromDisk(stringFileName);
+        TestCase.assertEquals(mixedIds, readData.getCollectionIds());
+
+        MappedSimilarityFile theMappedFile = MappedSimilarityFile.open(packedFileName);
+        CollectionIdTable theIds = theMappedFile.getCollectionIdTable();
+        TestCase.assertTrue(theIds.isPacked());
+        TestCase.assertEquals(n, theIds.size());
+        for (int i = 0; i < n; i++) {
+            TestCase.assertEquals(objectIds.get(i), theIds.get(i));
+            TestCase.assertEquals(i, theIds.indexOf(objectIds.get(i)));
+        }
+        TestCase.assertEquals(-1, theIds.indexOf(objectIds.get(7).toUpperCase()));
+        TestCase.assertEquals(-1, theIds.indexOf("not an id"));
+        TestCase.assertEquals(-1, theIds.indexOf("000000000000000000000000"));
+        TestCase.assertEquals(objectIds, theMappedFile.getCollectionIds());
+        theMappedFile.close();
+
+        theMappedFile = MappedSimilarityFile.open(stringFileName);
+        theIds = theMappedFile.getCollectionIdTable();
+        TestCase.assertFalse(theIds.isPacked());
+        TestCase.assertEquals(7, theIds.indexOf(mixedIds.get(7)));
+        TestCase.assertEquals(-1, theIds.indexOf(objectIds.get(7)));
+        theMappedFile.close();
+
+        Files.deleteIfExists(Paths.get(packedFileName));
+        Files.deleteIfExists(Paths.get(stringFileName));
+    }
+}
@@ -0,0 +1,183 @@
+package org.renci.databridge.util;
+
+import org.renci.databridge.util.*;
+import java.util.*;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.la4j.matrix.functor.*;
+import cern.colt.matrix.impl.RCDoubleMatrix2D;
+import java.nio.file.*;
+
+public class SimilarityMatrixTest {
+
+    public double[][] testMatrix = {
+                                    {1.0, .213, 0., .36},
+                                    {.213, 1.0, 3.6, 0.},
+                                    {0., 3.6, 1.0, 0.},
+                                    {.36, 0., 0., 0.}
+                                  };
+
+    public String testFileName = "testSimilarityMatrix.sim";
+
+    /**
+     * Every backend holding the same values gives the same answers.
+     */
+    @Test
+    public void testBackends() throws Exception {
+        SimilarityFile theFile = new SimilarityFile(testMatrix, "test");
+        checkMatrix(theFile.getMatrix(), false);
+        checkMatrix(new ColtSimilarityMatrix(new RCDoubleMatrix2D(testMatrix)), false);
+
+        HeapSimilarityMatrix theHeapMatrix = HeapSimilarityMatrix.copyOf(theFile.getMatrix());
+        checkMatrix(theHeapMatrix, false);
+        // Colt gives its values last row first; the copy is still in row order.
+        checkMatrix(HeapSimilarityMatrix.copyOf(new ColtSimilarityMatrix(new RCDoubleMatrix2D(testMatrix))), false);
+
+        // The library views of the heap matrix.
+        checkMatrix(new La4jSimilarityMatrix(theHeapMatrix.toCRSMatrix()), false);
+        TestCase.assertTrue(theHeapMatrix.toRCDoubleMatrix2D().equals(new RCDoubleMatrix2D(testMatrix)));
+
+        theFile.writeToDisk(testFileName);
+        try (MappedSimilarityFile theMappedFile = MappedSimilarityFile.open(testFileName)) {
+            checkMatrix(theMappedFile, false);
+        }
+        Files.deleteIfExists(Paths.get(testFileName));
+    }
+
+    /**
+     * The symmetric backends give the full matrix from the top half.
+     */
+    @Test
+    public void testSymmetric() throws Exception {
+        SimilarityFile theFile = new SimilarityFile(testMatrix, "test");
+        theFile.setSymmetric(true);
+        checkMatrix(theFile.getMatrix(), true);
+        checkMatrix(new SymmetricSimilarityMatrix(HeapSimilarityMatrix.copyOf(theFile.getMatrix())), true);
+        checkMatrix(new SymmetricSimilarityMatrix(new ColtSimilarityMatrix(new RCDoubleMatrix2D(testMatrix))), true);
+
+        theFile.writeToDisk(testFileName);
+        try (MappedSimilarityFile theMappedFile = MappedSimilarityFile.open(testFileName)) {
+            checkMatrix(theMappedFile, true);
+            // The index by column is a temporary file next to the similarity file.
+            TestCase.assertEquals(1, countColumnIndexes());
+        }
+        TestCase.assertEquals(0, countColumnIndexes());
+        Files.deleteIfExists(Paths.get(testFileName));
+    }
+
+    private int countColumnIndexes() throws Exception {
+        int count = 0;
+        try (DirectoryStream<Path> theFiles = 
+                Files.newDirectoryStream(Paths.get(testFileName).toAbsolutePath().getParent(), "*.columns")) {
+            for (Path thePath : theFiles) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Fill an off heap matrix the way the relevance engine does, in batches in any
+     * order, with values replaced and removed, and write it to a file.
+     */
+    @Test
+    public void testOffHeap() throws Exception {
+        int n = testMatrix.length;
+        OffHeapSimilarityMatrix theMatrix = new OffHeapSimilarityMatrix(n);
+        theMatrix.set(3, 3, 7.);
+        theMatrix.set(2, 1, 9.);
+        checkValue(theMatrix, 2, 1, 9.);
+
+        // Everything in reverse, in two batches, with (2, 1) replaced and (3, 3) removed.
+        int[] rows = new int[n * n];
+        int[] cols = new int[n * n];
+        double[] values = new double[n * n];
+        int count = 0;
+        for (int i = n - 1; i >= 0; i--) {
+            for (int j = n - 1; j >= 0; j--) {
+                rows[count] = i;
+                cols[count] = j;
+                values[count++] = testMatrix[i][j];
+            }
+        }
+        theMatrix.setValues(rows, cols, values, n);
+        int[] moreRows = Arrays.copyOfRange(rows, n, count);
+        int[] moreCols = Arrays.copyOfRange(cols, n, count);
+        double[] moreValues = Arrays.copyOfRange(values, n, count);
+        theMatrix.setValues(moreRows, moreCols, moreValues, count - n);
+        checkMatrix(theMatrix, false);
+
+        SimilarityFileWriter theWriter = new SimilarityFileWriter(testFileName, n, "test", null);
+        theWriter.appendRows(theMatrix);
+        theWriter.finish(null);
+        try (MappedSimilarityFile theMappedFile = MappedSimilarityFile.open(testFileName)) {
+            checkMatrix(theMappedFile, false);
+        }
+
+        // Only the top half goes in a symmetric file.
+        theWriter = new SimilarityFileWriter(testFileName, n, "test", null, true);
+        theWriter.appendRows(theMatrix);
+        theWriter.finish(null);
+        try (MappedSimilarityFile theMappedFile = MappedSimilarityFile.open(testFileName)) {
+            checkMatrix(theMappedFile, true);
+        }
+        Files.deleteIfExists(Paths.get(testFileName));
+        theMatrix.close();
+        TestCase.assertEquals(0, theMatrix.getNonZeroCount());
+    }
+
+    private void checkValue(SimilarityMatrix theMatrix, int i, int j, double value) {
+        TestCase.assertEquals(value, theMatrix.get(i, j), 0.);
+    }
+
+    private void checkMatrix(SimilarityMatrix theMatrix, boolean isSymmetric) {
+        int n = testMatrix.length;
+        TestCase.assertEquals(n, theMatrix.getN());
+        TestCase.assertEquals(isSymmetric, theMatrix.isSymmetric());
+        int nStored = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                TestCase.assertEquals(testMatrix[i][j], theMatrix.get(i, j), 0.);
+                if (testMatrix[i][j] != 0. && (!isSymmetric || i <= j)) {
+                    nStored++;
+                }
+            }
+        }
+        TestCase.assertEquals(nStored, theMatrix.getNonZeroCount());
+
+        final double[][] seen = new double[n][n];
+        final int[] count = new int[1];
+        theMatrix.eachNonZero(new MatrixProcedure() {
+            public void apply(int i, int j, double value) {
+                seen[i][j] = value;
+                count[0]++;
+            }
+        });
+        TestCase.assertEquals(nStored, count[0]);
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                TestCase.assertEquals((!isSymmetric || i <= j) ? testMatrix[i][j] : 0., seen[i][j], 0.);
+            }
+        }
+
+        // Each whole row, in column order.
+        for (int i = 0; i < n; i++) {
+            final ArrayList<Integer> columns = new ArrayList<Integer>();
+            final int row = i;
+            theMatrix.eachNonZeroInRow(i, new MatrixProcedure() {
+                public void apply(int r, int j, double value) {
+                    TestCase.assertEquals(row, r);
+                    TestCase.assertEquals(testMatrix[r][j], value, 0.);
+                    columns.add(j);
+                }
+            });
+            ArrayList<Integer> expected = new ArrayList<Integer>();
+            for (int j = 0; j < n; j++) {
+                if (testMatrix[i][j] != 0.) {
+                    expected.add(j);
+                }
+            }
+            TestCase.assertEquals(expected, columns);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.renci.databridge.util;
+
+import org.renci.databridge.util.*;
+import java.util.*;
+import junit.framework.TestCase;
+import org.junit.Test;
+import java.nio.file.*;
+
+public class SimilarityQueryTest {
+
+    public String nameSpace = "system_test";
+    public String testFileName = "testQuery.sim";
+
+    /**
+     * Write a random matrix both with and without a rank index and check the queries
+     * against the full matrix, for each kind of file.
+     */
+    @Test
+    public void testQueries() throws Exception {
+        int n = 30;
+        Random random = new Random(5);
+        ArrayList<String> collectionIds = new ArrayList<String>();
+        for (int i = 0; i < n; i++) {
+            collectionIds.add("collection" + i);
+        }
+
+        boolean[] allSymmetric = {false, true};
+        SimilarityFileCompression[] allCompression = {SimilarityFileCompression.NONE,
+                                                      new SimilarityFileCompression(16, 4)};
+        boolean[] allRanked = {false, true};
+        for (boolean isSymmetric : allSymmetric) {
+            double[][] full = new double[n][n];
+            SimilarityFile theData = new SimilarityFile(n, nameSpace);
+            for (int i = 0; i < n; i++) {
+                for (int j = isSymmetric ? i : 0; j < n; j++) {
+                    if (random.nextInt(3) == 0) {
+                        // Few distinct values, so there are ties to break.
+                        full[i][j] = (1 + random.nextInt(8)) / 10.;
+                        if (isSymmetric) {
+                            full[j][i] = full[i][j];
+                        }
+                        theData.setSimilarityValue(i, j, full[i][j]);
+                    }
+                }
+            }
+            theData.setSymmetric(isSymmetric);
+            theData.setCollectionIds(collectionIds);
+            for (SimilarityFileCompression compression : allCompression) {
+                for (boolean isRanked : allRanked) {
+                    theData.setCompression(compression);
+                    theData.setRanked(isRanked);
+                    theData.writeToDisk(testFileName);
+                    SimilarityQuery theQuery = SimilarityQuery.open(testFileName);
+                    TestCase.assertEquals(isRanked, theQuery.getFile().isRanked());
+                    // Reading the file keeps the rank index for when it's written again.
+                    SimilarityFile readData = new SimilarityFile();
+                    readData.readFromDisk(testFileName);
+                    TestCase.assertEquals(isRanked, readData.isRanked());
+                    checkQueries(theQuery, full, collectionIds);
+                    theQuery.close();
+                }
+            }
+        }
+        Files.deleteIfExists(Paths.get(testFileName));
+
+        // Ranking or reading whole rows of a symmetric file leaves nothing behind.
+        for (java.io.File theFile : new java.io.File(".").listFiles()) {
+            TestCase.assertFalse(theFile.getName().endsWith(".columns"));
+        }
+    }
+
+    private void checkQueries(SimilarityQuery theQuery, double[][] full, ArrayList<String> collectionIds) {
+        int n = full.length;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                TestCase.assertEquals(full[i][j], theQuery.get(i, j), 1e-4);
+            }
+            TestCase.assertEquals(full[i][n - 1 - i],
+                                  theQuery.get(collectionIds.get(i), collectionIds.get(n - 1 - i)), 1e-4);
+
+            // The whole row, in column order.
+            SimilarityRow theRow = theQuery.row(collectionIds.get(i));
+            int m = 0;
+            for (int j = 0; j < n; j++) {
+                if (full[i][j] != 0.) {
+                    TestCase.assertEquals(j, theRow.getColumn(m));
+                    TestCase.assertEquals(collectionIds.get(j), theRow.getCollectionId(m));
+                    TestCase.assertEquals(full[i][j], theRow.getValue(m), 1e-4);
+                    m++;
+                }
+            }
+            TestCase.assertEquals(m, theRow.size());
+
+            // The top k are the row sorted by value, ties by column.
+            ArrayList<Integer> expected = new ArrayList<Integer>();
+            for (int j = 0; j < n; j++) {
+                if (full[i][j] != 0.) {
+                    expected.add(j);
+                }
+            }
+            final double[] thisRow = full[i];
+            Collections.sort(expected, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    int byValue = Double.compare(thisRow[b], thisRow[a]);
+                    return byValue != 0 ? byValue : Integer.compare(a, b);
+                }
+            });
+            int[] allK = {0, 1, 3, n};
+            for (int k : allK) {
+                SimilarityRow theTop = theQuery.topK(i, k);
+                TestCase.assertEquals(Math.min(k, expected.size()), theTop.size());
+                for (int r = 0; r < theTop.size(); r++) {
+                    TestCase.assertEquals((int) expected.get(r), theTop.getColumn(r));
+                    TestCase.assertEquals(full[i][expected.get(r)], theTop.getValue(r), 1e-4);
+                }
+            }
+        }
+        try {
+            theQuery.topK(0, -1);
+            TestCase.fail("topK of a negative k");
+        } catch (IllegalArgumentException e) {
+        }
+        TestCase.assertEquals(-1, theQuery.getIndex("no such collection"));
+        try {
+            theQuery.topK("no such collection", 3);
+            TestCase.fail("topK of an unknown collection");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}